@@ -0,0 +1,651 @@
+package pro.dbro.ble;
+
+import android.app.Application;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.net.Uri;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.test.ApplicationTestCase;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import pro.dbro.ble.crypto.KeyPair;
+import pro.dbro.ble.crypto.SodiumShaker;
+import pro.dbro.ble.data.ContentProviderStore;
+import pro.dbro.ble.data.DataStore;
+import pro.dbro.ble.data.MessageSearch;
+import pro.dbro.ble.data.WriteBehindQueue;
+import pro.dbro.ble.data.model.ChatContentProvider;
+import pro.dbro.ble.data.model.ChatDatabase;
+import pro.dbro.ble.data.model.Message;
+import pro.dbro.ble.data.model.MessageTable;
+import pro.dbro.ble.data.model.Peer;
+import pro.dbro.ble.data.model.PeerTable;
+import pro.dbro.ble.protocol.BLEProtocol;
+import pro.dbro.ble.protocol.BodyCodec;
+import pro.dbro.ble.protocol.MessagePacket;
+import pro.dbro.ble.protocol.MessagePacketView;
+import pro.dbro.ble.protocol.OwnedIdentityPacket;
+import pro.dbro.ble.util.RandomString;
+
+/**
+ * Throughput benchmarks. Results are reported to logcat under {@link #TAG}.
+ */
+public class BenchmarkTest extends ApplicationTestCase<Application> {
+    public static final String TAG = "BenchmarkTest";
+
+    public BenchmarkTest() {
+        super(Application.class);
+    }
+
+    /** Short chat messages, as typed */
+    private static final String[] CHAT_CORPUS = new String[] {
+            "hey",
+            "Hey, are you at the meetup?",
+            "yeah I'm here, by the door",
+            "ok cool, see you in a few",
+            "lol",
+            "Where is everyone?",
+            "We're going to get food after this, want to come?",
+            "I can't make it tonight, sorry!",
+            "no worries, let me know when you're free",
+            "Does anyone have a charger? My phone is about to die",
+            "thanks for coming out today everyone",
+            "what time does the show start?",
+            "I think it starts at 8 but doors open at 7",
+            "Is the train still running? It's been 20 minutes",
+            "The power is out on this side of the street too",
+            "meet at the fountain in 10",
+            "haha that was great",
+            "I'll be there soon, just getting coffee",
+            "Have you seen my keys? I think I left them at the bar",
+            "Good morning! Anyone want to get breakfast?",
+            "omg the line is so long",
+            "ok I'm heading home now, good night",
+            "Can someone send me the address again please",
+            "Tomorrow works for me, what about 3pm?",
+    };
+
+    /**
+     * Tables the app's DataStore writes, deliveries first. Rows a benchmark adds are deleted
+     * in {@link #tearDown()}, so they don't pile up in the app's database
+     */
+    private static final Uri[] APP_TABLES = new Uri[] {
+            ChatContentProvider.MessageDeliveries.MESSAGE_DELIVERIES,
+            ChatContentProvider.IdentityDeliveries.IDENTITY_DELIVERIES,
+            ChatContentProvider.Messages.MESSAGES,
+            ChatContentProvider.Peers.PEERS
+    };
+    private static final String ROW_ID = "_id";
+
+    BLEProtocol bleProtocol = new BLEProtocol();
+    OwnedIdentityPacket mSenderIdentity;
+    /** Greatest row id of each of {@link #APP_TABLES} before the benchmark */
+    long[] mMaxRowIds;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        KeyPair keyPair = SodiumShaker.generateKeyPair();
+        mSenderIdentity = new OwnedIdentityPacket(keyPair.secretKey, keyPair.publicKey,
+                new RandomString(BLEProtocol.ALIAS_LENGTH).nextString(), null);
+
+        mMaxRowIds = new long[APP_TABLES.length];
+        for (int x = 0; x < APP_TABLES.length; x++) {
+            mMaxRowIds[x] = queryMaxRowId(APP_TABLES[x]);
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (int x = 0; x < APP_TABLES.length; x++) {
+            getContext().getContentResolver().delete(APP_TABLES[x], ROW_ID + " > ?",
+                                                     new String[] {String.valueOf(mMaxRowIds[x])});
+        }
+        super.tearDown();
+    }
+
+    /**
+     * Inbound message signature verification in batches of 1 to 50 packets,
+     * the most a peer sends per message phase.
+     */
+    public void testBatchVerificationThroughput() {
+        final int numPackets = 50;
+        final int rounds = 10;
+        final int[] batchSizes = new int[] { 1, 5, 10, 25, 50 };
+
+        List<MessagePacketView> packets = new ArrayList<>(numPackets);
+        RandomString bodies = new RandomString(BLEProtocol.MESSAGE_BODY_LENGTH);
+        for (int x = 0; x < numPackets; x++) {
+            byte[] rawPacket = bleProtocol.serializeMessage(mSenderIdentity, bodies.nextString()).rawPacket;
+            packets.add(bleProtocol.viewUnverifiedMessage(rawPacket));
+        }
+
+        for (int batchSize : batchSizes) {
+            long start = System.nanoTime();
+            for (int round = 0; round < rounds; round++) {
+                for (int batchStart = 0; batchStart < numPackets; batchStart += batchSize) {
+                    List<MessagePacketView> batch = packets.subList(batchStart, Math.min(numPackets, batchStart + batchSize));
+                    boolean[] results = bleProtocol.verifySignatures(batch);
+                    for (boolean result : results) assertTrue(result);
+                }
+            }
+            double elapsedSeconds = (System.nanoTime() - start) / 1e9;
+            Log.i(TAG, String.format("Verify batch size %2d : %.0f packets/sec", batchSize, (numPackets * rounds) / elapsedSeconds));
+        }
+    }
+
+    /**
+     * Time for a client and host {@link ChatPeerFlow} to exchange a backlog of messages over
+     * a simulated link: stop-and-wait with one packet per frame, then bundled frames, then bundled
+     * frames pipelined, then pipelined over a lossy link, then pipelined in duplex.
+     */
+    public void testFlowCompletionTime() {
+        final int numMessages = 50;
+
+        ContentProviderStore dataStore = new ContentProviderStore(getContext());
+        prepareDataStore(dataStore);
+
+        // { bundle frame size, max frames in flight, percent of sends failing, duplex }
+        int[][] configurations = new int[][] {
+                { 0,                                               1, 0,  0 },
+                { ChatPeerFlow.Options.DEFAULT_BUNDLE_FRAME_SIZE, 1, 0,  0 },
+                { ChatPeerFlow.Options.DEFAULT_BUNDLE_FRAME_SIZE, ChatPeerFlow.Options.DEFAULT_MAX_FRAMES_IN_FLIGHT, 0,  0 },
+                { ChatPeerFlow.Options.DEFAULT_BUNDLE_FRAME_SIZE, ChatPeerFlow.Options.DEFAULT_MAX_FRAMES_IN_FLIGHT, 10, 0 },
+                { ChatPeerFlow.Options.DEFAULT_BUNDLE_FRAME_SIZE, ChatPeerFlow.Options.DEFAULT_MAX_FRAMES_IN_FLIGHT, 0,  1 },
+        };
+        for (int[] configuration : configurations) {
+            // Queue a fresh backlog, as each flow marks what it sends delivered
+            RandomString bodies = new RandomString(BLEProtocol.MESSAGE_BODY_LENGTH);
+            for (int x = 0; x < numMessages; x++) {
+                dataStore.createOrUpdateMessageWithProtocolMessage(bleProtocol.serializeMessage(mSenderIdentity, bodies.nextString())).close();
+            }
+
+            ChatPeerFlow.Options options = new ChatPeerFlow.Options();
+            options.bundleFrameSize = configuration[0];
+            options.maxFramesInFlight = configuration[1];
+            options.duplex = configuration[3] == 1;
+            // Both flows share one DataStore, so each already holds everything the other would send
+            options.sendInventory = false;
+
+            SimulatedLink link = new SimulatedLink(configuration[2] / 100.0);
+            long start = System.nanoTime();
+            link.connect(dataStore, options);
+            link.run();
+            double flowMs = (System.nanoTime() - start) / 1e6;
+            dataStore.getWriteQueue().awaitIdle();
+            double elapsedMs = (System.nanoTime() - start) / 1e6;
+
+            assertTrue(link.isComplete());
+            Log.i(TAG, String.format("Flow frame size %4d, window %d, %2d%% loss, %s : %3d frames, %6d bytes, %6.0f ms simulated link time, %6.0f ms processing, %6.0f ms until written",
+                    configuration[0], configuration[1], configuration[2], options.duplex ? "duplex" : "sequential",
+                    link.frames, link.bytes, link.now, flowMs, elapsedMs));
+        }
+        WriteBehindQueue writeQueue = dataStore.getWriteQueue();
+        Log.i(TAG, String.format("Flow writes : %d batches, max queue depth %d, %d ms mean / %d ms max latency",
+                writeQueue.getCommittedCount(), writeQueue.getMaxDepth(),
+                writeQueue.getAverageLatencyMs(), writeQueue.getMaxLatencyMs()));
+    }
+
+    /**
+     * The queries a flow issues don't grow with the number of messages already delivered
+     */
+    public void testFlowQueryCount() {
+        final int numDeliveredMessages = 200;
+
+        ContentProviderStore dataStore = new ContentProviderStore(getContext());
+        Peer localPeer = prepareDataStore(dataStore);
+
+        ChatPeerFlow.Options options = new ChatPeerFlow.Options();
+        options.sendInventory = false;
+
+        // Deliver any backlog, so the flows compared below have nothing to send
+        int queries = countFlowQueries(dataStore, options);
+        int previousQueries;
+        do {
+            previousQueries = queries;
+            queries = countFlowQueries(dataStore, options);
+        } while (queries != previousQueries);
+
+        RandomString bodies = new RandomString(BLEProtocol.MESSAGE_BODY_LENGTH);
+        for (int x = 0; x < numDeliveredMessages; x++) {
+            MessagePacket message = bleProtocol.serializeMessage(mSenderIdentity, bodies.nextString());
+            dataStore.createOrUpdateMessageWithProtocolMessage(message).close();
+            dataStore.markMessageDeliveredToPeer(message, localPeer.getIdentity());
+        }
+
+        assertEquals(queries, countFlowQueries(dataStore, options));
+        Log.i(TAG, String.format("Flow with nothing to send : %d queries", queries));
+    }
+
+    /**
+     * Many simultaneous encounters between distinct identities run to completion on a {@link FlowEngine},
+     * each peer's events in order and never two at once, while different peers' run in parallel
+     */
+    public void testConcurrentFlows() throws InterruptedException {
+        final int numLinks = 24;
+        final int numMessages = 20;
+        final long timeoutMs = 60 * 1000;
+
+        ContentProviderStore dataStore = new ContentProviderStore(getContext());
+        prepareDataStore(dataStore);
+        RandomString bodies = new RandomString(BLEProtocol.MESSAGE_BODY_LENGTH);
+        for (int x = 0; x < numMessages; x++) {
+            dataStore.createOrUpdateMessageWithProtocolMessage(bleProtocol.serializeMessage(mSenderIdentity, bodies.nextString())).close();
+        }
+
+        ChatPeerFlow.Options options = new ChatPeerFlow.Options();
+        options.sendInventory = false;
+
+        FlowEngine engine = new FlowEngine();
+        List<ConcurrentLink> links = new ArrayList<>(numLinks);
+        for (int x = 0; x < numLinks; x++) {
+            links.add(new ConcurrentLink(engine, x, createStoreWithNewIdentity(), createStoreWithNewIdentity()));
+        }
+        long start = System.nanoTime();
+        for (ConcurrentLink link : links) {
+            link.connect(options);
+        }
+
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        for (ConcurrentLink link : links) {
+            while (!link.isComplete() && link.getError() == null && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertNull(link.getError());
+            assertTrue("Flow did not complete in " + timeoutMs + " ms", link.isComplete());
+        }
+        for (ConcurrentLink link : links) {
+            link.awaitIdle();
+        }
+        double elapsedMs = (System.nanoTime() - start) / 1e6;
+        engine.shutdown();
+
+        Log.i(TAG, String.format("%d concurrent flows on %d workers : %6.0f ms, at most %d tasks at once",
+                numLinks * 2, engine.getWorkerCount(), elapsedMs, engine.getMaxConcurrency()));
+    }
+
+    /**
+     * @return the number of queries issued by a flow run to completion
+     */
+    private int countFlowQueries(ContentProviderStore dataStore, ChatPeerFlow.Options options) {
+        int start = dataStore.getQueryCount();
+        SimulatedLink link = new SimulatedLink(0);
+        link.connect(dataStore, options);
+        link.run();
+        assertTrue(link.isComplete());
+        dataStore.getWriteQueue().awaitIdle();
+        return dataStore.getQueryCount() - start;
+    }
+
+    /**
+     * Ensure dataStore holds a primary identity, which both ends of a {@link SimulatedLink} share,
+     * and a peer for {@link #mSenderIdentity}, the author of test messages
+     *
+     * @return the primary identity
+     */
+    private Peer prepareDataStore(DataStore dataStore) {
+        if (dataStore.getPrimaryLocalPeer() == null)
+            dataStore.createLocalPeerWithAlias(new RandomString(BLEProtocol.ALIAS_LENGTH).nextString(), bleProtocol);
+
+        dataStore.createOrUpdateRemotePeerWithProtocolIdentity(bleProtocol.deserializeIdentity(bleProtocol.serializeIdentity(mSenderIdentity)));
+        return dataStore.getPrimaryLocalPeer();
+    }
+
+    /**
+     * @return a store of the app database whose flows speak as a newly generated identity,
+     * rather than the primary identity
+     */
+    private ContentProviderStore createStoreWithNewIdentity() {
+        KeyPair keyPair = SodiumShaker.generateKeyPair();
+        final OwnedIdentityPacket identity = new OwnedIdentityPacket(keyPair.secretKey, keyPair.publicKey,
+                new RandomString(BLEProtocol.ALIAS_LENGTH).nextString(), null);
+        return new ContentProviderStore(getContext()) {
+            @Override
+            public synchronized OwnedIdentityPacket getPrimaryLocalIdentity() {
+                return identity;
+            }
+        };
+    }
+
+    /**
+     * @return the greatest row id in table, or 0 if it is empty
+     */
+    private long queryMaxRowId(Uri table) {
+        Cursor cursor = getContext().getContentResolver().query(table, new String[] {ROW_ID}, null, null,
+                                                                 ROW_ID + " DESC LIMIT 1");
+        try {
+            return cursor != null && cursor.moveToFirst() ? cursor.getLong(0) : 0;
+        } finally {
+            if (cursor != null) cursor.close();
+        }
+    }
+
+    /**
+     * Connects a client and host {@link ChatPeerFlow} over a simulated link.
+     * Frames are transmitted one at a time in each direction at {@link #BYTES_PER_MS}, reach the receiver
+     * {@link #ROUND_TRIP_MS} / 2 later, and are acknowledged to the sender after as long again.
+     * A failed frame is reported failed to the sender and never reaches the receiver.
+     */
+    private static class SimulatedLink {
+        static final int ROUND_TRIP_MS = 50;
+        static final int BYTES_PER_MS  = 4;
+
+        private static class Event {
+            final double time;
+            final boolean fromClient;
+            final boolean isDelivery;
+            final byte[] data;
+            final Exception exception;
+
+            Event(double time, boolean fromClient, boolean isDelivery, byte[] data, Exception exception) {
+                this.time = time;
+                this.fromClient = fromClient;
+                this.isDelivery = isDelivery;
+                this.data = data;
+                this.exception = exception;
+            }
+        }
+
+        private final PriorityQueue<Event> mEvents = new PriorityQueue<>(16, new Comparator<Event>() {
+            @Override
+            public int compare(Event lhs, Event rhs) {
+                return Double.compare(lhs.time, rhs.time);
+            }
+        });
+        private final Random mRandom = new Random(0);
+        private final double mFailureRate;
+        private ChatPeerFlow mClient;
+        private ChatPeerFlow mHost;
+        private double mClientLinkFreeAt;
+        private double mHostLinkFreeAt;
+
+        int frames;
+        int bytes;
+        double now;
+
+        SimulatedLink(double failureRate) {
+            mFailureRate = failureRate;
+        }
+
+        void connect(DataStore dataStore, ChatPeerFlow.Options options) {
+            ChatPeerFlow.Callback callback = new ChatPeerFlow.Callback() {
+                @Override
+                public void onAppPeerStatusUpdated(@NonNull ChatPeerFlow flow, @NonNull Peer peer, @NonNull ConnectionStatus status) {}
+
+                @Override
+                public void onMessageSent(@NonNull ChatPeerFlow flow, @NonNull Message message, @NonNull Peer recipient) {}
+
+                @Override
+                public void onMessageReceived(@NonNull ChatPeerFlow flow, @NonNull Message message, @Nullable Peer sender) {}
+            };
+            BLEProtocol protocol = new BLEProtocol();
+            // The client sends its identity on construction, so the host's outlet must not need it yet
+            mHost   = new ChatPeerFlow(dataStore, protocol, outletFor(false), null, false, callback, options);
+            mClient = new ChatPeerFlow(dataStore, protocol, outletFor(true), null, true, callback, options);
+        }
+
+        void run() {
+            try {
+                while (!mEvents.isEmpty()) {
+                    Event event = mEvents.poll();
+                    now = event.time;
+                    if (event.isDelivery)
+                        (event.fromClient ? mHost : mClient).onDataReceived(event.data);
+                    else
+                        (event.fromClient ? mClient : mHost).onDataSent(event.data, event.exception);
+                }
+            } catch (ChatPeerFlow.UnexpectedDataException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        boolean isComplete() {
+            return mClient.isComplete() && mHost.isComplete();
+        }
+
+        private ChatPeerFlow.DataOutlet outletFor(final boolean fromClient) {
+            return new ChatPeerFlow.DataOutlet() {
+                @Override
+                public void sendData(pro.dbro.airshare.session.Peer peer, byte[] data) {
+                    frames++;
+                    bytes += data.length;
+
+                    double linkFreeAt = Math.max(now, fromClient ? mClientLinkFreeAt : mHostLinkFreeAt) + data.length / (double) BYTES_PER_MS;
+                    if (fromClient) mClientLinkFreeAt = linkFreeAt; else mHostLinkFreeAt = linkFreeAt;
+                    double deliveredAt = linkFreeAt + ROUND_TRIP_MS / 2.0;
+                    if (mRandom.nextDouble() < mFailureRate) {
+                        mEvents.add(new Event(deliveredAt + ROUND_TRIP_MS / 2.0, fromClient, false, data, new IOException("Simulated failure")));
+                        return;
+                    }
+                    mEvents.add(new Event(deliveredAt, fromClient, true, data, null));
+                    mEvents.add(new Event(deliveredAt + ROUND_TRIP_MS / 2.0, fromClient, false, data, null));
+                }
+            };
+        }
+    }
+
+    /**
+     * Connects a client and host {@link ChatPeerFlow}, each with its own store, through a {@link FlowEngine}
+     * as ChatClient does. Each flow is created, and each frame sent is delivered to the receiver and
+     * acknowledged to the sender, on their lanes. Records an error if two events of one flow ever overlap.
+     */
+    private static class ConcurrentLink {
+        private final FlowEngine mEngine;
+        private final String mClientKey;
+        private final String mHostKey;
+        private final DataStore mClientStore;
+        private final DataStore mHostStore;
+        private final AtomicInteger mClientEvents = new AtomicInteger();
+        private final AtomicInteger mHostEvents = new AtomicInteger();
+        private volatile ChatPeerFlow mClient;
+        private volatile ChatPeerFlow mHost;
+        private volatile boolean mClientComplete;
+        private volatile boolean mHostComplete;
+        private volatile Throwable mError;
+
+        ConcurrentLink(FlowEngine engine, int index, DataStore clientStore, DataStore hostStore) {
+            mEngine = engine;
+            mClientKey = "client-" + index;
+            mHostKey = "host-" + index;
+            mClientStore = clientStore;
+            mHostStore = hostStore;
+        }
+
+        void connect(final ChatPeerFlow.Options options) {
+            final ChatPeerFlow.Callback callback = new ChatPeerFlow.Callback() {
+                @Override
+                public void onAppPeerStatusUpdated(@NonNull ChatPeerFlow flow, @NonNull Peer peer, @NonNull ConnectionStatus status) {}
+
+                @Override
+                public void onMessageSent(@NonNull ChatPeerFlow flow, @NonNull Message message, @NonNull Peer recipient) {}
+
+                @Override
+                public void onMessageReceived(@NonNull ChatPeerFlow flow, @NonNull Message message, @Nullable Peer sender) {}
+            };
+            final BLEProtocol protocol = new BLEProtocol();
+            // The client sends its identity on construction, so the host must be created
+            // on its lane before anything the client sends is delivered there
+            mEngine.execute(mHostKey, new Runnable() {
+                @Override
+                public void run() {
+                    mHost = new ChatPeerFlow(mHostStore, protocol, outletFor(false), null, false, callback, options);
+                }
+            });
+            mEngine.execute(mClientKey, new Runnable() {
+                @Override
+                public void run() {
+                    mClient = new ChatPeerFlow(mClientStore, protocol, outletFor(true), null, true, callback, options);
+                }
+            });
+        }
+
+        /**
+         * Block until both stores have written everything the flows queued
+         */
+        void awaitIdle() {
+            mClientStore.getWriteQueue().awaitIdle();
+            mHostStore.getWriteQueue().awaitIdle();
+        }
+
+        boolean isComplete() {
+            return mClientComplete && mHostComplete;
+        }
+
+        @Nullable
+        Throwable getError() {
+            return mError;
+        }
+
+        private ChatPeerFlow.DataOutlet outletFor(final boolean fromClient) {
+            return new ChatPeerFlow.DataOutlet() {
+                @Override
+                public void sendData(pro.dbro.airshare.session.Peer peer, final byte[] data) {
+                    runOnFlow(!fromClient, new FlowEvent() {
+                        @Override
+                        public boolean run(ChatPeerFlow flow) throws ChatPeerFlow.UnexpectedDataException {
+                            return flow.onDataReceived(data);
+                        }
+                    });
+                    runOnFlow(fromClient, new FlowEvent() {
+                        @Override
+                        public boolean run(ChatPeerFlow flow) throws ChatPeerFlow.UnexpectedDataException {
+                            return flow.onDataSent(data, null);
+                        }
+                    });
+                }
+            };
+        }
+
+        private interface FlowEvent {
+            /** @return whether flow is complete */
+            boolean run(ChatPeerFlow flow) throws ChatPeerFlow.UnexpectedDataException;
+        }
+
+        private void runOnFlow(final boolean client, final FlowEvent event) {
+            mEngine.execute(client ? mClientKey : mHostKey, new Runnable() {
+                @Override
+                public void run() {
+                    AtomicInteger events = client ? mClientEvents : mHostEvents;
+                    if (events.incrementAndGet() != 1)
+                        mError = new IllegalStateException("Overlapping events for one flow");
+                    try {
+                        boolean complete = event.run(client ? mClient : mHost);
+                        if (client) mClientComplete = complete; else mHostComplete = complete;
+                    } catch (Throwable t) {
+                        mError = t;
+                    } finally {
+                        events.decrementAndGet();
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * {@link MessageSearch} latency over 100k messages built from {@link #CHAT_CORPUS}, in a scratch
+     * in-memory database with the app's search schema: a common word, a rare word, a prefix
+     * and two words together
+     */
+    public void testSearchLatency() {
+        final int numMessages = 100000;
+        final int numPeers = 100;
+        final int rounds = 20;
+        final int limit = 50;
+
+        SQLiteDatabase db = SQLiteDatabase.create(null);
+        // The generated helper creates the app's schema, so the benchmark can't drift from it
+        pro.dbro.ble.schematic.ChatDatabase.getInstance(getContext()).onCreate(db);
+
+        Random random = new Random(0);
+        RandomString words = new RandomString(6);
+        long start = System.nanoTime();
+        db.beginTransaction();
+        try {
+            SQLiteStatement insertPeer = db.compileStatement("INSERT INTO " + ChatDatabase.PEERS + " (" + PeerTable.alias + ", " +
+                    PeerTable.lastSeenDate + ", " + PeerTable.pubKey + ") VALUES (?, 0, ?)");
+            for (int x = 0; x < numPeers; x++) {
+                insertPeer.bindString(1, "peer" + x);
+                insertPeer.bindBlob(2, new byte[] { (byte) x });
+                insertPeer.executeInsert();
+            }
+
+            SQLiteStatement insertMessage = db.compileStatement("INSERT INTO " + ChatDatabase.MESSAGES + " (" + MessageTable.body + ", " +
+                    MessageTable.peerId + ", " + MessageTable.authoredDate + ", " + MessageTable.receivedDate + ", " + MessageTable.signature +
+                    ") VALUES (?, ?, ?, ?, ?)");
+            for (int x = 0; x < numMessages; x++) {
+                // A corpus message, and a random word making it distinct
+                insertMessage.bindString(1, CHAT_CORPUS[random.nextInt(CHAT_CORPUS.length)] + " " + words.nextString());
+                insertMessage.bindLong(2, 1 + random.nextInt(numPeers));
+                insertMessage.bindLong(3, x);
+                insertMessage.bindLong(4, x);
+                insertMessage.bindBlob(5, ByteBuffer.allocate(4).putInt(x).array());
+                insertMessage.executeInsert();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        Log.i(TAG, String.format("Search : indexed %d messages in %.0f ms", numMessages, (System.nanoTime() - start) / 1e6));
+
+        String[] queries = new String[] { "the", "charger", "break", "train running", "peer7" };
+        for (String query : queries) {
+            int numResults = 0;
+            start = System.nanoTime();
+            for (int x = 0; x < rounds; x++) {
+                Cursor results = MessageSearch.search(db, query, limit);
+                numResults = results.getCount();
+                results.close();
+            }
+            assertTrue(numResults > 0);
+            Log.i(TAG, String.format("Search '%s' : %d results, %.1f ms per query", query, numResults, (System.nanoTime() - start) / 1e6 / rounds));
+        }
+        db.close();
+    }
+
+    /**
+     * {@link BodyCodec} compression ratio and encode / decode throughput over {@link #CHAT_CORPUS}
+     */
+    public void testBodyCompression() throws Exception {
+        final int rounds = 2000;
+
+        byte[][] corpus = new byte[CHAT_CORPUS.length][];
+        byte[][] encoded = new byte[CHAT_CORPUS.length][];
+        int plainBytes = 0;
+        int encodedBytes = 0;
+        for (int x = 0; x < CHAT_CORPUS.length; x++) {
+            corpus[x] = CHAT_CORPUS[x].getBytes("UTF-8");
+            encoded[x] = BodyCodec.encode(corpus[x], corpus[x].length);
+            assertEquals(CHAT_CORPUS[x], new String(BodyCodec.decode(encoded[x], 0, encoded[x].length), "UTF-8"));
+            plainBytes += corpus[x].length;
+            encodedBytes += encoded[x].length;
+        }
+
+        long start = System.nanoTime();
+        for (int round = 0; round < rounds; round++) {
+            for (byte[] text : corpus) BodyCodec.encode(text, text.length);
+        }
+        double encodeSeconds = (System.nanoTime() - start) / 1e9;
+
+        start = System.nanoTime();
+        for (int round = 0; round < rounds; round++) {
+            for (byte[] text : encoded) BodyCodec.decode(text, 0, text.length);
+        }
+        double decodeSeconds = (System.nanoTime() - start) / 1e9;
+
+        Log.i(TAG, String.format("Body compression ratio : %.2f (%d -> %d bytes)", encodedBytes / (double) plainBytes, plainBytes, encodedBytes));
+        Log.i(TAG, String.format("Body encode : %.0f messages/sec, %.2f MB/sec", (CHAT_CORPUS.length * rounds) / encodeSeconds, (plainBytes * rounds) / encodeSeconds / 1e6));
+        Log.i(TAG, String.format("Body decode : %.0f messages/sec, %.2f MB/sec", (CHAT_CORPUS.length * rounds) / decodeSeconds, (plainBytes * rounds) / decodeSeconds / 1e6));
+        assertTrue(encodedBytes < plainBytes);
+    }
+}
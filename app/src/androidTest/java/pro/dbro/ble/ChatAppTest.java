@@ -2,24 +2,61 @@ package pro.dbro.ble;
 
 import android.app.Application;
 import android.content.ContentValues;
+import android.database.ContentObserver;
 import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
 import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.test.ApplicationTestCase;
 
 import java.io.IOException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import pro.dbro.ble.crypto.KeyPair;
 import pro.dbro.ble.crypto.SodiumShaker;
 import pro.dbro.ble.data.ContentProviderStore;
+import pro.dbro.ble.data.DataStore;
+import pro.dbro.ble.data.PeerCache;
+import pro.dbro.ble.data.PublicKey;
+import pro.dbro.ble.data.Signature;
+import pro.dbro.ble.data.WriteBehindQueue;
 import pro.dbro.ble.data.model.ChatContentProvider;
-import pro.dbro.ble.data.model.DataUtil;
+import pro.dbro.ble.data.model.ChatDatabase;
+import pro.dbro.ble.data.model.ChatDatabaseMigrations;
+import pro.dbro.ble.data.model.IdentityDeliveryTable;
+import pro.dbro.ble.data.model.Message;
+import pro.dbro.ble.data.model.MessageCollection;
+import pro.dbro.ble.data.model.MessageDeliveryTable;
+import pro.dbro.ble.data.model.MessageTable;
 import pro.dbro.ble.data.model.Peer;
 import pro.dbro.ble.data.model.PeerTable;
 import pro.dbro.ble.protocol.BLEProtocol;
+import pro.dbro.ble.protocol.BodyCodec;
+import pro.dbro.ble.protocol.HeaderCodec;
 import pro.dbro.ble.protocol.IdentityPacket;
+import pro.dbro.ble.protocol.IdentityPacketView;
+import pro.dbro.ble.protocol.InventoryPacket;
 import pro.dbro.ble.protocol.MessagePacket;
+import pro.dbro.ble.protocol.MessagePacketView;
+import pro.dbro.ble.protocol.NoDataPacket;
 import pro.dbro.ble.protocol.OwnedIdentityPacket;
 import pro.dbro.ble.util.RandomString;
 
@@ -35,18 +72,54 @@ public class ChatAppTest extends ApplicationTestCase<Application> {
     OwnedIdentityPacket mSenderIdentity;
     boolean mCreatedNewPrimaryIdentity;
     BLEProtocol bleProtocol = new BLEProtocol();
-    ContentProviderStore dataStore;
+    DataStore dataStore;
 
     protected void setUp() throws Exception {
         super.setUp();
 
-        mApp = new ChatClient(getContext());
-        dataStore = new ContentProviderStore(getContext());
+        dataStore = createDataStore();
+        mApp = new ChatClient(getContext(), dataStore);
         String username = new RandomString(BLEProtocol.ALIAS_LENGTH).nextString();
         KeyPair keyPair =  SodiumShaker.generateKeyPair();
         mSenderIdentity = new OwnedIdentityPacket(keyPair.secretKey, keyPair.publicKey, username, null);
     }
 
+    /**
+     * @return the {@link DataStore} under test. Subclasses override to run these tests against another store
+     */
+    protected DataStore createDataStore() {
+        return new ContentProviderStore(getContext());
+    }
+
+    /**
+     * @return a store like {@link #createDataStore()}'s, on which the first failures calls to
+     * {@link DataStore#commitBatch} throw
+     */
+    protected DataStore createDataStoreFailingCommits(final int failures) {
+        return new ContentProviderStore(getContext()) {
+            int mFailures = failures;
+
+            @Override
+            public List<byte[]> commitBatch(@NonNull Batch batch) {
+                if (mFailures-- > 0) throw new SQLiteException("Simulated commit failure");
+                return super.commitBatch(batch);
+            }
+        };
+    }
+
+    /**
+     * @return a store like {@link #createDataStore()}'s whose flows speak as identity, rather than
+     * the primary identity
+     */
+    protected DataStore createDataStoreWithIdentity(final OwnedIdentityPacket identity) {
+        return new ContentProviderStore(getContext()) {
+            @Override
+            public synchronized OwnedIdentityPacket getPrimaryLocalIdentity() {
+                return identity;
+            }
+        };
+    }
+
     @Override
     protected void tearDown() throws Exception {
         super.tearDown();
@@ -65,7 +138,7 @@ public class ChatAppTest extends ApplicationTestCase<Application> {
 
         assertEquals(parsedIdentityPacket.alias, mSenderIdentity.alias);
         assertEquals(Arrays.equals(parsedIdentityPacket.publicKey, mSenderIdentity.publicKey), true);
-        assertDateIsRecent(parsedIdentityPacket.dateSeen);
+        assertTimestampIsRecent(parsedIdentityPacket.timestampSeen);
     }
 
     /**
@@ -80,7 +153,180 @@ public class ChatAppTest extends ApplicationTestCase<Application> {
 
         assertEquals(messageBody, parsedMessagePacket.body);
         assertEquals(Arrays.equals(parsedMessagePacket.sender.publicKey, mSenderIdentity.publicKey), true);
-        assertDateIsRecent(parsedMessagePacket.authoredDate);
+        assertTimestampIsRecent(parsedMessagePacket.authoredTimestamp);
+    }
+
+    /**
+     * {@link pro.dbro.ble.protocol.MessagePacket} -> byte[] -> {@link pro.dbro.ble.protocol.MessagePacketView}
+     */
+    public void testViewMessageResponse() {
+        String messageBody = new RandomString(BLEProtocol.MESSAGE_BODY_LENGTH).nextString();
+
+        MessagePacket messageResponse = bleProtocol.serializeMessage(mSenderIdentity, messageBody);
+
+        MessagePacketView messageView = bleProtocol.viewMessage(messageResponse.rawPacket);
+
+        assertEquals(messageBody, messageView.getBody());
+        assertEquals(messageView.hasPublicKey(mSenderIdentity.publicKey), true);
+        assertEquals(Arrays.equals(messageView.getSignature(), messageResponse.signature), true);
+        assertSame(messageResponse.rawPacket, messageView.getRawPacket());
+        assertTimestampIsRecent(messageView.getTimestamp());
+    }
+
+    /**
+     * A repeated packet is served from the verified packet cache, while a packet reusing
+     * a cached signature over altered content is still rejected
+     */
+    public void testVerifiedPacketCache() {
+        BLEProtocol protocol = new BLEProtocol(8);
+        String messageBody = new RandomString(BLEProtocol.MESSAGE_BODY_LENGTH).nextString();
+        byte[] rawPacket = protocol.serializeMessage(mSenderIdentity, messageBody).rawPacket;
+
+        int hits = protocol.getVerifiedSignatureCache().getHitCount();
+        protocol.viewMessage(rawPacket);
+        assertEquals(protocol.getVerifiedSignatureCache().getHitCount(), hits + 1);
+
+        byte[] tamperedPacket = Arrays.copyOf(rawPacket, rawPacket.length);
+        tamperedPacket[tamperedPacket.length - SodiumShaker.crypto_sign_BYTES - 1] ^= 0x01;
+        try {
+            protocol.viewMessage(tamperedPacket);
+            fail("Tampered message passed verification");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    /**
+     * NoData packets are reused within the freshness window and re-signed once it lapses
+     */
+    public void testNoDataPacketReuse() {
+        BLEProtocol protocol = new BLEProtocol();
+
+        NoDataPacket first = protocol.serializeNoDataPacket(mSenderIdentity);
+        assertSame(first, protocol.serializeNoDataPacket(mSenderIdentity));
+
+        protocol.setNoDataFreshness(0);
+        NoDataPacket fresh = protocol.serializeNoDataPacket(mSenderIdentity);
+        assertNotSame(first, fresh);
+        assertEquals(Arrays.equals(protocol.deserializeNoDataPacket(fresh.rawPacket).signature, fresh.signature), true);
+    }
+
+    /**
+     * Protocol version 2 messages carry only the body bytes, and a reply signature only when present
+     */
+    public void testVersion2MessageEncoding() {
+        String messageBody = "Hey, are you at the meetup?";
+        MessagePacket message = bleProtocol.serializeMessage(mSenderIdentity, messageBody);
+
+        assertEquals(message.rawPacket[0], BLEProtocol.VERSION_2);
+        assertTrue(message.rawPacket.length < BLEProtocol.MESSAGE_RESPONSE_LENGTH / 2);
+        assertEquals(messageBody, bleProtocol.deserializeMessage(message.rawPacket).body);
+
+        MessagePacket reply = bleProtocol.serializeMessage(mSenderIdentity, messageBody, message.signature);
+        assertEquals(reply.rawPacket.length, message.rawPacket.length + SodiumShaker.crypto_sign_BYTES);
+
+        MessagePacketView replyView = bleProtocol.viewMessage(reply.rawPacket);
+        assertTrue(replyView.hasReplySignature());
+        assertEquals(Arrays.equals(replyView.getReplySignature(), message.signature), true);
+        assertEquals(messageBody, replyView.getBody());
+    }
+
+    /**
+     * Compressed bodies are signed and relayed compressed, and decode to the original text
+     */
+    public void testCompressedMessageBody() {
+        String messageBody = "Hey, are you going to the meetup tonight? I think it's at the good coffee place";
+        MessagePacket plain = bleProtocol.serializeMessage(mSenderIdentity, messageBody, null, false);
+        MessagePacket compressed = bleProtocol.serializeMessage(mSenderIdentity, messageBody, null, true);
+
+        assertTrue(compressed.rawPacket.length < plain.rawPacket.length);
+        assertEquals(messageBody, compressed.body);
+        assertEquals(messageBody, bleProtocol.deserializeMessage(compressed.rawPacket).body);
+
+        // Text with no dictionary matches falls back to literals and survives a round trip
+        byte[] unicode = "\u00e9t\u00e9 \u2603 \uD83D\uDE00".getBytes();
+        byte[] encoded = BodyCodec.encode(unicode, unicode.length);
+        assertEquals(Arrays.equals(BodyCodec.decode(encoded, 0, encoded.length), unicode), true);
+    }
+
+    /**
+     * Protocol version 1 packets from older peers still decode
+     */
+    public void testDecodeVersion1Message() {
+        String messageBody = "Sent from an older client";
+        byte[] message = new byte[BLEProtocol.MESSAGE_RESPONSE_LENGTH];
+        int writeIndex = 0;
+        writeIndex += HeaderCodec.writeVersion(message, writeIndex, BLEProtocol.VERSION_1);
+        writeIndex += HeaderCodec.writeType(message, writeIndex, MessagePacket.TYPE);
+        writeIndex += HeaderCodec.writeTimestamp(message, writeIndex, System.currentTimeMillis());
+        System.arraycopy(mSenderIdentity.publicKey, 0, message, writeIndex, mSenderIdentity.publicKey.length);
+        writeIndex += mSenderIdentity.publicKey.length;
+        // Space-padded body followed by an empty reply_signature
+        Arrays.fill(message, writeIndex, writeIndex + BLEProtocol.MESSAGE_BODY_LENGTH, (byte) 0x20);
+        byte[] bodyAsBytes = messageBody.getBytes();
+        System.arraycopy(bodyAsBytes, 0, message, writeIndex, bodyAsBytes.length);
+        writeIndex += BLEProtocol.MESSAGE_BODY_LENGTH + SodiumShaker.crypto_sign_BYTES;
+
+        byte[] signature = SodiumShaker.generateSignatureForMessage(mSenderIdentity.secretKey, message, writeIndex);
+        System.arraycopy(signature, 0, message, writeIndex, signature.length);
+
+        MessagePacket parsedMessagePacket = bleProtocol.deserializeMessage(message);
+        assertEquals(messageBody, parsedMessagePacket.body);
+        assertEquals(Arrays.equals(parsedMessagePacket.signature, signature), true);
+        assertTimestampIsRecent(parsedMessagePacket.authoredTimestamp);
+    }
+
+    /**
+     * An inventory reports every advertised signature, and few others
+     */
+    public void testInventoryFilter() {
+        List<byte[]> heldSignatures = new ArrayList<>();
+        for (int x = 0; x < 200; x++) {
+            heldSignatures.add(bleProtocol.serializeMessage(mSenderIdentity, "held " + x).signature);
+        }
+
+        InventoryPacket inventory = bleProtocol.deserializeInventory(bleProtocol.serializeInventory(heldSignatures).rawPacket);
+        for (byte[] signature : heldSignatures) {
+            assertTrue(inventory.mightContain(signature));
+        }
+
+        int falsePositives = 0;
+        int numProbes = 1000;
+        for (int x = 0; x < numProbes; x++) {
+            if (inventory.mightContain(bleProtocol.serializeMessage(mSenderIdentity, "not held " + x).signature))
+                falsePositives++;
+        }
+        assertTrue(falsePositives < numProbes * InventoryPacket.FALSE_POSITIVE_RATE * 3);
+    }
+
+    /**
+     * Identities advertise the capabilities they are serialized with
+     */
+    public void testIdentityCapabilities() {
+        IdentityPacketView duplexIdentity = bleProtocol.viewIdentity(
+                bleProtocol.serializeIdentity(mSenderIdentity, IdentityPacketView.CAPABILITY_DUPLEX));
+        assertTrue(duplexIdentity.hasCapability(IdentityPacketView.CAPABILITY_DUPLEX));
+        assertEquals(mSenderIdentity.alias, duplexIdentity.getAlias());
+
+        IdentityPacketView sequentialIdentity = bleProtocol.viewIdentity(
+                bleProtocol.serializeIdentity(mSenderIdentity, (byte) 0));
+        assertFalse(sequentialIdentity.hasCapability(IdentityPacketView.CAPABILITY_DUPLEX));
+    }
+
+    /**
+     * Header fields survive a {@link pro.dbro.ble.protocol.HeaderCodec} round trip little-endian
+     */
+    public void testHeaderCodecRoundTrip() {
+        byte[] buffer = new byte[HeaderCodec.TIMESTAMP_LENGTH + 1];
+        long timestamp = 0x0102030405060708L;
+
+        assertEquals(HeaderCodec.writeTimestamp(buffer, 1, timestamp), HeaderCodec.TIMESTAMP_LENGTH);
+        assertEquals(buffer[1], (byte) 0x08);
+        assertEquals(buffer[HeaderCodec.TIMESTAMP_LENGTH], (byte) 0x01);
+        assertEquals(HeaderCodec.readTimestamp(buffer, 1), timestamp);
+
+        HeaderCodec.writeTimestamp(buffer, 0, -1L);
+        assertEquals(HeaderCodec.readTimestamp(buffer, 0), -1L);
     }
 
     /** Application Tests **/
@@ -140,7 +386,7 @@ public class ChatAppTest extends ApplicationTestCase<Application> {
         byte[] fakePubKey = new byte[] { (byte) 0x01 };
         ContentValues stubPeer = new ContentValues();
         stubPeer.put(PeerTable.alias, "test");
-        stubPeer.put(PeerTable.lastSeenDate, DataUtil.storedDateFormatter.format(new Date()));
+        stubPeer.put(PeerTable.lastSeenDate, System.currentTimeMillis());
         stubPeer.put(PeerTable.pubKey, fakePubKey);
         Uri stubPeerUri = getContext().getContentResolver().insert(ChatContentProvider.Peers.PEERS, stubPeer);
 
@@ -182,8 +428,1135 @@ public class ChatAppTest extends ApplicationTestCase<Application> {
                 });
         assertEquals(numDeleted ,1);
     }
+
+    /**
+     * Outgoing messages are selected in a single query, excluding those delivered to the recipient
+     */
+    public void testOutgoingMessagesQuery() {
+        dataStore.createOrUpdateRemotePeerWithProtocolIdentity(bleProtocol.deserializeIdentity(bleProtocol.serializeIdentity(mSenderIdentity)));
+        Peer recipient = createRemotePeer();
+
+        MessagePacket delivered = bleProtocol.serializeMessage(mSenderIdentity, new RandomString(BLEProtocol.MESSAGE_BODY_LENGTH).nextString());
+        MessagePacket undelivered = bleProtocol.serializeMessage(mSenderIdentity, new RandomString(BLEProtocol.MESSAGE_BODY_LENGTH).nextString());
+        dataStore.createOrUpdateMessageWithProtocolMessage(delivered).close();
+        dataStore.createOrUpdateMessageWithProtocolMessage(undelivered).close();
+        dataStore.markMessageDeliveredToPeer(delivered, recipient.getIdentity());
+
+        int queries = dataStore.getQueryCount();
+        List<MessagePacket> outgoing = dataStore.getOutgoingMessagesForPeer(recipient, Integer.MAX_VALUE);
+        assertEquals(queries + 1, dataStore.getQueryCount());
+
+        MessagePacket outgoingUndelivered = null;
+        for (MessagePacket message : outgoing) {
+            assertFalse(Arrays.equals(message.signature, delivered.signature));
+            if (Arrays.equals(message.signature, undelivered.signature)) outgoingUndelivered = message;
+        }
+        assertNotNull(outgoingUndelivered);
+        assertEquals(undelivered.body, outgoingUndelivered.body);
+        assertEquals(mSenderIdentity.alias, outgoingUndelivered.sender.alias);
+        assertTrue(Arrays.equals(mSenderIdentity.publicKey, outgoingUndelivered.sender.publicKey));
+
+        assertEquals(1, dataStore.getOutgoingMessagesForPeer(recipient, 1).size());
+    }
+
+    /**
+     * Outgoing identities are selected in a single query, excluding the recipient's own
+     * and those delivered to it, up to the requested count
+     */
+    public void testOutgoingIdentitiesQuery() {
+        Peer recipient = createRemotePeer();
+        IdentityPacket delivered = createRemotePeer().getIdentity();
+        IdentityPacket undelivered = createRemotePeer().getIdentity();
+        dataStore.markIdentityDeliveredToPeer(delivered, recipient.getIdentity());
+
+        int queries = dataStore.getQueryCount();
+        List<IdentityPacket> outgoing = dataStore.getOutgoingIdentitiesForPeer(recipient, Integer.MAX_VALUE);
+        assertEquals(queries + 1, dataStore.getQueryCount());
+
+        boolean foundUndelivered = false;
+        for (IdentityPacket identity : outgoing) {
+            assertFalse(Arrays.equals(identity.publicKey, delivered.publicKey));
+            assertFalse(Arrays.equals(identity.publicKey, recipient.getPublicKey()));
+            foundUndelivered |= Arrays.equals(identity.publicKey, undelivered.publicKey);
+        }
+        assertTrue(foundUndelivered);
+
+        assertEquals(1, dataStore.getOutgoingIdentitiesForPeer(recipient, 1).size());
+    }
+
+    /**
+     * Dates are stored as epoch milliseconds, so timestamps survive storage exactly
+     */
+    public void testDatesStoredAsEpochMillis() {
+        dataStore.createOrUpdateRemotePeerWithProtocolIdentity(bleProtocol.deserializeIdentity(bleProtocol.serializeIdentity(mSenderIdentity)));
+        MessagePacket packet = bleProtocol.serializeMessage(mSenderIdentity, new RandomString(BLEProtocol.MESSAGE_BODY_LENGTH).nextString());
+        dataStore.createOrUpdateMessageWithProtocolMessage(packet).close();
+
+        Message message = dataStore.getMessageBySignature(packet.signature);
+        assertEquals(packet.authoredTimestamp, message.getAuthoredTimestamp());
+        assertEquals(packet.authoredTimestamp, message.getAuthoredDate().getTime());
+        message.close();
+
+        Peer sender = dataStore.getPeerByPubKey(mSenderIdentity.publicKey);
+        assertTimestampIsRecent(sender.getLastDateSeen().getTime());
+    }
+
+    /**
+     * Hot lookups are served by the indexes {@link ChatDatabaseMigrations} creates
+     */
+    public void testQueryPlansUseIndexes() {
+        SQLiteDatabase db = pro.dbro.ble.schematic.ChatDatabase.getInstance(getContext()).getReadableDatabase();
+
+        assertQueryUsesIndex(db, ChatDatabaseMigrations.INDEX_MESSAGE_SIGNATURE,
+                "SELECT * FROM msgs WHERE sig = X'01'");
+        assertQueryUsesIndex(db, ChatDatabaseMigrations.INDEX_PEER_PUBLIC_KEY,
+                "SELECT * FROM peers WHERE pk = X'01'");
+        assertQueryUsesIndex(db, ChatDatabaseMigrations.INDEX_MESSAGE_RECEIVED_DATE,
+                "SELECT sig FROM msgs ORDER BY recv_date DESC LIMIT 10");
+        assertQueryUsesIndex(db, ChatDatabaseMigrations.INDEX_MESSAGE_PEER_RECEIVED,
+                "SELECT _id FROM msgs WHERE p_id = 1 AND recv_date <= 10 AND (recv_date < 10 OR _id < 5) " +
+                "ORDER BY recv_date DESC, _id DESC LIMIT 50");
+        assertQueryUsesIndex(db, ChatDatabaseMigrations.INDEX_MESSAGE_DELIVERY,
+                "SELECT pkt FROM msgs WHERE NOT EXISTS " +
+                "(SELECT 1 FROM m_dlvry WHERE m_dlvry.m_id = msgs._id AND m_dlvry.p_id = 1) " +
+                "ORDER BY author_date ASC LIMIT 50");
+        assertQueryUsesIndex(db, ChatDatabaseMigrations.INDEX_IDENTITY_DELIVERY,
+                "SELECT pkt FROM peers WHERE NOT EXISTS " +
+                "(SELECT 1 FROM p_dlvry WHERE p_dlvry.pr_id = 1 AND p_dlvry.pp_id = peers._id) " +
+                "ORDER BY last_seen DESC LIMIT 10");
+    }
+
+    /**
+     * The unique delivery index rejects a repeated delivery
+     */
+    public void testDuplicateDeliveryRejected() {
+        Peer recipient = createRemotePeer();
+        IdentityPacket payload = createRemotePeer().getIdentity();
+
+        dataStore.markIdentityDeliveredToPeer(payload, recipient.getIdentity());
+        dataStore.markIdentityDeliveredToPeer(payload, recipient.getIdentity());
+
+        Cursor deliveries = getContext().getContentResolver().query(ChatContentProvider.IdentityDeliveries.IDENTITY_DELIVERIES,
+                null,
+                IdentityDeliveryTable.peerRecipientId + " = ?",
+                new String[] {String.valueOf(recipient.getId())},
+                null);
+        assertNotNull(deliveries);
+        assertEquals(1, deliveries.getCount());
+        deliveries.close();
+    }
+
+    /**
+     * A batch stores a new sender with its message, and deliveries referring to both,
+     * reporting only messages it newly stored
+     */
+    public void testCommitBatch() {
+        Peer recipient = createRemotePeer();
+        IdentityPacket sender = bleProtocol.deserializeIdentity(bleProtocol.serializeIdentity(mSenderIdentity));
+        MessagePacket message = bleProtocol.serializeMessage(mSenderIdentity, new RandomString(BLEProtocol.MESSAGE_BODY_LENGTH).nextString());
+
+        DataStore.Batch batch = dataStore.beginBatch();
+        batch.createOrUpdateRemotePeer(sender);
+        batch.createOrUpdateMessage(message);
+        batch.createOrUpdateMessage(message);
+        batch.markMessageDeliveredToPeer(message, recipient.getIdentity());
+        batch.markIdentityDeliveredToPeer(sender, recipient.getIdentity());
+
+        List<byte[]> newMessages = dataStore.commitBatch(batch);
+        assertEquals(1, newMessages.size());
+        assertTrue(Arrays.equals(message.signature, newMessages.get(0)));
+
+        Message stored = dataStore.getMessageBySignature(message.signature);
+        assertNotNull(stored);
+        assertEquals(message.body, stored.getBody());
+        stored.close();
+
+        for (MessagePacket outgoing : dataStore.getOutgoingMessagesForPeer(recipient, Integer.MAX_VALUE))
+            assertFalse(Arrays.equals(message.signature, outgoing.signature));
+        for (IdentityPacket outgoing : dataStore.getOutgoingIdentitiesForPeer(recipient, Integer.MAX_VALUE))
+            assertFalse(Arrays.equals(sender.publicKey, outgoing.publicKey));
+
+        // Committing the same writes again stores nothing new
+        batch = dataStore.beginBatch();
+        batch.createOrUpdateMessage(message);
+        batch.markMessageDeliveredToPeer(message, recipient.getIdentity());
+        assertEquals(0, dataStore.commitBatch(batch).size());
+    }
+
+    /**
+     * Two threads commit batches at once. Each commit notifies observers after it is committed,
+     * so the last notification observed finds every peer either thread stored
+     */
+    public void testConcurrentCommitsNotifyOnceCommitted() throws InterruptedException {
+        final int numWriters = 2;
+        final int numBatches = 50;
+        final int expectedPeers = dataStore.countPeers() + numWriters * numBatches;
+
+        HandlerThread observerThread = new HandlerThread("PeerObserver");
+        observerThread.start();
+        final AtomicInteger observedPeers = new AtomicInteger(-1);
+        ContentObserver observer = new ContentObserver(new Handler(observerThread.getLooper())) {
+            @Override
+            public void onChange(boolean selfChange) {
+                observedPeers.set(dataStore.countPeers());
+            }
+        };
+        getContext().getContentResolver().registerContentObserver(ChatContentProvider.Peers.PEERS, true, observer);
+        try {
+            final IdentityPacket[][] identities = new IdentityPacket[numWriters][numBatches];
+            for (IdentityPacket[] writerIdentities : identities) {
+                for (int x = 0; x < numBatches; x++) writerIdentities[x] = createRemoteIdentity();
+            }
+            Thread[] writers = new Thread[numWriters];
+            for (int w = 0; w < numWriters; w++) {
+                final IdentityPacket[] writerIdentities = identities[w];
+                writers[w] = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (IdentityPacket identity : writerIdentities) {
+                            DataStore.Batch batch = dataStore.beginBatch();
+                            batch.createOrUpdateRemotePeer(identity);
+                            dataStore.commitBatch(batch);
+                        }
+                    }
+                });
+            }
+            for (Thread writer : writers) writer.start();
+            for (Thread writer : writers) writer.join();
+
+            long deadline = System.currentTimeMillis() + 5000;
+            while (observedPeers.get() != expectedPeers && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(expectedPeers, observedPeers.get());
+        } finally {
+            getContext().getContentResolver().unregisterContentObserver(observer);
+            observerThread.quit();
+        }
+    }
+
+    /**
+     * Reads reflect a batch as soon as it is enqueued, before the writer commits it
+     */
+    public void testEnqueuedBatchReadYourWrites() {
+        dataStore.createOrUpdateRemotePeerWithProtocolIdentity(bleProtocol.deserializeIdentity(bleProtocol.serializeIdentity(mSenderIdentity)));
+        Peer recipient = createRemotePeer();
+        MessagePacket message = bleProtocol.serializeMessage(mSenderIdentity, new RandomString(BLEProtocol.MESSAGE_BODY_LENGTH).nextString());
+        WriteBehindQueue writeQueue = dataStore.getWriteQueue();
+        long committed = writeQueue.getCommittedCount();
+
+        KeyPair newPeerKeys = SodiumShaker.generateKeyPair();
+        IdentityPacket newPeer = bleProtocol.deserializeIdentity(bleProtocol.serializeIdentity(new OwnedIdentityPacket(
+                newPeerKeys.secretKey, newPeerKeys.publicKey, new RandomString(BLEProtocol.ALIAS_LENGTH).nextString(), null)));
+
+        DataStore.Batch batch = dataStore.beginBatch();
+        batch.createOrUpdateRemotePeer(newPeer);
+        batch.createOrUpdateMessage(message);
+        batch.markMessageDeliveredToPeer(message, recipient.getIdentity());
+        final List<byte[]> newMessages = new ArrayList<>();
+        dataStore.enqueueBatch(batch, new WriteBehindQueue.Callback() {
+            @Override
+            public void onCommitted(@NonNull List<byte[]> newMessageSignatures) {
+                newMessages.addAll(newMessageSignatures);
+            }
+        });
+
+        assertTrue(Arrays.equals(message.signature, dataStore.getRecentMessageSignatures(1).get(0)));
+        for (MessagePacket outgoing : dataStore.getOutgoingMessagesForPeer(recipient, Integer.MAX_VALUE))
+            assertFalse(Arrays.equals(message.signature, outgoing.signature));
+
+        // Pending writes are read without waiting for the writer
+        Message pending = dataStore.getMessageBySignature(message.signature);
+        assertNotNull(pending);
+        assertEquals(message.body, pending.getBody());
+        pending.close();
+        Peer pendingPeer = dataStore.getPeerByPubKey(newPeer.publicKey);
+        assertNotNull(pendingPeer);
+        assertEquals(newPeer.alias, pendingPeer.getAlias());
+
+        writeQueue.awaitIdle();
+        Message stored = dataStore.getMessageBySignature(message.signature);
+        assertTrue(stored.getId() != Message.UNSTORED_ID);
+        stored.close();
+        assertTrue(dataStore.getPeerByPubKey(newPeer.publicKey).getId() != Peer.UNSTORED_ID);
+        assertEquals(0, writeQueue.getDepth());
+        assertEquals(committed + 1, writeQueue.getCommittedCount());
+        assertEquals(1, newMessages.size());
+        assertTrue(Arrays.equals(message.signature, newMessages.get(0)));
+    }
+
+    /**
+     * A batch whose commit fails is retried rather than dropped, and its callback notified
+     */
+    public void testEnqueuedBatchRetriedAfterFailure() {
+        DataStore failingStore = createDataStoreFailingCommits(1);
+        MessagePacket message = bleProtocol.serializeMessage(mSenderIdentity, new RandomString(BLEProtocol.MESSAGE_BODY_LENGTH).nextString());
+        WriteBehindQueue writeQueue = failingStore.getWriteQueue();
+
+        DataStore.Batch batch = failingStore.beginBatch();
+        batch.createOrUpdateRemotePeer(bleProtocol.deserializeIdentity(bleProtocol.serializeIdentity(mSenderIdentity)));
+        batch.createOrUpdateMessage(message);
+        final List<byte[]> newMessages = new ArrayList<>();
+        failingStore.enqueueBatch(batch, new WriteBehindQueue.Callback() {
+            @Override
+            public void onCommitted(@NonNull List<byte[]> newMessageSignatures) {
+                newMessages.addAll(newMessageSignatures);
+            }
+        });
+
+        writeQueue.awaitIdle();
+        assertEquals(1, writeQueue.getRetriedCount());
+        assertEquals(0, writeQueue.getDroppedCount());
+        assertEquals(1, writeQueue.getCommittedCount());
+        assertEquals(1, newMessages.size());
+        assertTrue(Arrays.equals(message.signature, newMessages.get(0)));
+
+        Message stored = dataStore.getMessageBySignature(message.signature);
+        assertNotNull(stored);
+        stored.close();
+    }
+
+    /**
+     * Messages are found by words of their body, ranked, with the offsets of each match,
+     * and by their sender's alias once it changes
+     */
+    public void testSearchMessages() {
+        IdentityPacket sender = bleProtocol.deserializeIdentity(bleProtocol.serializeIdentity(mSenderIdentity));
+        dataStore.createOrUpdateRemotePeerWithProtocolIdentity(sender);
+        String word = new RandomString(12).nextString();
+        String prefix = "meet at the ";
+        MessagePacket once = bleProtocol.serializeMessage(mSenderIdentity, prefix + word + " fountain");
+        MessagePacket twice = bleProtocol.serializeMessage(mSenderIdentity, word + " " + word);
+        dataStore.createOrUpdateMessageWithProtocolMessage(once).close();
+        dataStore.createOrUpdateMessageWithProtocolMessage(twice).close();
+
+        // The last word typed matches as a prefix
+        MessageCollection results = dataStore.searchMessages(word.substring(0, 8), 10);
+        assertEquals(2, results.getCursor().getCount());
+        Message best = results.getMessageAtPosition(0);
+        assertTrue(Arrays.equals(twice.signature, best.getSignature()));
+        Message next = results.getMessageAtPosition(1);
+        assertTrue(Arrays.equals(once.signature, next.getSignature()));
+        assertTrue(best.getSearchRank() > next.getSearchRank());
+        int[] offsets = next.getSearchOffsets();
+        assertEquals(3, offsets.length);
+        assertEquals(0, offsets[0]);
+        assertEquals(prefix.length(), offsets[1]);
+        results.close();
+
+        assertEquals(1, dataStore.searchMessages(word + " fountain", 10).getCursor().getCount());
+        assertEquals(1, dataStore.searchMessages(word, 1).getCursor().getCount());
+        assertEquals(0, dataStore.searchMessages("\"  ", 10).getCursor().getCount());
+
+        // Renaming the sender re-indexes its messages
+        String alias = new RandomString(BLEProtocol.ALIAS_LENGTH).nextString();
+        OwnedIdentityPacket renamed = new OwnedIdentityPacket(mSenderIdentity.secretKey, mSenderIdentity.publicKey, alias, null);
+        dataStore.createOrUpdateRemotePeerWithProtocolIdentity(bleProtocol.deserializeIdentity(bleProtocol.serializeIdentity(renamed)));
+        assertEquals(2, dataStore.searchMessages(alias + " " + word, 10).getCursor().getCount());
+    }
+
+    /**
+     * Pages of a sender's messages cover each message once, most recently received first,
+     * without the columns a listing doesn't need
+     */
+    public void testMessagePages() {
+        dataStore.createOrUpdateRemotePeerWithProtocolIdentity(bleProtocol.deserializeIdentity(bleProtocol.serializeIdentity(mSenderIdentity)));
+        int numMessages = 7;
+        int pageSize = 3;
+        for (int x = 0; x < numMessages; x++) {
+            MessagePacket packet = bleProtocol.serializeMessage(mSenderIdentity, new RandomString(BLEProtocol.MESSAGE_BODY_LENGTH).nextString());
+            dataStore.createOrUpdateMessageWithProtocolMessage(packet).close();
+        }
+        Peer sender = dataStore.getPeerByPubKey(mSenderIdentity.publicKey);
+
+        List<Long> ids = new ArrayList<>();
+        long lastReceivedDate = DataStore.FIRST_PAGE;
+        long lastId = DataStore.FIRST_PAGE;
+        int numPages = 0;
+        while (true) {
+            Cursor page = dataStore.getMessagePage(sender, lastReceivedDate, lastId, pageSize).getCursor();
+            if (page.getCount() == 0) {
+                page.close();
+                break;
+            }
+            numPages++;
+            assertTrue(page.getCount() <= pageSize);
+            assertEquals(DataStore.MESSAGE_PAGE_COLUMNS.length, page.getColumnCount());
+            assertEquals(-1, page.getColumnIndex(MessageTable.rawPacket));
+
+            while (page.moveToNext()) {
+                long receivedDate = page.getLong(page.getColumnIndex(MessageTable.receivedDate));
+                long id = page.getLong(page.getColumnIndex(MessageTable.id));
+                assertEquals(sender.getId(), page.getInt(page.getColumnIndex(MessageTable.peerId)));
+                assertTrue(receivedDate < lastReceivedDate || (receivedDate == lastReceivedDate && id < lastId));
+                lastReceivedDate = receivedDate;
+                lastId = id;
+                ids.add(id);
+            }
+            page.close();
+        }
+        assertEquals(numMessages, ids.size());
+        assertEquals(numMessages, new HashSet<>(ids).size());
+        assertEquals((numMessages + pageSize - 1) / pageSize, numPages);
+    }
+
+    /**
+     * Listed messages carry their sender's alias and public key, current as of the query
+     */
+    public void testMessagesJoinSender() {
+        dataStore.createOrUpdateRemotePeerWithProtocolIdentity(bleProtocol.deserializeIdentity(bleProtocol.serializeIdentity(mSenderIdentity)));
+        MessagePacket packet = bleProtocol.serializeMessage(mSenderIdentity, new RandomString(BLEProtocol.MESSAGE_BODY_LENGTH).nextString());
+        dataStore.createOrUpdateMessageWithProtocolMessage(packet).close();
+        Peer sender = dataStore.getPeerByPubKey(mSenderIdentity.publicKey);
+
+        Cursor messages = dataStore.getRecentMessagesByPeer(sender).getCursor();
+        assertTrue(messages.moveToFirst());
+        assertEquals(mSenderIdentity.alias, messages.getString(messages.getColumnIndex(ChatDatabaseMigrations.MESSAGES_WITH_SENDER_ALIAS)));
+        assertTrue(Arrays.equals(mSenderIdentity.publicKey, messages.getBlob(messages.getColumnIndex(ChatDatabaseMigrations.MESSAGES_WITH_SENDER_PUBLIC_KEY))));
+        messages.close();
+
+        String alias = new RandomString(BLEProtocol.ALIAS_LENGTH).nextString();
+        OwnedIdentityPacket renamed = new OwnedIdentityPacket(mSenderIdentity.secretKey, mSenderIdentity.publicKey, alias, null);
+        dataStore.createOrUpdateRemotePeerWithProtocolIdentity(bleProtocol.deserializeIdentity(bleProtocol.serializeIdentity(renamed)));
+
+        Cursor page = dataStore.getMessagePage(sender, DataStore.FIRST_PAGE, DataStore.FIRST_PAGE, 1).getCursor();
+        assertTrue(page.moveToFirst());
+        assertEquals(alias, page.getString(page.getColumnIndex(ChatDatabaseMigrations.MESSAGES_WITH_SENDER_ALIAS)));
+        assertTrue(Arrays.equals(mSenderIdentity.publicKey, page.getBlob(page.getColumnIndex(ChatDatabaseMigrations.MESSAGES_WITH_SENDER_PUBLIC_KEY))));
+        page.close();
+    }
+
+    /**
+     * Messages with sender is a view, so the provider rejects writes to it
+     */
+    public void testMessagesWithSenderReadOnly() {
+        ContentValues values = new ContentValues();
+        values.put(MessageTable.body, "body");
+        try {
+            getContext().getContentResolver().insert(ChatContentProvider.MessagesWithSender.MESSAGES_WITH_SENDER, values);
+            fail("Insert into messages with sender was accepted");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+        try {
+            getContext().getContentResolver().delete(ChatContentProvider.MessagesWithSender.MESSAGES_WITH_SENDER, null, null);
+            fail("Delete from messages with sender was accepted");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Tasks queued on a lane before {@link FlowEngine#shutdown()} still run, in order, and tasks
+     * submitted after it are rejected
+     */
+    public void testFlowEngineRunsQueuedTasksAfterShutdown() throws InterruptedException {
+        final int numTasks = 5;
+        FlowEngine engine = new FlowEngine(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch finished = new CountDownLatch(numTasks);
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+
+        engine.execute("peer", new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        for (int x = 0; x < numTasks; x++) {
+            final int index = x;
+            engine.execute("peer", new Runnable() {
+                @Override
+                public void run() {
+                    order.add(index);
+                    finished.countDown();
+                }
+            });
+        }
+        engine.shutdown();
+        release.countDown();
+
+        assertTrue(finished.await(5, TimeUnit.SECONDS));
+        for (int x = 0; x < numTasks; x++) assertEquals(x, (int) order.get(x));
+
+        try {
+            engine.execute("peer", new Runnable() {
+                @Override
+                public void run() {}
+            });
+            fail("Task submitted after shutdown was accepted");
+        } catch (RejectedExecutionException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Repeated peer lookups are answered by the peer cache, which an identity update invalidates
+     */
+    public void testPeerCache() {
+        Peer peer = createRemotePeer();
+        PeerCache cache = dataStore.getPeerCache();
+        assertEquals(new PublicKey(peer.getPublicKey().clone()), new PublicKey(peer.getPublicKey()));
+
+        int queries = dataStore.getQueryCount();
+        int hits = cache.getHitCount();
+        assertEquals(peer.getId(), dataStore.getPeerByPubKey(peer.getPublicKey()).getId());
+        assertEquals(peer.getId(), dataStore.getPeerById(peer.getId()).getId());
+        assertEquals(queries, dataStore.getQueryCount());
+        assertEquals(hits + 2, cache.getHitCount());
+
+        String alias = new RandomString(BLEProtocol.ALIAS_LENGTH).nextString();
+        dataStore.createOrUpdateRemotePeerWithProtocolIdentity(
+                new IdentityPacket(peer.getPublicKey(), alias, System.currentTimeMillis(), peer.getIdentity().rawPacket));
+        assertEquals(alias, dataStore.getPeerByPubKey(peer.getPublicKey()).getAlias());
+        assertEquals(alias, dataStore.getPeerById(peer.getId()).getAlias());
+    }
+
+    /**
+     * Upgrading a version 1 database keeps one row per peer public key, preferring our own
+     * identity, one per message signature and one per delivery, and points references to
+     * removed duplicates at the row kept
+     */
+    public void testMigrationDeduplicates() {
+        SQLiteDatabase db = createVersion1Database();
+        upgradeFromVersion1(db);
+
+        Cursor peers = db.rawQuery("SELECT " + PeerTable.id + ", " + PeerTable.secKey + " FROM " + ChatDatabase.PEERS +
+                                   " ORDER BY " + PeerTable.id, null);
+        assertEquals(2, peers.getCount());
+        peers.moveToFirst();
+        assertEquals(2, peers.getLong(0));
+        assertFalse(peers.isNull(1));
+        peers.moveToNext();
+        assertEquals(3, peers.getLong(0));
+        peers.close();
+
+        Cursor messages = db.rawQuery("SELECT " + MessageTable.id + ", " + MessageTable.peerId + " FROM " + ChatDatabase.MESSAGES +
+                                      " ORDER BY " + MessageTable.id, null);
+        assertEquals(2, messages.getCount());
+        messages.moveToFirst();
+        assertEquals(1, messages.getLong(0));
+        assertEquals(2, messages.getLong(1));
+        messages.moveToNext();
+        assertEquals(3, messages.getLong(0));
+        assertEquals(3, messages.getLong(1));
+        messages.close();
+
+        Cursor messageDeliveries = db.rawQuery("SELECT " + MessageDeliveryTable.messageId + ", " + MessageDeliveryTable.peerId +
+                                               " FROM " + ChatDatabase.DELIVERED_MESSAGES, null);
+        assertEquals(1, messageDeliveries.getCount());
+        messageDeliveries.moveToFirst();
+        assertEquals(1, messageDeliveries.getLong(0));
+        assertEquals(3, messageDeliveries.getLong(1));
+        messageDeliveries.close();
+
+        Cursor identityDeliveries = db.rawQuery("SELECT " + IdentityDeliveryTable.peerRecipientId + ", " + IdentityDeliveryTable.peerPayloadId +
+                                                " FROM " + ChatDatabase.DELIVERED_IDENTITIES, null);
+        assertEquals(1, identityDeliveries.getCount());
+        identityDeliveries.moveToFirst();
+        assertEquals(2, identityDeliveries.getLong(0));
+        assertEquals(3, identityDeliveries.getLong(1));
+        identityDeliveries.close();
+        db.close();
+    }
+
+    /**
+     * Upgrading a version 1 database converts its local time dates to the epoch milliseconds
+     * they denote, and an unparseable peer last seen date to 0
+     */
+    public void testMigrationConvertsDates() throws ParseException {
+        SQLiteDatabase db = createVersion1Database();
+        upgradeFromVersion1(db);
+        SimpleDateFormat version1Format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.US);
+
+        Cursor message = db.rawQuery("SELECT " + MessageTable.authoredDate + ", " + MessageTable.receivedDate +
+                                     ", typeof(" + MessageTable.authoredDate + ") FROM " + ChatDatabase.MESSAGES +
+                                     " WHERE " + MessageTable.id + " = 1", null);
+        assertTrue(message.moveToFirst());
+        assertEquals("integer", message.getString(2));
+        assertEquals(version1Format.parse(VERSION_1_AUTHORED_DATE).getTime(), message.getLong(0));
+        assertEquals(version1Format.parse(VERSION_1_RECEIVED_DATE).getTime(), message.getLong(1));
+        message.close();
+
+        Cursor peers = db.rawQuery("SELECT " + PeerTable.lastSeenDate + " FROM " + ChatDatabase.PEERS +
+                                   " ORDER BY " + PeerTable.id, null);
+        assertEquals(2, peers.getCount());
+        peers.moveToFirst();
+        assertEquals(version1Format.parse(VERSION_1_LAST_SEEN_DATE).getTime(), peers.getLong(0));
+        peers.moveToNext();
+        assertEquals(0, peers.getLong(0));
+        peers.close();
+        db.close();
+    }
+
+    /**
+     * A peer read before its row changed isn't cached once the change invalidated it,
+     * even after older invalidations are forgotten beyond capacity
+     */
+    public void testPeerCacheRejectsStalePut() {
+        Peer peer = createRemotePeer();
+        PublicKey publicKey = new PublicKey(peer.getPublicKey());
+        PeerCache cache = new PeerCache(2);
+
+        long generation = cache.getGeneration();
+        cache.invalidate(publicKey);
+        cache.put(peer, generation);
+        assertNull(cache.get(peer.getId()));
+        assertNull(cache.get(publicKey));
+
+        cache.put(peer, cache.getGeneration());
+        assertNotNull(cache.get(peer.getId()));
+
+        generation = cache.getGeneration();
+        cache.invalidate(publicKey);
+        for (byte x = 1; x <= 2; x++) {
+            cache.invalidate(new PublicKey(new byte[] { x }));
+        }
+        cache.put(peer, generation);
+        assertNull(cache.get(publicKey));
+    }
+
+    /**
+     * The primary local identity is loaded once, with its identity packet, and kept
+     * until the identity changes
+     */
+    public void testPrimaryLocalIdentityCached() throws IOException {
+        Peer primary = getOrCreatePrimaryPeerIdentity();
+        OwnedIdentityPacket identity = dataStore.getPrimaryLocalIdentity();
+        assertNotNull(identity);
+        assertNotNull(identity.rawPacket);
+        assertTrue(Arrays.equals(primary.getPublicKey(), identity.publicKey));
+
+        int queries = dataStore.getQueryCount();
+        assertSame(identity, dataStore.getPrimaryLocalIdentity());
+        assertEquals(primary.getId(), dataStore.getPrimaryLocalPeer().getId());
+        assertEquals(queries, dataStore.getQueryCount());
+
+        // Our identity written back unchanged, as a flow does on sending it, keeps the cache
+        dataStore.createOrUpdateRemotePeerWithProtocolIdentity(
+                new IdentityPacket(identity.publicKey, identity.alias, 0, identity.rawPacket));
+        assertSame(identity, dataStore.getPrimaryLocalIdentity());
+    }
+
+    /**
+     * A flow whose every send fails, even from within the send, gives up rather than retrying
+     * forever, and reports why
+     */
+    public void testFlowAbortsWhenSendsFail() throws IOException, ChatPeerFlow.UnexpectedDataException {
+        getOrCreatePrimaryPeerIdentity();
+        final ChatPeerFlow[] flow = new ChatPeerFlow[1];
+        final ArrayDeque<byte[]> unreported = new ArrayDeque<>();
+        final int[] sends = new int[1];
+        ChatPeerFlow.DataOutlet outlet = new ChatPeerFlow.DataOutlet() {
+            @Override
+            public void sendData(pro.dbro.airshare.session.Peer peer, byte[] data) {
+                sends[0]++;
+                // The flow sending from its constructor can't be told yet
+                if (flow[0] == null) {
+                    unreported.add(data);
+                    return;
+                }
+                try {
+                    flow[0].onDataSent(data, new IOException("Simulated failure"));
+                } catch (ChatPeerFlow.UnexpectedDataException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        };
+
+        // As client, the flow sends its identity on construction
+        flow[0] = new ChatPeerFlow(dataStore, bleProtocol, outlet, null, true, newFlowCallback());
+        while (!unreported.isEmpty()) {
+            flow[0].onDataSent(unreported.poll(), new IOException("Simulated failure"));
+        }
+
+        assertTrue(flow[0].isComplete());
+        assertNotNull(flow[0].getError());
+        // At most 3 frames abandoned, each after 3 attempts
+        assertTrue("Sent " + sends[0] + " frames", sends[0] <= 9);
+    }
+
+    /**
+     * A checkpoint is taken once, and only within the resume window. The least recently saved
+     * are evicted beyond capacity
+     */
+    public void testFlowCheckpointResumeWindow() {
+        long resumeWindowMs = 60 * 1000;
+        FlowCheckpointStore checkpoints = new FlowCheckpointStore(resumeWindowMs, 2);
+        long now = System.currentTimeMillis();
+        checkpoints.put(new ChatPeerFlow.Checkpoint(new byte[] { 1 }, now - resumeWindowMs - 1, false, false, null, null));
+        checkpoints.put(new ChatPeerFlow.Checkpoint(new byte[] { 2 }, now, false, false, null, null));
+
+        assertNull(checkpoints.take(new byte[] { 1 }));
+        assertEquals(1, checkpoints.size());
+        assertNotNull(checkpoints.take(new byte[] { 2 }));
+        assertNull(checkpoints.take(new byte[] { 2 }));
+
+        for (byte x = 1; x <= 3; x++) {
+            checkpoints.put(new ChatPeerFlow.Checkpoint(new byte[] { x }, now, false, false, null, null));
+        }
+        assertEquals(2, checkpoints.size());
+        assertNull(checkpoints.take(new byte[] { 1 }));
+        assertNotNull(checkpoints.take(new byte[] { 3 }));
+    }
+
+    /**
+     * A message authored after checkpoints were saved follows the pending messages of each
+     * that had fetched its messages, once
+     */
+    public void testFlowCheckpointQueueMessage() {
+        RandomString bodies = new RandomString(BLEProtocol.MESSAGE_BODY_LENGTH);
+        MessagePacket pending = bleProtocol.serializeMessage(mSenderIdentity, bodies.nextString());
+        MessagePacket authored = bleProtocol.serializeMessage(mSenderIdentity, bodies.nextString());
+        long now = System.currentTimeMillis();
+
+        ChatPeerFlow.Checkpoint fetched = new ChatPeerFlow.Checkpoint(new byte[] { 1 }, now, false, true, null, null);
+        fetched.pendingMessages.add(pending);
+        ChatPeerFlow.Checkpoint unfetched = new ChatPeerFlow.Checkpoint(new byte[] { 2 }, now, false, false, null, null);
+        FlowCheckpointStore checkpoints = new FlowCheckpointStore();
+        checkpoints.put(fetched);
+        checkpoints.put(unfetched);
+
+        checkpoints.queueMessage(authored);
+        checkpoints.queueMessage(pending);
+        checkpoints.queueMessage(authored);
+
+        assertEquals(2, fetched.pendingMessages.size());
+        assertSame(pending, fetched.pendingMessages.peekFirst());
+        assertSame(authored, fetched.pendingMessages.peekLast());
+        // The resumed flow will query its messages anyway
+        assertEquals(0, unfetched.pendingMessages.size());
+    }
+
+    /**
+     * A flow interrupted by a disconnect saves its progress, the message in flight ahead of those
+     * queued, and a flow with the same peer soon after resumes it, sending the messages authored meanwhile
+     */
+    public void testInterruptedFlowResumes() throws ChatPeerFlow.UnexpectedDataException {
+        DataStore clientStore = createLoopbackStore();
+        DataStore hostStore = createLoopbackStore();
+        byte[] hostPublicKey = hostStore.getPrimaryLocalIdentity().publicKey;
+        FlowCheckpointStore clientCheckpoints = new FlowCheckpointStore();
+        ChatPeerFlow.Options clientOptions = newResumableFlowOptions(clientCheckpoints);
+        ChatPeerFlow.Options hostOptions = newResumableFlowOptions(new FlowCheckpointStore());
+
+        LoopbackLink link = interruptFlowAfterClientMessage(clientStore, hostStore, clientOptions, hostOptions);
+        // The checkpoint is kept for the host, not for the client's own identity
+        assertNull(clientCheckpoints.take(clientStore.getPrimaryLocalIdentity().publicKey));
+        ChatPeerFlow.Checkpoint checkpoint = clientCheckpoints.take(hostPublicKey);
+        assertNotNull(checkpoint);
+        assertTrue(Arrays.equals(hostPublicKey, checkpoint.remotePublicKey));
+        assertTrue(checkpoint.fetchedMessages);
+        assertTrue(Arrays.equals(link.clientMessages.get(0), checkpoint.pendingMessages.peekFirst().rawPacket));
+        clientCheckpoints.put(checkpoint);
+
+        MessagePacket authoredMeanwhile = bleProtocol.serializeMessage(mSenderIdentity, new RandomString(BLEProtocol.MESSAGE_BODY_LENGTH).nextString());
+        clientCheckpoints.queueMessage(authoredMeanwhile);
+
+        LoopbackLink resumed = new LoopbackLink(clientStore, hostStore);
+        resumed.connect(newFlowCallback(), clientOptions, hostOptions);
+        resumed.run();
+        assertTrue(resumed.isComplete());
+        assertEquals(0, clientCheckpoints.size());
+
+        // Only the checkpoint held the message authored meanwhile
+        resumed.awaitIdle();
+        Message received = hostStore.getMessageBySignature(authoredMeanwhile.signature);
+        assertNotNull(received);
+        received.close();
+        // Every message sent was recorded delivered to the host
+        Peer host = clientStore.getPeerByPubKey(hostPublicKey);
+        assertEquals(0, clientStore.getOutgoingMessagesForPeer(host, Integer.MAX_VALUE).size());
+    }
+
+    /**
+     * A flow with a peer after the resume window of an interrupted flow starts over
+     */
+    public void testInterruptedFlowExpires() throws ChatPeerFlow.UnexpectedDataException, InterruptedException {
+        DataStore clientStore = createLoopbackStore();
+        DataStore hostStore = createLoopbackStore();
+        FlowCheckpointStore clientCheckpoints = new FlowCheckpointStore(1, FlowCheckpointStore.DEFAULT_CAPACITY);
+        ChatPeerFlow.Options clientOptions = newResumableFlowOptions(clientCheckpoints);
+        ChatPeerFlow.Options hostOptions = newResumableFlowOptions(new FlowCheckpointStore());
+
+        interruptFlowAfterClientMessage(clientStore, hostStore, clientOptions, hostOptions);
+        assertEquals(1, clientCheckpoints.size());
+        MessagePacket authoredMeanwhile = bleProtocol.serializeMessage(mSenderIdentity, new RandomString(BLEProtocol.MESSAGE_BODY_LENGTH).nextString());
+        clientCheckpoints.queueMessage(authoredMeanwhile);
+        Thread.sleep(10);
+
+        LoopbackLink restarted = new LoopbackLink(clientStore, hostStore);
+        restarted.connect(newFlowCallback(), clientOptions, hostOptions);
+        restarted.run();
+        assertTrue(restarted.isComplete());
+        assertEquals(0, clientCheckpoints.size());
+        assertNull(clientCheckpoints.take(hostStore.getPrimaryLocalIdentity().publicKey));
+
+        restarted.awaitIdle();
+        assertNull(hostStore.getMessageBySignature(authoredMeanwhile.signature));
+    }
+
+    /**
+     * Peers both offering duplex write at once
+     */
+    public void testDuplexFlow() throws ChatPeerFlow.UnexpectedDataException {
+        assertFlowCompletes(true, true);
+    }
+
+    /**
+     * A duplex client falls back to taking turns with a host not offering duplex
+     */
+    public void testDuplexClientSequentialHostFlow() throws ChatPeerFlow.UnexpectedDataException {
+        assertFlowCompletes(true, false);
+    }
+
+    /**
+     * A duplex host falls back to taking turns with a client not offering duplex
+     */
+    public void testSequentialClientDuplexHostFlow() throws ChatPeerFlow.UnexpectedDataException {
+        assertFlowCompletes(false, true);
+    }
+
+    /**
+     * Messages the remote inventory advertises are skipped for this encounter but stay undelivered,
+     * and the unadvertised messages after them still fill the outbox
+     */
+    public void testFlowSkipsMessagesInRemoteInventory() throws ChatPeerFlow.UnexpectedDataException, InterruptedException {
+        DataStore clientStore = createLoopbackStore();
+        DataStore hostStore = createLoopbackStore();
+        OwnedIdentityPacket hostIdentity = hostStore.getPrimaryLocalIdentity();
+        List<MessagePacket> advertised = storeMessagesToSend(10);
+        // Authored strictly after the advertised messages, which are sent first unless skipped
+        Thread.sleep(5);
+        List<MessagePacket> unadvertised = storeMessagesToSend(ChatPeerFlow.MESSAGES_PER_RESPONSE + 10);
+
+        final ArrayDeque<byte[]> unacknowledged = new ArrayDeque<>();
+        ChatPeerFlow.DataOutlet outlet = new ChatPeerFlow.DataOutlet() {
+            @Override
+            public void sendData(pro.dbro.airshare.session.Peer peer, byte[] data) {
+                unacknowledged.add(data);
+            }
+        };
+        ChatPeerFlow.Options options = newLoopbackFlowOptions();
+        options.duplex = false;
+        ChatPeerFlow client = new ChatPeerFlow(clientStore, bleProtocol, outlet, null, true, newFlowCallback(), options);
+        List<byte[]> clientMessages = new ArrayList<>();
+
+        // The client writes its identities, then the scripted host its own with an inventory
+        acknowledgeFrames(client, unacknowledged, clientMessages);
+        List<byte[]> advertisedSignatures = new ArrayList<>();
+        for (MessagePacket message : advertised) {
+            advertisedSignatures.add(message.signature);
+        }
+        client.onDataReceived(bleProtocol.serializeIdentity(hostIdentity));
+        client.onDataReceived(bleProtocol.serializeInventory(advertisedSignatures).rawPacket);
+        client.onDataReceived(bleProtocol.serializeNoDataPacket(hostIdentity).rawPacket);
+
+        // The client writes its messages, and the host has none
+        acknowledgeFrames(client, unacknowledged, clientMessages);
+        client.onDataReceived(bleProtocol.serializeNoDataPacket(hostIdentity).rawPacket);
+        assertTrue(client.isComplete());
+        assertNull(client.getError());
+
+        Set<Signature> sent = signaturesOfRaw(clientMessages);
+        assertEquals(ChatPeerFlow.MESSAGES_PER_RESPONSE, sent.size());
+        assertTrue(signaturesOf(unadvertised).containsAll(sent));
+
+        clientStore.getWriteQueue().awaitIdle();
+        Peer host = clientStore.getPeerByPubKey(hostIdentity.publicKey);
+        Set<Signature> undelivered = signaturesOf(clientStore.getOutgoingMessagesForPeer(host, Integer.MAX_VALUE));
+        assertTrue(undelivered.containsAll(signaturesOf(advertised)));
+        undelivered.retainAll(sent);
+        assertTrue(undelivered.isEmpty());
+    }
+
     /** Utility **/
 
+    /** Dates of {@link #createVersion1Database()}'s rows, formatted in local time as version 1 stored them */
+    private static final String VERSION_1_AUTHORED_DATE  = "2015-04-16 12:34:56";
+    private static final String VERSION_1_RECEIVED_DATE  = "2015-04-16 12:35:07";
+    private static final String VERSION_1_LAST_SEEN_DATE = "2015-04-17 08:00:01";
+
+    /**
+     * @return an in-memory database of schema version 1. Peers 1 and 2 share a public key, 2 being
+     * our own identity, and messages 1 and 2 a signature. Each delivery is recorded twice, once
+     * referring to a duplicate. Dates are formatted as local time, except peer 3's which is unparseable
+     */
+    private SQLiteDatabase createVersion1Database() {
+        SQLiteDatabase db = SQLiteDatabase.create(null);
+        db.execSQL("CREATE TABLE " + ChatDatabase.PEERS + " (" + PeerTable.id + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                   PeerTable.alias + " TEXT, " + PeerTable.lastSeenDate + " TEXT NOT NULL, " + PeerTable.pubKey + " BLOB NOT NULL, " +
+                   PeerTable.secKey + " BLOB, " + PeerTable.rawPkt + " BLOB)");
+        db.execSQL("CREATE TABLE " + ChatDatabase.MESSAGES + " (" + MessageTable.id + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                   MessageTable.body + " TEXT NOT NULL, " + MessageTable.peerId + " INTEGER, " + MessageTable.authoredDate + " TEXT, " +
+                   MessageTable.receivedDate + " TEXT, " + MessageTable.signature + " BLOB, " + MessageTable.replySig + " BLOB, " +
+                   MessageTable.rawPacket + " BLOB)");
+        db.execSQL("CREATE TABLE " + ChatDatabase.DELIVERED_MESSAGES + " (" + MessageDeliveryTable.id + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                   MessageDeliveryTable.messageId + " INTEGER NOT NULL, " + MessageDeliveryTable.peerId + " INTEGER NOT NULL)");
+        db.execSQL("CREATE TABLE " + ChatDatabase.DELIVERED_IDENTITIES + " (" + IdentityDeliveryTable.id + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                   IdentityDeliveryTable.peerRecipientId + " INTEGER NOT NULL, " + IdentityDeliveryTable.peerPayloadId + " INTEGER NOT NULL)");
+
+        insertVersion1Peer(db, "remote copy", new byte[] { 1 }, null, VERSION_1_LAST_SEEN_DATE);
+        insertVersion1Peer(db, "local", new byte[] { 1 }, new byte[] { 9 }, VERSION_1_LAST_SEEN_DATE);
+        insertVersion1Peer(db, "other", new byte[] { 2 }, null, "never");
+
+        insertVersion1Message(db, 1, new byte[] { 10 });
+        insertVersion1Message(db, 1, new byte[] { 10 });
+        insertVersion1Message(db, 3, new byte[] { 11 });
+
+        insertDelivery(db, ChatDatabase.DELIVERED_MESSAGES, MessageDeliveryTable.messageId, 2, MessageDeliveryTable.peerId, 3);
+        insertDelivery(db, ChatDatabase.DELIVERED_MESSAGES, MessageDeliveryTable.messageId, 1, MessageDeliveryTable.peerId, 3);
+        insertDelivery(db, ChatDatabase.DELIVERED_IDENTITIES, IdentityDeliveryTable.peerRecipientId, 1, IdentityDeliveryTable.peerPayloadId, 3);
+        insertDelivery(db, ChatDatabase.DELIVERED_IDENTITIES, IdentityDeliveryTable.peerRecipientId, 2, IdentityDeliveryTable.peerPayloadId, 3);
+        return db;
+    }
+
+    private void insertVersion1Peer(SQLiteDatabase db, String alias, byte[] publicKey, byte[] secretKey, String lastSeen) {
+        ContentValues peer = new ContentValues();
+        peer.put(PeerTable.alias, alias);
+        peer.put(PeerTable.lastSeenDate, lastSeen);
+        peer.put(PeerTable.pubKey, publicKey);
+        peer.put(PeerTable.secKey, secretKey);
+        db.insertOrThrow(ChatDatabase.PEERS, null, peer);
+    }
+
+    private void insertVersion1Message(SQLiteDatabase db, int peerId, byte[] signature) {
+        ContentValues message = new ContentValues();
+        message.put(MessageTable.body, "body");
+        message.put(MessageTable.peerId, peerId);
+        message.put(MessageTable.authoredDate, VERSION_1_AUTHORED_DATE);
+        message.put(MessageTable.receivedDate, VERSION_1_RECEIVED_DATE);
+        message.put(MessageTable.signature, signature);
+        db.insertOrThrow(ChatDatabase.MESSAGES, null, message);
+    }
+
+    private void insertDelivery(SQLiteDatabase db, String table, String payloadColumn, int payloadId,
+                                String recipientColumn, int recipientId) {
+        ContentValues delivery = new ContentValues();
+        delivery.put(payloadColumn, payloadId);
+        delivery.put(recipientColumn, recipientId);
+        db.insertOrThrow(table, null, delivery);
+    }
+
+    /**
+     * Migrate db to the current version, in a transaction as {@link android.database.sqlite.SQLiteOpenHelper} does
+     */
+    private void upgradeFromVersion1(SQLiteDatabase db) {
+        db.beginTransaction();
+        try {
+            ChatDatabaseMigrations.onUpgrade(db, 1, ChatDatabase.DATABASE_VERSION);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Run a flow between a client and host offering duplex as given, each holding messages the
+     * other lacks. Assert it completes in duplex only if both offered it, each side having sent
+     * exactly the messages the other lacked, and recorded them delivered
+     */
+    private void assertFlowCompletes(boolean clientDuplex, boolean hostDuplex) throws ChatPeerFlow.UnexpectedDataException {
+        DataStore clientStore = createLoopbackStore();
+        DataStore hostStore = createLoopbackStore();
+        List<MessagePacket> clientOutgoing = storeMessagesToSend(3);
+        markMessagesDelivered(clientOutgoing, clientStore);
+        List<MessagePacket> hostOutgoing = storeMessagesToSend(4);
+        markMessagesDelivered(hostOutgoing, hostStore);
+        ChatPeerFlow.Options clientOptions = newLoopbackFlowOptions();
+        clientOptions.duplex = clientDuplex;
+        ChatPeerFlow.Options hostOptions = newLoopbackFlowOptions();
+        hostOptions.duplex = hostDuplex;
+
+        LoopbackLink link = new LoopbackLink(clientStore, hostStore);
+        link.connect(newFlowCallback(), clientOptions, hostOptions);
+        link.run();
+        assertTrue(link.isComplete());
+        assertNull(link.getClient().getError());
+        assertNull(link.getHost().getError());
+        assertEquals(clientDuplex && hostDuplex, link.getClient().isDuplex());
+        assertEquals(clientDuplex && hostDuplex, link.getHost().isDuplex());
+
+        // The link delivers every frame sent, so each side received what the other sent
+        assertEquals(signaturesOf(clientOutgoing), signaturesOfRaw(link.clientMessages));
+        assertEquals(signaturesOf(hostOutgoing), signaturesOfRaw(link.hostMessages));
+
+        link.awaitIdle();
+        Peer host = clientStore.getPeerByPubKey(hostStore.getPrimaryLocalIdentity().publicKey);
+        Peer client = hostStore.getPeerByPubKey(clientStore.getPrimaryLocalIdentity().publicKey);
+        assertEquals(0, clientStore.getOutgoingMessagesForPeer(host, Integer.MAX_VALUE).size());
+        assertEquals(0, hostStore.getOutgoingMessagesForPeer(client, Integer.MAX_VALUE).size());
+    }
+
+    /**
+     * @return options for a flow sending one packet per frame, and no inventory, as both ends
+     * of a {@link LoopbackLink} share one database, so would advertise every message
+     */
+    private ChatPeerFlow.Options newLoopbackFlowOptions() {
+        ChatPeerFlow.Options options = new ChatPeerFlow.Options();
+        options.bundleFrameSize = 0;
+        options.maxFramesInFlight = 1;
+        options.sendInventory = false;
+        return options;
+    }
+
+    /**
+     * @return options for a flow over a {@link LoopbackLink} saving its progress to checkpoints
+     */
+    private ChatPeerFlow.Options newResumableFlowOptions(FlowCheckpointStore checkpoints) {
+        ChatPeerFlow.Options options = newLoopbackFlowOptions();
+        options.checkpoints = checkpoints;
+        return options;
+    }
+
+    /**
+     * Store messages from {@link #mSenderIdentity} not yet delivered to any identity, which
+     * either end of a {@link LoopbackLink} sends
+     *
+     * @return the messages stored, oldest first
+     */
+    private List<MessagePacket> storeMessagesToSend(int numMessages) {
+        dataStore.createOrUpdateRemotePeerWithProtocolIdentity(bleProtocol.deserializeIdentity(bleProtocol.serializeIdentity(mSenderIdentity)));
+        RandomString bodies = new RandomString(BLEProtocol.MESSAGE_BODY_LENGTH);
+        List<MessagePacket> messages = new ArrayList<>(numMessages);
+        for (int x = 0; x < numMessages; x++) {
+            MessagePacket message = bleProtocol.serializeMessage(mSenderIdentity, bodies.nextString());
+            dataStore.createOrUpdateMessageWithProtocolMessage(message).close();
+            messages.add(message);
+        }
+        return messages;
+    }
+
+    /**
+     * Record messages delivered to the identity store speaks as, so a flow doesn't send them to it.
+     * The identity must be stored
+     */
+    private void markMessagesDelivered(List<MessagePacket> messages, DataStore store) {
+        IdentityPacket recipient = bleProtocol.deserializeIdentity(bleProtocol.serializeIdentity(store.getPrimaryLocalIdentity()));
+        DataStore.Batch batch = dataStore.beginBatch();
+        for (MessagePacket message : messages) {
+            batch.markMessageDeliveredToPeer(message, recipient);
+        }
+        dataStore.commitBatch(batch);
+    }
+
+    /**
+     * @return the signatures of messages
+     */
+    private static Set<Signature> signaturesOf(List<MessagePacket> messages) {
+        Set<Signature> signatures = new HashSet<>();
+        for (MessagePacket message : messages) {
+            signatures.add(new Signature(message.signature));
+        }
+        return signatures;
+    }
+
+    /**
+     * @return the signatures of the raw message packets
+     */
+    private Set<Signature> signaturesOfRaw(List<byte[]> rawMessages) {
+        Set<Signature> signatures = new HashSet<>();
+        for (byte[] rawMessage : rawMessages) {
+            signatures.add(new Signature(bleProtocol.deserializeMessage(rawMessage).signature));
+        }
+        return signatures;
+    }
+
+    /**
+     * @return a store for one end of a {@link LoopbackLink}, speaking as a newly generated identity.
+     * Every message already stored is recorded delivered to it, so a flow sends it only messages
+     * the test stores afterwards
+     */
+    private DataStore createLoopbackStore() {
+        KeyPair keyPair = SodiumShaker.generateKeyPair();
+        OwnedIdentityPacket identity = new OwnedIdentityPacket(keyPair.secretKey, keyPair.publicKey,
+                new RandomString(BLEProtocol.ALIAS_LENGTH).nextString(), null);
+        DataStore store = createDataStoreWithIdentity(identity);
+
+        Peer peer = dataStore.createOrUpdateRemotePeerWithProtocolIdentity(
+                bleProtocol.deserializeIdentity(bleProtocol.serializeIdentity(identity)));
+        markMessagesDelivered(dataStore.getOutgoingMessagesForPeer(peer, Integer.MAX_VALUE), store);
+        return store;
+    }
+
+    /**
+     * Run a flow until its client has a message in flight, and disconnect it
+     */
+    private LoopbackLink interruptFlowAfterClientMessage(DataStore clientStore, DataStore hostStore,
+                                                         ChatPeerFlow.Options clientOptions,
+                                                         ChatPeerFlow.Options hostOptions) throws ChatPeerFlow.UnexpectedDataException {
+        storeMessagesToSend(3);
+        LoopbackLink link = new LoopbackLink(clientStore, hostStore);
+        link.connect(newFlowCallback(), clientOptions, hostOptions);
+        while (link.clientMessages.isEmpty() && link.step());
+        assertFalse(link.isComplete());
+        link.disconnect();
+        return link;
+    }
+
+    /**
+     * Acknowledge each frame flow sends, including those sent meanwhile, until it awaits the remote peer
+     *
+     * @param messages receives the message packets among the frames
+     */
+    private void acknowledgeFrames(ChatPeerFlow flow, ArrayDeque<byte[]> unacknowledged,
+                                   List<byte[]> messages) throws ChatPeerFlow.UnexpectedDataException {
+        while (!unacknowledged.isEmpty()) {
+            byte[] frame = unacknowledged.poll();
+            if (bleProtocol.getPacketType(frame) == MessagePacket.TYPE)
+                messages.add(frame);
+            flow.onDataSent(frame, null);
+        }
+    }
+
+    /**
+     * @return a {@link ChatPeerFlow.Callback} ignoring every event
+     */
+    private ChatPeerFlow.Callback newFlowCallback() {
+        return new ChatPeerFlow.Callback() {
+            @Override
+            public void onAppPeerStatusUpdated(@NonNull ChatPeerFlow flow, @NonNull Peer peer, @NonNull ConnectionStatus status) {}
+
+            @Override
+            public void onMessageSent(@NonNull ChatPeerFlow flow, @NonNull Message message, @NonNull Peer recipient) {}
+
+            @Override
+            public void onMessageReceived(@NonNull ChatPeerFlow flow, @NonNull Message message, @Nullable Peer sender) {}
+        };
+    }
+
+    private void assertQueryUsesIndex(SQLiteDatabase db, String index, String sql) {
+        Cursor plan = db.rawQuery("EXPLAIN QUERY PLAN " + sql, null);
+        StringBuilder details = new StringBuilder();
+        while (plan.moveToNext()) {
+            details.append(plan.getString(plan.getColumnIndex("detail"))).append('\n');
+        }
+        plan.close();
+        assertTrue(String.format("Expected %s to use index %s. Plan:\n%s", sql, index, details),
+                   details.toString().contains(index));
+    }
+
+    /**
+     * @return a stored peer for a newly generated remote identity
+     */
+    private Peer createRemotePeer() {
+        return dataStore.createOrUpdateRemotePeerWithProtocolIdentity(createRemoteIdentity());
+    }
+
+    /**
+     * @return the identity of a new remote peer, as received
+     */
+    private IdentityPacket createRemoteIdentity() {
+        KeyPair keyPair = SodiumShaker.generateKeyPair();
+        OwnedIdentityPacket identity = new OwnedIdentityPacket(keyPair.secretKey, keyPair.publicKey,
+                new RandomString(BLEProtocol.ALIAS_LENGTH).nextString(), null);
+        return bleProtocol.deserializeIdentity(bleProtocol.serializeIdentity(identity));
+    }
+
     private Peer getOrCreatePrimaryPeerIdentity() throws IOException {
         Peer user = mApp.getPrimaryLocalPeer();
         if (user == null) {
@@ -193,15 +1566,121 @@ public class ChatAppTest extends ApplicationTestCase<Application> {
         return user;
     }
 
-    private void assertDateIsRecent(Date mustBeRecent) {
-        long now = new Date().getTime();
+    private void assertTimestampIsRecent(long mustBeRecent) {
+        long now = System.currentTimeMillis();
         long oneSecondAgo = now - 1000;
 
-        if ( (mustBeRecent.getTime() > now) ){
-            throw new IllegalStateException("Parsed Identity time is from the future " + mustBeRecent);
+        if ( (mustBeRecent > now) ){
+            throw new IllegalStateException("Parsed Identity time is from the future " + new Date(mustBeRecent));
+
+        } else if (mustBeRecent < oneSecondAgo) {
+            throw new IllegalStateException("Parsed Identity time is from more than 500ms ago " + new Date(mustBeRecent));
+        }
+    }
+
+    /**
+     * Connects a client and host {@link ChatPeerFlow} in memory. Each frame sent is delivered to
+     * the receiver then acknowledged to the sender, in the order sent.
+     */
+    private static class LoopbackLink {
+
+        private static class Event {
+            final boolean fromClient;
+            final boolean isDelivery;
+            final byte[] data;
+
+            Event(boolean fromClient, boolean isDelivery, byte[] data) {
+                this.fromClient = fromClient;
+                this.isDelivery = isDelivery;
+                this.data = data;
+            }
+        }
+
+        private final ArrayDeque<Event> mEvents = new ArrayDeque<>();
+        private final BLEProtocol mProtocol = new BLEProtocol();
+        private final DataStore mClientStore;
+        private final DataStore mHostStore;
+        private ChatPeerFlow mClient;
+        private ChatPeerFlow mHost;
+
+        /** Message packets sent by the client, in order */
+        final List<byte[]> clientMessages = new ArrayList<>();
+        /** Message packets sent by the host, in order */
+        final List<byte[]> hostMessages = new ArrayList<>();
+
+        /**
+         * @param clientStore the store of the client, speaking as its primary local identity
+         * @param hostStore the store of the host, which should speak as another identity
+         */
+        LoopbackLink(DataStore clientStore, DataStore hostStore) {
+            mClientStore = clientStore;
+            mHostStore = hostStore;
+        }
+
+        void connect(ChatPeerFlow.Callback callback, ChatPeerFlow.Options clientOptions, ChatPeerFlow.Options hostOptions) {
+            // The client sends its identity on construction, so the host must exist first
+            mHost   = new ChatPeerFlow(mHostStore, mProtocol, outletFor(false), null, false, callback, hostOptions);
+            mClient = new ChatPeerFlow(mClientStore, mProtocol, outletFor(true), null, true, callback, clientOptions);
+        }
+
+        /**
+         * Deliver or acknowledge the next frame
+         * @return whether there was one
+         */
+        boolean step() throws ChatPeerFlow.UnexpectedDataException {
+            Event event = mEvents.poll();
+            if (event == null) return false;
+
+            if (event.isDelivery)
+                (event.fromClient ? mHost : mClient).onDataReceived(event.data);
+            else
+                (event.fromClient ? mClient : mHost).onDataSent(event.data, null);
+            return true;
+        }
+
+        void run() throws ChatPeerFlow.UnexpectedDataException {
+            while (step());
+        }
+
+        /**
+         * Drop the frames in flight, and report the disconnect to both flows
+         */
+        void disconnect() {
+            mEvents.clear();
+            mClient.onDisconnected();
+            mHost.onDisconnected();
+        }
+
+        boolean isComplete() {
+            return mClient.isComplete() && mHost.isComplete();
+        }
+
+        ChatPeerFlow getClient() {
+            return mClient;
+        }
+
+        ChatPeerFlow getHost() {
+            return mHost;
+        }
+
+        /**
+         * Wait for both stores to commit the batches the flows handed them
+         */
+        void awaitIdle() {
+            mClientStore.getWriteQueue().awaitIdle();
+            mHostStore.getWriteQueue().awaitIdle();
+        }
 
-        } else if (mustBeRecent.getTime() < oneSecondAgo) {
-            throw new IllegalStateException("Parsed Identity time is from more than 500ms ago " + mustBeRecent);
+        private ChatPeerFlow.DataOutlet outletFor(final boolean fromClient) {
+            return new ChatPeerFlow.DataOutlet() {
+                @Override
+                public void sendData(pro.dbro.airshare.session.Peer peer, byte[] data) {
+                    if (mProtocol.getPacketType(data) == MessagePacket.TYPE)
+                        (fromClient ? clientMessages : hostMessages).add(data);
+                    mEvents.add(new Event(fromClient, true, data));
+                    mEvents.add(new Event(fromClient, false, data));
+                }
+            };
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,44 @@
+package pro.dbro.ble;
+
+import android.database.sqlite.SQLiteException;
+import android.support.annotation.NonNull;
+
+import java.util.List;
+
+import pro.dbro.ble.data.DataStore;
+import pro.dbro.ble.data.SQLiteDataStore;
+import pro.dbro.ble.protocol.OwnedIdentityPacket;
+
+/**
+ * Runs {@link ChatAppTest} against {@link SQLiteDataStore}
+ */
+public class SQLiteDataStoreTest extends ChatAppTest {
+
+    @Override
+    protected DataStore createDataStore() {
+        return new SQLiteDataStore(getContext());
+    }
+
+    @Override
+    protected DataStore createDataStoreFailingCommits(final int failures) {
+        return new SQLiteDataStore(getContext()) {
+            int mFailures = failures;
+
+            @Override
+            public List<byte[]> commitBatch(@NonNull Batch batch) {
+                if (mFailures-- > 0) throw new SQLiteException("Simulated commit failure");
+                return super.commitBatch(batch);
+            }
+        };
+    }
+
+    @Override
+    protected DataStore createDataStoreWithIdentity(final OwnedIdentityPacket identity) {
+        return new SQLiteDataStore(getContext()) {
+            @Override
+            public synchronized OwnedIdentityPacket getPrimaryLocalIdentity() {
+                return identity;
+            }
+        };
+    }
+}
@@ -0,0 +1,259 @@
+package pro.dbro.ble.ui.adapter;
+
+import android.app.Application;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.support.v7.widget.RecyclerView;
+import android.test.ApplicationTestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import pro.dbro.ble.crypto.KeyPair;
+import pro.dbro.ble.crypto.SodiumShaker;
+import pro.dbro.ble.data.ContentProviderStore;
+import pro.dbro.ble.data.DataStore;
+import pro.dbro.ble.data.model.MessageTable;
+import pro.dbro.ble.data.model.Peer;
+import pro.dbro.ble.protocol.BLEProtocol;
+import pro.dbro.ble.protocol.OwnedIdentityPacket;
+import pro.dbro.ble.util.RandomString;
+
+/**
+ * Tests of {@link MessageAdapter} merging the latest page ahead of those loaded, in {@link MessageAdapter#FLAG_PAGED}
+ * mode. Pages are built in memory, each message received at the time of its id
+ */
+public class MessageAdapterTest extends ApplicationTestCase<Application> {
+    public MessageAdapterTest() {
+        super(Application.class);
+    }
+
+    MessageAdapter mAdapter;
+    /** Notifications the adapter sent, as described by {@link #newNotificationRecorder()} */
+    List<String> mNotifications = new ArrayList<>();
+
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        // A new peer has no messages, so the adapter starts with none loaded
+        BLEProtocol protocol = new BLEProtocol();
+        KeyPair keyPair = SodiumShaker.generateKeyPair();
+        OwnedIdentityPacket identity = new OwnedIdentityPacket(keyPair.secretKey, keyPair.publicKey,
+                new RandomString(BLEProtocol.ALIAS_LENGTH).nextString(), null);
+        DataStore dataStore = new ContentProviderStore(getContext());
+        Peer peer = dataStore.createOrUpdateRemotePeerWithProtocolIdentity(
+                protocol.deserializeIdentity(protocol.serializeIdentity(identity)));
+
+        mAdapter = new MessageAdapter(getContext(), peer, dataStore, null, MessageAdapter.FLAG_PAGED);
+        assertEquals(0, mAdapter.getItemCount());
+        mAdapter.registerAdapterDataObserver(newNotificationRecorder());
+    }
+
+    /**
+     * Messages arriving while a reader is scrolled back are inserted ahead of those loaded,
+     * whose overlap with the latest page is replaced by it
+     */
+    public void testMergeNewMessagesWhileScrolledBack() {
+        Cursor firstPage = page(100, 51);
+        Cursor secondPage = page(50, 1);
+        loadPages(firstPage, secondPage);
+
+        assertEquals(3, mAdapter.mergeHeadPage(page(103, 54)));
+        assertItemIds(103, 1);
+        assertNotifications("inserted 0 3", "changed 3 47");
+        // The rest of the first page is still shown, so it stays open
+        assertFalse(firstPage.isClosed());
+        assertFalse(secondPage.isClosed());
+    }
+
+    /**
+     * The latest page holding every message loaded replaces them all
+     */
+    public void testMergeHeadPageHoldingEveryMessage() {
+        Cursor firstPage = page(30, 1);
+        loadPages(firstPage);
+
+        assertEquals(2, mAdapter.mergeHeadPage(page(32, 1)));
+        assertItemIds(32, 1);
+        assertNotifications("inserted 0 2", "changed 2 30");
+        assertTrue(firstPage.isClosed());
+    }
+
+    /**
+     * Messages removed from under the pages loaded are dropped, as they aren't in the latest
+     * page, and the whole data set is reported changed
+     */
+    public void testMergeHeadPageAfterMessagesRemoved() {
+        Cursor firstPage = page(100, 51);
+        Cursor secondPage = page(50, 1);
+        loadPages(firstPage, secondPage);
+
+        // 98 and 97 were removed, so the latest page reaches into the second page
+        MatrixCursor head = page(100, 99);
+        addRows(head, 96, 49);
+        assertEquals(0, mAdapter.mergeHeadPage(head));
+
+        List<Long> expectedIds = new ArrayList<>();
+        expectedIds.add(100L);
+        expectedIds.add(99L);
+        for (long id = 96; id >= 1; id--) expectedIds.add(id);
+        assertEquals(expectedIds, getItemIds());
+        assertNotifications("data set changed");
+        assertTrue(firstPage.isClosed());
+        assertFalse(secondPage.isClosed());
+    }
+
+    /**
+     * A page of new messages may be followed by more before those loaded, so the pages loaded
+     * are replaced by the latest rather than shown after a gap
+     */
+    public void testMergeFullPageOfNewMessages() {
+        Cursor firstPage = page(100, 51);
+        Cursor secondPage = page(50, 1);
+        loadPages(firstPage, secondPage);
+
+        assertEquals(MessageAdapter.PAGE_SIZE, mAdapter.mergeHeadPage(page(160, 111)));
+        assertItemIds(160, 111);
+        assertNotifications("data set changed");
+        assertTrue(firstPage.isClosed());
+        assertTrue(secondPage.isClosed());
+    }
+
+    /**
+     * A trimmed page hides its leading rows, and trimming it again trims the page it wraps
+     */
+    public void testTrimmedPage() {
+        Cursor page = page(5, 1);
+        assertSame(page, MessageAdapter.TrimmedPage.trim(page, 0));
+
+        Cursor trimmed = MessageAdapter.TrimmedPage.trim(page, 2);
+        assertEquals(3, trimmed.getCount());
+        assertTrue(trimmed.isBeforeFirst());
+        assertEquals(-1, trimmed.getPosition());
+
+        assertTrue(trimmed.moveToFirst());
+        assertTrue(trimmed.isFirst());
+        assertEquals(0, trimmed.getPosition());
+        assertEquals(3, getId(trimmed));
+
+        assertTrue(trimmed.move(1));
+        assertEquals(1, trimmed.getPosition());
+        assertEquals(2, getId(trimmed));
+
+        assertTrue(trimmed.moveToLast());
+        assertTrue(trimmed.isLast());
+        assertEquals(2, trimmed.getPosition());
+        assertEquals(1, getId(trimmed));
+
+        assertFalse(trimmed.moveToNext());
+        assertTrue(trimmed.isAfterLast());
+        assertEquals(3, trimmed.getPosition());
+        assertTrue(trimmed.moveToPrevious());
+        assertEquals(1, getId(trimmed));
+
+        assertFalse(trimmed.moveToPosition(-5));
+        assertTrue(trimmed.isBeforeFirst());
+        assertEquals(-1, trimmed.getPosition());
+
+        Cursor retrimmed = MessageAdapter.TrimmedPage.trim(trimmed, 1);
+        assertEquals(2, retrimmed.getCount());
+        assertTrue(retrimmed.moveToFirst());
+        assertEquals(2, getId(retrimmed));
+
+        Cursor empty = MessageAdapter.TrimmedPage.trim(page, 6);
+        assertEquals(0, empty.getCount());
+        assertFalse(empty.moveToFirst());
+        assertTrue(empty.isBeforeFirst());
+        assertTrue(empty.isAfterLast());
+    }
+
+    /** Utility **/
+
+    /**
+     * Load pages into the empty adapter, as if the reader scrolled back through them,
+     * then forget the notifications sent meanwhile
+     */
+    private void loadPages(Cursor first, Cursor... next) {
+        mAdapter.mergeHeadPage(first);
+        for (Cursor page : next) {
+            mAdapter.appendPage(page);
+        }
+        mNotifications.clear();
+    }
+
+    /**
+     * @return a page of the messages with ids from newestId down to oldestId, in
+     * {@link DataStore#MESSAGE_PAGE_COLUMNS}
+     */
+    private static MatrixCursor page(long newestId, long oldestId) {
+        MatrixCursor page = new MatrixCursor(DataStore.MESSAGE_PAGE_COLUMNS);
+        addRows(page, newestId, oldestId);
+        return page;
+    }
+
+    private static void addRows(MatrixCursor page, long newestId, long oldestId) {
+        for (long id = newestId; id >= oldestId; id--) {
+            MatrixCursor.RowBuilder row = page.newRow();
+            for (String column : DataStore.MESSAGE_PAGE_COLUMNS) {
+                if (column.equals(MessageTable.id) || column.equals(MessageTable.receivedDate))
+                    row.add(id);
+                else
+                    row.add(null);
+            }
+        }
+    }
+
+    private static long getId(Cursor message) {
+        return message.getLong(message.getColumnIndex(MessageTable.id));
+    }
+
+    private List<Long> getItemIds() {
+        List<Long> ids = new ArrayList<>(mAdapter.getItemCount());
+        for (int position = 0; position < mAdapter.getItemCount(); position++) {
+            ids.add(mAdapter.getItemId(position));
+        }
+        return ids;
+    }
+
+    /**
+     * Assert the adapter shows the messages with ids from newestId down to oldestId
+     */
+    private void assertItemIds(long newestId, long oldestId) {
+        List<Long> expectedIds = new ArrayList<>();
+        for (long id = newestId; id >= oldestId; id--) expectedIds.add(id);
+        assertEquals(expectedIds, getItemIds());
+    }
+
+    private void assertNotifications(String... expected) {
+        assertEquals(Arrays.asList(expected), mNotifications);
+    }
+
+    /**
+     * @return an observer recording each notification of the adapter into {@link #mNotifications}.
+     * Empty ranges are ignored
+     */
+    private RecyclerView.AdapterDataObserver newNotificationRecorder() {
+        return new RecyclerView.AdapterDataObserver() {
+            @Override
+            public void onChanged() {
+                mNotifications.add("data set changed");
+            }
+
+            @Override
+            public void onItemRangeChanged(int positionStart, int itemCount) {
+                if (itemCount > 0) mNotifications.add("changed " + positionStart + " " + itemCount);
+            }
+
+            @Override
+            public void onItemRangeInserted(int positionStart, int itemCount) {
+                if (itemCount > 0) mNotifications.add("inserted " + positionStart + " " + itemCount);
+            }
+
+            @Override
+            public void onItemRangeRemoved(int positionStart, int itemCount) {
+                if (itemCount > 0) mNotifications.add("removed " + positionStart + " " + itemCount);
+            }
+        };
+    }
+}
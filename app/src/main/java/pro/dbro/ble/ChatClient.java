@@ -1,13 +1,12 @@
 package pro.dbro.ble;
 
 import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
-import com.google.common.collect.BiMap;
-import com.google.common.collect.HashBiMap;
-
-import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 import pro.dbro.airshare.app.AirShareService;
 import pro.dbro.airshare.transport.Transport;
@@ -18,7 +17,6 @@ import pro.dbro.ble.data.model.Message;
 import pro.dbro.ble.data.model.Peer;
 import pro.dbro.ble.protocol.BLEProtocol;
 import pro.dbro.ble.protocol.MessagePacket;
-import pro.dbro.ble.protocol.OwnedIdentityPacket;
 import pro.dbro.ble.protocol.Protocol;
 import pro.dbro.ble.ui.Notification;
 import pro.dbro.ble.ui.activities.LogConsumer;
@@ -32,7 +30,7 @@ public class ChatClient implements AirShareService.Callback,
                                    ChatPeerFlow.Callback {
 
     public interface Callback {
-        /** Client should not invoke remotePeer#close() */
+        /** Called on the main thread. Client should not invoke remotePeer#close() */
         void onAppPeerStatusUpdated(@NonNull Peer remotePeer,
                                     @NonNull ConnectionStatus status);
     }
@@ -40,24 +38,51 @@ public class ChatClient implements AirShareService.Callback,
     public static final String TAG = "ChatApp";
     public static final String AIRSHARE_SERVICE_NAME = "BLEMeshChat";
 
+    /** Stored messages and identities, each, to pre-load into the verified packet cache */
+    private static final int VERIFIED_CACHE_SEED_SIZE = BLEProtocol.DEFAULT_VERIFIED_CACHE_SIZE / 2;
+
     private Context   mContext;
     private DataStore mDataStore;
     private Protocol  mProtocol;
     private AirShareService.ServiceBinder mAirShareServiceBinder;
     private Callback mCallback;
+    /**
+     * Flows report to us on their peer's {@link FlowEngine} lane, or, for messages written behind,
+     * on the DataStore's writer thread, from which we post them back to the lane.
+     * {@link Callback} is notified on the main thread
+     */
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /** Value of {@link #mConnectedPeers} for a peer whose identity hasn't arrived */
+    private static final int UNIDENTIFIED_PEER_ID = -1;
+
+    /** Progress of flows cut short by a disconnect, for resuming on reconnect */
+    private FlowCheckpointStore mFlowCheckpoints = new FlowCheckpointStore();
+
+    /**
+     * Runs each peer's flow events in order, and different peers' in parallel.
+     * All calls into a {@link ChatPeerFlow} are made through it, keyed by AirShare Peer
+     */
+    private final FlowEngine mFlowEngine = new FlowEngine();
 
-    private HashMap<pro.dbro.airshare.session.Peer, ChatPeerFlow> mFlows = new HashMap<>();
+    private final ConcurrentHashMap<pro.dbro.airshare.session.Peer, ChatPeerFlow> mFlows = new ConcurrentHashMap<>();
 
-    /** AirShare Peer -> BLEMeshChat Peer id */
-    private BiMap<pro.dbro.airshare.session.Peer, Integer> mConnectedPeers = HashBiMap.create();
+    /** AirShare Peer -> BLEMeshChat Peer id, or {@link #UNIDENTIFIED_PEER_ID} */
+    private final ConcurrentHashMap<pro.dbro.airshare.session.Peer, Integer> mConnectedPeers = new ConcurrentHashMap<>();
 
     // <editor-fold desc="Public API">
 
     public ChatClient(@NonNull Context context) {
+        this(context, new ContentProviderStore(context));
+    }
+
+    public ChatClient(@NonNull Context context, @NonNull DataStore dataStore) {
         mContext = context;
 
         mProtocol  = new BLEProtocol();
-        mDataStore = new ContentProviderStore(context);
+        mDataStore = dataStore;
+
+        seedVerifiedPacketCache();
     }
 
     public void setAirShareServiceBinder(AirShareService.ServiceBinder binder) {
@@ -109,19 +134,25 @@ public class ChatClient implements AirShareService.Callback,
     // <editor-fold desc="Messages">
 
     public void sendPublicMessageFromPrimaryIdentity(String body) {
-        MessagePacket messagePacket = mProtocol.serializeMessage((OwnedIdentityPacket) getPrimaryLocalPeer().getIdentity(), body);
+        final MessagePacket messagePacket = mProtocol.serializeMessage(mDataStore.getPrimaryLocalIdentity(), body, null, true);
         mDataStore.createOrUpdateMessageWithProtocolMessage(messagePacket).close();
+        mFlowCheckpoints.queueMessage(messagePacket);
         // TODO : Send to connected peers. Future peers will get message during flow
         if (mAirShareServiceBinder != null) {
 
-            for (pro.dbro.airshare.session.Peer peer : mConnectedPeers.keySet()) {
-                ChatPeerFlow flow = mFlows.get(peer);
-                // If we're actively flowing with a peer, add the message to that flow
-                // else, send immediately
-                if (flow != null && !flow.isComplete())
-                    flow.queueMessage(messagePacket);
-                else
-                    mAirShareServiceBinder.send(messagePacket.rawPacket, peer);
+            for (final pro.dbro.airshare.session.Peer peer : mConnectedPeers.keySet()) {
+                mFlowEngine.execute(peer, new Runnable() {
+                    @Override
+                    public void run() {
+                        ChatPeerFlow flow = mFlows.get(peer);
+                        // If we're actively flowing with a peer, add the message to that flow
+                        // else, send immediately
+                        if (flow != null && !flow.isComplete())
+                            flow.queueMessage(messagePacket);
+                        else
+                            mAirShareServiceBinder.send(messagePacket.rawPacket, peer);
+                    }
+                });
             }
 
         }
@@ -133,18 +164,40 @@ public class ChatClient implements AirShareService.Callback,
         return mDataStore;
     }
 
+    public FlowEngine getFlowEngine() {
+        return mFlowEngine;
+    }
+
     // </editor-fold desc="Public API">
 
     // <editor-fold desc="Private API">
 
+    /**
+     * Remember the signatures of stored packets, so copies arriving again from
+     * other peers skip verification
+     */
+    private void seedVerifiedPacketCache() {
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                mProtocol.addVerifiedPackets(mDataStore.getRecentRawPackets(VERIFIED_CACHE_SEED_SIZE));
+            }
+        }, "SeedVerifiedPackets").start();
+    }
+
     @Override
     public void onAppPeerStatusUpdated(@NonNull ChatPeerFlow flow,
-                                       @NonNull Peer remotePeer,
-                                       @NonNull ConnectionStatus status) {
+                                       @NonNull final Peer remotePeer,
+                                       @NonNull final ConnectionStatus status) {
 
         Timber.d("%s %s", remotePeer.getAlias(), status == ConnectionStatus.CONNECTED ? "connected" : "disconnected");
-        if (mCallback != null)
-            mCallback.onAppPeerStatusUpdated(remotePeer, status);
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mCallback != null)
+                    mCallback.onAppPeerStatusUpdated(remotePeer, status);
+            }
+        });
 
         if (!mAirShareServiceBinder.isActivityReceivingMessages())
             Notification.displayPeerAvailableNotification(mContext, remotePeer, status == ConnectionStatus.CONNECTED);
@@ -155,20 +208,37 @@ public class ChatClient implements AirShareService.Callback,
                 break;
 
             case DISCONNECTED:
-                mConnectedPeers.remove(flow.getRemoteAirSharePeer());
+                // Removed by onPeerDisconnected
                 break;
         }
     }
 
     @Override
-    public void onMessageSent(@NonNull ChatPeerFlow flow, @NonNull Message message, @NonNull Peer recipient) {
-        Timber.d("Sent message: '%s'", message.getBody());
-        // TODO : Might be unnecessary
-        message.close();
+    public void onMessageSent(@NonNull ChatPeerFlow flow, @NonNull final Message message, @NonNull Peer recipient) {
+        mFlowEngine.execute(flow.getRemoteAirSharePeer(), new Runnable() {
+            @Override
+            public void run() {
+                Timber.d("Sent message: '%s'", message.getBody());
+                // TODO : Might be unnecessary
+                message.close();
+            }
+        });
     }
 
     @Override
-    public void onMessageReceived(@NonNull ChatPeerFlow flow, @NonNull Message message, Peer sender) {
+    public void onMessageReceived(@NonNull ChatPeerFlow flow, @NonNull final Message message, final Peer sender) {
+        mFlowEngine.execute(flow.getRemoteAirSharePeer(), new Runnable() {
+            @Override
+            public void run() {
+                handleMessageReceived(message, sender);
+            }
+        });
+    }
+
+    /**
+     * Notify the user of message received from sender. Runs on the lane of the flow that received it
+     */
+    private void handleMessageReceived(Message message, Peer sender) {
         Timber.d("Received message: '%s' with sig '%s' ", message.getBody(), DataUtil.bytesToHex(message.getSignature()).substring(0, 3));
 
         // We don't check that mAirShareServiceBinder is not null because this callback is provoked
@@ -182,56 +252,94 @@ public class ChatClient implements AirShareService.Callback,
     }
 
     @Override
-    public void onDataRecevied(@NonNull AirShareService.ServiceBinder binder, @Nullable byte[] data, @NonNull pro.dbro.airshare.session.Peer sender, @Nullable Exception exception) {
-        ChatPeerFlow flow = mFlows.get(sender);
-
-        if (flow == null) {
-            Timber.w("No flow for %s", sender.getAlias());
-            return;
-        }
-
-        try {
-            flow.onDataReceived(data);
-        } catch (ChatPeerFlow.UnexpectedDataException e) {
-            Timber.e(e, "Error processing received data");
-        }
+    public void onDataRecevied(@NonNull AirShareService.ServiceBinder binder, @Nullable final byte[] data, @NonNull final pro.dbro.airshare.session.Peer sender, @Nullable Exception exception) {
+        mFlowEngine.execute(sender, new Runnable() {
+            @Override
+            public void run() {
+                ChatPeerFlow flow = mFlows.get(sender);
+
+                if (flow == null) {
+                    Timber.w("No flow for %s", sender.getAlias());
+                    return;
+                }
+
+                try {
+                    flow.onDataReceived(data);
+                } catch (ChatPeerFlow.UnexpectedDataException e) {
+                    Timber.e(e, "Error processing received data");
+                }
+            }
+        });
     }
 
     @Override
-    public void onDataSent(@NonNull AirShareService.ServiceBinder binder, @Nullable byte[] data, @NonNull pro.dbro.airshare.session.Peer recipient, @Nullable Exception exception) {
-        ChatPeerFlow flow = mFlows.get(recipient);
-
-        if (flow == null) {
-            Timber.w("No flow for %s", recipient.getAlias());
-            return;
-        }
-
-        try {
-            flow.onDataSent(data);
-        } catch (ChatPeerFlow.UnexpectedDataException e) {
-            Timber.e(e, "Error processing sent data");
-        }
+    public void onDataSent(@NonNull AirShareService.ServiceBinder binder, @Nullable final byte[] data, @NonNull final pro.dbro.airshare.session.Peer recipient, @Nullable final Exception exception) {
+        mFlowEngine.execute(recipient, new Runnable() {
+            @Override
+            public void run() {
+                ChatPeerFlow flow = mFlows.get(recipient);
+
+                if (flow == null) {
+                    Timber.w("No flow for %s", recipient.getAlias());
+                    return;
+                }
+
+                try {
+                    flow.onDataSent(data, exception);
+                } catch (ChatPeerFlow.UnexpectedDataException e) {
+                    Timber.e(e, "Error processing sent data");
+                }
+            }
+        });
     }
 
     @Override
-    public void onPeerStatusUpdated(@NonNull AirShareService.ServiceBinder binder, @NonNull pro.dbro.airshare.session.Peer peer, @NonNull Transport.ConnectionStatus newStatus, boolean peerIsHost) {
+    public void onPeerStatusUpdated(@NonNull AirShareService.ServiceBinder binder, @NonNull final pro.dbro.airshare.session.Peer peer, @NonNull Transport.ConnectionStatus newStatus, final boolean peerIsHost) {
         if (newStatus == Transport.ConnectionStatus.CONNECTED) {
-            mConnectedPeers.put(peer, null); // We will add the BLEMeshChat peer id after identity is received
-            Timber.d("Beginning flow with %s as %s", peer.getAlias(), peerIsHost ? "host" : "client");
-            mFlows.put(peer, new ChatPeerFlow(mDataStore, mProtocol, this, peer, peerIsHost, this));
+            mFlowEngine.execute(peer, new Runnable() {
+                @Override
+                public void run() {
+                    onPeerConnected(peer, peerIsHost);
+                }
+            });
         }
         else if (newStatus == Transport.ConnectionStatus.DISCONNECTED) {
+            mFlowEngine.execute(peer, new Runnable() {
+                @Override
+                public void run() {
+                    onPeerDisconnected(peer);
+                }
+            });
+        }
+    }
 
-            if (!mConnectedPeers.containsKey(peer) || mConnectedPeers.get(peer) == null) {
-                if (mConnectedPeers.containsKey(peer)) mConnectedPeers.remove(peer);
-                Timber.w("Cannot report peer %s disconnected, no connection record", peer.getAlias());
-                return;
-            }
+    /**
+     * Begin a flow with peer. Runs on peer's {@link FlowEngine} lane
+     */
+    private void onPeerConnected(pro.dbro.airshare.session.Peer peer, boolean peerIsHost) {
+        mConnectedPeers.put(peer, UNIDENTIFIED_PEER_ID); // We will add the BLEMeshChat peer id after identity is received
+        Timber.d("Beginning flow with %s as %s", peer.getAlias(), peerIsHost ? "host" : "client");
+        ChatPeerFlow.Options options = new ChatPeerFlow.Options();
+        options.checkpoints = mFlowCheckpoints;
+        ChatPeerFlow flow = new ChatPeerFlow(mDataStore, mProtocol, this, peer, peerIsHost, this, options);
+        mFlows.put(peer, flow);
+    }
+
+    /**
+     * End the flow with peer. Runs on peer's {@link FlowEngine} lane
+     */
+    private void onPeerDisconnected(pro.dbro.airshare.session.Peer peer) {
+        Integer blePeerId = mConnectedPeers.remove(peer);
+        ChatPeerFlow flow = mFlows.remove(peer);
+        if (flow != null) flow.onDisconnected();
 
-            int blePeerId = mConnectedPeers.get(peer);
-            Peer remotePeer = mDataStore.getPeerById(blePeerId);
-            onAppPeerStatusUpdated(mFlows.get(peer), remotePeer, ConnectionStatus.DISCONNECTED);
+        if (blePeerId == null || blePeerId == UNIDENTIFIED_PEER_ID) {
+            Timber.w("Cannot report peer %s disconnected, no connection record", peer.getAlias());
+            return;
         }
+
+        Peer remotePeer = mDataStore.getPeerById(blePeerId);
+        onAppPeerStatusUpdated(flow, remotePeer, ConnectionStatus.DISCONNECTED);
     }
 
     @Override
@@ -5,15 +5,23 @@ import android.support.annotation.Nullable;
 
 import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 
 import pro.dbro.airshare.session.Peer;
 import pro.dbro.ble.data.DataStore;
+import pro.dbro.ble.data.WriteBehindQueue;
 import pro.dbro.ble.data.model.DataUtil;
 import pro.dbro.ble.data.model.Message;
 import pro.dbro.ble.data.model.MessageCollection;
+import pro.dbro.ble.protocol.BundlePacket;
 import pro.dbro.ble.protocol.IdentityPacket;
+import pro.dbro.ble.protocol.IdentityPacketView;
+import pro.dbro.ble.protocol.InventoryPacket;
 import pro.dbro.ble.protocol.MessagePacket;
+import pro.dbro.ble.protocol.MessagePacketView;
 import pro.dbro.ble.protocol.NoDataPacket;
 import pro.dbro.ble.protocol.OwnedIdentityPacket;
 import pro.dbro.ble.protocol.Protocol;
@@ -30,6 +38,30 @@ import timber.log.Timber;
  * 2) Client peer waits for host identity
  * 3) Client peer writes outgoing messages
  * 4) Client peer waits for incoming messages
+ *
+ * If both peers advertise {@link IdentityPacketView#CAPABILITY_DUPLEX} in their own identity,
+ * always the first each sends, steps 1 and 2 run at once, then steps 3 and 4. Each direction
+ * tracks its own progress, and the flow completes when both have sent NoData for messages.
+ *
+ * Each peer advertises the messages it holds in an {@link InventoryPacket} before the other
+ * writes messages: the host at the end of its identities, the client at the start of its messages,
+ * or both at the end of their identities when offering duplex.
+ * Messages the remote peer advertises are not sent this encounter, but aren't marked delivered.
+ *
+ * Each step's packets are sent in frames bundling as many packets as fit in
+ * {@link Options#bundleFrameSize}, each frame sent and acknowledged as a unit.
+ * Up to {@link Options#maxFramesInFlight} frames are outstanding at once, and a frame
+ * that fails to send is retransmitted alone.
+ *
+ * If the connection drops before the flow completes and {@link Options#checkpoints} is set,
+ * the packets not yet acknowledged are saved as a {@link Checkpoint}. A later flow with the same
+ * peer resumes from it once the remote identity arrives, sending those packets in place of
+ * querying the {@link DataStore} again. Each step still ends with NoData, as the remote peer
+ * may not have resumed.
+ *
+ * The writes of each step are batched, and with {@link Options#writeBehind} committed on the
+ * DataStore's writer thread, so network callbacks don't wait on the database. Only the remote
+ * peer's own identity is stored immediately, as the rest of the flow refers to its peer.
  * Created by davidbrodsky on 4/16/15.
  */
 public class ChatPeerFlow {
@@ -63,9 +95,123 @@ public class ChatPeerFlow {
 
     }
 
-    private static final int MESSAGES_PER_RESPONSE = 50;
+    /**
+     * Tuning for a {@link ChatPeerFlow}
+     */
+    public static class Options {
+
+        /** Default maximum size of a {@link BundlePacket} frame */
+        public static final int DEFAULT_BUNDLE_FRAME_SIZE = 2048; // bytes
+
+        /**
+         * Maximum size of each frame passed to {@link DataOutlet#sendData(Peer, byte[])}.
+         * Queued packets are bundled into frames of up to this size, each sent and acknowledged
+         * as a unit. A frame always carries at least one packet. 0 disables bundling, sending one
+         * packet per frame.
+         */
+        public int bundleFrameSize = DEFAULT_BUNDLE_FRAME_SIZE;
+
+        /**
+         * Whether to advertise the messages we hold in an {@link InventoryPacket}.
+         * An inventory received from the remote peer is honored either way.
+         */
+        public boolean sendInventory = true;
+
+        /** Default number of frames that may await acknowledgement at once */
+        public static final int DEFAULT_MAX_FRAMES_IN_FLIGHT = 4;
+
+        /**
+         * Number of frames that may be sent before the first is acknowledged. 1 is stop-and-wait.
+         */
+        public int maxFramesInFlight = DEFAULT_MAX_FRAMES_IN_FLIGHT;
+
+        /**
+         * Whether to offer a duplex flow, where both peers write identities then messages at the
+         * same time rather than taking turns. Duplex is used only when the remote peer's identity
+         * advertises {@link IdentityPacketView#CAPABILITY_DUPLEX}, which ours does only when this is set.
+         */
+        public boolean duplex = true;
+
+        /**
+         * Where to save the progress of a flow interrupted by a disconnect, and find that of an
+         * earlier flow with the same peer to resume. null disables resuming.
+         */
+        @Nullable
+        public FlowCheckpointStore checkpoints;
+
+        /**
+         * Whether to hand the writes of each phase to {@link DataStore#enqueueBatch} rather than
+         * committing them before returning from the event that ended the phase. Messages stored or
+         * sent are then reported to {@link Callback} on the DataStore's writer thread.
+         */
+        public boolean writeBehind = true;
+    }
+
+    /**
+     * Progress of a flow interrupted by a disconnect: the packets queued for the remote peer
+     * but not yet acknowledged, and the inventories exchanged. See {@link FlowCheckpointStore}.
+     */
+    public static class Checkpoint {
+        final byte[] remotePublicKey;
+        /** When the flow this checkpoint records, or the earliest flow it resumed, began */
+        final long startedAt;
+        /**
+         * Whether pendingIdentities were chosen for the remote peer. Our own identity is excluded.
+         * Only a flow resumed as host, which chooses its identities once the remote identity
+         * arrives, sends them
+         */
+        final boolean fetchedIdentities;
+        final ArrayDeque<IdentityPacket> pendingIdentities = new ArrayDeque<>();
+        final boolean fetchedMessages;
+        final ArrayDeque<MessagePacket> pendingMessages = new ArrayDeque<>();
+        @Nullable final byte[] inventory;
+        @Nullable final InventoryPacket remoteInventory;
+
+        Checkpoint(byte[] remotePublicKey, long startedAt, boolean fetchedIdentities, boolean fetchedMessages,
+                   @Nullable byte[] inventory, @Nullable InventoryPacket remoteInventory) {
+            this.remotePublicKey = remotePublicKey;
+            this.startedAt = startedAt;
+            this.fetchedIdentities = fetchedIdentities;
+            this.fetchedMessages = fetchedMessages;
+            this.inventory = inventory;
+            this.remoteInventory = remoteInventory;
+        }
+
+        /**
+         * Add a message authored after this checkpoint was saved. Ignored if messages
+         * weren't yet fetched, as the resumed flow will query them anyway.
+         */
+        void queueMessage(MessagePacket message) {
+            if (fetchedMessages && !containsMessage(pendingMessages, message))
+                pendingMessages.add(message);
+        }
+    }
+
+    /**
+     * A unit of data handed to the {@link DataOutlet}, and the packets it carries
+     */
+    private static class Frame {
+        final List<IdentityPacket> identities = new ArrayList<>();
+        final List<MessagePacket> messages = new ArrayList<>();
+        boolean hasNoData;
+        int numPackets;
+        int attempts;
+        byte[] data;
+    }
+
+    static final int MESSAGES_PER_RESPONSE = 50;
     private static final int IDENTITIES_PER_RESPONSE = 10;
+    /** Number of most recently received messages advertised in our inventory */
+    private static final int INVENTORY_SIZE = 500;
+    /** Received messages are staged until this many are available to verify as a batch */
+    private static final int INBOUND_BATCH_SIZE = 10;
+    /** A frame failing to send this many times is abandoned for this flow */
+    private static final int MAX_SEND_ATTEMPTS = 3;
+    /** A flow abandoning this many frames, or the frame ending a turn, is aborted */
+    private static final int MAX_ABANDONED_FRAMES = 3;
     public static enum State { CLIENT_WRITE_ID, HOST_WRITE_ID, CLIENT_WRITE_MSGS, HOST_WRITE_MSGS }
+    /** Progress of one direction of a duplex flow */
+    private static enum Phase { IDENTITIES, MESSAGES, DONE }
 
     private State mState = State.CLIENT_WRITE_ID;
     private OwnedIdentityPacket mLocalIdentity;
@@ -75,14 +221,46 @@ public class ChatPeerFlow {
     private DataOutlet mOutlet;
     private IdentityPacket mRemoteIdentity;
     private Callback mCallback;
+    private Options mOptions;
     private ArrayDeque<MessagePacket> mMessageOutbox = new ArrayDeque<>();
     private ArrayDeque<IdentityPacket> mIdentityOutbox = new ArrayDeque<>();
+    private ArrayList<MessagePacketView> mInboundMessages = new ArrayList<>(INBOUND_BATCH_SIZE);
+    private ArrayList<Frame> mFramesInFlight = new ArrayList<>();
+    /** Frames awaiting {@link DataOutlet#sendData} while it is already sending. See {@link #sendFrame} */
+    private ArrayDeque<Frame> mFramesToSend = new ArrayDeque<>();
+    private boolean mSendingFrames = false;
+    private int mAbandonedFrames = 0;
+    private InventoryPacket mRemoteInventory;
+    private byte[] mInventory;
+
+    /**
+     * Writes of the current send and receive phases, each committed as one transaction
+     * when its phase ends or the peer disconnects
+     */
+    private DataStore.Batch mSendBatch;
+    private DataStore.Batch mReceiveBatch;
+    /** Signatures of messages sent in the current send phase, reported once it is committed */
+    private ArrayList<byte[]> mSentMessages = new ArrayList<>();
 
     private boolean mPeerIsHost;
     private boolean mIsComplete = false;
+    /** Why the flow was aborted, if it was */
+    private Exception mError;
     private boolean mFetchedMessages = false;
     private boolean mFetchedIdentities = false;
+    /** Whether the identity outbox was chosen for the remote peer, rather than before knowing it */
+    private boolean mFetchedIdentitiesForRemote = false;
     private boolean mGotRemotePeerIdentity = false;
+    private boolean mQueuedInventory = false;
+    private boolean mQueuedNoData = false;
+
+    /** Duplex mode. See {@link Options#duplex} */
+    private boolean mDuplex = false;
+    private Phase mSendPhase;
+    private Phase mReceivePhase;
+
+    /** See {@link Checkpoint#startedAt} */
+    private long mStartedAt = System.currentTimeMillis();
 
     public ChatPeerFlow(DataStore dataStore,
                         Protocol protocol,
@@ -91,23 +269,54 @@ public class ChatPeerFlow {
                         boolean peerIsHost,
                         Callback callback) {
 
+        this(dataStore, protocol, outlet, remotePeer, peerIsHost, callback, new Options());
+    }
+
+    public ChatPeerFlow(DataStore dataStore,
+                        Protocol protocol,
+                        DataOutlet outlet,
+                        Peer remotePeer,
+                        boolean peerIsHost,
+                        Callback callback,
+                        Options options) {
+
+        mOptions = options;
         mRemoteAirSharePeer = remotePeer;
         mOutlet = outlet;
         mProtocol = protocol;
         mDataStore = dataStore;
-        mLocalIdentity = (OwnedIdentityPacket) dataStore.getPrimaryLocalPeer().getIdentity();
+        mSendBatch = dataStore.beginBatch();
+        mReceiveBatch = dataStore.beginBatch();
+        mLocalIdentity = dataStore.getPrimaryLocalIdentity();
         mPeerIsHost = peerIsHost;
         mCallback = callback;
 
         // Client initiates flow
         if (mPeerIsHost)
-            sendIdentity();
+            sendAsAppropriate();
     }
 
     public boolean isComplete() {
         return mIsComplete;
     }
 
+    /**
+     * @return the reason this flow was aborted before finishing, or null if it wasn't.
+     * An aborted flow is complete.
+     */
+    @Nullable
+    public Exception getError() {
+        return mError;
+    }
+
+    /**
+     * @return whether both we and the remote peer offered duplex, so the flow writes in both
+     * directions at once. Known once the remote identity arrives. See {@link Options#duplex}
+     */
+    public boolean isDuplex() {
+        return mDuplex;
+    }
+
     public Peer getRemoteAirSharePeer() {
         return mRemoteAirSharePeer;
     }
@@ -117,211 +326,602 @@ public class ChatPeerFlow {
     }
 
     /**
-     * Called when data is acknowledged as sent to the peer passed to this instance's constructor
+     * Called when data is acknowledged as sent to the peer passed to this instance's constructor,
+     * or failed to send.
+     *
+     * @param exception the reason data failed to send, or null if it was sent
      * @return whether this flow is complete and should not receive further events.
      */
-    public boolean onDataSent(byte[] data) throws UnexpectedDataException {
+    public boolean onDataSent(byte[] data, @Nullable Exception exception) throws UnexpectedDataException {
         // When data is ack'd we should be in a local-peer writing state
-        if ((!mPeerIsHost && (mState == State.CLIENT_WRITE_ID || (mState == State.CLIENT_WRITE_MSGS && !mIsComplete))) ||
-            (mPeerIsHost && (mState == State.HOST_WRITE_ID || (mState == State.HOST_WRITE_MSGS && !mIsComplete)))) {
+        if (!mDuplex &&
+            ((!mPeerIsHost && (mState == State.CLIENT_WRITE_ID || (mState == State.CLIENT_WRITE_MSGS && !mIsComplete))) ||
+             (mPeerIsHost && (mState == State.HOST_WRITE_ID || (mState == State.HOST_WRITE_MSGS && !mIsComplete))))) {
 
             throw new IllegalStateException(String.format("onDataSent invalid state %s for local as %s", mState, mPeerIsHost ? "client" : "host"));
 
         }
 
-        Timber.d("Sent data %s", DataUtil.bytesToHex(data));
-
-        byte type = mProtocol.getPacketType(data);
-
-        // TODO : Perhaps we should cache last sent item to avoid deserializing bytes we've
-        // just serialized in sendData
-        switch (mState) {
-            case HOST_WRITE_ID:
-            case CLIENT_WRITE_ID:
-
-                switch(type) {
-                    case IdentityPacket.TYPE:
+        Frame frame = removeFrameInFlight(data);
+        if (frame == null)
+            throw new UnexpectedDataException("Sent data does not match any frame in flight");
 
-                        IdentityPacket sentIdPkt = mProtocol.deserializeIdentity(data);
-                        mDataStore.createOrUpdateRemotePeerWithProtocolIdentity(sentIdPkt);
-                        // We can only report the identity sent once we know the peer's identity
-                        // We also always want to send our own identity first
-                        if (mRemoteIdentity != null) {
-                            Timber.d("Marked identity %s delivered to %s", sentIdPkt.alias, mRemoteIdentity.alias);
-                            mDataStore.markIdentityDeliveredToPeer(sentIdPkt, mRemoteIdentity);
-                        }
-
-                        mIdentityOutbox.poll();
+        if (exception != null) {
+            onFrameFailed(frame, exception);
+            return mIsComplete;
+        }
 
-                        sendAsAppropriate();
-                        break;
+        Timber.d("Sent frame of %d packets", frame.numPackets);
 
-                    case NoDataPacket.TYPE:
+        for (IdentityPacket sentIdPkt : frame.identities) {
+            mSendBatch.createOrUpdateRemotePeer(sentIdPkt);
+            // We can only report the identity sent once we know the peer's identity
+            // We also always want to send our own identity first
+            if (mRemoteIdentity != null) {
+                Timber.d("Marked identity %s delivered to %s", sentIdPkt.alias, mRemoteIdentity.alias);
+                mSendBatch.markIdentityDeliveredToPeer(sentIdPkt, mRemoteIdentity);
+            }
+        }
 
-                        incrementStateAndSendAsAppropriate();
-                        break;
+        for (MessagePacket sentMsg : frame.messages) {
+            mSendBatch.createOrUpdateMessage(sentMsg);
+            // Mark incoming messages as delivered to sender
+            mSendBatch.markMessageDeliveredToPeer(sentMsg, mRemoteIdentity);
+            mSentMessages.add(sentMsg.signature);
+        }
 
-                    default:
-                        throw new UnexpectedDataException(String.format("Expected IdentityPacket (type %d). Got type %d", IdentityPacket.TYPE, type));
+        // A NoData packet, alone or ending a frame, completes our turn in the current state
+        if (frame.hasNoData) commitSendBatch();
 
-                }
-                break;
+        if (frame.hasNoData && mDuplex)
+            advanceSendPhase();
+        else if (frame.hasNoData)
+            incrementStateAndSendAsAppropriate();
+        else
+            sendAsAppropriate();
 
-            case HOST_WRITE_MSGS:
-            case CLIENT_WRITE_MSGS:
+        return mIsComplete;
+    }
 
-                switch(type) {
-                    case MessagePacket.TYPE:
+    /**
+     * Retransmit a frame that failed to send, unless it has failed {@link #MAX_SEND_ATTEMPTS} times.
+     * Other frames in flight are unaffected. Once {@link #MAX_ABANDONED_FRAMES} frames are abandoned,
+     * or one carrying our NoData, the link is presumed dead and the flow aborted.
+     */
+    private void onFrameFailed(Frame frame, Exception exception) {
+        if (mIsComplete) return;
 
-                        MessagePacket msgPkt = mProtocol.deserializeMessageWithIdentity(data, mRemoteIdentity);
-                        Message msg = mDataStore.createOrUpdateMessageWithProtocolMessage(msgPkt);
-                        // Mark incoming messages as delivered to sender
-                        mDataStore.markMessageDeliveredToPeer(msgPkt, mRemoteIdentity);
-                        mCallback.onMessageSent(this, msg, mDataStore.getPeerByPubKey(mRemoteIdentity.publicKey));
+        if (frame.attempts < MAX_SEND_ATTEMPTS) {
+            Timber.w(exception, "Frame failed to send. Retransmitting (attempt %d)", frame.attempts + 1);
+            sendFrame(frame);
+            return;
+        }
 
-                        mMessageOutbox.poll();
+        // Abandon the frame. Its packets aren't marked delivered, so will be offered next encounter
+        Timber.e(exception, "Frame failed to send after %d attempts. Dropping %d packets", frame.attempts, frame.numPackets);
+        mAbandonedFrames++;
+        // Without its NoData our turn can't end, and a new one would only fail the same way
+        if (frame.hasNoData || mAbandonedFrames >= MAX_ABANDONED_FRAMES) {
+            abort(exception);
+            return;
+        }
+        sendAsAppropriate();
+    }
 
-                        sendAsAppropriate();
-                        break;
+    /**
+     * End the flow unfinished, committing what was exchanged so far. Packets not acknowledged
+     * are offered again next encounter.
+     */
+    private void abort(Exception exception) {
+        Timber.e(exception, "ChatPeerFlow aborted after %d frames failed to send", mAbandonedFrames);
+        mError = exception;
+        mIsComplete = true;
+        mFramesToSend.clear();
+        flushInboundMessages();
+        commitReceiveBatch();
+        commitSendBatch();
+    }
 
-                    case NoDataPacket.TYPE:
+    /**
+     * Called when data is received from the peer passed to this instance's constructor
+     * @return whether this flow is complete and should not receive further events.
+     */
+    public boolean onDataReceived(byte[] data) throws UnexpectedDataException {
+        // When data comes in we should be in a remote-peer writing state, unless
+        // a duplex host is opening with its identity while we write ours
+        boolean mayBeDuplexHost = mPeerIsHost && mOptions.duplex && !mGotRemotePeerIdentity;
+        if (!mDuplex && !mayBeDuplexHost &&
+            ((!mPeerIsHost && (mState == State.HOST_WRITE_ID || (mState == State.HOST_WRITE_MSGS && !mIsComplete))) ||
+             (mPeerIsHost && (mState == State.CLIENT_WRITE_ID || (mState == State.CLIENT_WRITE_MSGS && !mIsComplete))))) {
 
-                        incrementStateAndSendAsAppropriate();
-                        break;
+            throw new IllegalStateException(String.format("onDataReceived invalid state %s for local as %s", mState, mPeerIsHost ? "client" : "host"));
 
-                    default:
-                        throw new UnexpectedDataException(String.format("Expected MessagePacket (type %d). Got type %d", MessagePacket.TYPE, type));
+        }
 
-                }
+        //Timber.d("Received data %s", DataUtil.bytesToHex(data));
 
-                break;
+        // A NoData packet, alone or ending a bundle, completes the remote peer's turn
+        boolean receivedNoData = false;
+        for (byte[] packet : unbundle(data)) {
+            receivedNoData |= onPacketReceived(packet);
+        }
 
-            default:
-                Timber.e("Flow received unexpected response from client peer");
+        if (receivedNoData) {
+            flushInboundMessages();
+            commitReceiveBatch();
+            if (mDuplex)
+                advanceReceivePhase();
+            else
+                incrementStateAndSendAsAppropriate();
+        } else if (mDuplex) {
+            // We may have just learned the flow is duplex
+            sendAsAppropriate();
         }
         return mIsComplete;
     }
 
     /**
-     * Called when data is received from the peer passed to this instance's constructor
-     * @return whether this flow is complete and should not receive further events.
+     * Handle one received packet, which may have been part of a bundle
+     * @return whether packet was a NoData packet
      */
-    public boolean onDataReceived(byte[] data) throws UnexpectedDataException {
-        // When data comes in we should be in a remote-peer writing state
-        if ((!mPeerIsHost && (mState == State.HOST_WRITE_ID || (mState == State.HOST_WRITE_MSGS && !mIsComplete))) ||
-            (mPeerIsHost && (mState == State.CLIENT_WRITE_ID || (mState == State.CLIENT_WRITE_MSGS && !mIsComplete)))) {
-
-            throw new IllegalStateException(String.format("onDataReceived invalid state %s for local as %s", mState, mPeerIsHost ? "client" : "host"));
+    private boolean onPacketReceived(byte[] packet) throws UnexpectedDataException {
+        byte type = mProtocol.getPacketType(packet);
 
+        if (type == InventoryPacket.TYPE) {
+            mRemoteInventory = mProtocol.deserializeInventory(packet);
+            Timber.d("Received inventory with %d byte filter", mRemoteInventory.filter.length);
+            return false;
         }
 
-        //Timber.d("Received data %s", DataUtil.bytesToHex(data));
+        if (isReceivingIdentities()) {
 
-        byte type = mProtocol.getPacketType(data);
+            switch(type) {
+                case IdentityPacket.TYPE:
 
-        switch (mState) {
-            case HOST_WRITE_ID:
-            case CLIENT_WRITE_ID:
+                    IdentityPacketView idView = mProtocol.viewIdentity(packet);
+                    IdentityPacket idPkt = idView.toIdentityPacket();
+                    // Only treat first identity as that of connected peer
+                    if (mGotRemotePeerIdentity) {
+                        mReceiveBatch.createOrUpdateRemotePeer(idPkt);
+                    } else {
+                        // Stored now, as the rest of the flow refers to it
+                        pro.dbro.ble.data.model.Peer peer = mDataStore.createOrUpdateRemotePeerWithProtocolIdentity(idPkt);
+                        mRemoteIdentity = idPkt;
+                        Timber.d("Got remote identity for %s", mRemoteIdentity.alias);
+                        mGotRemotePeerIdentity = true;
+                        onRemoteCapabilities(idView);
+                        resumeFromCheckpoint();
+                        mCallback.onAppPeerStatusUpdated(this, peer, Callback.ConnectionStatus.CONNECTED);
+                    }
+                    return false;
 
-                switch(type) {
-                    case IdentityPacket.TYPE:
+                case NoDataPacket.TYPE:
 
-                        mRemoteIdentity = mProtocol.deserializeIdentity(data);
-                        Timber.d("Got remote identity for %s", mRemoteIdentity.alias);
-                        pro.dbro.ble.data.model.Peer remotePeer = mDataStore.createOrUpdateRemotePeerWithProtocolIdentity(mRemoteIdentity);
-                        // Only treat first identity as that of connected peer
-                        if (!mGotRemotePeerIdentity) {
-                            mCallback.onAppPeerStatusUpdated(this, remotePeer, Callback.ConnectionStatus.CONNECTED);
-                            mGotRemotePeerIdentity = true;
-                        }
-                        break;
+                    Timber.d("Received identity NoData");
+                    return true;
 
-                    case NoDataPacket.TYPE:
+                default:
 
-                        Timber.d("Received identity NoData");
-                        incrementStateAndSendAsAppropriate();
-                        break;
+                    throw new UnexpectedDataException(String.format("Expected IdentityPacket (type %d). Got type %d", IdentityPacket.TYPE, type));
+            }
 
-                    default:
+        } else {
 
-                        throw new UnexpectedDataException(String.format("Expected IdentityPacket (type %d). Got type %d", IdentityPacket.TYPE, type));
-                }
+            switch (type) {
+                case MessagePacket.TYPE:
 
-                break;
+                    // Signatures are verified a batch at a time as the staging queue fills
+                    mInboundMessages.add(mProtocol.viewUnverifiedMessage(packet));
+                    if (mInboundMessages.size() >= INBOUND_BATCH_SIZE)
+                        flushInboundMessages();
 
-            case HOST_WRITE_MSGS:
-            case CLIENT_WRITE_MSGS:
+                    return false;
+
+                case NoDataPacket.TYPE:
 
-                switch (type) {
-                    case MessagePacket.TYPE:
+                    Timber.d("Received msg NoData");
+                    return true;
 
-                        MessagePacket msgPkt = mProtocol.deserializeMessageWithIdentity(data, mRemoteIdentity);
-                        Timber.d("Received msg %s", msgPkt.body);
+                default:
 
-                        // Mark incoming messages as delivered to sender
+                    throw new UnexpectedDataException(String.format("Expected MessagePacket (type %d). Got type %d", MessagePacket.TYPE, type));
 
-                        boolean isNewMessage = true;
-                        Message existingMessage = mDataStore.getMessageBySignature(msgPkt.signature);
-                        if (existingMessage != null) {
-                            isNewMessage = false;
-                            existingMessage.close();
-                        }
+            }
+        }
+    }
 
-                        // TODO : Allow updating a message?
-                        Message msg = mDataStore.createOrUpdateMessageWithProtocolMessage(msgPkt);
-                        mDataStore.markMessageDeliveredToPeer(msgPkt, mRemoteIdentity);
+    /**
+     * Enter duplex mode if both we and the remote peer support it, otherwise continue sequentially.
+     * Called with the remote peer's own identity, always the first it sends.
+     */
+    private void onRemoteCapabilities(IdentityPacketView remoteIdentity) throws UnexpectedDataException {
+        if (mOptions.duplex && remoteIdentity.hasCapability(IdentityPacketView.CAPABILITY_DUPLEX)) {
+            Timber.d("Entering duplex flow");
+            mDuplex = true;
+            mReceivePhase = Phase.IDENTITIES;
+            // The client may have finished writing identities before learning the host is duplex
+            mSendPhase = (mPeerIsHost && mState != State.CLIENT_WRITE_ID) ? Phase.MESSAGES : Phase.IDENTITIES;
+            return;
+        }
 
-                        if (isNewMessage)
-                            mCallback.onMessageReceived(this, msg, mDataStore.getPeerByPubKey(mRemoteIdentity.publicKey));
+        boolean localWriteState = mPeerIsHost ?
+                                  mState == State.CLIENT_WRITE_ID || mState == State.CLIENT_WRITE_MSGS :
+                                  mState == State.HOST_WRITE_ID || mState == State.HOST_WRITE_MSGS;
+        if (localWriteState)
+            throw new UnexpectedDataException("Sequential peer wrote out of turn");
+    }
 
-                        break;
+    /**
+     * @return the packets carried by data, which is either a single packet or a {@link BundlePacket}
+     */
+    private List<byte[]> unbundle(byte[] data) {
+        if (mProtocol.getPacketType(data) == BundlePacket.TYPE)
+            return mProtocol.deserializeBundle(data);
+
+        return Collections.singletonList(data);
+    }
+
+    /**
+     * Called when the connection to the remote peer is lost.
+     * Releases any received messages still awaiting verification, and saves a {@link Checkpoint}
+     * if the flow is incomplete.
+     */
+    public void onDisconnected() {
+        flushInboundMessages();
+        commitReceiveBatch();
+        commitSendBatch();
+
+        if (mOptions.checkpoints != null && !mIsComplete && mRemoteIdentity != null) {
+            Checkpoint checkpoint = getCheckpoint();
+            Timber.d("Saving flow checkpoint with %d identities and %d messages pending",
+                     checkpoint.pendingIdentities.size(), checkpoint.pendingMessages.size());
+            mOptions.checkpoints.put(checkpoint);
+        }
+    }
 
-                    case NoDataPacket.TYPE:
+    /**
+     * @return our progress. Packets in frames still in flight are pending, ahead of those queued
+     */
+    private Checkpoint getCheckpoint() {
+        Checkpoint checkpoint = new Checkpoint(mRemoteIdentity.publicKey, mStartedAt,
+                                               mFetchedIdentitiesForRemote, mFetchedMessages,
+                                               mInventory, mRemoteInventory);
+
+        for (Frame frame : mFramesInFlight) {
+            checkpoint.pendingIdentities.addAll(frame.identities);
+            checkpoint.pendingMessages.addAll(frame.messages);
+        }
+        checkpoint.pendingIdentities.addAll(mIdentityOutbox);
+        checkpoint.pendingMessages.addAll(mMessageOutbox);
 
-                        Timber.d("Received msg NoData");
-                        incrementStateAndSendAsAppropriate();
-                        break;
+        // Our identity is sent first by each flow
+        for (Iterator<IdentityPacket> iterator = checkpoint.pendingIdentities.iterator(); iterator.hasNext(); ) {
+            if (Arrays.equals(iterator.next().publicKey, mLocalIdentity.publicKey))
+                iterator.remove();
+        }
+        return checkpoint;
+    }
 
-                    default:
+    /**
+     * Restore the progress of an earlier flow with the remote peer, if one was saved within
+     * the resume window. Called once the remote identity is known.
+     */
+    private void resumeFromCheckpoint() {
+        if (mOptions.checkpoints == null) return;
 
-                        throw new UnexpectedDataException(String.format("Expected MessagePacket (type %d). Got type %d", MessagePacket.TYPE, type));
+        Checkpoint checkpoint = mOptions.checkpoints.take(mRemoteIdentity.publicKey);
+        if (checkpoint == null) return;
 
-                }
-                break;
+        Timber.d("Resuming flow with %d identities and %d messages pending",
+                 checkpoint.pendingIdentities.size(), checkpoint.pendingMessages.size());
+        mStartedAt = checkpoint.startedAt;
+        if (mInventory == null) mInventory = checkpoint.inventory;
+        if (mRemoteInventory == null) mRemoteInventory = checkpoint.remoteInventory;
 
-            default:
-                Timber.e("Flow received unexpected response from client peer");
+        if (!mFetchedIdentities && checkpoint.fetchedIdentities) {
+            mIdentityOutbox.add(getOwnIdentity());
+            mIdentityOutbox.addAll(checkpoint.pendingIdentities);
+            mFetchedIdentities = true;
+            mFetchedIdentitiesForRemote = true;
+        } else if (checkpoint.fetchedIdentities) {
+            // As client we chose our identities, only our own, before the remote identity arrived.
+            // The pending identities weren't marked delivered, so a later flow offers them
+            Timber.d("Dropping %d checkpointed identities, as ours were sent before the remote identity arrived",
+                     checkpoint.pendingIdentities.size());
+        }
+
+        if (!mFetchedMessages && checkpoint.fetchedMessages) {
+            // Messages queued to this flow follow those pending from the checkpoint
+            ArrayDeque<MessagePacket> queued = mMessageOutbox;
+            mMessageOutbox = new ArrayDeque<>(checkpoint.pendingMessages);
+            for (MessagePacket message : queued) {
+                if (!containsMessage(mMessageOutbox, message))
+                    mMessageOutbox.add(message);
+            }
+            mFetchedMessages = true;
+        }
+    }
+
+    private static boolean containsMessage(ArrayDeque<MessagePacket> messages, MessagePacket message) {
+        for (MessagePacket candidate : messages) {
+            if (Arrays.equals(candidate.signature, message.signature)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Verify all staged inbound messages as a batch, then release the valid ones
+     * to the DataStore in the order they arrived.
+     */
+    private void flushInboundMessages() {
+        if (mInboundMessages.size() == 0) return;
+
+        boolean[] validSignatures = mProtocol.verifySignatures(mInboundMessages);
+
+        for (int x = 0; x < mInboundMessages.size(); x++) {
+            if (!validSignatures[x]) {
+                Timber.w("Dropping received message with invalid signature");
+                continue;
+            }
+            onVerifiedMessageReceived(mInboundMessages.get(x));
+        }
+        mInboundMessages.clear();
+    }
+
+    private void onVerifiedMessageReceived(MessagePacketView msgView) {
+        // Fields are read straight from the received bytes. The body is only
+        // decoded if this turns out to be a message we haven't stored
+
+        // TODO : Allow updating a message?
+        mReceiveBatch.createOrUpdateMessage(msgView);
+        // Mark incoming messages as delivered to sender
+        mReceiveBatch.markMessageDeliveredToPeer(msgView, mRemoteIdentity);
+    }
+
+    /**
+     * Commit the writes of the receive phase, then report the messages it newly stored
+     */
+    private void commitReceiveBatch() {
+        if (mReceiveBatch.isEmpty()) return;
+
+        final byte[] senderPublicKey = mRemoteIdentity.publicKey;
+        commitBatch(mReceiveBatch, new WriteBehindQueue.Callback() {
+            @Override
+            public void onCommitted(@NonNull List<byte[]> newMessageSignatures) {
+                Timber.d("Received %d new msgs", newMessageSignatures.size());
+                reportMessages(newMessageSignatures, senderPublicKey, false);
+            }
+        });
+        mReceiveBatch = mDataStore.beginBatch();
+    }
+
+    /**
+     * Commit the writes of the send phase, then report the messages it sent
+     */
+    private void commitSendBatch() {
+        if (mSendBatch.isEmpty()) return;
+
+        final List<byte[]> sentMessages = mSentMessages;
+        final byte[] recipientPublicKey = mRemoteIdentity == null ? null : mRemoteIdentity.publicKey;
+        commitBatch(mSendBatch, new WriteBehindQueue.Callback() {
+            @Override
+            public void onCommitted(@NonNull List<byte[]> newMessageSignatures) {
+                if (recipientPublicKey != null) reportMessages(sentMessages, recipientPublicKey, true);
+            }
+        });
+        mSendBatch = mDataStore.beginBatch();
+        mSentMessages = new ArrayList<>();
+    }
+
+    /**
+     * Commit batch in the background if {@link Options#writeBehind} is set, otherwise now
+     */
+    private void commitBatch(DataStore.Batch batch, WriteBehindQueue.Callback callback) {
+        if (mOptions.writeBehind)
+            mDataStore.enqueueBatch(batch, callback);
+        else
+            callback.onCommitted(mDataStore.commitBatch(batch));
+    }
+
+    /**
+     * Report the stored messages with signatures as sent to, or received from, the peer with publicKey
+     */
+    private void reportMessages(List<byte[]> signatures, byte[] publicKey, boolean sent) {
+        if (signatures.size() == 0) return;
+
+        pro.dbro.ble.data.model.Peer peer = mDataStore.getPeerByPubKey(publicKey);
+        for (byte[] signature : signatures) {
+            Message msg = mDataStore.getMessageBySignature(signature);
+            if (msg == null) continue;
+
+            if (sent && peer != null)
+                mCallback.onMessageSent(this, msg, peer);
+            else if (!sent)
+                mCallback.onMessageReceived(this, msg, peer);
         }
-        return mIsComplete;
     }
 
-    private void sendIdentity() {
+    private void fetchIdentities() {
         if (!mFetchedIdentities) {
 
             // If we're the client, we're initiating the identity flow, and we won't have the remote identity yet
             mIdentityOutbox.addAll(getIdentitiesForIdentity(mRemoteIdentity == null ? null : mRemoteIdentity.publicKey,
                     IDENTITIES_PER_RESPONSE));
             mFetchedIdentities = true;
+            mFetchedIdentitiesForRemote = mRemoteIdentity != null;
         }
-
-        Timber.d("Send identity %s", mIdentityOutbox.size() == 0 ? "NoData" : "");
-        mOutlet.sendData(mRemoteAirSharePeer,
-                         mIdentityOutbox.size() == 0 ?
-                            mProtocol.serializeNoDataPacket(mLocalIdentity).rawPacket :
-                            mIdentityOutbox.peek().rawPacket);
     }
 
-    private void sendMessage() {
+    private void fetchMessages() {
         if (!mFetchedMessages) {
-            mMessageOutbox.addAll(getMessagesForIdentity(mRemoteIdentity.publicKey, MESSAGES_PER_RESPONSE));
+            ArrayDeque<MessagePacket> messages;
+            if (mRemoteInventory != null) {
+                // Messages the remote peer holds stay undelivered, so look past as many as it may advertise
+                messages = getMessagesForIdentity(mRemoteIdentity.publicKey, MESSAGES_PER_RESPONSE + INVENTORY_SIZE);
+                removeMessagesInRemoteInventory(messages);
+                while (messages.size() > MESSAGES_PER_RESPONSE) messages.removeLast();
+            } else {
+                messages = getMessagesForIdentity(mRemoteIdentity.publicKey, MESSAGES_PER_RESPONSE);
+            }
+            mMessageOutbox.addAll(messages);
             mFetchedMessages = true;
         }
+    }
 
-        Timber.d("Send message %s", mMessageOutbox.size() == 0 ? "NoData" : "");
-        mOutlet.sendData(mRemoteAirSharePeer,
-                         mMessageOutbox.size() == 0 ?
-                            mProtocol.serializeNoDataPacket(mLocalIdentity).rawPacket :
-                            mMessageOutbox.peek().rawPacket);
+    /**
+     * @return our serialized inventory, built on first use
+     */
+    private byte[] getInventory() {
+        if (mInventory == null)
+            mInventory = mProtocol.serializeInventory(mDataStore.getRecentMessageSignatures(INVENTORY_SIZE)).rawPacket;
+        return mInventory;
+    }
+
+    /**
+     * Drop messages the remote peer advertised holding, for this encounter only. They aren't
+     * marked delivered, as a message falsely advertised (see {@link InventoryPacket#FALSE_POSITIVE_RATE})
+     * is unlikely to be again under the next encounter's tweak.
+     */
+    private void removeMessagesInRemoteInventory(ArrayDeque<MessagePacket> messages) {
+        int numRemoved = 0;
+        Iterator<MessagePacket> iterator = messages.iterator();
+        while (iterator.hasNext()) {
+            MessagePacket message = iterator.next();
+            if (mRemoteInventory.mightContain(message.signature)) {
+                iterator.remove();
+                numRemoved++;
+            }
+        }
+        Timber.d("Skipping %d messages held by remote peer", numRemoved);
+    }
+
+    /**
+     * Build the next frame of the current state from the head of the outbox, bundling as many
+     * packets as fit in {@link Options#bundleFrameSize}. Our inventory is included where due.
+     * Once the outbox is drained and no other frame is in flight, the NoData packet ending our
+     * turn is included too, so that it always arrives after every other packet of this state.
+     *
+     * @return the next frame, or null if there is nothing to send until frames in flight complete
+     */
+    @Nullable
+    private Frame nextFrame() {
+        if (mQueuedNoData) return null;
+
+        boolean identityState = isSendingIdentities();
+        boolean inventoryDue = mOptions.sendInventory && !mQueuedInventory &&
+                               // As host, close our identities with our inventory, ahead of the client writing messages.
+                               // As client, open our messages with our inventory, ahead of the host writing messages.
+                               // When offering duplex, both close their identities with it, as in duplex neither
+                               // writes messages until the other's identities are complete
+                               (mOptions.duplex ? identityState : (identityState ? !mPeerIsHost : mPeerIsHost));
+
+        if (identityState) fetchIdentities(); else fetchMessages();
+        ArrayDeque<? extends Object> outbox = identityState ? mIdentityOutbox : mMessageOutbox;
+
+        Frame frame = new Frame();
+        List<byte[]> framePackets = new ArrayList<>();
+        int frameLength = BundlePacket.HEADER_LENGTH;
+
+        if (inventoryDue && !identityState) {
+            framePackets.add(getInventory());
+            frameLength += BundlePacket.ENTRY_HEADER_LENGTH + getInventory().length;
+            mQueuedInventory = true;
+        }
+
+        while (!outbox.isEmpty()) {
+            Object packet = outbox.peek();
+            byte[] rawPacket = packet instanceof IdentityPacket ?
+                               ((IdentityPacket) packet).rawPacket :
+                               ((MessagePacket) packet).rawPacket;
+            // Always send at least one packet, however large
+            if (!fitsInFrame(framePackets, frameLength, rawPacket)) break;
+
+            framePackets.add(rawPacket);
+            frameLength += BundlePacket.ENTRY_HEADER_LENGTH + rawPacket.length;
+            if (packet instanceof IdentityPacket)
+                frame.identities.add((IdentityPacket) outbox.poll());
+            else
+                frame.messages.add((MessagePacket) outbox.poll());
+        }
+
+        if (inventoryDue && identityState && outbox.isEmpty() && fitsInFrame(framePackets, frameLength, getInventory())) {
+            framePackets.add(getInventory());
+            frameLength += BundlePacket.ENTRY_HEADER_LENGTH + getInventory().length;
+            mQueuedInventory = true;
+        }
+
+        boolean inventoryDone = !inventoryDue || mQueuedInventory;
+        if (outbox.isEmpty() && inventoryDone && mFramesInFlight.isEmpty()) {
+            byte[] noData = mProtocol.serializeNoDataPacket(mLocalIdentity).rawPacket;
+            if (fitsInFrame(framePackets, frameLength, noData)) {
+                framePackets.add(noData);
+                frame.hasNoData = true;
+                mQueuedNoData = true;
+            }
+        }
+
+        if (framePackets.size() == 0) return null;
+
+        frame.numPackets = framePackets.size();
+        frame.data = framePackets.size() == 1 ?
+                     framePackets.get(0) :
+                     mProtocol.serializeBundle(framePackets);
+        return frame;
+    }
+
+    /**
+     * @return whether rawPacket may join a frame already holding framePackets of frameLength bytes
+     */
+    private boolean fitsInFrame(List<byte[]> framePackets, int frameLength, byte[] rawPacket) {
+        if (framePackets.size() == 0) return true;
+
+        return framePackets.size() < BundlePacket.MAX_PACKETS &&
+               frameLength + BundlePacket.ENTRY_HEADER_LENGTH + rawPacket.length <= mOptions.bundleFrameSize;
+    }
+
+    /**
+     * Hand frame to the {@link DataOutlet}. A transport failing synchronously reports the failure
+     * from within {@link DataOutlet#sendData}, so frames sent meanwhile are queued until it
+     * returns rather than recursing.
+     */
+    private void sendFrame(Frame frame) {
+        frame.attempts++;
+        mFramesInFlight.add(frame);
+        mFramesToSend.add(frame);
+        if (mSendingFrames) return;
+
+        mSendingFrames = true;
+        try {
+            while (!mFramesToSend.isEmpty()) {
+                mOutlet.sendData(mRemoteAirSharePeer, mFramesToSend.poll().data);
+            }
+        } finally {
+            mSendingFrames = false;
+        }
+    }
+
+    /**
+     * @return the frame in flight whose data was sent as data, removed from the in-flight window,
+     * or null if there is none. Frames are matched by identity, then by content in case the
+     * transport reports a copy.
+     */
+    @Nullable
+    private Frame removeFrameInFlight(byte[] data) {
+        for (Iterator<Frame> iterator = mFramesInFlight.iterator(); iterator.hasNext(); ) {
+            Frame frame = iterator.next();
+            if (frame.data == data) {
+                iterator.remove();
+                return frame;
+            }
+        }
+        for (Iterator<Frame> iterator = mFramesInFlight.iterator(); iterator.hasNext(); ) {
+            Frame frame = iterator.next();
+            if (Arrays.equals(frame.data, data)) {
+                iterator.remove();
+                return frame;
+            }
+        }
+        return null;
     }
 
     private void incrementStateAndSendAsAppropriate() {
@@ -332,28 +932,82 @@ public class ChatPeerFlow {
         }
 
         mState = State.values()[mState.ordinal() + 1];
+        mQueuedNoData = false;
         Timber.d("ChatPeerFlow New State : %s", mState);
         sendAsAppropriate();
     }
 
-    private void sendAsAppropriate() {
+    /**
+     * In duplex mode, called when our NoData for the current send phase is acknowledged
+     */
+    private void advanceSendPhase() {
+        mSendPhase = Phase.values()[mSendPhase.ordinal() + 1];
+        mQueuedNoData = false;
+        Timber.d("ChatPeerFlow New Send Phase : %s", mSendPhase);
+        checkDuplexComplete();
+        sendAsAppropriate();
+    }
+
+    /**
+     * In duplex mode, called when the remote peer's NoData for the current receive phase arrives
+     */
+    private void advanceReceivePhase() {
+        mReceivePhase = Phase.values()[mReceivePhase.ordinal() + 1];
+        Timber.d("ChatPeerFlow New Receive Phase : %s", mReceivePhase);
+        checkDuplexComplete();
+        // Our messages may have been waiting on the remote identities and inventory
+        sendAsAppropriate();
+    }
+
+    private void checkDuplexComplete() {
+        if (mSendPhase == Phase.DONE && mReceivePhase == Phase.DONE) {
+            Timber.d("ChatPeerFlow complete!");
+            mIsComplete = true;
+        }
+    }
+
+    private boolean isSendingIdentities() {
+        if (mDuplex) return mSendPhase == Phase.IDENTITIES;
+        return mState == State.CLIENT_WRITE_ID || mState == State.HOST_WRITE_ID;
+    }
+
+    private boolean isReceivingIdentities() {
+        if (mDuplex) return mReceivePhase == Phase.IDENTITIES;
+        return mState == State.CLIENT_WRITE_ID || mState == State.HOST_WRITE_ID;
+    }
+
+    /**
+     * @return whether it is our turn to write. In duplex mode we write identities
+     * at once, and messages once the remote peer's identities are complete.
+     */
+    private boolean isLocalWriteState() {
+        if (mDuplex) {
+            return mSendPhase == Phase.IDENTITIES ||
+                   (mSendPhase == Phase.MESSAGES && mReceivePhase != Phase.IDENTITIES);
+        }
 
         switch (mState) {
             case CLIENT_WRITE_ID:
-                if (mPeerIsHost) sendIdentity();
-                break;
+            case CLIENT_WRITE_MSGS:
+                return mPeerIsHost;
 
-            case HOST_WRITE_ID:
-                if (!mPeerIsHost) sendIdentity();
-                break;
+            default:
+                return !mPeerIsHost;
+        }
+    }
 
-            case CLIENT_WRITE_MSGS:
-                if (mPeerIsHost) sendMessage();
-                break;
+    /**
+     * If it's our turn to write, send frames until {@link Options#maxFramesInFlight} are in flight
+     */
+    private void sendAsAppropriate() {
+        if (mIsComplete || !isLocalWriteState()) return;
+
+        while (mFramesInFlight.size() < Math.max(1, mOptions.maxFramesInFlight)) {
+            Frame frame = nextFrame();
+            if (frame == null) break;
 
-            case HOST_WRITE_MSGS:
-                if (!mPeerIsHost) sendMessage();
-                break;
+            Timber.d("Send frame of %d packets%s", frame.numPackets, frame.hasNoData ? " ending with NoData" : "");
+            sendFrame(frame);
         }
     }
 
@@ -392,9 +1046,9 @@ public class ChatPeerFlow {
      * Return a queue of identity packets for delivery to the remote identity with the given
      * public key.
      *
-     * If recipientPublicKey is null, or no messages undelivered for recipient,
-     * the user identity will be queued. As such this method will never return a null
-     * or empty queue. Thus it should only be called once per flow and should not
+     * The user identity is always queued first, as the remote peer treats the first identity
+     * it receives as ours, and reads our capabilities from it. As such this method will never
+     * return a null or empty queue. Thus it should only be called once per flow and should not
      * be used as an indication of whether identity transmission with a peer is complete.
      */
     private ArrayDeque<IdentityPacket> getIdentitiesForIdentity(@Nullable byte[] recipientPublicKey, int maxIdentities) {
@@ -406,15 +1060,38 @@ public class ChatPeerFlow {
             identities = mDataStore.getOutgoingIdentitiesForPeer(recipient, maxIdentities);
         }
 
-        if (identities == null || identities.size() == 0) {
+        if (identities == null || identities.size() == 0)
             Timber.d("Got no identities to send for peer %s. Sending own identity", recipientPublicKey == null ? "" : "with pub key " + DataUtil.bytesToHex(recipientPublicKey).substring(2, 6));
-            // For now, at least send our identity
-            if (identities == null) identities = new ArrayList<>(1);
-            identities.add(mDataStore.getPrimaryLocalPeer().getIdentity());
+
+        identityPacketQueue.add(getOwnIdentity());
+        if (identities != null) {
+            for (IdentityPacket identity : identities) {
+                if (!Arrays.equals(identity.publicKey, mLocalIdentity.publicKey))
+                    identityPacketQueue.add(identity);
+            }
         }
-        identityPacketQueue.addAll(identities);
 
         return identityPacketQueue;
     }
 
+    /**
+     * @return our identity, advertising our capabilities for this flow. The identity packet
+     * serialized with our local identity is reused if it advertises the same capabilities,
+     * otherwise ours is signed afresh
+     */
+    private IdentityPacket getOwnIdentity() {
+        byte capabilities = mOptions.duplex ? IdentityPacketView.CAPABILITY_DUPLEX : 0;
+        byte[] rawIdentity = mLocalIdentity.rawPacket;
+        if (rawIdentity == null ||
+            new IdentityPacketView(rawIdentity).isVersion1() ||
+            new IdentityPacketView(rawIdentity).getFlags() != capabilities) {
+
+            rawIdentity = mProtocol.serializeIdentity(mLocalIdentity, capabilities);
+        }
+        if (rawIdentity == null) return mLocalIdentity;
+        // The packet is our own, whether cached or just signed, so skip verification
+        // We just signed this packet, so skip verification
+        return new IdentityPacketView(rawIdentity).toIdentityPacket();
+    }
+
 }
@@ -0,0 +1,85 @@
+package pro.dbro.ble;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import pro.dbro.ble.data.model.DataUtil;
+import pro.dbro.ble.protocol.MessagePacket;
+
+/**
+ * Progress of {@link ChatPeerFlow}s cut short by a disconnect, keyed by remote public key,
+ * so a flow with a peer reconnecting soon after resumes rather than starts over.
+ *
+ * A checkpoint may be resumed until the resume window has passed since the flow it records
+ * first began. A flow resumed from a checkpoint keeps that start time, so a peer repeatedly
+ * dropping in and out of range still gets a full sync once per window.
+ * The least recently saved checkpoints are evicted beyond capacity.
+ *
+ * This class is thread-safe.
+ */
+public class FlowCheckpointStore {
+
+    public static final long DEFAULT_RESUME_WINDOW_MS = 2 * 60 * 1000;
+    public static final int DEFAULT_CAPACITY = 32;
+
+    private final long mResumeWindowMs;
+    private final LinkedHashMap<String, ChatPeerFlow.Checkpoint> mCheckpoints;
+
+    public FlowCheckpointStore() {
+        this(DEFAULT_RESUME_WINDOW_MS, DEFAULT_CAPACITY);
+    }
+
+    public FlowCheckpointStore(long resumeWindowMs, final int capacity) {
+        mResumeWindowMs = resumeWindowMs;
+        mCheckpoints = new LinkedHashMap<String, ChatPeerFlow.Checkpoint>(capacity, 0.75f, false) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, ChatPeerFlow.Checkpoint> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    public long getResumeWindowMs() {
+        return mResumeWindowMs;
+    }
+
+    /**
+     * Record checkpoint, replacing any held for the same remote peer
+     */
+    public synchronized void put(@NonNull ChatPeerFlow.Checkpoint checkpoint) {
+        String key = DataUtil.bytesToHex(checkpoint.remotePublicKey);
+        // Re-insert so eviction order follows save order
+        mCheckpoints.remove(key);
+        mCheckpoints.put(key, checkpoint);
+    }
+
+    /**
+     * Remove and return the checkpoint for the peer with remotePublicKey.
+     *
+     * @return the checkpoint, or null if there is none or it is outside the resume window
+     */
+    @Nullable
+    public synchronized ChatPeerFlow.Checkpoint take(@NonNull byte[] remotePublicKey) {
+        ChatPeerFlow.Checkpoint checkpoint = mCheckpoints.remove(DataUtil.bytesToHex(remotePublicKey));
+        if (checkpoint == null || System.currentTimeMillis() - checkpoint.startedAt > mResumeWindowMs)
+            return null;
+
+        return checkpoint;
+    }
+
+    /**
+     * Add a message authored since checkpoints were saved to each of their pending outboxes
+     */
+    public synchronized void queueMessage(@NonNull MessagePacket message) {
+        for (ChatPeerFlow.Checkpoint checkpoint : mCheckpoints.values()) {
+            checkpoint.queueMessage(message);
+        }
+    }
+
+    public synchronized int size() {
+        return mCheckpoints.size();
+    }
+}
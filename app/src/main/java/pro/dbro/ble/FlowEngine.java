@@ -0,0 +1,182 @@
+package pro.dbro.ble;
+
+import android.support.annotation.NonNull;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import timber.log.Timber;
+
+/**
+ * Runs the work of many {@link ChatPeerFlow}s on a shared pool of worker threads. Work is keyed by
+ * remote peer, and each key maps to one of a fixed set of serial lanes (stripes), so work for one peer
+ * runs one task at a time in the order it was submitted, while work for peers on other lanes runs
+ * in parallel. A {@link ChatPeerFlow} isn't thread-safe, so all calls into a flow must be made
+ * through {@link #execute(Object, Runnable)} with its peer's key.
+ *
+ * This class is thread-safe.
+ */
+public class FlowEngine {
+
+    /** Lanes per worker thread. More lanes make it less likely that two peers share one */
+    private static final int LANES_PER_WORKER = 4;
+
+    /** Seconds an idle worker thread waits for work before exiting */
+    private static final int WORKER_KEEP_ALIVE_S = 30;
+
+    private final ThreadPoolExecutor mWorkers;
+    private final SerialExecutor[] mLanes;
+
+    /** Metrics */
+    private final AtomicInteger mRunning = new AtomicInteger();
+    private final AtomicInteger mMaxRunning = new AtomicInteger();
+
+    public FlowEngine() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public FlowEngine(int numWorkers) {
+        numWorkers = Math.max(1, numWorkers);
+        final AtomicInteger threadCount = new AtomicInteger();
+        mWorkers = new ThreadPoolExecutor(numWorkers, numWorkers, WORKER_KEEP_ALIVE_S, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(@NonNull Runnable runnable) {
+                        return new Thread(runnable, "FlowWorker-" + threadCount.incrementAndGet());
+                    }
+                });
+        mWorkers.allowCoreThreadTimeOut(true);
+
+        mLanes = new SerialExecutor[numWorkers * LANES_PER_WORKER];
+        for (int x = 0; x < mLanes.length; x++) {
+            mLanes[x] = new SerialExecutor(mWorkers);
+        }
+    }
+
+    /**
+     * Run task on a worker thread, after all tasks submitted before it with an equal key.
+     * A task that throws is logged, and does not affect later tasks.
+     *
+     * @throws RejectedExecutionException if this engine has been shut down
+     */
+    public void execute(@NonNull Object key, @NonNull Runnable task) {
+        mLanes[laneOf(key)].execute(task);
+    }
+
+    /**
+     * @return the number of worker threads
+     */
+    public int getWorkerCount() {
+        return mWorkers.getMaximumPoolSize();
+    }
+
+    /**
+     * @return the greatest number of tasks that have run at once
+     */
+    public int getMaxConcurrency() {
+        return mMaxRunning.get();
+    }
+
+    /**
+     * Stop accepting work. Tasks already submitted still run: a lane whose queue can no longer
+     * be rescheduled on the pool finishes it on the worker already draining it
+     */
+    public void shutdown() {
+        mWorkers.shutdown();
+    }
+
+    private int laneOf(Object key) {
+        // Spread the hash, as peers' hash codes needn't vary in the low bits
+        int hash = key.hashCode();
+        hash ^= (hash >>> 16);
+        hash *= 0x85ebca6b;
+        hash ^= (hash >>> 13);
+        return (hash & Integer.MAX_VALUE) % mLanes.length;
+    }
+
+    /**
+     * Runs tasks on an underlying executor one at a time, in the order submitted
+     */
+    private class SerialExecutor implements Executor {
+        private final Executor mExecutor;
+        /** Guarded by this */
+        private final ArrayDeque<Runnable> mTasks = new ArrayDeque<>();
+        private boolean mScheduled;
+
+        SerialExecutor(Executor executor) {
+            mExecutor = executor;
+        }
+
+        @Override
+        public synchronized void execute(@NonNull final Runnable task) {
+            if (mWorkers.isShutdown())
+                throw new RejectedExecutionException("FlowEngine is shut down");
+
+            mTasks.add(task);
+            if (!mScheduled) {
+                try {
+                    mExecutor.execute(mDrain);
+                } catch (RejectedExecutionException e) {
+                    // Shut down since the check above. Leave the lane as it was
+                    mTasks.removeLast();
+                    throw e;
+                }
+                mScheduled = true;
+            }
+        }
+
+        /**
+         * Runs one task, then reschedules itself if more are queued, so a busy lane
+         * doesn't hold a worker from other lanes. Once the pool is shut down and won't
+         * take it, runs the rest of the queue itself
+         */
+        private final Runnable mDrain = new Runnable() {
+            @Override
+            public void run() {
+                while (true) {
+                    Runnable task;
+                    synchronized (SerialExecutor.this) {
+                        task = mTasks.poll();
+                    }
+
+                    int running = mRunning.incrementAndGet();
+                    updateMaxRunning(running);
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        Timber.e(e, "Flow task failed");
+                    } finally {
+                        mRunning.decrementAndGet();
+                    }
+
+                    synchronized (SerialExecutor.this) {
+                        if (mTasks.isEmpty()) {
+                            mScheduled = false;
+                            return;
+                        }
+                        try {
+                            mExecutor.execute(mDrain);
+                            return;
+                        } catch (RejectedExecutionException e) {
+                            // Shut down. Carry on with the next task here
+                        }
+                    }
+                }
+            }
+        };
+    }
+
+    private void updateMaxRunning(int running) {
+        int max;
+        do {
+            max = mMaxRunning.get();
+        } while (running > max && !mMaxRunning.compareAndSet(max, running));
+    }
+}
@@ -0,0 +1,22 @@
+package pro.dbro.ble.crypto;
+
+/**
+ * A signed range of a buffer awaiting verification.
+ * See {@link SodiumShaker#verifySignatures(java.util.List)}
+ */
+public class SignedMessage {
+
+    public final byte[] publicKey;
+    public final byte[] signature;
+    public final byte[] buffer;
+    public final int    offset;
+    public final int    length;
+
+    public SignedMessage(byte[] publicKey, byte[] signature, byte[] buffer, int offset, int length) {
+        this.publicKey = publicKey;
+        this.signature = signature;
+        this.buffer    = buffer;
+        this.offset    = offset;
+        this.length    = length;
+    }
+}
@@ -5,6 +5,15 @@ import android.support.annotation.NonNull;
 import org.abstractj.kalium.NaCl;
 import org.abstractj.kalium.Sodium;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
 /**
  * Wrapper around libsodium functions.
  *
@@ -17,6 +26,12 @@ public class SodiumShaker {
     private static final int crypto_sign_SECRETKEYBYTES = 64;
     public static final int crypto_sign_BYTES = 64;
 
+    /** Batches smaller than this are verified on the calling thread */
+    private static final int MIN_PARALLEL_BATCH = 4;
+    private static final int VERIFY_THREADS = Math.max(1, Runtime.getRuntime().availableProcessors());
+
+    private static ExecutorService sVerifyExecutor;
+
     static {
         // Load native libraries
         NaCl.sodium();
@@ -52,12 +67,98 @@ public class SodiumShaker {
      * @param message the data with signature
      */
     public static boolean verifySignature(@NonNull byte[] public_key, @NonNull byte[] signature, @NonNull byte[] message) {
+        return verifySignature(public_key, signature, message, 0, message.length);
+    }
+
+    /**
+     * Very that signature and public_key verify the message_len bytes of buffer starting at offset.
+     * No copy is made when offset is 0.
+     *
+     * @param public_key the public key corresponding to signature
+     * @param signature the signature of message decipherable with public_key
+     * @param buffer the buffer containing the signed data
+     * @param offset the index of the first signed byte within buffer
+     * @param message_len the number of signed bytes
+     */
+    public static boolean verifySignature(@NonNull byte[] public_key, @NonNull byte[] signature, @NonNull byte[] buffer, int offset, int message_len) {
+        byte[] message = buffer;
+        if (offset != 0) {
+            // The native API has no offset parameter
+            message = new byte[message_len];
+            System.arraycopy(buffer, offset, message, 0, message_len);
+        }
+
         // Verify signature
 
-        if (Sodium.crypto_sign_ed25519_verify_detached(signature, message, message.length, public_key) != 0) {
+        if (Sodium.crypto_sign_ed25519_verify_detached(signature, message, message_len, public_key) != 0) {
             /* Incorrect signature! */
             return false;
         }
         return true;
     }
+
+    /**
+     * Verify a batch of signed messages, fanning the work out across cores.
+     * The calling thread blocks until the whole batch is verified.
+     *
+     * @return an array whose entry x reports whether messages.get(x) verified
+     */
+    public static boolean[] verifySignatures(@NonNull final List<SignedMessage> messages) {
+        final boolean[] results = new boolean[messages.size()];
+
+        if (messages.size() < MIN_PARALLEL_BATCH || VERIFY_THREADS < 2) {
+            verifyRange(messages, results, 0, messages.size());
+            return results;
+        }
+
+        int numChunks = Math.min(VERIFY_THREADS, messages.size());
+        int chunkSize = (messages.size() + numChunks - 1) / numChunks;
+        List<Future<Void>> pending = new ArrayList<>(numChunks);
+        for (int start = chunkSize; start < messages.size(); start += chunkSize) {
+            final int chunkStart = start;
+            final int chunkEnd = Math.min(messages.size(), start + chunkSize);
+            pending.add(getVerifyExecutor().submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    verifyRange(messages, results, chunkStart, chunkEnd);
+                    return null;
+                }
+            }));
+        }
+        // The calling thread takes the first chunk itself
+        verifyRange(messages, results, 0, Math.min(messages.size(), chunkSize));
+
+        try {
+            for (Future<Void> chunk : pending) {
+                chunk.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while verifying signatures", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Failed to verify signatures", e.getCause());
+        }
+        return results;
+    }
+
+    private static void verifyRange(List<SignedMessage> messages, boolean[] results, int start, int end) {
+        for (int x = start; x < end; x++) {
+            SignedMessage message = messages.get(x);
+            results[x] = verifySignature(message.publicKey, message.signature, message.buffer, message.offset, message.length);
+        }
+    }
+
+    private static synchronized ExecutorService getVerifyExecutor() {
+        if (sVerifyExecutor == null) {
+            sVerifyExecutor = Executors.newFixedThreadPool(VERIFY_THREADS, new ThreadFactory() {
+                @Override
+                public Thread newThread(@NonNull Runnable runnable) {
+                    Thread thread = new Thread(runnable, "SodiumVerify");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sVerifyExecutor;
+    }
 }
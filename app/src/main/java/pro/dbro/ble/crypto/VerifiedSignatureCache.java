@@ -0,0 +1,116 @@
+package pro.dbro.ble.crypto;
+
+import android.support.annotation.NonNull;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded, least-recently-used record of signed messages already known to verify.
+ *
+ * Entries pair a signature with a SHA-256 digest of the public key and signed data it
+ * covered, so a cache hit costs a hash rather than an Ed25519 verification. A packet
+ * reusing a known signature over different content misses and is verified normally.
+ *
+ * This class is thread-safe.
+ */
+public class VerifiedSignatureCache {
+
+    private static final ThreadLocal<MessageDigest> sDigest = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException("SHA-256 unavailable", e);
+            }
+        }
+    };
+
+    private final LinkedHashMap<SignatureKey, byte[]> mEntries;
+
+    private int mHits;
+    private int mMisses;
+
+    public VerifiedSignatureCache(final int capacity) {
+        mEntries = new LinkedHashMap<SignatureKey, byte[]>(capacity, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<SignatureKey, byte[]> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * @return whether message was previously recorded as verified by {@link #add(SignedMessage)}
+     */
+    public boolean contains(@NonNull SignedMessage message) {
+        SignatureKey key = new SignatureKey(message.signature);
+        byte[] knownDigest;
+        synchronized (this) {
+            knownDigest = mEntries.get(key);
+        }
+
+        boolean hit = knownDigest != null && Arrays.equals(knownDigest, digest(message));
+        synchronized (this) {
+            if (hit) mHits++; else mMisses++;
+        }
+        return hit;
+    }
+
+    /**
+     * Record message as carrying a valid signature.
+     * Only call this for messages that verified, or that we signed ourselves.
+     */
+    public void add(@NonNull SignedMessage message) {
+        byte[] digest = digest(message);
+        synchronized (this) {
+            mEntries.put(new SignatureKey(message.signature), digest);
+        }
+    }
+
+    public synchronized int size() {
+        return mEntries.size();
+    }
+
+    public synchronized int getHitCount() {
+        return mHits;
+    }
+
+    public synchronized int getMissCount() {
+        return mMisses;
+    }
+
+    private static byte[] digest(SignedMessage message) {
+        MessageDigest digest = sDigest.get();
+        digest.update(message.publicKey);
+        digest.update(message.buffer, message.offset, message.length);
+        return digest.digest();
+    }
+
+    private static class SignatureKey {
+        private final byte[] mSignature;
+        private final int    mHash;
+
+        SignatureKey(byte[] signature) {
+            mSignature = signature;
+            mHash = Arrays.hashCode(signature);
+        }
+
+        @Override
+        public int hashCode() {
+            return mHash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj == this) return true;
+            if (!(obj instanceof SignatureKey)) return false;
+
+            return Arrays.equals(mSignature, ((SignatureKey) obj).mSignature);
+        }
+    }
+}
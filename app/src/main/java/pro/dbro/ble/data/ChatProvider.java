@@ -0,0 +1,43 @@
+package pro.dbro.ble.data;
+
+import android.content.ContentValues;
+import android.net.Uri;
+
+import pro.dbro.ble.data.model.ChatContentProvider;
+
+/**
+ * The app's {@link ChatContentProvider}. Schematic generates insert, update and delete for every
+ * endpoint, including {@link ChatContentProvider.MessagesWithSender}, which is a view and can't be
+ * written. This provider rejects those writes before they reach the database.
+ */
+public class ChatProvider extends pro.dbro.ble.schematic.ChatContentProvider {
+
+    @Override
+    public Uri insert(Uri uri, ContentValues values) {
+        checkWritable(uri);
+        return super.insert(uri, values);
+    }
+
+    @Override
+    public int bulkInsert(Uri uri, ContentValues[] values) {
+        checkWritable(uri);
+        return super.bulkInsert(uri, values);
+    }
+
+    @Override
+    public int delete(Uri uri, String selection, String[] selectionArgs) {
+        checkWritable(uri);
+        return super.delete(uri, selection, selectionArgs);
+    }
+
+    @Override
+    public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+        checkWritable(uri);
+        return super.update(uri, values, selection, selectionArgs);
+    }
+
+    private static void checkWritable(Uri uri) {
+        if (ChatContentProvider.MessagesWithSender.MESSAGES_WITH_SENDER.getPath().equals(uri.getPath()))
+            throw new UnsupportedOperationException("Messages with sender is read-only");
+    }
+}
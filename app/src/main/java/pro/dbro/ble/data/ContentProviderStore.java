@@ -1,20 +1,31 @@
 package pro.dbro.ble.data;
 
+import android.content.ContentProviderOperation;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
+import android.database.sqlite.SQLiteConstraintException;
 import android.net.Uri;
+import android.os.RemoteException;
+import android.text.TextUtils;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.util.Log;
 
 import java.util.ArrayList;
-import java.util.Date;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import pro.dbro.ble.crypto.KeyPair;
 import pro.dbro.ble.crypto.SodiumShaker;
 import pro.dbro.ble.data.model.ChatContentProvider;
+import pro.dbro.ble.data.model.ChatDatabase;
 import pro.dbro.ble.data.model.DataUtil;
 import pro.dbro.ble.data.model.IdentityDeliveryTable;
 import pro.dbro.ble.data.model.Message;
@@ -25,6 +36,7 @@ import pro.dbro.ble.data.model.Peer;
 import pro.dbro.ble.data.model.PeerTable;
 import pro.dbro.ble.protocol.IdentityPacket;
 import pro.dbro.ble.protocol.MessagePacket;
+import pro.dbro.ble.protocol.MessagePacketView;
 import pro.dbro.ble.protocol.OwnedIdentityPacket;
 import pro.dbro.ble.protocol.Protocol;
 
@@ -39,14 +51,64 @@ import pro.dbro.ble.protocol.Protocol;
 public class ContentProviderStore extends DataStore {
     public static final String TAG = "DataManager";
 
+    /** Columns of the sender's peers row, selected alongside outgoing messages */
+    private static final String SENDER_PUB_KEY   = "s_pk";
+    private static final String SENDER_ALIAS     = "s_alias";
+    private static final String SENDER_LAST_SEEN = "s_last_seen";
+    private static final String SENDER_RAW_PKT   = "s_pkt";
+
+    private static final String[] OUTGOING_MESSAGE_PROJECTION = new String[] {
+            MessageTable.body,
+            MessageTable.authoredDate,
+            MessageTable.signature,
+            MessageTable.replySig,
+            MessageTable.rawPacket,
+            senderColumn(PeerTable.pubKey,       SENDER_PUB_KEY),
+            senderColumn(PeerTable.alias,        SENDER_ALIAS),
+            senderColumn(PeerTable.lastSeenDate, SENDER_LAST_SEEN),
+            senderColumn(PeerTable.rawPkt,       SENDER_RAW_PKT)
+    };
+
+    /** Messages with no delivery recorded to the peer with the id bound to the selection */
+    private static final String UNDELIVERED_MESSAGE_SELECTION =
+            "NOT EXISTS (SELECT 1 FROM " + ChatDatabase.DELIVERED_MESSAGES +
+            " WHERE " + ChatDatabase.DELIVERED_MESSAGES + "." + MessageDeliveryTable.messageId + " = " + ChatDatabase.MESSAGES + "." + MessageTable.id +
+            " AND " + ChatDatabase.DELIVERED_MESSAGES + "." + MessageDeliveryTable.peerId + " = ?)";
+
+    private static final String[] OUTGOING_IDENTITY_PROJECTION = new String[] {
+            PeerTable.pubKey,
+            PeerTable.alias,
+            PeerTable.lastSeenDate,
+            PeerTable.rawPkt
+    };
+
+    /**
+     * Identities other than the recipient's own, with no delivery recorded to it.
+     * The recipient's id is bound to the selection twice
+     */
+    private static final String UNDELIVERED_IDENTITY_SELECTION =
+            PeerTable.rawPkt + " IS NOT NULL AND " + ChatDatabase.PEERS + "." + PeerTable.id + " != ? AND " +
+            "NOT EXISTS (SELECT 1 FROM " + ChatDatabase.DELIVERED_IDENTITIES +
+            " WHERE " + ChatDatabase.DELIVERED_IDENTITIES + "." + IdentityDeliveryTable.peerRecipientId + " = ?" +
+            " AND " + ChatDatabase.DELIVERED_IDENTITIES + "." + IdentityDeliveryTable.peerPayloadId + " = " + ChatDatabase.PEERS + "." + PeerTable.id + ")";
+
     public ContentProviderStore(Context context) {
         super(context);
     }
 
     @Override
     public void markMessageDeliveredToPeer(@NonNull MessagePacket messagePacket, @NonNull IdentityPacket recipientPacket) {
-        Message message = getMessageBySignature(messagePacket.signature);
-        Peer recipient = getPeerByPubKey(recipientPacket.publicKey);
+        markMessageDeliveredToPeer(messagePacket.signature, recipientPacket.publicKey);
+    }
+
+    @Override
+    public void markMessageDeliveredToPeer(@NonNull MessagePacketView messageView, @NonNull IdentityPacket recipientPacket) {
+        markMessageDeliveredToPeer(messageView.getSignature(), recipientPacket.publicKey);
+    }
+
+    private void markMessageDeliveredToPeer(@NonNull byte[] messageSignature, @NonNull byte[] recipientPublicKey) {
+        Message message = getStoredMessageBySignature(messageSignature);
+        Peer recipient = getStoredPeerByPubKey(recipientPublicKey);
 
         if (message == null || recipient == null) {
             Log.w(TAG, "Unable to record message delivery. No peer or message database id available");
@@ -57,15 +119,19 @@ public class ContentProviderStore extends DataStore {
         delivery.put(MessageDeliveryTable.messageId, message.getId());
         delivery.put(MessageDeliveryTable.peerId, recipient.getId());
 
-        mContext.getContentResolver().insert(ChatContentProvider.MessageDeliveries.MESSAGE_DELIVERIES, delivery);
-        Log.i(TAG, "Recorded message delivery");
+        if (insertDelivery(ChatContentProvider.MessageDeliveries.MESSAGE_DELIVERIES, delivery))
+            Log.i(TAG, "Recorded message delivery");
         message.close();
     }
 
     @Override
     public void markIdentityDeliveredToPeer(@NonNull IdentityPacket payloadIdentity, @NonNull IdentityPacket recipientIdentity) {
-        Peer payloadPeer = getPeerByPubKey(payloadIdentity.publicKey);
-        Peer recipientPeer = getPeerByPubKey(recipientIdentity.publicKey);
+        markIdentityDeliveredToPeer(payloadIdentity.publicKey, recipientIdentity.publicKey);
+    }
+
+    private void markIdentityDeliveredToPeer(@NonNull byte[] payloadPublicKey, @NonNull byte[] recipientPublicKey) {
+        Peer payloadPeer = getStoredPeerByPubKey(payloadPublicKey);
+        Peer recipientPeer = getStoredPeerByPubKey(recipientPublicKey);
 
         if (payloadPeer == null || recipientPeer == null) {
             Log.w(TAG, "Unable to fetch payload or recipient identity. Cannot mark identity delivered");
@@ -76,8 +142,8 @@ public class ContentProviderStore extends DataStore {
         delivery.put(IdentityDeliveryTable.peerPayloadId, payloadPeer.getId());
         delivery.put(IdentityDeliveryTable.peerRecipientId, recipientPeer.getId());
 
-        mContext.getContentResolver().insert(ChatContentProvider.IdentityDeliveries.IDENTITY_DELIVERIES, delivery);
-        Log.i(TAG, "Recorded identity delivery");
+        if (insertDelivery(ChatContentProvider.IdentityDeliveries.IDENTITY_DELIVERIES, delivery))
+            Log.i(TAG, "Recorded identity delivery");
     }
 
     @Nullable
@@ -88,25 +154,21 @@ public class ContentProviderStore extends DataStore {
         dbEntry.put(PeerTable.pubKey, keyPair.publicKey);
         dbEntry.put(PeerTable.secKey, keyPair.secretKey);
         dbEntry.put(PeerTable.alias, alias);
-        dbEntry.put(PeerTable.lastSeenDate, DataUtil.storedDateFormatter.format(new Date()));
+        dbEntry.put(PeerTable.lastSeenDate, System.currentTimeMillis());
         if (protocol != null) {
             // If protocol is available, use it to cache the Identity packet for transmission
             dbEntry.put(PeerTable.rawPkt, protocol.serializeIdentity(
                     new OwnedIdentityPacket(keyPair.secretKey, keyPair.publicKey, alias, null)));
         }
         Uri newIdentityUri = mContext.getContentResolver().insert(ChatContentProvider.Peers.PEERS, dbEntry);
+        invalidatePrimaryLocalPeer();
         return getPeerById(Integer.parseInt(newIdentityUri.getLastPathSegment()));
     }
 
-    /**
-     * @return the first user peer entry in the database,
-     * or null if no identity is set.
-     */
     @Override
     @Nullable
-    public Peer getPrimaryLocalPeer() {
-        // TODO: caching
-        Cursor result = mContext.getContentResolver().query(ChatContentProvider.Peers.PEERS,
+    protected Peer loadPrimaryLocalPeer() {
+        Cursor result = query(ChatContentProvider.Peers.PEERS,
                 null,
                 PeerTable.secKey + " IS NOT NULL",
                 null,
@@ -119,19 +181,23 @@ public class ContentProviderStore extends DataStore {
         return null;
     }
 
+    /**
+     * Selects the oldest messages not yet delivered to recipient, with their senders'
+     * identities, in a single query
+     */
     @Nullable
     @Override
-    public List<MessagePacket> getOutgoingMessagesForPeer(@NonNull Peer recipient, int maxMessages) {
+    protected List<MessagePacket> loadOutgoingMessagesForPeer(@NonNull Peer recipient, int maxMessages) {
         // TODO : Don't send messages past a certain age etc?
-        Cursor messagesCursor = mContext.getContentResolver().query(ChatContentProvider.Messages.MESSAGES, null, null, null, null);
+        Cursor messagesCursor = query(ChatContentProvider.Messages.MESSAGES,
+                OUTGOING_MESSAGE_PROJECTION,
+                UNDELIVERED_MESSAGE_SELECTION,
+                new String[] {String.valueOf(recipient.getId())},
+                MessageTable.authoredDate + " ASC LIMIT " + maxMessages);
         if (messagesCursor != null) {
-            List<MessagePacket> messagesToSend = new ArrayList<>();
+            List<MessagePacket> messagesToSend = new ArrayList<>(messagesCursor.getCount());
             while (messagesCursor.moveToNext()) {
-                Message individualMessage = new Message(messagesCursor);
-                if (!haveDeliveredMessageToPeer(individualMessage, recipient)) {
-                    messagesToSend.add(individualMessage.getProtocolMessage(this));
-                    if (messagesToSend.size() > maxMessages) break;
-                }
+                messagesToSend.add(readOutgoingMessage(messagesCursor));
             }
 
             messagesCursor.close();
@@ -140,19 +206,27 @@ public class ContentProviderStore extends DataStore {
         return null;
     }
 
+    /**
+     * Selects the most recently seen identities not yet delivered to recipient in a single query
+     */
+    @Nullable
     @Override
-    public List<IdentityPacket> getOutgoingIdentitiesForPeer(@NonNull Peer recipient, int maxIdentities) {
+    protected List<IdentityPacket> loadOutgoingIdentitiesForPeer(@NonNull Peer recipient, int maxIdentities) {
         // TODO : Don't send identities past a certain age etc?
-        Cursor identitiesCursor = mContext.getContentResolver().query(ChatContentProvider.Peers.PEERS, null, null, null, null);
+        String recipientId = String.valueOf(recipient.getId());
+        Cursor identitiesCursor = query(ChatContentProvider.Peers.PEERS,
+                OUTGOING_IDENTITY_PROJECTION,
+                UNDELIVERED_IDENTITY_SELECTION,
+                new String[] {recipientId, recipientId},
+                PeerTable.lastSeenDate + " DESC LIMIT " + maxIdentities);
         if (identitiesCursor != null) {
-            List<IdentityPacket> identitiesToSend = new ArrayList<>();
+            List<IdentityPacket> identitiesToSend = new ArrayList<>(identitiesCursor.getCount());
             while (identitiesCursor.moveToNext()) {
-                Peer payloadPeer = new Peer(identitiesCursor);
-                if (!haveDeliveredPeerIdentityToPeer(payloadPeer, recipient)) {
-                    identitiesToSend.add(payloadPeer.getIdentity());
-                    if (identitiesToSend.size() > maxIdentities) break;
-                }
-
+                identitiesToSend.add(new IdentityPacket(
+                        identitiesCursor.getBlob(identitiesCursor.getColumnIndex(PeerTable.pubKey)),
+                        identitiesCursor.getString(identitiesCursor.getColumnIndex(PeerTable.alias)),
+                        identitiesCursor.getLong(identitiesCursor.getColumnIndex(PeerTable.lastSeenDate)),
+                        identitiesCursor.getBlob(identitiesCursor.getColumnIndex(PeerTable.rawPkt))));
             }
 
             identitiesCursor.close();
@@ -163,7 +237,7 @@ public class ContentProviderStore extends DataStore {
 
     @Override
     public MessageCollection getRecentMessages() {
-        Cursor messagesCursor = mContext.getContentResolver().query(ChatContentProvider.Messages.MESSAGES,
+        Cursor messagesCursor = query(ChatContentProvider.MessagesWithSender.MESSAGES_WITH_SENDER,
                 null,
                 null,
                 null,
@@ -175,9 +249,28 @@ public class ContentProviderStore extends DataStore {
         return null;
     }
 
+    @Override
+    public MessageCollection getMessagePage(@Nullable Peer author, long beforeReceivedDate, long beforeId, int pageSize) {
+        String before = String.valueOf(beforeReceivedDate);
+        Cursor messagesCursor = query(ChatContentProvider.MessagesWithSender.MESSAGES_WITH_SENDER,
+                MESSAGE_PAGE_COLUMNS,
+                author == null ? MESSAGE_PAGE_SELECTION : MessageTable.peerId + " = ? AND " + MESSAGE_PAGE_SELECTION,
+                author == null ? new String[] { before, before, String.valueOf(beforeId) } :
+                                 new String[] { String.valueOf(author.getId()), before, before, String.valueOf(beforeId) },
+                MESSAGE_PAGE_ORDER + " LIMIT " + pageSize);
+
+        return messagesCursor == null ? null : new MessageCollection(messagesCursor);
+    }
+
+    @Override
+    public MessageCollection searchMessages(@NonNull String query, int limit) {
+        Cursor results = query(MessageSearchProvider.buildSearchUri(query, limit), null, null, null, null);
+        return results == null ? null : new MessageCollection(results);
+    }
+
     @Override
     public MessageCollection getRecentMessagesByPeer(@NonNull Peer author) {
-        Cursor messagesCursor = mContext.getContentResolver().query(ChatContentProvider.Messages.MESSAGES,
+        Cursor messagesCursor = query(ChatContentProvider.MessagesWithSender.MESSAGES_WITH_SENDER,
                 null,
                 MessageTable.peerId + "=?",
                 new String[] { String.valueOf(author.getId()) },
@@ -193,10 +286,10 @@ public class ContentProviderStore extends DataStore {
     @Override
     public Peer createOrUpdateRemotePeerWithProtocolIdentity(@NonNull IdentityPacket remoteIdentityPacket) {
         // Query if peer exists
-        Peer peer = getPeerByPubKey(remoteIdentityPacket.publicKey);
+        Peer peer = getStoredPeerByPubKey(remoteIdentityPacket.publicKey);
 
         ContentValues peerValues = new ContentValues();
-        peerValues.put(PeerTable.lastSeenDate, DataUtil.storedDateFormatter.format(new Date()));
+        peerValues.put(PeerTable.lastSeenDate, System.currentTimeMillis());
         peerValues.put(PeerTable.pubKey, remoteIdentityPacket.publicKey);
         peerValues.put(PeerTable.alias, remoteIdentityPacket.alias);
         peerValues.put(PeerTable.rawPkt, remoteIdentityPacket.rawPacket);
@@ -208,11 +301,14 @@ public class ContentProviderStore extends DataStore {
             int updated = mContext.getContentResolver().update(
                     ChatContentProvider.Peers.PEERS,
                     peerValues,
-                    "quote("+ PeerTable.pubKey + ") = ?" ,
-                    new String[] {DataUtil.bytesToHex(remoteIdentityPacket.publicKey)});
+                    blobEquals(PeerTable.pubKey, remoteIdentityPacket.publicKey),
+                    null);
             if (updated != 1) {
                 Log.e(TAG, "Failed to update peer last seen");
             }
+            onPeerChanged(remoteIdentityPacket);
+            // Read back the updated peer
+            peer = getStoredPeerByPubKey(remoteIdentityPacket.publicKey);
         } else {
             // Peer does not exist. Create.
             Uri peerUri = mContext.getContentResolver().insert(
@@ -233,26 +329,40 @@ public class ContentProviderStore extends DataStore {
     @Nullable
     @Override
     public Message createOrUpdateMessageWithProtocolMessage(@NonNull MessagePacket protocolMessagePacket) {
+        return createOrUpdateMessage(new PendingMessage(protocolMessagePacket, null));
+    }
+
+    @Nullable
+    @Override
+    public Message createOrUpdateMessageWithPacketView(@NonNull MessagePacketView messageView) {
+        return createOrUpdateMessage(new PendingMessage(null, messageView));
+    }
+
+    /**
+     * Fields of pendingMessage other than sender and signature are only read if the message is new.
+     */
+    @Nullable
+    private Message createOrUpdateMessage(@NonNull PendingMessage pendingMessage) {
         // Query if peer exists
-        Peer peer = getPeerByPubKey(protocolMessagePacket.sender.publicKey);
+        Peer peer = getStoredPeerByPubKey(pendingMessage.getSenderPublicKey());
 
         if (peer == null)
             throw new IllegalStateException("Failed to get peer for message");
 
         // See if message exists
-        Message message = getMessageBySignature(protocolMessagePacket.signature);
+        Message message = getStoredMessageBySignature(pendingMessage.getSignature());
         if (message == null) {
             // Message doesn't exist in our database
 
             // Insert message into database
             ContentValues newMessageEntry = new ContentValues();
-            newMessageEntry.put(MessageTable.body, protocolMessagePacket.body);
             newMessageEntry.put(MessageTable.peerId, peer.getId());
-            newMessageEntry.put(MessageTable.receivedDate, DataUtil.storedDateFormatter.format(new Date()));
-            newMessageEntry.put(MessageTable.authoredDate, DataUtil.storedDateFormatter.format(protocolMessagePacket.authoredDate));
-            newMessageEntry.put(MessageTable.signature, protocolMessagePacket.signature);
-            newMessageEntry.put(MessageTable.replySig, protocolMessagePacket.replySig);
-            newMessageEntry.put(MessageTable.rawPacket, protocolMessagePacket.rawPacket);
+            newMessageEntry.put(MessageTable.receivedDate, System.currentTimeMillis());
+            newMessageEntry.put(MessageTable.signature, pendingMessage.getSignature());
+            newMessageEntry.put(MessageTable.body, pendingMessage.getBody());
+            newMessageEntry.put(MessageTable.authoredDate, pendingMessage.getAuthoredTimestamp());
+            newMessageEntry.put(MessageTable.replySig, pendingMessage.getReplySignature());
+            newMessageEntry.put(MessageTable.rawPacket, pendingMessage.getRawPacket());
 
             Uri newMessageUri = mContext.getContentResolver().insert(
                     ChatContentProvider.Messages.MESSAGES,
@@ -270,12 +380,12 @@ public class ContentProviderStore extends DataStore {
 
     @Nullable
     @Override
-    public Message getMessageBySignature(@NonNull byte[] signature) {
-        Cursor messageCursor = mContext.getContentResolver().query(
+    protected Message loadMessageBySignature(@NonNull byte[] signature) {
+        Cursor messageCursor = query(
                 ChatContentProvider.Messages.MESSAGES,
                 null,
-                "quote(" + MessageTable.signature + ") = ?",
-                new String[] {DataUtil.bytesToHex(signature)},
+                blobEquals(MessageTable.signature, signature),
+                null,
                 null);
         if (messageCursor != null && messageCursor.moveToFirst()) {
             return new Message(messageCursor);
@@ -286,7 +396,7 @@ public class ContentProviderStore extends DataStore {
     @Nullable
     @Override
     public Message getMessageById(int id) {
-        Cursor messageCursor = mContext.getContentResolver().query(ChatContentProvider.Messages.MESSAGES, null,
+        Cursor messageCursor = query(ChatContentProvider.Messages.MESSAGES, null,
                 MessageTable.id + " = ?",
                 new String[]{String.valueOf(id)},
                 null);
@@ -298,16 +408,21 @@ public class ContentProviderStore extends DataStore {
 
     @Nullable
     @Override
-    public Peer getPeerByPubKey(@NonNull byte[] publicKey) {
-        Cursor peerCursor = mContext.getContentResolver().query(
+    protected Peer loadPeerByPubKey(@NonNull byte[] publicKey) {
+        Peer cached = mPeerCache.get(new PublicKey(publicKey));
+        if (cached != null) return cached;
+
+        long generation = mPeerCache.getGeneration();
+        Cursor peerCursor = query(
                 ChatContentProvider.Peers.PEERS,
                 null,
-                "quote(" + PeerTable.pubKey + ") = ?",
-                new String[] {DataUtil.bytesToHex(publicKey)},
+                blobEquals(PeerTable.pubKey, publicKey),
+                null,
                 null);
         if (peerCursor != null && peerCursor.moveToFirst()) {
             Peer peer = new Peer(peerCursor);
             peerCursor.close();
+            mPeerCache.put(peer, generation);
             return peer;
         }
         return null;
@@ -316,7 +431,11 @@ public class ContentProviderStore extends DataStore {
     @Nullable
     @Override
     public Peer getPeerById(int id) {
-        Cursor peerCursor = mContext.getContentResolver().query(
+        Peer cached = mPeerCache.get(id);
+        if (cached != null) return cached;
+
+        long generation = mPeerCache.getGeneration();
+        Cursor peerCursor = query(
                 ChatContentProvider.Peers.PEERS,
                 null,
                 PeerTable.id + " = ?",
@@ -325,14 +444,138 @@ public class ContentProviderStore extends DataStore {
         if (peerCursor != null && peerCursor.moveToFirst()) {
             Peer peer = new Peer(peerCursor);
             peerCursor.close();
+            mPeerCache.put(peer, generation);
             return peer;
         }
         return null;
     }
 
+    @Override
+    public List<byte[]> getRecentRawPackets(int maxPerTable) {
+        List<byte[]> rawPackets = new ArrayList<>();
+        addBlobs(rawPackets, ChatContentProvider.Messages.MESSAGES, MessageTable.rawPacket,
+                MessageTable.receivedDate + " DESC LIMIT " + maxPerTable);
+        addBlobs(rawPackets, ChatContentProvider.Peers.PEERS, PeerTable.rawPkt,
+                PeerTable.lastSeenDate + " DESC LIMIT " + maxPerTable);
+        return rawPackets;
+    }
+
+    @Override
+    protected List<byte[]> loadRecentMessageSignatures(int maxMessages) {
+        List<byte[]> signatures = new ArrayList<>(maxMessages);
+        addBlobs(signatures, ChatContentProvider.Messages.MESSAGES, MessageTable.signature,
+                MessageTable.receivedDate + " DESC LIMIT " + maxMessages);
+        return signatures;
+    }
+
+    /**
+     * Commits batch as a single {@link ChatContentProvider} applyBatch, which the provider runs
+     * as one transaction. Ids of stored peers and messages, and deliveries already recorded, are
+     * read up front with one query per table. Rows inserted by the batch are referred to by
+     * back-reference. Should another writer race the batch into a unique index, its writes are
+     * applied individually instead. Observers of each table changed are notified once, after
+     * the batch is applied, rather than of each row.
+     */
+    @Override
+    public List<byte[]> commitBatch(@NonNull Batch batch) {
+        List<byte[]> newMessages = new ArrayList<>();
+        if (batch.isEmpty()) return newMessages;
+
+        long now = System.currentTimeMillis();
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+
+        // Peers. Ids are either a stored row id or, if negative, -1 - the index of the inserting operation
+        Map<String, Integer> peerIds = queryIds(ChatContentProvider.Peers.PEERS, PeerTable.id, PeerTable.pubKey,
+                                                batch.getReferencedPublicKeys());
+        boolean updatesPeers = false;
+        for (IdentityPacket identity : batch.peers.values()) {
+            String key = DataUtil.bytesToHex(identity.publicKey);
+            ContentValues peerValues = new ContentValues();
+            peerValues.put(PeerTable.lastSeenDate, now);
+            peerValues.put(PeerTable.alias, identity.alias);
+            peerValues.put(PeerTable.rawPkt, identity.rawPacket);
+            if (peerIds.containsKey(key)) {
+                updatesPeers = true;
+                operations.add(ContentProviderOperation.newUpdate(ChatContentProvider.Peers.PEERS)
+                        .withValues(peerValues)
+                        .withSelection(blobEquals(PeerTable.pubKey, identity.publicKey), null)
+                        .build());
+            } else {
+                peerValues.put(PeerTable.pubKey, identity.publicKey);
+                peerIds.put(key, -1 - operations.size());
+                operations.add(ContentProviderOperation.newInsert(ChatContentProvider.Peers.PEERS)
+                        .withValues(peerValues)
+                        .build());
+            }
+        }
+
+        // Messages
+        Map<String, Integer> messageIds = queryIds(ChatContentProvider.Messages.MESSAGES, MessageTable.id, MessageTable.signature,
+                                                   batch.getReferencedSignatures());
+        for (PendingMessage message : batch.messages.values()) {
+            String key = DataUtil.bytesToHex(message.getSignature());
+            if (messageIds.containsKey(key)) continue;
+
+            Integer senderId = peerIds.get(DataUtil.bytesToHex(message.getSenderPublicKey()));
+            if (senderId == null)
+                throw new IllegalStateException("Failed to get peer for message");
+
+            ContentValues messageValues = new ContentValues();
+            messageValues.put(MessageTable.receivedDate, now);
+            messageValues.put(MessageTable.signature, message.getSignature());
+            messageValues.put(MessageTable.body, message.getBody());
+            messageValues.put(MessageTable.authoredDate, message.getAuthoredTimestamp());
+            messageValues.put(MessageTable.replySig, message.getReplySignature());
+            messageValues.put(MessageTable.rawPacket, message.getRawPacket());
+
+            messageIds.put(key, -1 - operations.size());
+            operations.add(withId(ContentProviderOperation.newInsert(ChatContentProvider.Messages.MESSAGES)
+                    .withValues(messageValues), MessageTable.peerId, senderId)
+                    .build());
+            newMessages.add(message.getSignature());
+        }
+
+        // Deliveries
+        addDeliveries(operations, batch.messageDeliveries, messageIds, peerIds,
+                      ChatContentProvider.MessageDeliveries.MESSAGE_DELIVERIES,
+                      MessageDeliveryTable.messageId, MessageDeliveryTable.peerId);
+        addDeliveries(operations, batch.identityDeliveries, peerIds, peerIds,
+                      ChatContentProvider.IdentityDeliveries.IDENTITY_DELIVERIES,
+                      IdentityDeliveryTable.peerPayloadId, IdentityDeliveryTable.peerRecipientId);
+
+        if (operations.isEmpty()) return newMessages;
+
+        // Rather than notify observers of each row, notify each uri changed once the batch commits
+        ChatContentProvider.setNotifyOnChange(false);
+        try {
+            mContext.getContentResolver().applyBatch(ChatContentProvider.AUTHORITY, operations);
+        } catch (RemoteException | OperationApplicationException | SQLiteConstraintException e) {
+            Log.w(TAG, "Batch failed. Applying writes individually", e);
+            ChatContentProvider.setNotifyOnChange(true);
+            return commitIndividually(batch);
+        } finally {
+            ChatContentProvider.setNotifyOnChange(true);
+            for (IdentityPacket identity : batch.peers.values()) {
+                onPeerChanged(identity);
+            }
+        }
+        Log.i(TAG, String.format("Committed batch of %d operations", operations.size()));
+
+        Set<Uri> changedUris = new LinkedHashSet<>();
+        for (ContentProviderOperation operation : operations) {
+            changedUris.add(operation.getUri());
+        }
+        // Peer updates rewrite aliases, which messages are served with
+        if (updatesPeers) changedUris.add(ChatContentProvider.Messages.MESSAGES);
+        for (Uri uri : changedUris) {
+            mContext.getContentResolver().notifyChange(uri, null);
+        }
+        return newMessages;
+    }
+
     @Override
     public int countPeers() {
-        Cursor peerCursor = mContext.getContentResolver().query(
+        Cursor peerCursor = query(
                 ChatContentProvider.Peers.PEERS,
                 new String[] {PeerTable.id},
                 null,
@@ -348,7 +591,7 @@ public class ContentProviderStore extends DataStore {
 
     @Override
     public int countMessagesPassed() {
-        Cursor deliveryCursor = mContext.getContentResolver().query(
+        Cursor deliveryCursor = query(
                 ChatContentProvider.MessageDeliveries.MESSAGE_DELIVERIES,
                 new String[] {MessageDeliveryTable.id},
                 null,
@@ -364,32 +607,186 @@ public class ContentProviderStore extends DataStore {
 
     /** Utility */
 
-    private boolean haveDeliveredMessageToPeer(Message message, Peer peer) {
-        Cursor deliveryCursor = mContext.getContentResolver().query(ChatContentProvider.MessageDeliveries.MESSAGE_DELIVERIES,
-                null,
-                MessageDeliveryTable.messageId + " = ? AND " + MessageDeliveryTable.peerId + " = ?",
-                new String[]{String.valueOf(message.getId()), String.valueOf(peer.getId())},
-                null);
+    private Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
+        countQuery();
+        return mContext.getContentResolver().query(uri, projection, selection, selectionArgs, sortOrder);
+    }
+
+    /**
+     * @return a selection matching rows whose BLOB column equals value. Written as a BLOB
+     * literal, rather than comparing quote(column) to a bound string, so column's index applies
+     */
+    private static String blobEquals(String column, byte[] value) {
+        return column + " = " + DataUtil.bytesToHex(value);
+    }
+
+    /**
+     * Insert a delivery record, which the delivery table's unique index rejects if already recorded
+     *
+     * @return whether the delivery was newly recorded
+     */
+    private boolean insertDelivery(Uri uri, ContentValues delivery) {
         try {
-            return deliveryCursor != null && deliveryCursor.moveToFirst();
-        } finally {
-            if (deliveryCursor != null) deliveryCursor.close();
+            Uri deliveryUri = mContext.getContentResolver().insert(uri, delivery);
+            return deliveryUri != null && !deliveryUri.getLastPathSegment().equals("-1");
+        } catch (SQLiteConstraintException e) {
+            return false;
         }
     }
 
     /**
-     * @return whether peerPayload has been delivered to peerRecipient
+     * @return a map from the hex value of each of keys, found in keyColumn, to its row's idColumn
      */
-    private boolean haveDeliveredPeerIdentityToPeer(Peer peerPayload, Peer peerRecipient) {
-        Cursor deliveryCursor = mContext.getContentResolver().query(ChatContentProvider.IdentityDeliveries.IDENTITY_DELIVERIES,
+    private Map<String, Integer> queryIds(Uri uri, String idColumn, String keyColumn, Collection<byte[]> keys) {
+        Map<String, Integer> ids = new HashMap<>();
+        if (keys.isEmpty()) return ids;
+
+        List<String> literals = new ArrayList<>(keys.size());
+        for (byte[] key : keys) {
+            literals.add(DataUtil.bytesToHex(key));
+        }
+        Cursor cursor = query(uri,
+                new String[] {idColumn, keyColumn},
+                keyColumn + " IN (" + TextUtils.join(", ", literals) + ")",
                 null,
-                IdentityDeliveryTable.peerRecipientId + " = ? AND " + IdentityDeliveryTable.peerPayloadId + " = ?",
-                new String[]{String.valueOf(peerRecipient.getId()), String.valueOf(peerPayload.getId())},
                 null);
-        try {
-            return deliveryCursor != null && deliveryCursor.moveToFirst();
-        } finally {
-            if (deliveryCursor != null) deliveryCursor.close();
+        if (cursor != null) {
+            while (cursor.moveToNext()) {
+                ids.put(DataUtil.bytesToHex(cursor.getBlob(1)), cursor.getInt(0));
+            }
+            cursor.close();
+        }
+        return ids;
+    }
+
+    /**
+     * Add insert operations for deliveries not already recorded. Deliveries between rows already
+     * stored are checked against the delivery table with a single query
+     *
+     * @param payloadIds ids of delivered messages or peers, keyed by hex signature or public key
+     * @param recipientIds ids of recipient peers, keyed by hex public key
+     */
+    private void addDeliveries(ArrayList<ContentProviderOperation> operations, Collection<PendingDelivery> deliveries,
+                               Map<String, Integer> payloadIds, Map<String, Integer> recipientIds,
+                               Uri uri, String payloadColumn, String recipientColumn) {
+        if (deliveries.isEmpty()) return;
+
+        HashSet<String> storedPayloadIds = new HashSet<>();
+        HashSet<String> storedRecipientIds = new HashSet<>();
+        for (PendingDelivery delivery : deliveries) {
+            Integer payloadId = payloadIds.get(DataUtil.bytesToHex(delivery.payload));
+            Integer recipientId = recipientIds.get(DataUtil.bytesToHex(delivery.recipientPublicKey));
+            if (payloadId != null && payloadId >= 0 && recipientId != null && recipientId >= 0) {
+                storedPayloadIds.add(String.valueOf(payloadId));
+                storedRecipientIds.add(String.valueOf(recipientId));
+            }
+        }
+
+        HashSet<String> recorded = new HashSet<>();
+        if (!storedPayloadIds.isEmpty()) {
+            Cursor cursor = query(uri,
+                    new String[] {payloadColumn, recipientColumn},
+                    payloadColumn + " IN (" + TextUtils.join(", ", storedPayloadIds) + ") AND " +
+                    recipientColumn + " IN (" + TextUtils.join(", ", storedRecipientIds) + ")",
+                    null,
+                    null);
+            if (cursor != null) {
+                while (cursor.moveToNext()) {
+                    recorded.add(cursor.getInt(0) + ":" + cursor.getInt(1));
+                }
+                cursor.close();
+            }
+        }
+
+        for (PendingDelivery delivery : deliveries) {
+            Integer payloadId = payloadIds.get(DataUtil.bytesToHex(delivery.payload));
+            Integer recipientId = recipientIds.get(DataUtil.bytesToHex(delivery.recipientPublicKey));
+            if (payloadId == null || recipientId == null) {
+                Log.w(TAG, "Unable to record delivery. No peer or message database id available");
+                continue;
+            }
+            if (recorded.add(payloadId + ":" + recipientId)) {
+                ContentProviderOperation.Builder insert = ContentProviderOperation.newInsert(uri);
+                withId(insert, payloadColumn, payloadId);
+                withId(insert, recipientColumn, recipientId);
+                operations.add(insert.build());
+            }
+        }
+    }
+
+    /**
+     * Set column of operation to id, a stored row id or, if negative, a back-reference
+     * to the operation at index -1 - id
+     */
+    private static ContentProviderOperation.Builder withId(ContentProviderOperation.Builder operation, String column, int id) {
+        return id >= 0 ? operation.withValue(column, id) : operation.withValueBackReference(column, -1 - id);
+    }
+
+    /**
+     * Apply batch's writes one at a time, in the order {@link #commitBatch(Batch)} would
+     */
+    private List<byte[]> commitIndividually(Batch batch) {
+        List<byte[]> newMessages = new ArrayList<>();
+        for (IdentityPacket identity : batch.peers.values()) {
+            createOrUpdateRemotePeerWithProtocolIdentity(identity);
+        }
+        for (PendingMessage message : batch.messages.values()) {
+            Message stored = getStoredMessageBySignature(message.getSignature());
+            if (stored == null) {
+                stored = createOrUpdateMessage(message);
+                newMessages.add(message.getSignature());
+            }
+            if (stored != null) stored.close();
+        }
+        for (PendingDelivery delivery : batch.messageDeliveries) {
+            markMessageDeliveredToPeer(delivery.payload, delivery.recipientPublicKey);
+        }
+        for (PendingDelivery delivery : batch.identityDeliveries) {
+            markIdentityDeliveredToPeer(delivery.payload, delivery.recipientPublicKey);
+        }
+        return newMessages;
+    }
+
+    /**
+     * @return a projection column selecting peerColumn of the sender of each messages row
+     */
+    private static String senderColumn(String peerColumn, String alias) {
+        return "(SELECT " + peerColumn + " FROM " + ChatDatabase.PEERS +
+               " WHERE " + ChatDatabase.PEERS + "." + PeerTable.id + " = " + ChatDatabase.MESSAGES + "." + MessageTable.peerId +
+               ") AS " + alias;
+    }
+
+    /**
+     * @return the message at the current row of a cursor over {@link #OUTGOING_MESSAGE_PROJECTION}
+     */
+    private static MessagePacket readOutgoingMessage(Cursor cursor) {
+        IdentityPacket sender = new IdentityPacket(
+                cursor.getBlob(cursor.getColumnIndex(SENDER_PUB_KEY)),
+                cursor.getString(cursor.getColumnIndex(SENDER_ALIAS)),
+                cursor.getLong(cursor.getColumnIndex(SENDER_LAST_SEEN)),
+                cursor.getBlob(cursor.getColumnIndex(SENDER_RAW_PKT)));
+
+        return new MessagePacket(
+                sender,
+                cursor.getBlob(cursor.getColumnIndex(MessageTable.signature)),
+                cursor.getBlob(cursor.getColumnIndex(MessageTable.replySig)),
+                cursor.getString(cursor.getColumnIndex(MessageTable.body)),
+                cursor.getBlob(cursor.getColumnIndex(MessageTable.rawPacket)),
+                cursor.getLong(cursor.getColumnIndex(MessageTable.authoredDate)));
+    }
+
+    private void addBlobs(List<byte[]> blobs, Uri uri, String blobColumn, String sortOrder) {
+        Cursor blobCursor = query(
+                uri,
+                new String[] {blobColumn},
+                blobColumn + " IS NOT NULL",
+                null,
+                sortOrder);
+        if (blobCursor != null) {
+            while (blobCursor.moveToNext()) {
+                blobs.add(blobCursor.getBlob(0));
+            }
+            blobCursor.close();
         }
     }
 }
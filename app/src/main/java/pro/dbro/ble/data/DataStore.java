@@ -1,16 +1,29 @@
 package pro.dbro.ble.data;
 
 import android.content.Context;
+import android.database.MatrixCursor;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import pro.dbro.ble.data.model.ChatDatabaseMigrations;
 import pro.dbro.ble.data.model.Message;
 import pro.dbro.ble.data.model.MessageCollection;
+import pro.dbro.ble.data.model.MessageTable;
 import pro.dbro.ble.data.model.Peer;
 import pro.dbro.ble.protocol.IdentityPacket;
 import pro.dbro.ble.protocol.MessagePacket;
+import pro.dbro.ble.protocol.MessagePacketView;
+import pro.dbro.ble.protocol.OwnedIdentityPacket;
 import pro.dbro.ble.protocol.Protocol;
 
 /**
@@ -23,40 +36,545 @@ public abstract class DataStore {
 
     protected Context mContext;
 
+    private final AtomicInteger mQueryCount = new AtomicInteger();
+
+    /** Implementations consult this before querying a peer, and invalidate peers they change */
+    protected final PeerCache mPeerCache = new PeerCache();
+
+    /** Commits batches enqueued by {@link #enqueueBatch} on a single writer thread */
+    private final WriteBehindQueue mWriteQueue = new WriteBehindQueue(this);
+
+    /** The primary local peer and its identity, loaded on first use. Guarded by this */
+    private Peer mPrimaryLocalPeer;
+    private OwnedIdentityPacket mPrimaryLocalIdentity;
+
     public DataStore(@NonNull Context context) {
         mContext = context.getApplicationContext();
     }
 
     public abstract void markMessageDeliveredToPeer(@NonNull MessagePacket message, @NonNull IdentityPacket recipient);
 
+    public abstract void markMessageDeliveredToPeer(@NonNull MessagePacketView message, @NonNull IdentityPacket recipient);
+
     public abstract void markIdentityDeliveredToPeer(@NonNull IdentityPacket payloadIdentity, @NonNull IdentityPacket recipientIdentity);
 
     public abstract Peer createLocalPeerWithAlias(@NonNull String alias, @Nullable Protocol protocol);
 
-    public abstract Peer getPrimaryLocalPeer();
+    /**
+     * @return the first user peer entry in the database, or null if no identity is set.
+     * Loaded once, and again only after the local identity changes.
+     */
+    @Nullable
+    public synchronized Peer getPrimaryLocalPeer() {
+        if (mPrimaryLocalPeer == null) {
+            mPrimaryLocalPeer = loadPrimaryLocalPeer();
+            if (mPrimaryLocalPeer != null)
+                mPrimaryLocalIdentity = (OwnedIdentityPacket) mPrimaryLocalPeer.getIdentity();
+        }
+        return mPrimaryLocalPeer;
+    }
+
+    /**
+     * @return the identity of {@link #getPrimaryLocalPeer()}, with the raw identity packet serialized
+     * when it was created, or null if no identity is set. The same instance is returned until the
+     * local identity changes.
+     */
+    @Nullable
+    public synchronized OwnedIdentityPacket getPrimaryLocalIdentity() {
+        getPrimaryLocalPeer();
+        return mPrimaryLocalIdentity;
+    }
+
+    /**
+     * @return the first user peer entry in the database, read afresh, or null if no identity is set
+     */
+    @Nullable
+    protected abstract Peer loadPrimaryLocalPeer();
+
+    /**
+     * @return up to maxMessages messages not delivered to recipient, excluding deliveries
+     * still pending in the write queue
+     */
+    public List<MessagePacket> getOutgoingMessagesForPeer(@NonNull Peer recipient, int maxMessages) {
+        int numPending = mWriteQueue.countPendingMessageDeliveries(recipient.getPublicKey());
+        List<MessagePacket> messages = loadOutgoingMessagesForPeer(recipient, addLimits(maxMessages, numPending));
+        if (messages == null || numPending == 0) return messages;
+
+        for (Iterator<MessagePacket> iterator = messages.iterator(); iterator.hasNext(); ) {
+            if (mWriteQueue.isPendingMessageDelivery(iterator.next().signature, recipient.getPublicKey()))
+                iterator.remove();
+        }
+        return messages.size() > maxMessages ? messages.subList(0, maxMessages) : messages;
+    }
+
+    /**
+     * @return up to maxIdentities identities not delivered to recipient, excluding deliveries
+     * still pending in the write queue
+     */
+    public List<IdentityPacket> getOutgoingIdentitiesForPeer(@NonNull Peer recipient, int maxIdentities) {
+        int numPending = mWriteQueue.countPendingIdentityDeliveries(recipient.getPublicKey());
+        List<IdentityPacket> identities = loadOutgoingIdentitiesForPeer(recipient, addLimits(maxIdentities, numPending));
+        if (identities == null || numPending == 0) return identities;
+
+        for (Iterator<IdentityPacket> iterator = identities.iterator(); iterator.hasNext(); ) {
+            if (mWriteQueue.isPendingIdentityDelivery(iterator.next().publicKey, recipient.getPublicKey()))
+                iterator.remove();
+        }
+        return identities.size() > maxIdentities ? identities.subList(0, maxIdentities) : identities;
+    }
 
-    public abstract List<MessagePacket> getOutgoingMessagesForPeer(@NonNull Peer recipient, int maxMessages);
+    /**
+     * @return up to maxMessages stored messages not delivered to recipient, oldest authored first
+     */
+    protected abstract List<MessagePacket> loadOutgoingMessagesForPeer(@NonNull Peer recipient, int maxMessages);
 
-    public abstract List<IdentityPacket> getOutgoingIdentitiesForPeer(@NonNull Peer recipient, int maxMessages);
+    /**
+     * @return up to maxIdentities stored identities, other than recipient's, not delivered to
+     * recipient, most recently seen first
+     */
+    protected abstract List<IdentityPacket> loadOutgoingIdentitiesForPeer(@NonNull Peer recipient, int maxIdentities);
 
+    /**
+     * @return stored messages, most recently received first, with their sender's alias and public key
+     * in {@link ChatDatabaseMigrations#MESSAGES_WITH_SENDER} columns
+     */
     public abstract MessageCollection getRecentMessages();
 
+    /**
+     * @return author's stored messages, most recently received first, in the columns of
+     * {@link #getRecentMessages()}
+     */
     public abstract MessageCollection getRecentMessagesByPeer(@NonNull Peer author);
 
+    /**
+     * Columns of {@link #getMessagePage} results: those needed to list a message with its sender,
+     * leaving out its signatures and raw packet
+     */
+    public static final String[] MESSAGE_PAGE_COLUMNS = new String[] {
+            MessageTable.id,
+            MessageTable.body,
+            MessageTable.peerId,
+            MessageTable.authoredDate,
+            MessageTable.receivedDate,
+            ChatDatabaseMigrations.MESSAGES_WITH_SENDER_ALIAS,
+            ChatDatabaseMigrations.MESSAGES_WITH_SENDER_PUBLIC_KEY
+    };
+
+    /** Key of the first page of {@link #getMessagePage}, before every message */
+    public static final long FIRST_PAGE = Long.MAX_VALUE;
+
+    /**
+     * Page through stored messages, most recently received first. Pages are keyed by the
+     * {@link MessageTable#receivedDate} and {@link MessageTable#id} of the last message of the previous
+     * page, so a page costs the same however deep into the history it starts, and messages
+     * received meanwhile don't shift later pages.
+     *
+     * @param author the sender whose messages to page through, or null for all messages
+     * @param beforeReceivedDate the received date of the last message of the previous page, or {@link #FIRST_PAGE}
+     * @param beforeId the id of the last message of the previous page, or {@link #FIRST_PAGE}
+     * @return up to pageSize messages ordered after the given message, in {@link #MESSAGE_PAGE_COLUMNS}
+     */
+    public abstract MessageCollection getMessagePage(@Nullable Peer author, long beforeReceivedDate, long beforeId, int pageSize);
+
+    /**
+     * Selection of {@link #getMessagePage} rows, bound to the received date twice then the id.
+     * The first term bounds a range of the received date index, which the second narrows
+     */
+    protected static final String MESSAGE_PAGE_SELECTION =
+            MessageTable.receivedDate + " <= ? AND (" + MessageTable.receivedDate + " < ? OR " + MessageTable.id + " < ?)";
+
+    protected static final String MESSAGE_PAGE_ORDER = MessageTable.receivedDate + " DESC, " + MessageTable.id + " DESC";
+
+    /**
+     * @return up to limit stored messages whose body or sender alias match the words of query,
+     * best ranked first, in {@link MessageSearch#COLUMNS}. See {@link MessageSearch#search}
+     */
+    public abstract MessageCollection searchMessages(@NonNull String query, int limit);
+
     public abstract Peer createOrUpdateRemotePeerWithProtocolIdentity(@NonNull IdentityPacket identityPacket);
 
     public abstract Message createOrUpdateMessageWithProtocolMessage(@NonNull MessagePacket protocolMessagePacket);
 
-    public abstract Message getMessageBySignature(@NonNull byte[] signature);
+    /**
+     * Like {@link #createOrUpdateMessageWithProtocolMessage(MessagePacket)}, but reads
+     * fields directly from the received packet. The body is only decoded if the message is new.
+     */
+    public abstract Message createOrUpdateMessageWithPacketView(@NonNull MessagePacketView messageView);
+
+    /**
+     * @return the message with signature. A message pending in the write queue and not yet stored
+     * is returned as it will be stored, with id {@link Message#UNSTORED_ID}
+     */
+    @Nullable
+    public Message getMessageBySignature(@NonNull byte[] signature) {
+        // Check pending writes first: a write leaves them only once committed
+        PendingMessage pending = mWriteQueue.getPendingMessage(signature);
+        Message stored = loadMessageBySignature(signature);
+        if (stored != null || pending == null) return stored;
+
+        Peer sender = getPeerByPubKey(pending.getSenderPublicKey());
+        return pending.toMessage(sender == null ? Peer.UNSTORED_ID : sender.getId());
+    }
+
+    /**
+     * @return the stored message with signature, once any pending write of it commits.
+     * For implementations' writes, which refer to its row
+     */
+    @Nullable
+    protected Message getStoredMessageBySignature(@NonNull byte[] signature) {
+        mWriteQueue.awaitMessage(signature);
+        return loadMessageBySignature(signature);
+    }
+
+    @Nullable
+    protected abstract Message loadMessageBySignature(@NonNull byte[] signature);
 
     public abstract Message getMessageById(int id);
 
-    public abstract Peer getPeerByPubKey(@NonNull byte[] publicKey);
+    /**
+     * @return the peer with publicKey, reflecting any write of it pending in the write queue.
+     * A peer not yet stored has id {@link Peer#UNSTORED_ID}
+     */
+    @Nullable
+    public Peer getPeerByPubKey(@NonNull byte[] publicKey) {
+        IdentityPacket pending = mWriteQueue.getPendingPeer(publicKey);
+        Peer stored = loadPeerByPubKey(publicKey);
+        if (pending == null) return stored;
+
+        byte[] secretKey = stored != null && stored.isLocalPeer() ? ((OwnedIdentityPacket) stored.getIdentity()).secretKey : null;
+        return new Peer(stored == null ? Peer.UNSTORED_ID : stored.getId(), pending, secretKey, System.currentTimeMillis());
+    }
+
+    /**
+     * @return the stored peer with publicKey, once any pending write of it commits.
+     * For implementations' writes, which refer to its row
+     */
+    @Nullable
+    protected Peer getStoredPeerByPubKey(@NonNull byte[] publicKey) {
+        mWriteQueue.awaitPeer(publicKey);
+        return loadPeerByPubKey(publicKey);
+    }
+
+    @Nullable
+    protected abstract Peer loadPeerByPubKey(@NonNull byte[] publicKey);
 
     public abstract Peer getPeerById(int id);
 
+    /**
+     * @return up to maxPerTable raw packets from each of the most recently received
+     * messages and most recently seen identities
+     */
+    public abstract List<byte[]> getRecentRawPackets(int maxPerTable);
+
+    /**
+     * @return the signatures of up to maxMessages of the most recently received messages,
+     * including those pending in the write queue
+     */
+    public List<byte[]> getRecentMessageSignatures(int maxMessages) {
+        List<byte[]> pending = mWriteQueue.getPendingMessageSignatures();
+        if (pending.isEmpty()) return loadRecentMessageSignatures(maxMessages);
+
+        LinkedHashMap<Signature, byte[]> signatures = new LinkedHashMap<>();
+        for (byte[] signature : pending.subList(0, Math.min(maxMessages, pending.size())))
+            signatures.put(new Signature(signature), signature);
+        // Pending messages may already be stored
+        for (byte[] signature : loadRecentMessageSignatures(maxMessages)) {
+            if (signatures.size() >= maxMessages) break;
+            signatures.put(new Signature(signature), signature);
+        }
+        return new ArrayList<>(signatures.values());
+    }
+
+    /**
+     * @return the signatures of up to maxMessages of the most recently received stored messages
+     */
+    protected abstract List<byte[]> loadRecentMessageSignatures(int maxMessages);
+
+    /**
+     * @return an empty batch of writes, to be committed by {@link #commitBatch(Batch)}
+     */
+    public Batch beginBatch() {
+        return new Batch();
+    }
+
+    /**
+     * Apply all writes recorded in batch as a single transaction, equivalent to making each
+     * in turn via the corresponding methods of this class. Peers are written first, then
+     * messages, then deliveries, so writes may refer to peers and messages of the same batch.
+     *
+     * @return the signatures of messages the batch newly stored, in the order they were recorded
+     */
+    public abstract List<byte[]> commitBatch(@NonNull Batch batch);
+
+    /**
+     * Commit batch in the background, after batches enqueued before it. Reads made through this
+     * class reflect batch from now on. batch must not be modified afterwards.
+     *
+     * @param callback notified on the writer thread once batch is committed
+     */
+    public void enqueueBatch(@NonNull Batch batch, @Nullable WriteBehindQueue.Callback callback) {
+        mWriteQueue.enqueue(batch, callback);
+    }
+
+    /**
+     * @return the queue committing batches passed to {@link #enqueueBatch}, and its metrics
+     */
+    public WriteBehindQueue getWriteQueue() {
+        return mWriteQueue;
+    }
+
     public abstract int countPeers();
 
     public abstract int countMessagesPassed();
 
+    /**
+     * @return the number of database queries this instance has issued
+     */
+    public int getQueryCount() {
+        return mQueryCount.get();
+    }
+
+    public PeerCache getPeerCache() {
+        return mPeerCache;
+    }
+
+    /**
+     * Implementations call this once a write of identity's peer row is committed.
+     * Invalidates the cached peer and, if its identity differs, the primary local identity
+     */
+    protected void onPeerChanged(@NonNull IdentityPacket identity) {
+        mPeerCache.invalidate(new PublicKey(identity.publicKey));
+        synchronized (this) {
+            if (mPrimaryLocalIdentity != null &&
+                Arrays.equals(mPrimaryLocalIdentity.publicKey, identity.publicKey) &&
+                !Arrays.equals(mPrimaryLocalIdentity.rawPacket, identity.rawPacket)) {
+
+                invalidatePrimaryLocalPeer();
+            }
+        }
+    }
+
+    /**
+     * Implementations call this once a local peer is created
+     */
+    protected synchronized void invalidatePrimaryLocalPeer() {
+        mPrimaryLocalPeer = null;
+        mPrimaryLocalIdentity = null;
+    }
+
+    /**
+     * Implementations call this once per query issued. See {@link #getQueryCount()}
+     */
+    protected void countQuery() {
+        mQueryCount.incrementAndGet();
+    }
+
+    /**
+     * @return limit increased by extra, without overflowing
+     */
+    private static int addLimits(int limit, int extra) {
+        return (int) Math.min(Integer.MAX_VALUE, (long) limit + extra);
+    }
+
+    /**
+     * Writes recorded for a single {@link #commitBatch(Batch)}. Repeated writes of the same peer,
+     * message or delivery are recorded once. Not thread-safe.
+     */
+    public static class Batch {
+
+        final LinkedHashMap<PublicKey, IdentityPacket> peers = new LinkedHashMap<>();
+        final LinkedHashMap<Signature, PendingMessage> messages = new LinkedHashMap<>();
+        final LinkedHashSet<PendingDelivery> messageDeliveries = new LinkedHashSet<>();
+        final LinkedHashSet<PendingDelivery> identityDeliveries = new LinkedHashSet<>();
+
+        protected Batch() {}
+
+        /** See {@link DataStore#createOrUpdateRemotePeerWithProtocolIdentity(IdentityPacket)} */
+        public void createOrUpdateRemotePeer(@NonNull IdentityPacket identityPacket) {
+            // The most recently recorded identity wins
+            PublicKey key = new PublicKey(identityPacket.publicKey);
+            peers.remove(key);
+            peers.put(key, identityPacket);
+        }
+
+        /** See {@link DataStore#createOrUpdateMessageWithProtocolMessage(MessagePacket)} */
+        public void createOrUpdateMessage(@NonNull MessagePacket messagePacket) {
+            addMessage(new PendingMessage(messagePacket, null));
+        }
+
+        /** See {@link DataStore#createOrUpdateMessageWithPacketView(MessagePacketView)} */
+        public void createOrUpdateMessage(@NonNull MessagePacketView messageView) {
+            addMessage(new PendingMessage(null, messageView));
+        }
+
+        public void markMessageDeliveredToPeer(@NonNull MessagePacket message, @NonNull IdentityPacket recipient) {
+            addDelivery(messageDeliveries, message.signature, recipient.publicKey);
+        }
+
+        public void markMessageDeliveredToPeer(@NonNull MessagePacketView message, @NonNull IdentityPacket recipient) {
+            addDelivery(messageDeliveries, message.getSignature(), recipient.publicKey);
+        }
+
+        public void markIdentityDeliveredToPeer(@NonNull IdentityPacket payloadIdentity, @NonNull IdentityPacket recipientIdentity) {
+            addDelivery(identityDeliveries, payloadIdentity.publicKey, recipientIdentity.publicKey);
+        }
+
+        public boolean isEmpty() {
+            return peers.isEmpty() && messages.isEmpty() &&
+                   messageDeliveries.isEmpty() && identityDeliveries.isEmpty();
+        }
+
+        /**
+         * @return the public keys of every peer this batch refers to, stored or not
+         */
+        Collection<byte[]> getReferencedPublicKeys() {
+            LinkedHashMap<PublicKey, byte[]> publicKeys = new LinkedHashMap<>();
+            for (IdentityPacket peer : peers.values())
+                publicKeys.put(new PublicKey(peer.publicKey), peer.publicKey);
+            for (PendingMessage message : messages.values())
+                publicKeys.put(new PublicKey(message.getSenderPublicKey()), message.getSenderPublicKey());
+            for (PendingDelivery delivery : messageDeliveries)
+                publicKeys.put(delivery.recipient, delivery.recipientPublicKey);
+            for (PendingDelivery delivery : identityDeliveries) {
+                publicKeys.put(new PublicKey(delivery.payload), delivery.payload);
+                publicKeys.put(delivery.recipient, delivery.recipientPublicKey);
+            }
+            return publicKeys.values();
+        }
+
+        /**
+         * @return the signatures of every message this batch refers to, stored or not
+         */
+        Collection<byte[]> getReferencedSignatures() {
+            LinkedHashMap<Signature, byte[]> signatures = new LinkedHashMap<>();
+            for (Map.Entry<Signature, PendingMessage> message : messages.entrySet())
+                signatures.put(message.getKey(), message.getValue().getSignature());
+            for (PendingDelivery delivery : messageDeliveries)
+                signatures.put(new Signature(delivery.payload), delivery.payload);
+            return signatures.values();
+        }
+
+        /**
+         * @return a batch for each write of this batch, in the order {@link DataStore#commitBatch} applies them
+         */
+        List<Batch> split() {
+            List<Batch> writes = new ArrayList<>();
+            for (Map.Entry<PublicKey, IdentityPacket> peer : peers.entrySet()) {
+                Batch write = new Batch();
+                write.peers.put(peer.getKey(), peer.getValue());
+                writes.add(write);
+            }
+            for (Map.Entry<Signature, PendingMessage> message : messages.entrySet()) {
+                Batch write = new Batch();
+                write.messages.put(message.getKey(), message.getValue());
+                writes.add(write);
+            }
+            for (PendingDelivery delivery : messageDeliveries) {
+                Batch write = new Batch();
+                write.messageDeliveries.add(delivery);
+                writes.add(write);
+            }
+            for (PendingDelivery delivery : identityDeliveries) {
+                Batch write = new Batch();
+                write.identityDeliveries.add(delivery);
+                writes.add(write);
+            }
+            return writes;
+        }
+
+        private void addMessage(PendingMessage message) {
+            Signature key = new Signature(message.getSignature());
+            if (!messages.containsKey(key)) messages.put(key, message);
+        }
+
+        private static void addDelivery(LinkedHashSet<PendingDelivery> deliveries, byte[] payload, byte[] recipientPublicKey) {
+            deliveries.add(new PendingDelivery(payload, recipientPublicKey));
+        }
+    }
+
+    /**
+     * A message recorded in a {@link Batch}. Exactly one of packet or view is non-null.
+     * Fields other than sender and signature are only read if the message is new.
+     */
+    static class PendingMessage {
+        private final MessagePacket packet;
+        private final MessagePacketView view;
+
+        PendingMessage(@Nullable MessagePacket packet, @Nullable MessagePacketView view) {
+            this.packet = packet;
+            this.view = view;
+        }
+
+        byte[] getSenderPublicKey() {
+            return packet != null ? packet.sender.publicKey : view.getPublicKey();
+        }
+
+        byte[] getSignature() {
+            return packet != null ? packet.signature : view.getSignature();
+        }
+
+        String getBody() {
+            return packet != null ? packet.body : view.getBody();
+        }
+
+        long getAuthoredTimestamp() {
+            return packet != null ? packet.authoredTimestamp : view.getTimestamp();
+        }
+
+        byte[] getReplySignature() {
+            return packet != null ? packet.replySig : view.getReplySignature();
+        }
+
+        byte[] getRawPacket() {
+            return packet != null ? packet.rawPacket : view.getRawPacket();
+        }
+
+        /**
+         * @return this message as it will be stored, with id {@link Message#UNSTORED_ID}
+         */
+        Message toMessage(int senderId) {
+            MatrixCursor cursor = new MatrixCursor(new String[] {
+                    MessageTable.id, MessageTable.body, MessageTable.peerId, MessageTable.authoredDate,
+                    MessageTable.receivedDate, MessageTable.signature, MessageTable.replySig, MessageTable.rawPacket
+            }, 1);
+            cursor.addRow(new Object[] {
+                    Message.UNSTORED_ID, getBody(), senderId, getAuthoredTimestamp(),
+                    System.currentTimeMillis(), getSignature(), getReplySignature(), getRawPacket()
+            });
+            cursor.moveToFirst();
+            return new Message(cursor);
+        }
+    }
+
+    /**
+     * A delivery recorded in a {@link Batch} of a message, by signature, or identity, by public key.
+     * Equal to another delivery of the same payload to the same recipient
+     */
+    static class PendingDelivery {
+        final byte[] payload;
+        final byte[] recipientPublicKey;
+        final PublicKey recipient;
+        private final int mHash;
+
+        PendingDelivery(@NonNull byte[] payload, @NonNull byte[] recipientPublicKey) {
+            this.payload = payload;
+            this.recipientPublicKey = recipientPublicKey;
+            recipient = new PublicKey(recipientPublicKey);
+            mHash = 31 * Arrays.hashCode(payload) + recipient.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj == this) return true;
+            if (!(obj instanceof PendingDelivery)) return false;
+
+            PendingDelivery other = (PendingDelivery) obj;
+            return mHash == other.mHash && recipient.equals(other.recipient) && Arrays.equals(payload, other.payload);
+        }
+
+        @Override
+        public int hashCode() {
+            return mHash;
+        }
+    }
 }
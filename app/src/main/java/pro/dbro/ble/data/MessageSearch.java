@@ -0,0 +1,294 @@
+package pro.dbro.ble.data;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.text.TextUtils;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import pro.dbro.ble.data.model.ChatDatabase;
+import pro.dbro.ble.data.model.ChatDatabaseMigrations;
+import pro.dbro.ble.data.model.MessageTable;
+
+/**
+ * Full-text search of stored messages by body and sender alias, over the
+ * {@link ChatDatabaseMigrations#MESSAGE_SEARCH} index.
+ *
+ * Matches are ranked by Okapi BM25, computed from the index's matchinfo. Only the ids and
+ * match statistics of all matches are read. Message rows are read for the best ranked alone.
+ */
+public final class MessageSearch {
+
+    /** Result columns beyond those of {@link MessageTable} */
+    public static final String SENDER_ALIAS = ChatDatabaseMigrations.MESSAGES_WITH_SENDER_ALIAS;
+    /** BM25 score. Higher is a better match */
+    public static final String RANK         = "search_rank";
+    /**
+     * Where the query matched, as space-separated triples of column (0 for body, 1 for sender alias),
+     * character offset and character length
+     */
+    public static final String OFFSETS      = "search_offsets";
+
+    /** Columns of search results, best ranked first */
+    public static final String[] COLUMNS = new String[] {
+            MessageTable.id,
+            MessageTable.body,
+            MessageTable.peerId,
+            MessageTable.authoredDate,
+            MessageTable.receivedDate,
+            MessageTable.signature,
+            MessageTable.replySig,
+            MessageTable.rawPacket,
+            SENDER_ALIAS,
+            RANK,
+            OFFSETS
+    };
+
+    /** BM25 parameters, and the weight of a match in each indexed column: body, then alias */
+    private static final double BM25_K1 = 1.2;
+    private static final double BM25_B  = 0.75;
+    private static final double[] COLUMN_WEIGHTS = new double[] { 1.0, 0.5 };
+
+    private static final String SELECT_MATCH_INFO =
+            "SELECT docid, matchinfo(" + ChatDatabaseMigrations.MESSAGE_SEARCH + ", 'pcnalx')" +
+            " FROM " + ChatDatabaseMigrations.MESSAGE_SEARCH +
+            " WHERE " + ChatDatabaseMigrations.MESSAGE_SEARCH + " MATCH ?";
+
+    /** Completed with a list of docids */
+    private static final String SELECT_RESULTS =
+            "SELECT m." + MessageTable.id + ", m." + MessageTable.body + ", m." + MessageTable.peerId + ", " +
+            "m." + MessageTable.authoredDate + ", m." + MessageTable.receivedDate + ", m." + MessageTable.signature + ", " +
+            "m." + MessageTable.replySig + ", m." + MessageTable.rawPacket + ", " +
+            ChatDatabaseMigrations.MESSAGE_SEARCH + "." + ChatDatabaseMigrations.MESSAGE_SEARCH_ALIAS + ", " +
+            "offsets(" + ChatDatabaseMigrations.MESSAGE_SEARCH + ")" +
+            " FROM " + ChatDatabaseMigrations.MESSAGE_SEARCH +
+            " JOIN " + ChatDatabase.MESSAGES + " m ON m." + MessageTable.id + " = " + ChatDatabaseMigrations.MESSAGE_SEARCH + ".docid" +
+            " WHERE " + ChatDatabaseMigrations.MESSAGE_SEARCH + " MATCH ?" +
+            " AND " + ChatDatabaseMigrations.MESSAGE_SEARCH + ".docid IN ";
+
+    private MessageSearch() {}
+
+    /**
+     * Runs the queries of a search, so a caller can issue them through its own query helper
+     */
+    public interface Querier {
+        @NonNull
+        Cursor rawQuery(@NonNull String sql, @NonNull String[] selectionArgs);
+    }
+
+    /**
+     * Search db directly. See {@link #search(Querier, String, int)}
+     */
+    @NonNull
+    public static Cursor search(@NonNull final SQLiteDatabase db, @NonNull String query, int limit) {
+        return search(new Querier() {
+            @NonNull
+            @Override
+            public Cursor rawQuery(@NonNull String sql, @NonNull String[] selectionArgs) {
+                return db.rawQuery(sql, selectionArgs);
+            }
+        }, query, limit);
+    }
+
+    /**
+     * @param query words typed by the user. Messages matching every word are returned, the last
+     *              word matching as a prefix
+     * @return up to limit messages matching query, in {@link #COLUMNS}, best ranked first
+     */
+    @NonNull
+    public static Cursor search(@NonNull Querier db, @NonNull String query, int limit) {
+        MatrixCursor results = new MatrixCursor(COLUMNS);
+        String match = toMatchExpression(query);
+        if (match == null || limit <= 0) return results;
+
+        List<Hit> hits = rank(db, match, limit);
+        if (hits.isEmpty()) return results;
+
+        HashMap<Long, Object[]> rows = new HashMap<>(hits.size());
+        List<String> ids = new ArrayList<>(hits.size());
+        for (Hit hit : hits) ids.add(String.valueOf(hit.docId));
+
+        Cursor cursor = db.rawQuery(SELECT_RESULTS + "(" + TextUtils.join(", ", ids) + ")", new String[] {match});
+        try {
+            while (cursor.moveToNext()) {
+                String body = cursor.getString(1);
+                String alias = cursor.getString(8);
+                rows.put(cursor.getLong(0), new Object[] {
+                        cursor.getLong(0),
+                        body,
+                        cursor.isNull(2) ? null : cursor.getLong(2),
+                        cursor.getLong(3),
+                        cursor.getLong(4),
+                        cursor.getBlob(5),
+                        cursor.getBlob(6),
+                        cursor.getBlob(7),
+                        alias,
+                        0.0,
+                        toCharOffsets(cursor.getString(9), body, alias)
+                });
+            }
+        } finally {
+            cursor.close();
+        }
+
+        for (Hit hit : hits) {
+            Object[] row = rows.get(hit.docId);
+            if (row == null) continue;
+            row[9] = hit.score;
+            results.addRow(row);
+        }
+        return results;
+    }
+
+    /**
+     * @return the FTS match expression for the words of query, or null if it has none
+     */
+    @Nullable
+    static String toMatchExpression(@NonNull String query) {
+        List<String> terms = new ArrayList<>();
+        for (String word : query.trim().split("\\s+")) {
+            // Each word is quoted, so operators and syntax typed by the user match literally
+            String term = word.replace("\"", "");
+            if (term.length() > 0) terms.add(term);
+        }
+        if (terms.isEmpty()) return null;
+
+        StringBuilder match = new StringBuilder();
+        for (int x = 0; x < terms.size(); x++) {
+            if (x > 0) match.append(' ');
+            match.append('"').append(terms.get(x));
+            if (x == terms.size() - 1) match.append('*');
+            match.append('"');
+        }
+        return match.toString();
+    }
+
+    private static class Hit {
+        final long docId;
+        final double score;
+
+        Hit(long docId, double score) {
+            this.docId = docId;
+            this.score = score;
+        }
+    }
+
+    private static final Comparator<Hit> WORST_FIRST = new Comparator<Hit>() {
+        @Override
+        public int compare(Hit lhs, Hit rhs) {
+            int byScore = Double.compare(lhs.score, rhs.score);
+            // Among equal scores, prefer later messages
+            return byScore != 0 ? byScore : (lhs.docId < rhs.docId ? -1 : (lhs.docId == rhs.docId ? 0 : 1));
+        }
+    };
+
+    /**
+     * @return the best limit matches of match, best first
+     */
+    private static List<Hit> rank(Querier db, String match, int limit) {
+        PriorityQueue<Hit> best = new PriorityQueue<>(Math.min(limit, 64), WORST_FIRST);
+        Cursor cursor = db.rawQuery(SELECT_MATCH_INFO, new String[] {match});
+        try {
+            while (cursor.moveToNext()) {
+                Hit hit = new Hit(cursor.getLong(0), bm25(cursor.getBlob(1)));
+                if (best.size() < limit) {
+                    best.add(hit);
+                } else if (WORST_FIRST.compare(hit, best.peek()) > 0) {
+                    best.poll();
+                    best.add(hit);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+
+        List<Hit> hits = new ArrayList<>(best);
+        Collections.sort(hits, Collections.reverseOrder(WORST_FIRST));
+        return hits;
+    }
+
+    /**
+     * @param matchInfo the result of matchinfo with format 'pcnalx': phrase count, column count,
+     *                  row count, average tokens per column, tokens per column of this row, then
+     *                  per phrase and column the hits in this row, in all rows, and rows with a hit
+     */
+    private static double bm25(byte[] matchInfo) {
+        IntBuffer info = ByteBuffer.wrap(matchInfo).order(ByteOrder.nativeOrder()).asIntBuffer();
+        int numPhrases = info.get(0);
+        int numColumns = info.get(1);
+        int numRows = info.get(2);
+        int averageLengths = 3;
+        int lengths = averageLengths + numColumns;
+        int hits = lengths + numColumns;
+
+        double score = 0;
+        for (int phrase = 0; phrase < numPhrases; phrase++) {
+            for (int column = 0; column < numColumns; column++) {
+                int base = hits + 3 * (column + phrase * numColumns);
+                int hitsInRow = info.get(base);
+                if (hitsInRow == 0) continue;
+
+                int rowsWithHit = info.get(base + 2);
+                // Terms in more than half the rows would score negatively. Count them a little
+                double idf = Math.max(Math.log((numRows - rowsWithHit + 0.5) / (rowsWithHit + 0.5)), 1e-6);
+                double averageLength = Math.max(info.get(averageLengths + column), 1);
+                double length = info.get(lengths + column);
+                double weight = column < COLUMN_WEIGHTS.length ? COLUMN_WEIGHTS[column] : 1.0;
+
+                score += weight * idf * (hitsInRow * (BM25_K1 + 1)) /
+                         (hitsInRow + BM25_K1 * (1 - BM25_B + BM25_B * length / averageLength));
+            }
+        }
+        return score;
+    }
+
+    /**
+     * @param offsets the result of FTS offsets(): quadruples of column, term, byte offset and byte
+     *                length into the column's UTF-8 text
+     * @return offsets as {@link #OFFSETS} triples of column, character offset and character length
+     */
+    private static String toCharOffsets(@Nullable String offsets, @Nullable String body, @Nullable String alias) {
+        if (offsets == null || offsets.length() == 0) return "";
+
+        String[] values = offsets.split(" ");
+        StringBuilder charOffsets = new StringBuilder();
+        for (int x = 0; x + 3 < values.length; x += 4) {
+            int column = Integer.parseInt(values[x]);
+            int byteOffset = Integer.parseInt(values[x + 2]);
+            int byteLength = Integer.parseInt(values[x + 3]);
+            String text = column == 0 ? body : alias;
+            if (text == null) continue;
+
+            int start = charIndexOfByte(text, byteOffset);
+            int end = charIndexOfByte(text, byteOffset + byteLength);
+            if (charOffsets.length() > 0) charOffsets.append(' ');
+            charOffsets.append(column).append(' ').append(start).append(' ').append(end - start);
+        }
+        return charOffsets.toString();
+    }
+
+    /**
+     * @return the index of the char in text at which byteOffset into its UTF-8 encoding falls
+     */
+    private static int charIndexOfByte(String text, int byteOffset) {
+        int bytes = 0;
+        int index = 0;
+        while (index < text.length() && bytes < byteOffset) {
+            int codePoint = text.codePointAt(index);
+            bytes += codePoint < 0x80 ? 1 : codePoint < 0x800 ? 2 : codePoint < 0x10000 ? 3 : 4;
+            index += Character.charCount(codePoint);
+        }
+        return index;
+    }
+}
@@ -0,0 +1,93 @@
+package pro.dbro.ble.data;
+
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.support.annotation.NonNull;
+
+import pro.dbro.ble.data.model.ChatContentProvider;
+
+/**
+ * Serves {@link MessageSearch} results. Query {@link #buildSearchUri(String, int)}; the projection,
+ * selection and sort order passed to query are ignored. Results are in {@link MessageSearch#COLUMNS}
+ * and are notified of changes to {@link ChatContentProvider.Messages#MESSAGES}.
+ *
+ * Search is read-only. The schematic-generated {@link ChatContentProvider} can only serve
+ * its tables, so search is served by this provider.
+ */
+public class MessageSearchProvider extends ContentProvider {
+
+    public static final String AUTHORITY = "pro.dbro.ble.searchprovider";
+    private static final Uri BASE_CONTENT_URI = Uri.parse("content://" + AUTHORITY);
+
+    private static final String ENDPOINT    = "msgs";
+    private static final String PARAM_QUERY = "q";
+    private static final String PARAM_LIMIT = "limit";
+
+    public static final int DEFAULT_LIMIT = 50;
+
+    public static final Uri MESSAGES = BASE_CONTENT_URI.buildUpon().appendPath(ENDPOINT).build();
+
+    /**
+     * @return the uri of up to limit messages matching query, best ranked first.
+     * See {@link MessageSearch#search}
+     */
+    public static Uri buildSearchUri(@NonNull String query, int limit) {
+        return MESSAGES.buildUpon()
+                .appendQueryParameter(PARAM_QUERY, query)
+                .appendQueryParameter(PARAM_LIMIT, String.valueOf(limit))
+                .build();
+    }
+
+    @Override
+    public boolean onCreate() {
+        return true;
+    }
+
+    @Override
+    public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
+        if (!ENDPOINT.equals(uri.getLastPathSegment()))
+            throw new IllegalArgumentException("Unknown uri " + uri);
+
+        String query = uri.getQueryParameter(PARAM_QUERY);
+        if (query == null)
+            throw new IllegalArgumentException("No search query in uri " + uri);
+
+        int limit = DEFAULT_LIMIT;
+        String limitParam = uri.getQueryParameter(PARAM_LIMIT);
+        if (limitParam != null) {
+            try {
+                limit = Integer.parseInt(limitParam);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid search limit in uri " + uri);
+            }
+        }
+
+        Cursor results = MessageSearch.search(
+                pro.dbro.ble.schematic.ChatDatabase.getInstance(getContext()).getReadableDatabase(),
+                query, limit);
+        results.setNotificationUri(getContext().getContentResolver(), ChatContentProvider.Messages.MESSAGES);
+        return results;
+    }
+
+    @Override
+    public String getType(Uri uri) {
+        return "vnd.android.cursor.dir/list";
+    }
+
+    @Override
+    public Uri insert(Uri uri, ContentValues values) {
+        throw new UnsupportedOperationException("Message search is read-only");
+    }
+
+    @Override
+    public int delete(Uri uri, String selection, String[] selectionArgs) {
+        throw new UnsupportedOperationException("Message search is read-only");
+    }
+
+    @Override
+    public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+        throw new UnsupportedOperationException("Message search is read-only");
+    }
+}
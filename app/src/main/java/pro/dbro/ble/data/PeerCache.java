@@ -0,0 +1,149 @@
+package pro.dbro.ble.data;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import pro.dbro.ble.data.model.Peer;
+
+/**
+ * Recently read {@link Peer}s, by id and by public key, held by a {@link DataStore} so repeated
+ * lookups of the same peers skip the database. The store puts each peer it reads, and
+ * invalidates a peer once a change to its row is committed. Beyond capacity, the least recently used
+ * peers are evicted.
+ *
+ * A peer read concurrently with a change to its row may be read as it was before the change, then
+ * put after the invalidation. So each invalidation advances a generation, recorded for the peer's
+ * key, and a peer put with the generation current before it was read is rejected if its key was
+ * invalidated since.
+ *
+ * This class is thread-safe.
+ */
+public class PeerCache {
+
+    public static final int DEFAULT_CAPACITY = 128;
+
+    private final LinkedHashMap<Integer, Peer> mPeersById;
+    private final HashMap<PublicKey, Peer> mPeersByPublicKey = new HashMap<>();
+    /** Generation of each key's latest invalidation, oldest first */
+    private final LinkedHashMap<PublicKey, Long> mInvalidations;
+
+    private long mGeneration;
+    /** Latest generation of invalidations forgotten beyond capacity */
+    private long mForgottenGeneration;
+
+    private int mHits;
+    private int mMisses;
+
+    public PeerCache() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public PeerCache(final int capacity) {
+        mPeersById = new LinkedHashMap<Integer, Peer>(capacity, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, Peer> eldest) {
+                if (size() <= capacity) return false;
+
+                mPeersByPublicKey.remove(new PublicKey(eldest.getValue().getPublicKey()));
+                return true;
+            }
+        };
+        mInvalidations = new LinkedHashMap<PublicKey, Long>(capacity, 0.75f, false) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<PublicKey, Long> eldest) {
+                if (size() <= capacity) return false;
+
+                mForgottenGeneration = eldest.getValue();
+                return true;
+            }
+        };
+    }
+
+    /**
+     * @return the peer with id, or null if it isn't cached
+     */
+    @Nullable
+    public synchronized Peer get(int id) {
+        return count(mPeersById.get(id));
+    }
+
+    /**
+     * @return the peer with publicKey, or null if it isn't cached
+     */
+    @Nullable
+    public synchronized Peer get(@NonNull PublicKey publicKey) {
+        Peer peer = mPeersByPublicKey.get(publicKey);
+        // Touch the peer so eviction follows use by either key
+        if (peer != null) mPeersById.get(peer.getId());
+        return count(peer);
+    }
+
+    /**
+     * @return the current generation, taken before reading a peer to {@link #put(Peer, long)}
+     */
+    public synchronized long getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Cache peer as just read from the database, unless its row changed since generation.
+     * No-op if peer is null.
+     *
+     * @param generation the result of {@link #getGeneration()} before peer was read
+     */
+    public synchronized void put(@Nullable Peer peer, long generation) {
+        if (peer == null) return;
+
+        PublicKey publicKey = new PublicKey(peer.getPublicKey());
+        Long invalidated = mInvalidations.get(publicKey);
+        if (generation < mForgottenGeneration || (invalidated != null && invalidated > generation))
+            return;
+
+        mPeersByPublicKey.put(publicKey, peer);
+        mPeersById.put(peer.getId(), peer);
+    }
+
+    /**
+     * Forget the peer with publicKey, whose row has changed, and reject puts of it read before now
+     */
+    public synchronized void invalidate(@NonNull PublicKey publicKey) {
+        Peer peer = mPeersByPublicKey.remove(publicKey);
+        if (peer != null) mPeersById.remove(peer.getId());
+
+        // Re-insert so the eldest invalidation is the oldest
+        mInvalidations.remove(publicKey);
+        mInvalidations.put(publicKey, ++mGeneration);
+    }
+
+    public synchronized void clear() {
+        mPeersById.clear();
+        mPeersByPublicKey.clear();
+    }
+
+    public synchronized int size() {
+        return mPeersById.size();
+    }
+
+    /**
+     * @return the number of lookups answered from the cache
+     */
+    public synchronized int getHitCount() {
+        return mHits;
+    }
+
+    /**
+     * @return the number of lookups not answered from the cache
+     */
+    public synchronized int getMissCount() {
+        return mMisses;
+    }
+
+    private Peer count(@Nullable Peer peer) {
+        if (peer != null) mHits++; else mMisses++;
+        return peer;
+    }
+}
@@ -0,0 +1,47 @@
+package pro.dbro.ble.data;
+
+import android.support.annotation.NonNull;
+
+import java.util.Arrays;
+
+import pro.dbro.ble.data.model.DataUtil;
+
+/**
+ * A peer's public key as a value, for use as a map key. Equal when the key bytes are equal.
+ * The hash is computed once, on construction.
+ *
+ * The bytes are not copied, so must not be modified once wrapped.
+ */
+public final class PublicKey {
+
+    private final byte[] mKey;
+    private final int mHash;
+
+    public PublicKey(@NonNull byte[] key) {
+        mKey = key;
+        mHash = Arrays.hashCode(key);
+    }
+
+    public byte[] getBytes() {
+        return mKey;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (obj == this) return true;
+        if (!(obj instanceof PublicKey)) return false;
+
+        PublicKey other = (PublicKey) obj;
+        return mHash == other.mHash && Arrays.equals(mKey, other.mKey);
+    }
+
+    @Override
+    public int hashCode() {
+        return mHash;
+    }
+
+    @Override
+    public String toString() {
+        return DataUtil.bytesToHex(mKey);
+    }
+}
@@ -0,0 +1,632 @@
+package pro.dbro.ble.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteCursor;
+import android.database.sqlite.SQLiteCursorDriver;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteProgram;
+import android.database.sqlite.SQLiteQuery;
+import android.database.sqlite.SQLiteStatement;
+import android.net.Uri;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+import pro.dbro.ble.crypto.KeyPair;
+import pro.dbro.ble.crypto.SodiumShaker;
+import pro.dbro.ble.data.model.ChatContentProvider;
+import pro.dbro.ble.data.model.ChatDatabase;
+import pro.dbro.ble.data.model.ChatDatabaseMigrations;
+import pro.dbro.ble.data.model.DataUtil;
+import pro.dbro.ble.data.model.IdentityDeliveryTable;
+import pro.dbro.ble.data.model.Message;
+import pro.dbro.ble.data.model.MessageCollection;
+import pro.dbro.ble.data.model.MessageDeliveryTable;
+import pro.dbro.ble.data.model.MessageTable;
+import pro.dbro.ble.data.model.Peer;
+import pro.dbro.ble.data.model.PeerTable;
+import pro.dbro.ble.protocol.IdentityPacket;
+import pro.dbro.ble.protocol.MessagePacket;
+import pro.dbro.ble.protocol.MessagePacketView;
+import pro.dbro.ble.protocol.OwnedIdentityPacket;
+import pro.dbro.ble.protocol.Protocol;
+
+/**
+ * A {@link DataStore} issuing SQL directly against the database behind {@link ChatContentProvider},
+ * rather than through a {@link android.content.ContentResolver}.
+ *
+ * Frequent writes and id lookups use compiled statements, compiled once per instance.
+ * BLOB keys are bound as BLOBs, so lookups by signature and public key use their indexes.
+ * The database is opened in write-ahead logging mode, so reads don't wait on writes.
+ *
+ * Cursors returned are registered for notifications on the {@link ChatContentProvider} URIs
+ * of their tables, which are notified once changes to those tables are committed.
+ */
+public class SQLiteDataStore extends DataStore {
+    public static final String TAG = "SQLiteDataStore";
+
+    private static final String PEERS                = ChatDatabase.PEERS;
+    private static final String MESSAGES             = ChatDatabase.MESSAGES;
+    private static final String MESSAGES_WITH_SENDER = ChatDatabaseMigrations.MESSAGES_WITH_SENDER;
+
+    private static final String SELECT_PEER_ID_BY_PUB_KEY =
+            "SELECT " + PeerTable.id + " FROM " + PEERS + " WHERE " + PeerTable.pubKey + " = ?";
+
+    private static final String SELECT_MESSAGE_ID_BY_SIGNATURE =
+            "SELECT " + MessageTable.id + " FROM " + MESSAGES + " WHERE " + MessageTable.signature + " = ?";
+
+    private static final String INSERT_MESSAGE =
+            "INSERT OR IGNORE INTO " + MESSAGES + " (" +
+            MessageTable.peerId + ", " + MessageTable.receivedDate + ", " + MessageTable.signature + ", " +
+            MessageTable.body + ", " + MessageTable.authoredDate + ", " + MessageTable.replySig + ", " + MessageTable.rawPacket +
+            ") VALUES (?, ?, ?, ?, ?, ?, ?)";
+
+    private static final String INSERT_PEER =
+            "INSERT OR IGNORE INTO " + PEERS + " (" +
+            PeerTable.lastSeenDate + ", " + PeerTable.pubKey + ", " + PeerTable.alias + ", " + PeerTable.rawPkt +
+            ") VALUES (?, ?, ?, ?)";
+
+    private static final String UPDATE_PEER =
+            "UPDATE " + PEERS + " SET " +
+            PeerTable.lastSeenDate + " = ?, " + PeerTable.alias + " = ?, " + PeerTable.rawPkt + " = ?" +
+            " WHERE " + PeerTable.pubKey + " = ?";
+
+    /** Records a delivery given the message signature and recipient public key */
+    private static final String INSERT_MESSAGE_DELIVERY =
+            "INSERT OR IGNORE INTO " + ChatDatabase.DELIVERED_MESSAGES + " (" +
+            MessageDeliveryTable.messageId + ", " + MessageDeliveryTable.peerId + ")" +
+            " SELECT m." + MessageTable.id + ", p." + PeerTable.id + " FROM " + MESSAGES + " m, " + PEERS + " p" +
+            " WHERE m." + MessageTable.signature + " = ? AND p." + PeerTable.pubKey + " = ?";
+
+    /** Records a delivery given the payload and recipient public keys */
+    private static final String INSERT_IDENTITY_DELIVERY =
+            "INSERT OR IGNORE INTO " + ChatDatabase.DELIVERED_IDENTITIES + " (" +
+            IdentityDeliveryTable.peerPayloadId + ", " + IdentityDeliveryTable.peerRecipientId + ")" +
+            " SELECT pp." + PeerTable.id + ", pr." + PeerTable.id + " FROM " + PEERS + " pp, " + PEERS + " pr" +
+            " WHERE pp." + PeerTable.pubKey + " = ? AND pr." + PeerTable.pubKey + " = ?";
+
+    /** The oldest messages not delivered to the recipient with id ?, with their senders' identities */
+    private static final String SELECT_OUTGOING_MESSAGES =
+            "SELECT m." + MessageTable.body + ", m." + MessageTable.authoredDate + ", m." + MessageTable.signature + ", " +
+            "m." + MessageTable.replySig + ", m." + MessageTable.rawPacket + ", " +
+            "p." + PeerTable.pubKey + ", p." + PeerTable.alias + ", p." + PeerTable.lastSeenDate + ", p." + PeerTable.rawPkt +
+            " FROM " + MESSAGES + " m JOIN " + PEERS + " p ON p." + PeerTable.id + " = m." + MessageTable.peerId +
+            " WHERE NOT EXISTS (SELECT 1 FROM " + ChatDatabase.DELIVERED_MESSAGES + " d" +
+            " WHERE d." + MessageDeliveryTable.messageId + " = m." + MessageTable.id + " AND d." + MessageDeliveryTable.peerId + " = ?)" +
+            " ORDER BY m." + MessageTable.authoredDate + " ASC LIMIT ?";
+
+    /** The most recently seen identities, other than its own, not delivered to the recipient with id ? */
+    private static final String SELECT_OUTGOING_IDENTITIES =
+            "SELECT " + PeerTable.pubKey + ", " + PeerTable.alias + ", " + PeerTable.lastSeenDate + ", " + PeerTable.rawPkt +
+            " FROM " + PEERS + " p WHERE " + PeerTable.rawPkt + " IS NOT NULL AND p." + PeerTable.id + " != ?1" +
+            " AND NOT EXISTS (SELECT 1 FROM " + ChatDatabase.DELIVERED_IDENTITIES + " d" +
+            " WHERE d." + IdentityDeliveryTable.peerRecipientId + " = ?1 AND d." + IdentityDeliveryTable.peerPayloadId + " = p." + PeerTable.id + ")" +
+            " ORDER BY " + PeerTable.lastSeenDate + " DESC LIMIT ?2";
+
+    private final SQLiteOpenHelper mOpenHelper;
+
+    private SQLiteDatabase  mDb;
+    private SQLiteStatement mSelectPeerIdByPubKey;
+    private SQLiteStatement mSelectMessageIdBySignature;
+    private SQLiteStatement mInsertMessage;
+    private SQLiteStatement mInsertPeer;
+    private SQLiteStatement mUpdatePeer;
+    private SQLiteStatement mInsertMessageDelivery;
+    private SQLiteStatement mInsertIdentityDelivery;
+
+    /**
+     * URIs of tables changed by the calling thread's transaction in progress, notified once it has
+     * committed. Held per thread, as transactions are. See {@link #endTransaction(SQLiteDatabase, boolean)}
+     */
+    private final ThreadLocal<LinkedHashSet<Uri>> mPendingNotifications = new ThreadLocal<LinkedHashSet<Uri>>() {
+        @Override
+        protected LinkedHashSet<Uri> initialValue() {
+            return new LinkedHashSet<>();
+        }
+    };
+
+    public SQLiteDataStore(@NonNull Context context) {
+        super(context);
+        mOpenHelper = pro.dbro.ble.schematic.ChatDatabase.getInstance(mContext);
+        // Must be set before any transaction begins on the shared connection pool
+        mOpenHelper.setWriteAheadLoggingEnabled(true);
+    }
+
+    @Override
+    public void markMessageDeliveredToPeer(@NonNull MessagePacket message, @NonNull IdentityPacket recipient) {
+        markMessageDeliveredToPeer(message.signature, recipient.publicKey);
+    }
+
+    @Override
+    public void markMessageDeliveredToPeer(@NonNull MessagePacketView message, @NonNull IdentityPacket recipient) {
+        markMessageDeliveredToPeer(message.getSignature(), recipient.publicKey);
+    }
+
+    private void markMessageDeliveredToPeer(@NonNull byte[] messageSignature, @NonNull byte[] recipientPublicKey) {
+        getDatabase();
+        if (executeUpdateDelete(mInsertMessageDelivery, messageSignature, recipientPublicKey) > 0)
+            notifyChange(ChatContentProvider.MessageDeliveries.MESSAGE_DELIVERIES);
+    }
+
+    @Override
+    public void markIdentityDeliveredToPeer(@NonNull IdentityPacket payloadIdentity, @NonNull IdentityPacket recipientIdentity) {
+        markIdentityDeliveredToPeer(payloadIdentity.publicKey, recipientIdentity.publicKey);
+    }
+
+    private void markIdentityDeliveredToPeer(@NonNull byte[] payloadPublicKey, @NonNull byte[] recipientPublicKey) {
+        getDatabase();
+        if (executeUpdateDelete(mInsertIdentityDelivery, payloadPublicKey, recipientPublicKey) > 0)
+            notifyChange(ChatContentProvider.IdentityDeliveries.IDENTITY_DELIVERIES);
+    }
+
+    @Nullable
+    @Override
+    public Peer createLocalPeerWithAlias(@NonNull String alias, @Nullable Protocol protocol) {
+        KeyPair keyPair = SodiumShaker.generateKeyPair();
+        ContentValues dbEntry = new ContentValues();
+        dbEntry.put(PeerTable.pubKey, keyPair.publicKey);
+        dbEntry.put(PeerTable.secKey, keyPair.secretKey);
+        dbEntry.put(PeerTable.alias, alias);
+        dbEntry.put(PeerTable.lastSeenDate, System.currentTimeMillis());
+        if (protocol != null) {
+            // If protocol is available, use it to cache the Identity packet for transmission
+            dbEntry.put(PeerTable.rawPkt, protocol.serializeIdentity(
+                    new OwnedIdentityPacket(keyPair.secretKey, keyPair.publicKey, alias, null)));
+        }
+        long id = getDatabase().insert(PEERS, null, dbEntry);
+        if (id == -1) return null;
+
+        notifyChange(ChatContentProvider.Peers.PEERS);
+        invalidatePrimaryLocalPeer();
+        return getPeerById((int) id);
+    }
+
+    @Nullable
+    @Override
+    protected Peer loadPrimaryLocalPeer() {
+        return readPeer(query("SELECT * FROM " + PEERS + " WHERE " + PeerTable.secKey + " IS NOT NULL LIMIT 1"));
+    }
+
+    @Override
+    protected List<MessagePacket> loadOutgoingMessagesForPeer(@NonNull Peer recipient, int maxMessages) {
+        Cursor cursor = query(SELECT_OUTGOING_MESSAGES, recipient.getId(), maxMessages);
+        List<MessagePacket> messages = new ArrayList<>(cursor.getCount());
+        while (cursor.moveToNext()) {
+            IdentityPacket sender = new IdentityPacket(cursor.getBlob(5),
+                                                       cursor.getString(6),
+                                                       cursor.getLong(7),
+                                                       cursor.getBlob(8));
+            messages.add(new MessagePacket(sender,
+                                           cursor.getBlob(2),
+                                           cursor.getBlob(3),
+                                           cursor.getString(0),
+                                           cursor.getBlob(4),
+                                           cursor.getLong(1)));
+        }
+        cursor.close();
+        return messages;
+    }
+
+    @Override
+    protected List<IdentityPacket> loadOutgoingIdentitiesForPeer(@NonNull Peer recipient, int maxIdentities) {
+        Cursor cursor = query(SELECT_OUTGOING_IDENTITIES, recipient.getId(), maxIdentities);
+        List<IdentityPacket> identities = new ArrayList<>(cursor.getCount());
+        while (cursor.moveToNext()) {
+            identities.add(new IdentityPacket(cursor.getBlob(0),
+                                              cursor.getString(1),
+                                              cursor.getLong(2),
+                                              cursor.getBlob(3)));
+        }
+        cursor.close();
+        return identities;
+    }
+
+    @Override
+    public MessageCollection getRecentMessages() {
+        Cursor cursor = query("SELECT * FROM " + MESSAGES_WITH_SENDER + " ORDER BY " + MessageTable.receivedDate + " DESC");
+        cursor.setNotificationUri(mContext.getContentResolver(), ChatContentProvider.Messages.MESSAGES);
+        return new MessageCollection(cursor);
+    }
+
+    @Override
+    public MessageCollection getMessagePage(@Nullable Peer author, long beforeReceivedDate, long beforeId, int pageSize) {
+        String select = "SELECT " + TextUtils.join(", ", MESSAGE_PAGE_COLUMNS) + " FROM " + MESSAGES_WITH_SENDER + " WHERE ";
+        String order = " ORDER BY " + MESSAGE_PAGE_ORDER + " LIMIT " + pageSize;
+        Cursor cursor = author == null ?
+                query(select + MESSAGE_PAGE_SELECTION + order,
+                      beforeReceivedDate, beforeReceivedDate, beforeId) :
+                query(select + MessageTable.peerId + " = ? AND " + MESSAGE_PAGE_SELECTION + order,
+                      author.getId(), beforeReceivedDate, beforeReceivedDate, beforeId);
+        cursor.setNotificationUri(mContext.getContentResolver(), ChatContentProvider.Messages.MESSAGES);
+        return new MessageCollection(cursor);
+    }
+
+    @Override
+    public MessageCollection searchMessages(@NonNull String query, int limit) {
+        Cursor results = MessageSearch.search(new MessageSearch.Querier() {
+            @NonNull
+            @Override
+            public Cursor rawQuery(@NonNull String sql, @NonNull String[] selectionArgs) {
+                return query(sql, (Object[]) selectionArgs);
+            }
+        }, query, limit);
+        results.setNotificationUri(mContext.getContentResolver(), ChatContentProvider.Messages.MESSAGES);
+        return new MessageCollection(results);
+    }
+
+    @Override
+    public MessageCollection getRecentMessagesByPeer(@NonNull Peer author) {
+        Cursor cursor = query("SELECT * FROM " + MESSAGES_WITH_SENDER + " WHERE " + MessageTable.peerId + " = ?" +
+                              " ORDER BY " + MessageTable.receivedDate + " DESC", author.getId());
+        cursor.setNotificationUri(mContext.getContentResolver(), ChatContentProvider.Messages.MESSAGES);
+        return new MessageCollection(cursor);
+    }
+
+    @Nullable
+    @Override
+    public Peer createOrUpdateRemotePeerWithProtocolIdentity(@NonNull IdentityPacket identityPacket) {
+        SQLiteDatabase db = getDatabase();
+
+        db.beginTransaction();
+        boolean successful = false;
+        try {
+            upsertPeer(identityPacket, System.currentTimeMillis());
+            db.setTransactionSuccessful();
+            successful = true;
+        } finally {
+            endTransaction(db, successful);
+        }
+        onPeerChanged(identityPacket);
+        return loadPeerByPubKey(identityPacket.publicKey);
+    }
+
+    @Nullable
+    @Override
+    public Message createOrUpdateMessageWithProtocolMessage(@NonNull MessagePacket protocolMessagePacket) {
+        MessageWrite write = createOrUpdateMessage(new PendingMessage(protocolMessagePacket, null));
+        return write == null ? null : getMessageById(write.id);
+    }
+
+    @Nullable
+    @Override
+    public Message createOrUpdateMessageWithPacketView(@NonNull MessagePacketView messageView) {
+        MessageWrite write = createOrUpdateMessage(new PendingMessage(null, messageView));
+        return write == null ? null : getMessageById(write.id);
+    }
+
+    /**
+     * The outcome of {@link #createOrUpdateMessage(PendingMessage)}
+     */
+    private static class MessageWrite {
+        final int id;
+        /** Whether the message was stored by this write, rather than already stored */
+        final boolean isNew;
+
+        MessageWrite(long id, boolean isNew) {
+            this.id = (int) id;
+            this.isNew = isNew;
+        }
+    }
+
+    /**
+     * Fields of message other than sender and signature are only read if the message is new.
+     *
+     * @return the stored message's id and whether this call stored it, or null if it
+     * could neither be stored nor found
+     */
+    @Nullable
+    private MessageWrite createOrUpdateMessage(@NonNull PendingMessage message) {
+        getDatabase();
+        long messageId = queryForId(mSelectMessageIdBySignature, message.getSignature());
+        if (messageId != -1) {
+            // Since we currently don't have any mutable message fields (e.g hopcount)
+            // do nothing
+            Log.i(TAG, "Received stored message. Ignoring");
+            return new MessageWrite(messageId, false);
+        }
+
+        long senderId = queryForId(mSelectPeerIdByPubKey, message.getSenderPublicKey());
+        if (senderId == -1)
+            throw new IllegalStateException("Failed to get peer for message");
+
+        messageId = executeInsert(mInsertMessage, senderId,
+                System.currentTimeMillis(),
+                message.getSignature(),
+                message.getBody(),
+                message.getAuthoredTimestamp(),
+                message.getReplySignature(),
+                message.getRawPacket());
+
+        if (messageId == -1) {
+            // Another thread stored the message first
+            messageId = queryForId(mSelectMessageIdBySignature, message.getSignature());
+            if (messageId == -1) {
+                Log.e(TAG, "Failed to store message");
+                return null;
+            }
+            return new MessageWrite(messageId, false);
+        }
+        notifyChange(ChatContentProvider.Messages.MESSAGES);
+        return new MessageWrite(messageId, true);
+    }
+
+    /**
+     * Commits batch in one transaction of compiled statements. Observers of each table
+     * changed are notified once, when the transaction commits.
+     */
+    @Override
+    public List<byte[]> commitBatch(@NonNull Batch batch) {
+        List<byte[]> newMessages = new ArrayList<>();
+        if (batch.isEmpty()) return newMessages;
+
+        long now = System.currentTimeMillis();
+        SQLiteDatabase db = getDatabase();
+
+        db.beginTransaction();
+        boolean successful = false;
+        try {
+            for (IdentityPacket identity : batch.peers.values()) {
+                upsertPeer(identity, now);
+            }
+            for (PendingMessage message : batch.messages.values()) {
+                MessageWrite write = createOrUpdateMessage(message);
+                if (write != null && write.isNew) newMessages.add(message.getSignature());
+            }
+            for (PendingDelivery delivery : batch.messageDeliveries) {
+                markMessageDeliveredToPeer(delivery.payload, delivery.recipientPublicKey);
+            }
+            for (PendingDelivery delivery : batch.identityDeliveries) {
+                markIdentityDeliveredToPeer(delivery.payload, delivery.recipientPublicKey);
+            }
+            db.setTransactionSuccessful();
+            successful = true;
+        } finally {
+            endTransaction(db, successful);
+            for (IdentityPacket identity : batch.peers.values()) {
+                onPeerChanged(identity);
+            }
+        }
+        return newMessages;
+    }
+
+    @Nullable
+    @Override
+    protected Message loadMessageBySignature(@NonNull byte[] signature) {
+        return readMessage(query("SELECT * FROM " + MESSAGES + " WHERE " + MessageTable.signature + " = ?", signature));
+    }
+
+    @Nullable
+    @Override
+    public Message getMessageById(int id) {
+        return readMessage(query("SELECT * FROM " + MESSAGES + " WHERE " + MessageTable.id + " = ?", id));
+    }
+
+    @Nullable
+    @Override
+    protected Peer loadPeerByPubKey(@NonNull byte[] publicKey) {
+        Peer cached = mPeerCache.get(new PublicKey(publicKey));
+        if (cached != null) return cached;
+
+        long generation = mPeerCache.getGeneration();
+        Peer peer = readPeer(query("SELECT * FROM " + PEERS + " WHERE " + PeerTable.pubKey + " = ?", publicKey));
+        mPeerCache.put(peer, generation);
+        return peer;
+    }
+
+    @Nullable
+    @Override
+    public Peer getPeerById(int id) {
+        Peer cached = mPeerCache.get(id);
+        if (cached != null) return cached;
+
+        long generation = mPeerCache.getGeneration();
+        Peer peer = readPeer(query("SELECT * FROM " + PEERS + " WHERE " + PeerTable.id + " = ?", id));
+        mPeerCache.put(peer, generation);
+        return peer;
+    }
+
+    @Override
+    public List<byte[]> getRecentRawPackets(int maxPerTable) {
+        List<byte[]> rawPackets = new ArrayList<>();
+        addBlobs(rawPackets, MESSAGES, MessageTable.rawPacket, MessageTable.receivedDate, maxPerTable);
+        addBlobs(rawPackets, PEERS, PeerTable.rawPkt, PeerTable.lastSeenDate, maxPerTable);
+        return rawPackets;
+    }
+
+    @Override
+    protected List<byte[]> loadRecentMessageSignatures(int maxMessages) {
+        List<byte[]> signatures = new ArrayList<>(maxMessages);
+        addBlobs(signatures, MESSAGES, MessageTable.signature, MessageTable.receivedDate, maxMessages);
+        return signatures;
+    }
+
+    @Override
+    public int countPeers() {
+        countQuery();
+        return (int) DatabaseUtils.queryNumEntries(getDatabase(), PEERS);
+    }
+
+    @Override
+    public int countMessagesPassed() {
+        countQuery();
+        return (int) DatabaseUtils.queryNumEntries(getDatabase(), ChatDatabase.DELIVERED_MESSAGES);
+    }
+
+    /** Utility */
+
+    /**
+     * Insert identity as a peer, or update the stored peer with its public key. An update rewrites
+     * the peer's alias, so observers of messages, which are served with their sender's, are notified too
+     */
+    private void upsertPeer(IdentityPacket identity, long lastSeen) {
+        if (executeUpdateDelete(mUpdatePeer, lastSeen, identity.alias, identity.rawPacket, identity.publicKey) == 0) {
+            Log.i(TAG, "Creating peer for pubkey " + DataUtil.bytesToHex(identity.publicKey));
+            executeInsert(mInsertPeer, lastSeen, identity.publicKey, identity.alias, identity.rawPacket);
+        } else {
+            notifyChange(ChatContentProvider.Messages.MESSAGES);
+        }
+        notifyChange(ChatContentProvider.Peers.PEERS);
+    }
+
+    /**
+     * @return the database, opening it and compiling statements on first use
+     */
+    private synchronized SQLiteDatabase getDatabase() {
+        if (mDb == null) {
+            mDb = mOpenHelper.getWritableDatabase();
+            mSelectPeerIdByPubKey       = mDb.compileStatement(SELECT_PEER_ID_BY_PUB_KEY);
+            mSelectMessageIdBySignature = mDb.compileStatement(SELECT_MESSAGE_ID_BY_SIGNATURE);
+            mInsertMessage              = mDb.compileStatement(INSERT_MESSAGE);
+            mInsertPeer                 = mDb.compileStatement(INSERT_PEER);
+            mUpdatePeer                 = mDb.compileStatement(UPDATE_PEER);
+            mInsertMessageDelivery      = mDb.compileStatement(INSERT_MESSAGE_DELIVERY);
+            mInsertIdentityDelivery     = mDb.compileStatement(INSERT_IDENTITY_DELIVERY);
+        }
+        return mDb;
+    }
+
+    /**
+     * Run sql with args bound by type: byte[] as BLOB, Number as INTEGER, String as TEXT
+     */
+    private Cursor query(String sql, final Object... args) {
+        countQuery();
+        return getDatabase().rawQueryWithFactory(new SQLiteDatabase.CursorFactory() {
+            @Override
+            public Cursor newCursor(SQLiteDatabase db, SQLiteCursorDriver driver, String editTable, SQLiteQuery query) {
+                bindArgs(query, args);
+                return new SQLiteCursor(driver, editTable, query);
+            }
+        }, sql, null, null);
+    }
+
+    /**
+     * @return the id selected by statement, or -1 if no row matched
+     */
+    private long queryForId(SQLiteStatement statement, Object... args) {
+        countQuery();
+        synchronized (statement) {
+            bindArgs(statement, args);
+            try {
+                return statement.simpleQueryForLong();
+            } catch (SQLiteDoneException e) {
+                return -1;
+            }
+        }
+    }
+
+    /**
+     * @return the row id inserted, or -1 if the insert was ignored
+     */
+    private static long executeInsert(SQLiteStatement statement, Object... args) {
+        synchronized (statement) {
+            bindArgs(statement, args);
+            return statement.executeInsert();
+        }
+    }
+
+    /**
+     * @return the number of rows changed
+     */
+    private static int executeUpdateDelete(SQLiteStatement statement, Object... args) {
+        synchronized (statement) {
+            bindArgs(statement, args);
+            return statement.executeUpdateDelete();
+        }
+    }
+
+    private static void bindArgs(SQLiteProgram program, Object[] args) {
+        program.clearBindings();
+        for (int x = 0; x < args.length; x++) {
+            Object arg = args[x];
+            if (arg == null)
+                program.bindNull(x + 1);
+            else if (arg instanceof byte[])
+                program.bindBlob(x + 1, (byte[]) arg);
+            else if (arg instanceof Number)
+                program.bindLong(x + 1, ((Number) arg).longValue());
+            else
+                program.bindString(x + 1, arg.toString());
+        }
+    }
+
+    @Nullable
+    private static Peer readPeer(Cursor cursor) {
+        try {
+            return cursor.moveToFirst() ? new Peer(cursor) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * @return a Message owning cursor, or null if cursor is empty
+     */
+    @Nullable
+    private static Message readMessage(Cursor cursor) {
+        if (cursor.moveToFirst()) return new Message(cursor);
+
+        cursor.close();
+        return null;
+    }
+
+    private void addBlobs(List<byte[]> blobs, String table, String blobColumn, String recencyColumn, int limit) {
+        Cursor cursor = query("SELECT " + blobColumn + " FROM " + table + " WHERE " + blobColumn + " IS NOT NULL" +
+                              " ORDER BY " + recencyColumn + " DESC LIMIT ?", limit);
+        while (cursor.moveToNext()) {
+            blobs.add(cursor.getBlob(0));
+        }
+        cursor.close();
+    }
+
+    /**
+     * Notify observers of uri, immediately or, within a transaction, once it commits
+     */
+    private void notifyChange(Uri uri) {
+        if (getDatabase().inTransaction()) {
+            mPendingNotifications.get().add(uri);
+            return;
+        }
+        mContext.getContentResolver().notifyChange(uri, null);
+    }
+
+    /**
+     * End db's transaction, then notify the URIs it changed if it committed. Observers are notified
+     * only once their changes are committed, and never of a transaction rolled back. A transaction
+     * nested in another of the calling thread's commits with it, so its URIs wait for the outermost.
+     * {@link android.database.sqlite.SQLiteTransactionListener#onCommit()} can't do this, as it runs before the commit
+     *
+     * @param successful whether the transaction was marked successful
+     */
+    private void endTransaction(SQLiteDatabase db, boolean successful) {
+        boolean committed = false;
+        try {
+            db.endTransaction();
+            committed = successful;
+        } finally {
+            if (!committed) {
+                mPendingNotifications.get().clear();
+            } else if (!db.inTransaction()) {
+                flushNotifications();
+            }
+        }
+    }
+
+    private void flushNotifications() {
+        LinkedHashSet<Uri> pending = mPendingNotifications.get();
+        List<Uri> uris = new ArrayList<>(pending);
+        pending.clear();
+        for (Uri uri : uris) {
+            mContext.getContentResolver().notifyChange(uri, null);
+        }
+    }
+}
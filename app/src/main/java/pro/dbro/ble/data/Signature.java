@@ -0,0 +1,47 @@
+package pro.dbro.ble.data;
+
+import android.support.annotation.NonNull;
+
+import java.util.Arrays;
+
+import pro.dbro.ble.data.model.DataUtil;
+
+/**
+ * A message's signature as a value, for use as a map key. Equal when the signature bytes are equal.
+ * The hash is computed once, on construction.
+ *
+ * The bytes are not copied, so must not be modified once wrapped.
+ */
+public final class Signature {
+
+    private final byte[] mSignature;
+    private final int mHash;
+
+    public Signature(@NonNull byte[] signature) {
+        mSignature = signature;
+        mHash = Arrays.hashCode(signature);
+    }
+
+    public byte[] getBytes() {
+        return mSignature;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (obj == this) return true;
+        if (!(obj instanceof Signature)) return false;
+
+        Signature other = (Signature) obj;
+        return mHash == other.mHash && Arrays.equals(mSignature, other.mSignature);
+    }
+
+    @Override
+    public int hashCode() {
+        return mHash;
+    }
+
+    @Override
+    public String toString() {
+        return DataUtil.bytesToHex(mSignature);
+    }
+}
@@ -0,0 +1,426 @@
+package pro.dbro.ble.data;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import pro.dbro.ble.protocol.IdentityPacket;
+import timber.log.Timber;
+
+/**
+ * Commits {@link DataStore.Batch}es on a single writer thread, so callers record their writes and
+ * carry on without waiting on the database. Batches are committed one at a time, in the order
+ * they were enqueued.
+ *
+ * Until a batch is committed its writes are pending. {@link DataStore} consults the pending writes
+ * so its reads reflect writes enqueued before them without waiting on the writer: see
+ * {@link #getPendingPeer}, {@link #getPendingMessage}, {@link #isPendingMessageDelivery},
+ * {@link #isPendingIdentityDelivery} and {@link #getPendingMessageSignatures()}. Writes that must
+ * refer to a stored row {@link #awaitPeer} / {@link #awaitMessage} instead.
+ *
+ * This class is thread-safe.
+ */
+public class WriteBehindQueue {
+
+    public interface Callback {
+        /**
+         * Called on the writer thread once a batch is committed
+         *
+         * @param newMessageSignatures see {@link DataStore#commitBatch(DataStore.Batch)}
+         */
+        void onCommitted(@NonNull List<byte[]> newMessageSignatures);
+    }
+
+    /** Seconds the writer thread idles before exiting. It is restarted on the next enqueue */
+    private static final int WRITER_KEEP_ALIVE_S = 30;
+
+    /**
+     * Attempts at committing a batch as one transaction, the first after RETRY_BACKOFF_MS and each
+     * later one after twice as long, before its writes are committed one at a time
+     */
+    private static final int MAX_COMMIT_ATTEMPTS = 3;
+    private static final int RETRY_BACKOFF_MS = 50;
+
+    private final DataStore mDataStore;
+    private final ThreadPoolExecutor mWriter;
+    private volatile Thread mWriterThread;
+
+    /**
+     * Number of pending batches holding each write, by the key {@link DataStore.Batch} records it under.
+     * Guarded by this
+     */
+    private final HashMap<PublicKey, Integer> mPendingPeers = new HashMap<>();
+    private final HashMap<Signature, Integer> mPendingMessages = new HashMap<>();
+    private final HashMap<DataStore.PendingDelivery, Integer> mPendingMessageDeliveries = new HashMap<>();
+    private final HashMap<DataStore.PendingDelivery, Integer> mPendingIdentityDeliveries = new HashMap<>();
+    /** Number of distinct pending deliveries to each recipient. Guarded by this */
+    private final HashMap<PublicKey, Integer> mPendingMessageDeliveriesByRecipient = new HashMap<>();
+    private final HashMap<PublicKey, Integer> mPendingIdentityDeliveriesByRecipient = new HashMap<>();
+    /** The latest pending write of each peer, and the pending write of each message. Guarded by this */
+    private final HashMap<PublicKey, IdentityPacket> mPendingPeerWrites = new HashMap<>();
+    private final HashMap<Signature, DataStore.PendingMessage> mPendingMessageWrites = new HashMap<>();
+    /** Signatures of pending messages, most recently enqueued last. Guarded by this */
+    private final ArrayList<byte[]> mPendingSignatures = new ArrayList<>();
+
+    /** Metrics. Guarded by this */
+    private int mDepth;
+    private int mMaxDepth;
+    private long mCommittedCount;
+    private long mRetriedCount;
+    private long mDroppedCount;
+    private long mTotalLatencyMs;
+    private long mMaxLatencyMs;
+
+    WriteBehindQueue(@NonNull DataStore dataStore) {
+        mDataStore = dataStore;
+        mWriter = new ThreadPoolExecutor(1, 1, WRITER_KEEP_ALIVE_S, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(@NonNull Runnable runnable) {
+                        Thread writer = new Thread(runnable, "DataStoreWriter");
+                        mWriterThread = writer;
+                        return writer;
+                    }
+                });
+        mWriter.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Commit batch on the writer thread, after every batch enqueued before it.
+     * batch must not be modified afterwards.
+     *
+     * A batch whose transaction fails is retried. If it keeps failing its writes are committed
+     * one at a time, so a write the store rejects loses only itself.
+     * Writes recorded in a batch have often been acknowledged to the peer that sent them, and
+     * won't be sent again.
+     *
+     * @param callback notified on the writer thread once batch is committed, with the messages
+     *                 committed
+     */
+    public void enqueue(@NonNull final DataStore.Batch batch, @Nullable final Callback callback) {
+        if (batch.isEmpty()) return;
+
+        final long enqueuedAt = System.currentTimeMillis();
+        synchronized (this) {
+            addPending(batch);
+            mDepth++;
+            mMaxDepth = Math.max(mMaxDepth, mDepth);
+        }
+
+        mWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                List<byte[]> newMessages = commit(batch);
+                long latencyMs = System.currentTimeMillis() - enqueuedAt;
+
+                // The batch stays pending until its callback returns, so awaitIdle covers callbacks too
+                try {
+                    if (callback != null)
+                        callback.onCommitted(newMessages);
+                } finally {
+                    onBatchFinished(batch, latencyMs);
+                }
+            }
+        });
+    }
+
+    /**
+     * Block until every batch enqueued before this call is committed, and its callback notified.
+     * Returns immediately on the writer thread.
+     */
+    public void awaitIdle() {
+        if (isWriterThread()) return;
+
+        synchronized (this) {
+            while (mDepth > 0) {
+                waitForCommit();
+            }
+        }
+    }
+
+    /**
+     * Block until no pending batch writes the peer with publicKey.
+     * Returns immediately on the writer thread.
+     */
+    public void awaitPeer(@NonNull byte[] publicKey) {
+        awaitKey(mPendingPeers, new PublicKey(publicKey));
+    }
+
+    /**
+     * Block until no pending batch writes the message with signature.
+     * Returns immediately on the writer thread.
+     */
+    public void awaitMessage(@NonNull byte[] signature) {
+        awaitKey(mPendingMessages, new Signature(signature));
+    }
+
+    /**
+     * @return the identity written by the latest pending batch writing the peer with publicKey,
+     * or null if no pending batch writes it
+     */
+    @Nullable
+    public synchronized IdentityPacket getPendingPeer(@NonNull byte[] publicKey) {
+        return mPendingPeerWrites.get(new PublicKey(publicKey));
+    }
+
+    /**
+     * @return the message with signature a pending batch writes, or null if none does
+     */
+    @Nullable
+    synchronized DataStore.PendingMessage getPendingMessage(@NonNull byte[] signature) {
+        return mPendingMessageWrites.get(new Signature(signature));
+    }
+
+    /**
+     * @return whether a pending batch records the delivery of the message with signature
+     * to the peer with recipientPublicKey
+     */
+    public synchronized boolean isPendingMessageDelivery(@NonNull byte[] signature, @NonNull byte[] recipientPublicKey) {
+        return !mPendingMessageDeliveries.isEmpty() &&
+               mPendingMessageDeliveries.containsKey(new DataStore.PendingDelivery(signature, recipientPublicKey));
+    }
+
+    /**
+     * @return whether a pending batch records the delivery of the identity with publicKey
+     * to the peer with recipientPublicKey
+     */
+    public synchronized boolean isPendingIdentityDelivery(@NonNull byte[] publicKey, @NonNull byte[] recipientPublicKey) {
+        return !mPendingIdentityDeliveries.isEmpty() &&
+               mPendingIdentityDeliveries.containsKey(new DataStore.PendingDelivery(publicKey, recipientPublicKey));
+    }
+
+    /**
+     * @return the number of message deliveries to the peer with recipientPublicKey held by pending batches
+     */
+    public synchronized int countPendingMessageDeliveries(@NonNull byte[] recipientPublicKey) {
+        return countFor(mPendingMessageDeliveriesByRecipient, recipientPublicKey);
+    }
+
+    /**
+     * @return the number of identity deliveries to the peer with recipientPublicKey held by pending batches
+     */
+    public synchronized int countPendingIdentityDeliveries(@NonNull byte[] recipientPublicKey) {
+        return countFor(mPendingIdentityDeliveriesByRecipient, recipientPublicKey);
+    }
+
+    /**
+     * @return signatures of the messages held by pending batches, most recently enqueued first
+     */
+    public synchronized List<byte[]> getPendingMessageSignatures() {
+        if (mPendingSignatures.isEmpty()) return Collections.emptyList();
+
+        List<byte[]> signatures = new ArrayList<>(mPendingSignatures);
+        Collections.reverse(signatures);
+        return signatures;
+    }
+
+    /**
+     * @return the number of batches enqueued and not yet committed
+     */
+    public synchronized int getDepth() {
+        return mDepth;
+    }
+
+    /**
+     * @return the greatest {@link #getDepth()} reached
+     */
+    public synchronized int getMaxDepth() {
+        return mMaxDepth;
+    }
+
+    /**
+     * @return the number of batches committed, including those with a dropped write
+     */
+    public synchronized long getCommittedCount() {
+        return mCommittedCount;
+    }
+
+    /**
+     * @return the number of times a batch's transaction failed and was retried
+     */
+    public synchronized long getRetriedCount() {
+        return mRetriedCount;
+    }
+
+    /**
+     * @return the number of writes the store rejected even when committed alone, which were dropped
+     */
+    public synchronized long getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    /**
+     * @return the mean time from enqueuing a batch to its commit completing, in milliseconds
+     */
+    public synchronized long getAverageLatencyMs() {
+        return mCommittedCount == 0 ? 0 : mTotalLatencyMs / mCommittedCount;
+    }
+
+    /**
+     * @return the longest time from enqueuing a batch to its commit completing, in milliseconds
+     */
+    public synchronized long getMaxLatencyMs() {
+        return mMaxLatencyMs;
+    }
+
+    /**
+     * Commit batch as one transaction, retrying a failure, then failing that one write at a time
+     *
+     * @return the signatures of messages batch newly stored
+     */
+    private List<byte[]> commit(DataStore.Batch batch) {
+        long backoffMs = RETRY_BACKOFF_MS;
+        for (int attempt = 1; attempt <= MAX_COMMIT_ATTEMPTS; attempt++) {
+            try {
+                return mDataStore.commitBatch(batch);
+            } catch (RuntimeException e) {
+                Timber.w(e, "Failed to commit batch of writes, attempt %d of %d", attempt, MAX_COMMIT_ATTEMPTS);
+            }
+            if (attempt < MAX_COMMIT_ATTEMPTS) {
+                synchronized (this) {
+                    mRetriedCount++;
+                }
+                sleep(backoffMs);
+                backoffMs *= 2;
+            }
+        }
+
+        List<byte[]> newMessages = new ArrayList<>();
+        for (DataStore.Batch write : batch.split()) {
+            try {
+                newMessages.addAll(mDataStore.commitBatch(write));
+            } catch (RuntimeException e) {
+                Timber.e(e, "Store rejected a write. Dropping it");
+                synchronized (this) {
+                    mDroppedCount++;
+                }
+            }
+        }
+        return newMessages;
+    }
+
+    private static void sleep(long ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private synchronized void onBatchFinished(DataStore.Batch batch, long latencyMs) {
+        removePending(batch);
+        mDepth--;
+        mCommittedCount++;
+
+        mTotalLatencyMs += latencyMs;
+        mMaxLatencyMs = Math.max(mMaxLatencyMs, latencyMs);
+        notifyAll();
+    }
+
+    private void addPending(DataStore.Batch batch) {
+        for (Map.Entry<PublicKey, IdentityPacket> peer : batch.peers.entrySet()) {
+            increment(mPendingPeers, peer.getKey());
+            mPendingPeerWrites.put(peer.getKey(), peer.getValue());
+        }
+        for (Map.Entry<Signature, DataStore.PendingMessage> message : batch.messages.entrySet()) {
+            increment(mPendingMessages, message.getKey());
+            if (!mPendingMessageWrites.containsKey(message.getKey()))
+                mPendingMessageWrites.put(message.getKey(), message.getValue());
+        }
+        for (DataStore.PendingDelivery delivery : batch.messageDeliveries) {
+            if (increment(mPendingMessageDeliveries, delivery))
+                increment(mPendingMessageDeliveriesByRecipient, delivery.recipient);
+        }
+        for (DataStore.PendingDelivery delivery : batch.identityDeliveries) {
+            if (increment(mPendingIdentityDeliveries, delivery))
+                increment(mPendingIdentityDeliveriesByRecipient, delivery.recipient);
+        }
+        for (DataStore.PendingMessage message : batch.messages.values())
+            mPendingSignatures.add(message.getSignature());
+    }
+
+    private void removePending(DataStore.Batch batch) {
+        // A later batch writing the same peer or message keeps its write pending
+        for (PublicKey key : batch.peers.keySet()) {
+            if (decrement(mPendingPeers, key)) mPendingPeerWrites.remove(key);
+        }
+        for (Signature key : batch.messages.keySet()) {
+            if (decrement(mPendingMessages, key)) mPendingMessageWrites.remove(key);
+        }
+        for (DataStore.PendingDelivery delivery : batch.messageDeliveries) {
+            if (decrement(mPendingMessageDeliveries, delivery))
+                decrement(mPendingMessageDeliveriesByRecipient, delivery.recipient);
+        }
+        for (DataStore.PendingDelivery delivery : batch.identityDeliveries) {
+            if (decrement(mPendingIdentityDeliveries, delivery))
+                decrement(mPendingIdentityDeliveriesByRecipient, delivery.recipient);
+        }
+        // Batches commit in the order enqueued, so this batch's signatures are the eldest
+        mPendingSignatures.subList(0, batch.messages.size()).clear();
+    }
+
+    private <K> void awaitKey(HashMap<K, Integer> pending, K key) {
+        if (isWriterThread()) return;
+
+        synchronized (this) {
+            while (pending.containsKey(key)) {
+                waitForCommit();
+            }
+        }
+    }
+
+    /**
+     * Wait for a batch to finish. Must hold this
+     */
+    private void waitForCommit() {
+        try {
+            wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted awaiting pending writes", e);
+        }
+    }
+
+    private boolean isWriterThread() {
+        return Thread.currentThread() == mWriterThread;
+    }
+
+    private static int countFor(HashMap<PublicKey, Integer> counts, byte[] publicKey) {
+        if (counts.isEmpty()) return 0;
+
+        Integer count = counts.get(new PublicKey(publicKey));
+        return count == null ? 0 : count;
+    }
+
+    /**
+     * @return whether key was newly counted
+     */
+    private static <K> boolean increment(HashMap<K, Integer> counts, K key) {
+        Integer count = counts.get(key);
+        counts.put(key, count == null ? 1 : count + 1);
+        return count == null;
+    }
+
+    /**
+     * @return whether key's count reached zero
+     */
+    private static <K> boolean decrement(HashMap<K, Integer> counts, K key) {
+        Integer count = counts.get(key);
+        if (count == null || count <= 1) {
+            counts.remove(key);
+            return true;
+        }
+        counts.put(key, count - 1);
+        return false;
+    }
+}
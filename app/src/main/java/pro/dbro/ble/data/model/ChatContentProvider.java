@@ -1,9 +1,13 @@
 package pro.dbro.ble.data.model;
 
+import android.content.ContentValues;
+import android.content.Context;
 import android.net.Uri;
 
 import net.simonvt.schematic.annotation.ContentProvider;
 import net.simonvt.schematic.annotation.ContentUri;
+import net.simonvt.schematic.annotation.NotifyInsert;
+import net.simonvt.schematic.annotation.NotifyUpdate;
 import net.simonvt.schematic.annotation.TableEndpoint;
 
 /**
@@ -26,6 +30,29 @@ public final class ChatContentProvider {
         return builder.build();
     }
 
+    private static final ThreadLocal<Boolean> sNotifyOnChange = new ThreadLocal<Boolean>() {
+        @Override
+        protected Boolean initialValue() {
+            return true;
+        }
+    };
+
+    /**
+     * Set whether rows inserted or updated on the calling thread notify observers. A caller
+     * applying a batch turns this off, then notifies each uri it changed once. Batches are
+     * applied on the caller's thread, as this provider runs in the app's process.
+     */
+    public static void setNotifyOnChange(boolean notify) {
+        sNotifyOnChange.set(notify);
+    }
+
+    /**
+     * @return uris to notify of a change, unless {@link #setNotifyOnChange} turned notifications off
+     */
+    private static Uri[] notifyUris(Uri... uris) {
+        return sNotifyOnChange.get() ? uris : new Uri[0];
+    }
+
     /** Peer API **/
 
     @TableEndpoint(table = ChatDatabase.PEERS)
@@ -38,6 +65,19 @@ public final class ChatContentProvider {
                 type = "vnd.android.cursor.dir/list",
                 defaultSort = PeerTable.alias + " ASC")
         public static final Uri PEERS = buildUri(ENDPOINT);
+
+        @NotifyInsert(paths = ENDPOINT)
+        public static Uri[] onInsert(ContentValues values) {
+            return notifyUris(PEERS);
+        }
+
+        /**
+         * Updates rewrite a peer's alias, which {@link MessagesWithSender} serves with its messages
+         */
+        @NotifyUpdate(paths = ENDPOINT)
+        public static Uri[] onUpdate(Context context, Uri uri, String where, String[] whereArgs) {
+            return notifyUris(uri, Messages.MESSAGES);
+        }
     }
 
     /** Messages API **/
@@ -53,6 +93,27 @@ public final class ChatContentProvider {
                 defaultSort = MessageTable.authoredDate + " ASC")
         public static final Uri MESSAGES = buildUri(ENDPOINT);
 
+        @NotifyInsert(paths = ENDPOINT)
+        public static Uri[] onInsert(ContentValues values) {
+            return notifyUris(MESSAGES);
+        }
+
+    }
+
+    /** Messages with sender API. Read-only; {@link pro.dbro.ble.data.ChatProvider} rejects writes **/
+
+    @TableEndpoint(table = ChatDatabaseMigrations.MESSAGES_WITH_SENDER)
+    public static class MessagesWithSender {
+
+        /** Beneath {@link Messages#MESSAGES}, so notifications of message changes reach observers of this uri */
+        private static final String ENDPOINT = "sender";
+
+        @ContentUri(
+                path = Messages.ENDPOINT + "/" + ENDPOINT,
+                type = "vnd.android.cursor.dir/list",
+                defaultSort = MessageTable.receivedDate + " DESC")
+        public static final Uri MESSAGES_WITH_SENDER = buildUri(Messages.ENDPOINT, ENDPOINT);
+
     }
 
     /** MessageDelivery API **/
@@ -68,6 +129,11 @@ public final class ChatContentProvider {
                 defaultSort = MessageDeliveryTable.messageId + " ASC")
         public static final Uri MESSAGE_DELIVERIES = buildUri(ENDPOINT);
 
+        @NotifyInsert(paths = ENDPOINT)
+        public static Uri[] onInsert(ContentValues values) {
+            return notifyUris(MESSAGE_DELIVERIES);
+        }
+
     }
 
     /** IdentityDelivery API **/
@@ -83,6 +149,11 @@ public final class ChatContentProvider {
                 defaultSort = IdentityDeliveryTable.peerRecipientId + " ASC")
         public static final Uri IDENTITY_DELIVERIES = buildUri(ENDPOINT);
 
+        @NotifyInsert(paths = ENDPOINT)
+        public static Uri[] onInsert(ContentValues values) {
+            return notifyUris(IDENTITY_DELIVERIES);
+        }
+
     }
 
 }
@@ -1,21 +1,46 @@
 package pro.dbro.ble.data.model;
 
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+
 import net.simonvt.schematic.annotation.Database;
+import net.simonvt.schematic.annotation.OnCreate;
+import net.simonvt.schematic.annotation.OnUpgrade;
 import net.simonvt.schematic.annotation.Table;
 
 /**
  * SQL Database definition.
  *
+ * Indexes and upgrades of existing databases are defined by {@link ChatDatabaseMigrations}.
+ *
  * Created by davidbrodsky on 7/28/14.
  */
 @Database(version = ChatDatabase.DATABASE_VERSION)
 public class ChatDatabase {
 
-    public static final int DATABASE_VERSION = 1;
+    /**
+     * 1 : Initial schema
+     * 2 : Indexes. Unique signature, public key and delivery indexes
+     * 3 : Dates stored as INTEGER epoch milliseconds rather than formatted TEXT
+     * 4 : Full-text search table over message bodies and sender aliases
+     * 5 : Index of messages by sender and received date, for paging a sender's messages
+     * 6 : View of messages joined to their sender's alias and public key
+     */
+    public static final int DATABASE_VERSION = 6;
 
     /** Table Definition                Reference Name                                     SQL Tablename */
     @Table(PeerTable.class)             public static final String  PEERS                = "peers";
     @Table(MessageTable.class)          public static final String  MESSAGES             = "msgs";
     @Table(MessageDeliveryTable.class)  public static final String  DELIVERED_MESSAGES   = "m_dlvry";
     @Table(IdentityDeliveryTable.class) public static final String  DELIVERED_IDENTITIES = "p_dlvry";
-}
\ No newline at end of file
+
+    @OnCreate
+    public static void onCreate(Context context, SQLiteDatabase db) {
+        ChatDatabaseMigrations.onCreate(db);
+    }
+
+    @OnUpgrade
+    public static void onUpgrade(Context context, SQLiteDatabase db, int oldVersion, int newVersion) {
+        ChatDatabaseMigrations.onUpgrade(db, oldVersion, newVersion);
+    }
+}
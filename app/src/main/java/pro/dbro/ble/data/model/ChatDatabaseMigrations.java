@@ -0,0 +1,302 @@
+package pro.dbro.ble.data.model;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.support.annotation.NonNull;
+import android.text.TextUtils;
+
+import timber.log.Timber;
+
+/**
+ * Schema maintained alongside the tables schematic generates from {@link ChatDatabase}:
+ * indexes, the full-text search table and its triggers, views, and the steps bringing an existing
+ * database up to {@link ChatDatabase#DATABASE_VERSION}.
+ *
+ * To change the schema, bump {@link ChatDatabase#DATABASE_VERSION} and add a case for the new
+ * version to {@link #migrate(SQLiteDatabase, int)}. Tables are created from their current
+ * definitions on a fresh install, so migration steps only run when upgrading.
+ *
+ * Both entry points run within the transaction {@link android.database.sqlite.SQLiteOpenHelper}
+ * holds while creating or upgrading the database.
+ */
+public final class ChatDatabaseMigrations {
+
+    /** Index names */
+    public static final String INDEX_MESSAGE_SIGNATURE     = "msgs_sig";
+    public static final String INDEX_MESSAGE_RECEIVED_DATE = "msgs_recv_date";
+    public static final String INDEX_MESSAGE_AUTHORED_DATE = "msgs_author_date";
+    public static final String INDEX_MESSAGE_PEER_RECEIVED = "msgs_p_id_recv_date";
+    public static final String INDEX_PEER_PUBLIC_KEY       = "peers_pk";
+    public static final String INDEX_PEER_LAST_SEEN        = "peers_last_seen";
+    public static final String INDEX_MESSAGE_DELIVERY      = "m_dlvry_m_id_p_id";
+    public static final String INDEX_IDENTITY_DELIVERY     = "p_dlvry_pr_id_pp_id";
+
+    /**
+     * Indexes of the current schema. Unique indexes on signature and public key guarantee a single
+     * row per message and peer, and on the delivery tables a single row per delivery.
+     */
+    private static final String[] INDEXES = new String[] {
+            createIndex(true,  INDEX_MESSAGE_SIGNATURE,     ChatDatabase.MESSAGES,             MessageTable.signature),
+            createIndex(false, INDEX_MESSAGE_RECEIVED_DATE, ChatDatabase.MESSAGES,             MessageTable.receivedDate),
+            createIndex(false, INDEX_MESSAGE_AUTHORED_DATE, ChatDatabase.MESSAGES,             MessageTable.authoredDate),
+            createIndex(false, INDEX_MESSAGE_PEER_RECEIVED, ChatDatabase.MESSAGES,             MessageTable.peerId, MessageTable.receivedDate),
+            createIndex(true,  INDEX_PEER_PUBLIC_KEY,       ChatDatabase.PEERS,                PeerTable.pubKey),
+            createIndex(false, INDEX_PEER_LAST_SEEN,        ChatDatabase.PEERS,                PeerTable.lastSeenDate),
+            createIndex(true,  INDEX_MESSAGE_DELIVERY,      ChatDatabase.DELIVERED_MESSAGES,   MessageDeliveryTable.messageId, MessageDeliveryTable.peerId),
+            createIndex(true,  INDEX_IDENTITY_DELIVERY,     ChatDatabase.DELIVERED_IDENTITIES, IdentityDeliveryTable.peerRecipientId, IdentityDeliveryTable.peerPayloadId)
+    };
+
+    /**
+     * Full-text index of message bodies and sender aliases. Each row's docid is the
+     * {@link MessageTable#id} of the message it indexes. Kept in sync with the messages and peers
+     * tables by triggers.
+     */
+    public static final String MESSAGE_SEARCH       = "msgs_fts";
+    public static final String MESSAGE_SEARCH_BODY  = "body";
+    public static final String MESSAGE_SEARCH_ALIAS = "alias";
+
+    /** Statements creating {@link #MESSAGE_SEARCH} and the triggers maintaining it */
+    private static final String[] MESSAGE_SEARCH_SCHEMA = new String[] {
+            "CREATE VIRTUAL TABLE IF NOT EXISTS " + MESSAGE_SEARCH + " USING fts4(" + MESSAGE_SEARCH_BODY + ", " + MESSAGE_SEARCH_ALIAS + ")",
+
+            "CREATE TRIGGER IF NOT EXISTS msgs_fts_insert AFTER INSERT ON " + ChatDatabase.MESSAGES + " BEGIN" +
+            " INSERT INTO " + MESSAGE_SEARCH + " (docid, " + MESSAGE_SEARCH_BODY + ", " + MESSAGE_SEARCH_ALIAS + ")" +
+            " VALUES (new." + MessageTable.id + ", new." + MessageTable.body + "," +
+            " (SELECT " + PeerTable.alias + " FROM " + ChatDatabase.PEERS + " WHERE " + PeerTable.id + " = new." + MessageTable.peerId + "));" +
+            " END",
+
+            "CREATE TRIGGER IF NOT EXISTS msgs_fts_delete AFTER DELETE ON " + ChatDatabase.MESSAGES + " BEGIN" +
+            " DELETE FROM " + MESSAGE_SEARCH + " WHERE docid = old." + MessageTable.id + ";" +
+            " END",
+
+            "CREATE TRIGGER IF NOT EXISTS msgs_fts_update AFTER UPDATE OF " + MessageTable.body + ", " + MessageTable.peerId +
+            " ON " + ChatDatabase.MESSAGES + " BEGIN" +
+            " UPDATE " + MESSAGE_SEARCH + " SET " + MESSAGE_SEARCH_BODY + " = new." + MessageTable.body + "," +
+            " " + MESSAGE_SEARCH_ALIAS + " = (SELECT " + PeerTable.alias + " FROM " + ChatDatabase.PEERS + " WHERE " + PeerTable.id + " = new." + MessageTable.peerId + ")" +
+            " WHERE docid = old." + MessageTable.id + ";" +
+            " END",
+
+            "CREATE TRIGGER IF NOT EXISTS peers_fts_alias AFTER UPDATE OF " + PeerTable.alias + " ON " + ChatDatabase.PEERS +
+            " WHEN new." + PeerTable.alias + " IS NOT old." + PeerTable.alias + " BEGIN" +
+            " UPDATE " + MESSAGE_SEARCH + " SET " + MESSAGE_SEARCH_ALIAS + " = new." + PeerTable.alias +
+            " WHERE docid IN (SELECT " + MessageTable.id + " FROM " + ChatDatabase.MESSAGES + " WHERE " + MessageTable.peerId + " = new." + PeerTable.id + ");" +
+            " END"
+    };
+
+    /**
+     * View of messages joined to their sender: every {@link MessageTable} column, then the sender's
+     * alias and public key, null if the sender isn't stored. Read-only
+     */
+    public static final String MESSAGES_WITH_SENDER            = "msgs_with_sender";
+    public static final String MESSAGES_WITH_SENDER_ALIAS      = "sender_alias";
+    public static final String MESSAGES_WITH_SENDER_PUBLIC_KEY = "sender_pk";
+
+    private static final String CREATE_MESSAGES_WITH_SENDER =
+            "CREATE VIEW IF NOT EXISTS " + MESSAGES_WITH_SENDER + " AS" +
+            " SELECT m.*, p." + PeerTable.alias + " AS " + MESSAGES_WITH_SENDER_ALIAS + ", p." + PeerTable.pubKey + " AS " + MESSAGES_WITH_SENDER_PUBLIC_KEY +
+            " FROM " + ChatDatabase.MESSAGES + " m LEFT JOIN " + ChatDatabase.PEERS + " p" +
+            " ON p." + PeerTable.id + " = m." + MessageTable.peerId;
+
+    private static final String DEDUPLICATION_TABLE = "dedupe";
+    private static final String DEDUPLICATION_INDEX = "dedupe_key";
+
+    /** Suffix of the name a table takes while {@link #rebuildTable} copies it */
+    private static final String REBUILD_SUFFIX = "_old";
+
+    private ChatDatabaseMigrations() {}
+
+    public static void onCreate(@NonNull SQLiteDatabase db) {
+        createIndexes(db);
+        createMessageSearch(db);
+        db.execSQL(CREATE_MESSAGES_WITH_SENDER);
+    }
+
+    public static void onUpgrade(@NonNull SQLiteDatabase db, int oldVersion, int newVersion) {
+        // Views would follow a table renamed while it's rebuilt, and be left referring to the copy
+        db.execSQL("DROP VIEW IF EXISTS " + MESSAGES_WITH_SENDER);
+        for (int version = oldVersion + 1; version <= newVersion; version++) {
+            Timber.d("Migrating database to version %d", version);
+            migrate(db, version);
+        }
+        // Migrations may rebuild tables, dropping their indexes and triggers
+        createIndexes(db);
+        createMessageSearch(db);
+        db.execSQL(CREATE_MESSAGES_WITH_SENDER);
+    }
+
+    /**
+     * Bring db from version - 1 to version
+     */
+    private static void migrate(SQLiteDatabase db, int version) {
+        switch (version) {
+            case 2:
+                // Unique indexes arrive. Remove duplicates they would reject, keeping the earliest
+                // row of each and, for peers, always a local identity
+                deduplicate(db, ChatDatabase.PEERS, new String[] {PeerTable.pubKey},
+                        "keep." + PeerTable.secKey + " IS NULL, keep." + PeerTable.id,
+                        new String[][] {
+                                {ChatDatabase.MESSAGES,             MessageTable.peerId},
+                                {ChatDatabase.DELIVERED_MESSAGES,   MessageDeliveryTable.peerId},
+                                {ChatDatabase.DELIVERED_IDENTITIES, IdentityDeliveryTable.peerRecipientId},
+                                {ChatDatabase.DELIVERED_IDENTITIES, IdentityDeliveryTable.peerPayloadId}
+                        });
+                deduplicate(db, ChatDatabase.MESSAGES, new String[] {MessageTable.signature},
+                        "keep." + MessageTable.id,
+                        new String[][] {
+                                {ChatDatabase.DELIVERED_MESSAGES, MessageDeliveryTable.messageId}
+                        });
+                deduplicate(db, ChatDatabase.DELIVERED_MESSAGES,
+                        new String[] {MessageDeliveryTable.messageId, MessageDeliveryTable.peerId},
+                        "keep." + MessageDeliveryTable.id, new String[0][]);
+                deduplicate(db, ChatDatabase.DELIVERED_IDENTITIES,
+                        new String[] {IdentityDeliveryTable.peerRecipientId, IdentityDeliveryTable.peerPayloadId},
+                        "keep." + IdentityDeliveryTable.id, new String[0][]);
+                break;
+
+            case 3:
+                // Dates move from TEXT, formatted "yyyy-MM-dd HH:mm:ss" in local time, to INTEGER
+                // epoch milliseconds. A column's type can't be altered, so both tables are rebuilt
+                rebuildTable(db, ChatDatabase.MESSAGES,
+                        new String[] {
+                                MessageTable.id + " INTEGER PRIMARY KEY AUTOINCREMENT",
+                                MessageTable.body + " TEXT NOT NULL",
+                                MessageTable.peerId + " INTEGER",
+                                MessageTable.authoredDate + " INTEGER",
+                                MessageTable.receivedDate + " INTEGER",
+                                MessageTable.signature + " BLOB",
+                                MessageTable.replySig + " BLOB",
+                                MessageTable.rawPacket + " BLOB"
+                        },
+                        new String[] {
+                                MessageTable.id,
+                                MessageTable.body,
+                                MessageTable.peerId,
+                                localTimeToEpochMillis(MessageTable.authoredDate),
+                                localTimeToEpochMillis(MessageTable.receivedDate),
+                                MessageTable.signature,
+                                MessageTable.replySig,
+                                MessageTable.rawPacket
+                        });
+                rebuildTable(db, ChatDatabase.PEERS,
+                        new String[] {
+                                PeerTable.id + " INTEGER PRIMARY KEY AUTOINCREMENT",
+                                PeerTable.alias + " TEXT",
+                                PeerTable.lastSeenDate + " INTEGER NOT NULL",
+                                PeerTable.pubKey + " BLOB NOT NULL",
+                                PeerTable.secKey + " BLOB",
+                                PeerTable.rawPkt + " BLOB"
+                        },
+                        new String[] {
+                                PeerTable.id,
+                                PeerTable.alias,
+                                "IFNULL(" + localTimeToEpochMillis(PeerTable.lastSeenDate) + ", 0)",
+                                PeerTable.pubKey,
+                                PeerTable.secKey,
+                                PeerTable.rawPkt
+                        });
+                break;
+
+            case 4:
+                // Full-text search arrives. Index the messages already stored
+                createMessageSearch(db);
+                db.execSQL("INSERT INTO " + MESSAGE_SEARCH + " (docid, " + MESSAGE_SEARCH_BODY + ", " + MESSAGE_SEARCH_ALIAS + ")" +
+                           " SELECT m." + MessageTable.id + ", m." + MessageTable.body + ", p." + PeerTable.alias +
+                           " FROM " + ChatDatabase.MESSAGES + " m LEFT JOIN " + ChatDatabase.PEERS + " p" +
+                           " ON p." + PeerTable.id + " = m." + MessageTable.peerId);
+                break;
+
+            case 5:
+                // An index of messages by sender and received date arrives, created with the
+                // others once migration completes
+                break;
+
+            case 6:
+                // The view of messages with their sender arrives, created once migration completes
+                break;
+
+            default:
+                throw new IllegalStateException("No migration to database version " + version);
+        }
+    }
+
+    private static void createIndexes(SQLiteDatabase db) {
+        for (String index : INDEXES) {
+            db.execSQL(index);
+        }
+    }
+
+    private static void createMessageSearch(SQLiteDatabase db) {
+        for (String statement : MESSAGE_SEARCH_SCHEMA) {
+            db.execSQL(statement);
+        }
+    }
+
+    /**
+     * Delete all but one row of table for each distinct non-null value of keyColumns.
+     * Rows of other tables referring to a deleted row are first pointed at the row kept in its place.
+     *
+     * @param keepOrder SQL ordering, over rows aliased "keep", whose first row of each key is kept
+     * @param references pairs of table and column holding ids of table's rows
+     */
+    private static void deduplicate(SQLiteDatabase db, String table, String[] keyColumns,
+                                    String keepOrder, String[][] references) {
+        String[] keyMatches = new String[keyColumns.length];
+        String[] keyNotNull = new String[keyColumns.length];
+        for (int x = 0; x < keyColumns.length; x++) {
+            keyMatches[x] = "keep." + keyColumns[x] + " = dup." + keyColumns[x];
+            keyNotNull[x] = "dup." + keyColumns[x] + " IS NOT NULL";
+        }
+
+        // Index the key for the correlated lookup below
+        db.execSQL("CREATE INDEX " + DEDUPLICATION_INDEX + " ON " + table + " (" + TextUtils.join(", ", keyColumns) + ")");
+        db.execSQL("CREATE TEMP TABLE " + DEDUPLICATION_TABLE + " AS" +
+                   " SELECT dup._id AS old_id," +
+                   " (SELECT keep._id FROM " + table + " keep WHERE " + TextUtils.join(" AND ", keyMatches) +
+                   " ORDER BY " + keepOrder + " LIMIT 1) AS new_id" +
+                   " FROM " + table + " dup WHERE " + TextUtils.join(" AND ", keyNotNull));
+        db.execSQL("DELETE FROM " + DEDUPLICATION_TABLE + " WHERE old_id = new_id");
+
+        for (String[] reference : references) {
+            db.execSQL("UPDATE " + reference[0] + " SET " + reference[1] + " =" +
+                       " (SELECT new_id FROM " + DEDUPLICATION_TABLE + " WHERE old_id = " + reference[0] + "." + reference[1] + ")" +
+                       " WHERE " + reference[1] + " IN (SELECT old_id FROM " + DEDUPLICATION_TABLE + ")");
+        }
+        db.execSQL("DELETE FROM " + table + " WHERE _id IN (SELECT old_id FROM " + DEDUPLICATION_TABLE + ")");
+
+        db.execSQL("DROP TABLE " + DEDUPLICATION_TABLE);
+        db.execSQL("DROP INDEX " + DEDUPLICATION_INDEX);
+    }
+
+    /**
+     * Replace table with one of columnDefinitions, filled from the existing rows by
+     * selecting columnValues. The table's indexes are dropped.
+     *
+     * @param columnDefinitions name, type and constraints of each column, matching the table's
+     *                          definition at the version being migrated to
+     * @param columnValues an expression over the existing table's columns for each new column
+     */
+    private static void rebuildTable(SQLiteDatabase db, String table, String[] columnDefinitions, String[] columnValues) {
+        String[] columnNames = new String[columnDefinitions.length];
+        for (int x = 0; x < columnDefinitions.length; x++) {
+            columnNames[x] = columnDefinitions[x].substring(0, columnDefinitions[x].indexOf(' '));
+        }
+
+        db.execSQL("ALTER TABLE " + table + " RENAME TO " + table + REBUILD_SUFFIX);
+        db.execSQL("CREATE TABLE " + table + " (" + TextUtils.join(", ", columnDefinitions) + ")");
+        db.execSQL("INSERT INTO " + table + " (" + TextUtils.join(", ", columnNames) + ")" +
+                   " SELECT " + TextUtils.join(", ", columnValues) + " FROM " + table + REBUILD_SUFFIX);
+        db.execSQL("DROP TABLE " + table + REBUILD_SUFFIX);
+    }
+
+    /**
+     * @return an expression converting column, a local time formatted "yyyy-MM-dd HH:mm:ss",
+     * to milliseconds since the unix epoch. NULL if column can't be parsed
+     */
+    private static String localTimeToEpochMillis(String column) {
+        return "CAST(strftime('%s', " + column + ", 'utc') AS INTEGER) * 1000";
+    }
+
+    private static String createIndex(boolean unique, String name, String table, String... columns) {
+        return "CREATE " + (unique ? "UNIQUE " : "") + "INDEX IF NOT EXISTS " + name +
+               " ON " + table + " (" + TextUtils.join(", ", columns) + ")";
+    }
+}
@@ -4,10 +4,10 @@ import android.database.Cursor;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
-import java.text.ParseException;
 import java.util.Date;
 
 import pro.dbro.ble.data.DataStore;
+import pro.dbro.ble.data.MessageSearch;
 import pro.dbro.ble.protocol.MessagePacket;
 
 /**
@@ -20,6 +20,9 @@ import pro.dbro.ble.protocol.MessagePacket;
  */
 public class Message extends CursorModel {
 
+    /** Id of a message pending in the write queue, not yet stored */
+    public static final int UNSTORED_ID = -1;
+
     public Message(@NonNull Cursor cursor) {
         super(cursor);
 
@@ -33,13 +36,15 @@ public class Message extends CursorModel {
         return mCursor.getString(mCursor.getColumnIndex(MessageTable.body));
     }
 
+    /**
+     * @return milliseconds since the unix epoch at which the sender authored this message
+     */
+    public long getAuthoredTimestamp() {
+        return mCursor.getLong(mCursor.getColumnIndex(MessageTable.authoredDate));
+    }
+
     public Date getAuthoredDate() {
-        try {
-            return DataUtil.storedDateFormatter.parse(mCursor.getString(mCursor.getColumnIndex(MessageTable.authoredDate)));
-        } catch (ParseException e) {
-            e.printStackTrace();
-            return null;
-        }
+        return new Date(getAuthoredTimestamp());
     }
 
     public byte[] getPublicKey(DataStore dataStore) {
@@ -71,17 +76,35 @@ public class Message extends CursorModel {
                 getReplySignature(),
                 getBody(),
                 getRawPacket(),
-                getAuthoredDate());
+                getAuthoredTimestamp());
+
+    }
 
+    /**
+     * @return the score of this message as a {@link DataStore#searchMessages} result. Higher is better
+     */
+    public double getSearchRank() {
+        return mCursor.getDouble(mCursor.getColumnIndex(MessageSearch.RANK));
+    }
+
+    /**
+     * @return where this {@link DataStore#searchMessages} result matched, as triples of
+     * column (0 for body, 1 for sender alias), character offset and character length
+     */
+    public int[] getSearchOffsets() {
+        String offsets = mCursor.getString(mCursor.getColumnIndex(MessageSearch.OFFSETS));
+        if (offsets == null || offsets.length() == 0) return new int[0];
+
+        String[] values = offsets.split(" ");
+        int[] result = new int[values.length];
+        for (int x = 0; x < values.length; x++) {
+            result[x] = Integer.parseInt(values[x]);
+        }
+        return result;
     }
 
     @Nullable
     public Date getRelativeReceivedDate() {
-        try {
-            return DataUtil.storedDateFormatter.parse(
-                    mCursor.getString(mCursor.getColumnIndex(MessageTable.authoredDate)));
-        } catch (ParseException e) {
-            return null;
-        }
+        return getAuthoredDate();
     }
 }
@@ -4,7 +4,7 @@ import android.database.Cursor;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
-import java.text.ParseException;
+import java.util.Arrays;
 import java.util.Date;
 
 import pro.dbro.ble.protocol.IdentityPacket;
@@ -15,11 +15,15 @@ import pro.dbro.ble.protocol.OwnedIdentityPacket;
  */
 public class Peer {
 
+    /** Id of a peer pending in the write queue, not yet stored */
+    public static final int UNSTORED_ID = -1;
+
     private int mId;
     private byte[] mPublicKey;
     private byte[] mSecretKey;
     private String mAlias;
-    private Date mLastSeen;
+    /** Milliseconds since the unix epoch, or 0 if never seen */
+    private long mLastSeen;
 
     private byte[] mRawPkt;
 
@@ -30,12 +34,21 @@ public class Peer {
         mSecretKey = cursor.getBlob(cursor.getColumnIndex(PeerTable.secKey));
         mAlias = cursor.getString(cursor.getColumnIndex(PeerTable.alias));
         mRawPkt = cursor.getBlob(cursor.getColumnIndex(PeerTable.rawPkt));
+        mLastSeen = cursor.getLong(cursor.getColumnIndex(PeerTable.lastSeenDate));
+    }
 
-        try {
-            mLastSeen = DataUtil.storedDateFormatter.parse(cursor.getString(cursor.getColumnIndex(PeerTable.lastSeenDate)));
-        } catch (ParseException e) {
-            e.printStackTrace();
-        }
+    /**
+     * A peer as it will be once a pending write of identity commits
+     *
+     * @param id the stored peer's id, or {@link #UNSTORED_ID}
+     */
+    public Peer(int id, @NonNull IdentityPacket identity, @Nullable byte[] secretKey, long lastSeen) {
+        mId = id;
+        mPublicKey = identity.publicKey;
+        mSecretKey = secretKey;
+        mAlias = identity.alias;
+        mRawPkt = identity.rawPacket;
+        mLastSeen = lastSeen;
     }
 
     public int getId() {
@@ -52,7 +65,7 @@ public class Peer {
 
     @Nullable
     public Date getLastDateSeen() {
-        return mLastSeen;
+        return mLastSeen == 0 ? null : new Date(mLastSeen);
     }
     /**
      * @return whether this peer represents the application user.
@@ -86,6 +99,9 @@ public class Peer {
         {
             final Peer other = (Peer) obj;
 
+            // Peers not yet stored have no distinct id
+            if (mId == UNSTORED_ID || other.mId == UNSTORED_ID)
+                return Arrays.equals(mPublicKey, other.mPublicKey);
             return mId == other.mId;
         }
 
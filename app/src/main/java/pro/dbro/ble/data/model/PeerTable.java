@@ -17,7 +17,8 @@ public interface PeerTable {
     /** SQL type        Modifiers                   Reference Name            SQL Column Name */
     @DataType(INTEGER)  @PrimaryKey @AutoIncrement  String id               = "_id";
     @DataType(TEXT)                                 String alias            = "alias";
-    @DataType(TEXT)     @NotNull                    String lastSeenDate     = "last_seen";
+    /** Milliseconds since the unix epoch */
+    @DataType(INTEGER)  @NotNull                    String lastSeenDate     = "last_seen";
     @DataType(BLOB)     @NotNull                    String pubKey           = "pk";
     @DataType(BLOB)                                 String secKey           = "sk";
     @DataType(BLOB)                                 String rawPkt           = "pkt";
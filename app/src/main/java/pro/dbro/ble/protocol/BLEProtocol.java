@@ -5,11 +5,14 @@ import android.support.annotation.Nullable;
 import android.util.Log;
 
 import java.io.UnsupportedEncodingException;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.util.Date;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
 
+import pro.dbro.ble.crypto.SignedMessage;
 import pro.dbro.ble.crypto.SodiumShaker;
+import pro.dbro.ble.crypto.VerifiedSignatureCache;
 
 /**
  * Created by davidbrodsky on 10/14/14.
@@ -18,20 +21,48 @@ public class BLEProtocol implements Protocol {
     public static final String TAG = "ChatProtocol";
 
     // <editor-fold desc="Public API">
-    /** Bluetooth LE Mesh Chat Protocol Version */
-    public static final byte VERSION = 0x01;
+    /** Bluetooth LE Mesh Chat Protocol Versions */
+    public static final byte VERSION_1 = 0x01;
+    public static final byte VERSION_2 = 0x02;
 
-    /** Identity */
+    /** Protocol version written by this implementation. Version 1 packets are still read */
+    public static final byte VERSION = VERSION_2;
+
+    /** Capabilities this implementation advertises in its identity. See {@link IdentityPacketView#hasCapability(byte)} */
+    public static final byte CAPABILITIES = IdentityPacketView.CAPABILITY_DUPLEX;
+
+    /** Protocol version 1 packet lengths. Version 1 packets are fixed-length */
     public static final int NODATA_RESPONSE_LENGTH     = 106;  // bytes
     public static final int MESSAGE_RESPONSE_LENGTH    = 310;  // bytes
     public static final int IDENTITY_RESPONSE_LENGTH   = 141;  // bytes
+
+    /** Maximum text field lengths. Version 1 pads text fields to exactly this length */
     public static final int MESSAGE_BODY_LENGTH        = 140;  // bytes
     public static final int ALIAS_LENGTH               = 35;   // bytes
 
-    private static final ByteBuffer sTimeStampBuffer = ByteBuffer.allocate(Long.SIZE / 8);
+    /** Number of verified packets remembered by default. See {@link #verifySignatures(List)} */
+    public static final int DEFAULT_VERIFIED_CACHE_SIZE = 1024;
+
+    /** Default time a signed NoData packet may be reused. See {@link #setNoDataFreshness(long)} */
+    public static final long DEFAULT_NODATA_FRESHNESS_MS = 30 * 1000;
+
+    private final VerifiedSignatureCache mVerifiedCache;
+
+    private final Random mRandom = new Random();
 
-    static {
-        sTimeStampBuffer.order(ByteOrder.LITTLE_ENDIAN);
+    private NoDataPacket mCachedNoDataPacket;
+    private long mNoDataFreshnessMs = DEFAULT_NODATA_FRESHNESS_MS;
+
+    public BLEProtocol() {
+        this(DEFAULT_VERIFIED_CACHE_SIZE);
+    }
+
+    /**
+     * @param verifiedCacheSize the number of verified packets to remember, sparing repeat
+     *                          copies arriving from other peers a signature verification
+     */
+    public BLEProtocol(int verifiedCacheSize) {
+        mVerifiedCache = new VerifiedSignatureCache(verifiedCacheSize);
     }
 
     /** Outgoing
@@ -45,19 +76,27 @@ public class BLEProtocol implements Protocol {
     // to serialize our own identity. Every other identity is received serialized.
     @Nullable
     public byte[] serializeIdentity(@NonNull OwnedIdentityPacket ownedIdentity) {
-        // Protocol version 1
-        //[[version=1][timestamp=8][sender_public_key=32][display_name=35]][signature=64]
+        return serializeIdentity(ownedIdentity, CAPABILITIES);
+    }
+
+    /**
+     * @param capabilities the capability flags to advertise. See {@link IdentityPacketView#hasCapability(byte)}
+     */
+    @Nullable
+    public byte[] serializeIdentity(@NonNull OwnedIdentityPacket ownedIdentity, byte capabilities) {
+        // Protocol version 2
+        //[[version=2][type=1][flags=1][timestamp=8][sender_public_key=32][display_name_length=1][display_name=n]][signature=64]
         try {
-            byte[] identity = new byte[IDENTITY_RESPONSE_LENGTH];
+            byte[] aliasAsBytes = truncateText(ownedIdentity.alias, ALIAS_LENGTH);
+            int identityLength = PacketView.V2_HEADER_LENGTH + 1 + aliasAsBytes.length + SodiumShaker.crypto_sign_BYTES;
+
+            byte[] identity = new byte[identityLength];
             int writeIndex = 0;
-            writeIndex += addVersionToBuffer(identity, writeIndex);
-            writeIndex += addTypeToBuffer(identity, IdentityPacket.TYPE, writeIndex);
-            writeIndex += addTimestampToBuffer(identity, writeIndex);
-            writeIndex += addPublicKeyToBuffer(ownedIdentity.publicKey, identity, writeIndex);
-            writeIndex += addAliasToBuffer(ownedIdentity.alias, identity, writeIndex);
+            writeIndex += addHeaderToBuffer(identity, IdentityPacket.TYPE, capabilities, ownedIdentity.publicKey);
+            writeIndex += addTextToBuffer(aliasAsBytes, identity, writeIndex);
             writeIndex += addSignatureToBuffer(ownedIdentity.secretKey, identity, writeIndex);
 
-            if (writeIndex != IDENTITY_RESPONSE_LENGTH)
+            if (writeIndex != identityLength)
                 throw new IllegalStateException("Generated Identity does not match expected length");
 
             return identity;
@@ -70,44 +109,171 @@ public class BLEProtocol implements Protocol {
 
     @Nullable
     public MessagePacket serializeMessage(@NonNull OwnedIdentityPacket ownedIdentity, String body) {
-        // Protocol version 1
-        //[[version=1][timestamp=8][sender_public_key=32][message=140][reply_signature=64]][signature=64]
+        return serializeMessage(ownedIdentity, body, null, false);
+    }
+
+    /**
+     * @param replySignature the signature of the message this replies to, or null if this is not a reply
+     */
+    @Nullable
+    public MessagePacket serializeMessage(@NonNull OwnedIdentityPacket ownedIdentity, String body, @Nullable byte[] replySignature) {
+        return serializeMessage(ownedIdentity, body, replySignature, false);
+    }
+
+    /**
+     * @param replySignature the signature of the message this replies to, or null if this is not a reply
+     * @param compressBody whether to compress the body with {@link BodyCodec}. The body is sent
+     *                     uncompressed if compression would not make it smaller.
+     */
+    @Nullable
+    public MessagePacket serializeMessage(@NonNull OwnedIdentityPacket ownedIdentity, String body,
+                                          @Nullable byte[] replySignature, boolean compressBody) {
+        // Protocol version 2
+        //[[version=2][type=1][flags=1][timestamp=8][sender_public_key=32][message_length=1][message=n][reply_signature=64]][signature=64]
         try {
-            byte[] message = new byte[MESSAGE_RESPONSE_LENGTH];
+            if (replySignature != null && replySignature.length != SodiumShaker.crypto_sign_BYTES)
+                throw new IllegalArgumentException(String.format("replySignature is %d bytes. Expect %d", replySignature.length, SodiumShaker.crypto_sign_BYTES));
+
+            byte[] bodyAsBytes = truncateText(body, MESSAGE_BODY_LENGTH);
+            byte flags = replySignature == null ? 0 : MessagePacketView.FLAG_REPLY_SIGNATURE;
+
+            if (compressBody) {
+                // The compressed body is what gets signed, stored and relayed
+                byte[] compressedBody = BodyCodec.encode(bodyAsBytes, bodyAsBytes.length);
+                if (compressedBody.length < bodyAsBytes.length) {
+                    bodyAsBytes = compressedBody;
+                    flags |= MessagePacketView.FLAG_COMPRESSED_BODY;
+                }
+            }
+            int messageLength = PacketView.V2_HEADER_LENGTH + 1 + bodyAsBytes.length +
+                                (replySignature == null ? 0 : SodiumShaker.crypto_sign_BYTES) +
+                                SodiumShaker.crypto_sign_BYTES;
+
+            byte[] message = new byte[messageLength];
             int writeIndex = 0;
-            writeIndex += addVersionToBuffer(message, writeIndex);
-            writeIndex += addTypeToBuffer(message, MessagePacket.TYPE, writeIndex);
-            writeIndex += addTimestampToBuffer(message, writeIndex);
-            writeIndex += addPublicKeyToBuffer(ownedIdentity.publicKey, message, writeIndex);
-            writeIndex += addMessageBodyToBuffer(body, message, writeIndex);
-            writeIndex += 64; // Empty reply_signature
+            writeIndex += addHeaderToBuffer(message, MessagePacket.TYPE, flags, ownedIdentity.publicKey);
+            writeIndex += addTextToBuffer(bodyAsBytes, message, writeIndex);
+            if (replySignature != null)
+                writeIndex += addSignatureBytesToBuffer(replySignature, message, writeIndex);
             writeIndex += addSignatureToBuffer(ownedIdentity.secretKey, message, writeIndex);
 
-            if (writeIndex != MESSAGE_RESPONSE_LENGTH)
+            if (writeIndex != messageLength)
                 throw new IllegalStateException("Generated Message does not match expected length");
 
-            return deserializeMessageWithIdentity(message, ownedIdentity);
+            // We just signed this packet, so skip verification and remember it as verified
+            MessagePacketView view = new MessagePacketView(message);
+            mVerifiedCache.add(view.getSignedMessage());
+            return view.toMessagePacket(ownedIdentity);
         } catch (UnsupportedEncodingException e) {
-            Log.e(TAG, "Failed to generate Identity response. Are there invalid UTF-8 characters in the user alias?");
+            Log.e(TAG, "Failed to generate Message response. Are there invalid UTF-8 characters in the message body?");
             e.printStackTrace();
         }
         return null;
     }
 
+    /**
+     * @return a signed NoData packet for ownedIdentity. A packet signed within the
+     * last {@link #setNoDataFreshness(long)} milliseconds is reused rather than re-signed.
+     */
     @NonNull
     public NoDataPacket serializeNoDataPacket(@NonNull OwnedIdentityPacket ownedIdentity) {
-        byte[] noDataPkt = new byte[NODATA_RESPONSE_LENGTH];
+        synchronized (this) {
+            if (mCachedNoDataPacket != null &&
+                Arrays.equals(mCachedNoDataPacket.publicKey, ownedIdentity.publicKey) &&
+                System.currentTimeMillis() - mCachedNoDataPacket.authoredTimestamp < mNoDataFreshnessMs) {
+
+                return mCachedNoDataPacket;
+            }
+        }
+
+        // Protocol version 2
+        // [[version=2][type=1][flags=1][timestamp=8][sender_public_key=32]][signature=64]
+        int noDataLength = PacketView.V2_HEADER_LENGTH + SodiumShaker.crypto_sign_BYTES;
+
+        byte[] noDataPkt = new byte[noDataLength];
         int writeIndex = 0;
-        writeIndex += addVersionToBuffer(noDataPkt, writeIndex);
-        writeIndex += addTypeToBuffer(noDataPkt, NoDataPacket.TYPE, writeIndex);
-        writeIndex += addTimestampToBuffer(noDataPkt, writeIndex);
-        writeIndex += addPublicKeyToBuffer(ownedIdentity.publicKey, noDataPkt, writeIndex);
+        writeIndex += addHeaderToBuffer(noDataPkt, NoDataPacket.TYPE, (byte) 0, ownedIdentity.publicKey);
         writeIndex += addSignatureToBuffer(ownedIdentity.secretKey, noDataPkt, writeIndex);
 
-        if (writeIndex != NODATA_RESPONSE_LENGTH)
-            throw new IllegalStateException("Generated Message does not match expected length");
+        if (writeIndex != noDataLength)
+            throw new IllegalStateException("Generated NoData does not match expected length");
 
-        return deserializeNoDataPacket(noDataPkt);
+        // We just signed this packet, so skip verification
+        NoDataPacket noDataPacket = new NoDataPacketView(noDataPkt).toNoDataPacket();
+        synchronized (this) {
+            mCachedNoDataPacket = noDataPacket;
+        }
+        return noDataPacket;
+    }
+
+    /**
+     * Pack complete serialized packets into a single {@link BundlePacket} frame
+     */
+    @NonNull
+    public byte[] serializeBundle(@NonNull List<byte[]> packets) {
+        if (packets.size() > BundlePacket.MAX_PACKETS)
+            throw new IllegalArgumentException(String.format("Bundle holds at most %d packets. Got %d", BundlePacket.MAX_PACKETS, packets.size()));
+
+        int bundleLength = BundlePacket.HEADER_LENGTH;
+        for (byte[] packet : packets) {
+            if (packet.length > BundlePacket.MAX_PACKET_LENGTH)
+                throw new IllegalArgumentException(String.format("Packet of %d bytes too large to bundle", packet.length));
+            bundleLength += BundlePacket.ENTRY_HEADER_LENGTH + packet.length;
+        }
+
+        byte[] bundle = new byte[bundleLength];
+        int writeIndex = 0;
+        writeIndex += HeaderCodec.writeVersion(bundle, writeIndex, VERSION);
+        writeIndex += HeaderCodec.writeType(bundle, writeIndex, BundlePacket.TYPE);
+        bundle[writeIndex++] = (byte) packets.size();
+        for (byte[] packet : packets) {
+            HeaderCodec.writeUnsignedShort(bundle, writeIndex, packet.length);
+            writeIndex += BundlePacket.ENTRY_HEADER_LENGTH;
+            System.arraycopy(packet, 0, bundle, writeIndex, packet.length);
+            writeIndex += packet.length;
+        }
+        return bundle;
+    }
+
+    /**
+     * @return an {@link InventoryPacket} advertising the messages with the given signatures,
+     * salted with a fresh random tweak
+     */
+    @NonNull
+    public InventoryPacket serializeInventory(@NonNull List<byte[]> signatures) {
+        int tweak;
+        synchronized (mRandom) {
+            tweak = mRandom.nextInt();
+        }
+        int filterLength = InventoryPacket.getOptimalFilterLength(signatures.size());
+        int hashCount = InventoryPacket.getOptimalHashCount(filterLength, signatures.size());
+
+        byte[] inventory = new byte[InventoryPacket.HEADER_LENGTH + filterLength];
+        int writeIndex = 0;
+        writeIndex += HeaderCodec.writeVersion(inventory, writeIndex, VERSION);
+        writeIndex += HeaderCodec.writeType(inventory, writeIndex, InventoryPacket.TYPE);
+        inventory[writeIndex++] = (byte) hashCount;
+        HeaderCodec.writeInt(inventory, writeIndex, tweak);
+        writeIndex += 4;
+        HeaderCodec.writeUnsignedShort(inventory, writeIndex, filterLength);
+        writeIndex += 2;
+
+        // Build the filter in place
+        byte[] filter = new byte[filterLength];
+        for (byte[] signature : signatures) {
+            InventoryPacket.addToFilter(filter, hashCount, tweak, signature);
+        }
+        System.arraycopy(filter, 0, inventory, writeIndex, filterLength);
+
+        return new InventoryPacket(hashCount, tweak, filter, inventory);
+    }
+
+    /**
+     * Set how long a signed NoData packet may be reused by {@link #serializeNoDataPacket(OwnedIdentityPacket)}.
+     * A value of 0 signs a new packet on every call.
+     */
+    public synchronized void setNoDataFreshness(long freshnessMs) {
+        mNoDataFreshnessMs = freshnessMs;
     }
 
     /** Incoming
@@ -115,214 +281,242 @@ public class BLEProtocol implements Protocol {
      * Produce protocol Objects from raw transmission data
      */
 
-    @Nullable
-    public IdentityPacket deserializeIdentity(@NonNull byte[] identity) {
-        if (identity.length != IDENTITY_RESPONSE_LENGTH)
-            throw new IllegalArgumentException(String.format("Identity response is %d bytes. Expect %d", identity.length, IDENTITY_RESPONSE_LENGTH));
+    /**
+     * Wrap a serialized identity in a read-only view, after validating its
+     * header and signature. No packet fields are copied.
+     */
+    @NonNull
+    public IdentityPacketView viewIdentity(@NonNull byte[] identity) {
+        assertPacketHeader(identity, IdentityPacket.TYPE);
 
-        // Protocol version 1
-        //[[version=1][type=1][timestamp=8][sender_public_key=32][display_name=35]][signature=64]
-        try {
-            int readIndex     = 0;
-            byte[] timestamp  = new byte[Long.SIZE / 8];
-            byte[] public_key = new byte[SodiumShaker.crypto_sign_PUBLICKEYBYTES];
-            byte[] alias      = new byte[ALIAS_LENGTH];
-            byte[] signature  = new byte[SodiumShaker.crypto_sign_BYTES];
-            byte[] signedData = new byte[IDENTITY_RESPONSE_LENGTH - SodiumShaker.crypto_sign_BYTES];
-
-            readIndex += assertBufferVersion(identity, readIndex);
-            readIndex += assertBufferType(identity, IdentityPacket.TYPE, readIndex);
-            readIndex += getBytesFromBuffer(identity, timestamp, readIndex);
-            readIndex += getBytesFromBuffer(identity, public_key, readIndex);
-            readIndex += getBytesFromBuffer(identity, alias, readIndex);
-            readIndex += getBytesFromBuffer(identity, signature, readIndex);
-
-            System.arraycopy(identity, 0, signedData, 0, signedData.length);
-            boolean validSignature = SodiumShaker.verifySignature(public_key, signature, signedData);
-            if (!validSignature)
-                throw new IllegalStateException("Identity signature does not match content!");
-
-            return new IdentityPacket(public_key, new String(alias, "UTF-8"), getDateFromTimestampBuffer(timestamp), identity);
-        } catch (UnsupportedEncodingException e) {
-            Log.e(TAG, "Failed to generate Identity response. Are there invalid UTF-8 characters in the user alias?");
-            e.printStackTrace();
-        }
-        return null;
-    }
+        IdentityPacketView view = new IdentityPacketView(identity);
+        assertPacketLength(view, "Identity");
 
-    @Nullable
-    public MessagePacket deserializeMessageWithIdentity(@NonNull byte[] message, @NonNull IdentityPacket identity) {
-        if (message.length != MESSAGE_RESPONSE_LENGTH)
-            throw new IllegalArgumentException(String.format("Message response is illegal length. Got %d expected %d", message.length, MESSAGE_RESPONSE_LENGTH));
+        if (!hasValidSignature(view))
+            throw new IllegalStateException("Identity signature does not match content!");
 
-        // TODO Don't duplicate this code between de
-        MessagePacket messageWithoutIdentity = deserializeMessage(message);
-        MessagePacket messageWithIdentity = null;
+        return view;
+    }
 
-        if (messageWithoutIdentity != null) {
-            messageWithIdentity = MessagePacket.attachIdentityToMessage(messageWithoutIdentity, identity);
-        }
-        return messageWithIdentity;
+    /**
+     * Wrap a serialized message in a read-only view, after validating its
+     * header and signature. No packet fields are copied and the body is not decoded.
+     */
+    @NonNull
+    public MessagePacketView viewMessage(@NonNull byte[] message) {
+        MessagePacketView view = viewUnverifiedMessage(message);
+        if (!hasValidSignature(view))
+            throw new IllegalStateException("Message signature does not match content!");
+
+        return view;
     }
 
-    @Nullable
-    public MessagePacket deserializeMessage(@NonNull byte[] message) {
-        if (message.length != MESSAGE_RESPONSE_LENGTH)
-            throw new IllegalArgumentException(String.format("Message response is illegal length. Got %d expected %d", message.length, MESSAGE_RESPONSE_LENGTH));
+    /**
+     * Wrap a serialized message in a read-only view after validating its header only.
+     * The caller is responsible for verifying the signature, e.g: via {@link #verifySignatures(List)}
+     */
+    @NonNull
+    public MessagePacketView viewUnverifiedMessage(@NonNull byte[] message) {
+        assertPacketHeader(message, MessagePacket.TYPE);
 
-        // Protocol version 1
-        //[[version=1][type=1][timestamp=8][sender_public_key=32][message=140][reply_signature=64]][signature=64]
-        try {
-            int readIndex          = 0;
-            byte[] timestamp       = new byte[Long.SIZE / 8];
-            byte[] public_key      = new byte[SodiumShaker.crypto_sign_PUBLICKEYBYTES];
-            byte[] body            = new byte[MESSAGE_BODY_LENGTH];
-            byte[] signature       = new byte[SodiumShaker.crypto_sign_BYTES];
-            byte[] replySignature  = new byte[SodiumShaker.crypto_sign_BYTES];
-            byte[] signedData      = new byte[MESSAGE_RESPONSE_LENGTH - SodiumShaker.crypto_sign_BYTES];
-
-            readIndex += assertBufferVersion(message, readIndex);
-            readIndex += assertBufferType(message, MessagePacket.TYPE, readIndex);
-            readIndex += getBytesFromBuffer(message, timestamp, readIndex);
-            readIndex += getBytesFromBuffer(message, public_key, readIndex);
-            readIndex += getBytesFromBuffer(message, body, readIndex);
-            readIndex += getBytesFromBuffer(message, replySignature, readIndex);
-            readIndex += getBytesFromBuffer(message, signature, readIndex);
-
-            System.arraycopy(message, 0, signedData, 0, signedData.length);
-            boolean validSignature = SodiumShaker.verifySignature(public_key, signature, signedData);
-            if (!validSignature)
-                throw new IllegalStateException("Message signature does not match content!");
-
-            return new MessagePacket(public_key, signature, replySignature, getDateFromTimestampBuffer(timestamp), new String(body, "UTF-8"), message);
-        } catch (UnsupportedEncodingException e) {
-            Log.e(TAG, "Failed to generate Identity response. Are there invalid UTF-8 characters in the user alias?");
-            e.printStackTrace();
-        }
-        return null;
+        MessagePacketView view = new MessagePacketView(message);
+        assertPacketLength(view, "Message");
+        return view;
     }
 
+    /**
+     * Verify the signatures of a batch of packets in parallel.
+     *
+     * @return an array whose entry x reports whether packets.get(x) has a valid signature
+     */
     @NonNull
-    public NoDataPacket deserializeNoDataPacket(@NonNull byte[] noDataPkt) {
-        if (noDataPkt.length != NODATA_RESPONSE_LENGTH)
-            throw new IllegalArgumentException(String.format("NoData response is %d bytes. Expect %d", noDataPkt.length, IDENTITY_RESPONSE_LENGTH));
-
-        // Protocol version 1
-        // [[version=1][type=1][timestamp=8][sender_public_key=32]][signature=64]
-        int readIndex     = 0;
-        byte[] timestamp  = new byte[Long.SIZE / 8];
-        byte[] public_key = new byte[SodiumShaker.crypto_sign_PUBLICKEYBYTES];
-        byte[] signature  = new byte[SodiumShaker.crypto_sign_BYTES];
-        byte[] signedData = new byte[NODATA_RESPONSE_LENGTH - SodiumShaker.crypto_sign_BYTES];
-
-        readIndex += assertBufferVersion(noDataPkt, readIndex);
-        readIndex += assertBufferType(noDataPkt, NoDataPacket.TYPE, readIndex);
-        readIndex += getBytesFromBuffer(noDataPkt, timestamp, readIndex);
-        readIndex += getBytesFromBuffer(noDataPkt, public_key, readIndex);
-        readIndex += getBytesFromBuffer(noDataPkt, signature, readIndex);
-
-        System.arraycopy(noDataPkt, 0, signedData, 0, signedData.length);
-        boolean validSignature = SodiumShaker.verifySignature(public_key, signature, signedData);
-        if (!validSignature)
-            throw new IllegalStateException("NoData signature does not match content!");
+    public boolean[] verifySignatures(@NonNull List<? extends PacketView> packets) {
+        boolean[] results = new boolean[packets.size()];
+
+        // Only packets we haven't already seen verified go to libsodium
+        List<SignedMessage> unknownMessages = new ArrayList<>(packets.size());
+        int[] unknownIndexes = new int[packets.size()];
+        for (int x = 0; x < packets.size(); x++) {
+            SignedMessage signedMessage = packets.get(x).getSignedMessage();
+            if (mVerifiedCache.contains(signedMessage)) {
+                results[x] = true;
+            } else {
+                unknownIndexes[unknownMessages.size()] = x;
+                unknownMessages.add(signedMessage);
+            }
+        }
 
-        return new NoDataPacket(public_key, getDateFromTimestampBuffer(timestamp), signature, noDataPkt);
+        boolean[] unknownResults = SodiumShaker.verifySignatures(unknownMessages);
+        for (int x = 0; x < unknownResults.length; x++) {
+            results[unknownIndexes[x]] = unknownResults[x];
+            if (unknownResults[x]) mVerifiedCache.add(unknownMessages.get(x));
+        }
+        return results;
     }
 
+    /**
+     * Record stored packets, which were verified before being stored, so that
+     * receiving them again from another peer costs a cache lookup rather than a verification.
+     * Packets of unknown type or length are ignored.
+     */
+    public void addVerifiedPackets(@NonNull List<byte[]> rawPackets) {
+        for (byte[] rawPacket : rawPackets) {
+            PacketView view;
+            try {
+                assertBufferVersion(rawPacket, PacketView.VERSION_OFFSET);
+                switch (getPacketType(rawPacket)) {
+                    case IdentityPacket.TYPE:
+                        view = new IdentityPacketView(rawPacket);
+                        break;
+                    case MessagePacket.TYPE:
+                        view = new MessagePacketView(rawPacket);
+                        break;
+                    default:
+                        continue;
+                }
+                assertPacketLength(view, "Stored");
+            } catch (IllegalArgumentException | IllegalStateException e) {
+                continue;
+            }
+            mVerifiedCache.add(view.getSignedMessage());
+        }
+        Log.i(TAG, String.format("Verified packet cache holds %d entries", mVerifiedCache.size()));
+    }
 
-    public byte getPacketType(@NonNull byte[] message) {
-        byte[] type = new byte[1];
-        getTypeFromBuffer(message, type, 1);
-        return type[0];
+    public VerifiedSignatureCache getVerifiedSignatureCache() {
+        return mVerifiedCache;
     }
 
-    // </editor-fold desc="Public API">
+    /**
+     * Wrap a serialized NoData packet in a read-only view, after validating its
+     * header and signature.
+     */
+    @NonNull
+    public NoDataPacketView viewNoDataPacket(@NonNull byte[] noDataPkt) {
+        assertPacketHeader(noDataPkt, NoDataPacket.TYPE);
 
-    // <editor-fold desc="Private API">
+        NoDataPacketView view = new NoDataPacketView(noDataPkt);
+        assertPacketLength(view, "NoData");
 
-    private static int addVersionToBuffer(@NonNull byte[] input, int offset) {
-        int bytesToWrite = 1;
-        assertBufferLength(input, offset + bytesToWrite);
+        if (!hasValidSignature(view))
+            throw new IllegalStateException("NoData signature does not match content!");
 
-        input[offset] = VERSION;
-        return bytesToWrite;
+        return view;
     }
 
-    private static int getVersionFromBuffer(@NonNull byte[] input, @NonNull byte[] version, int offset) {
-        int bytesToRead = 1;
-        assertBufferLength(input, offset + bytesToRead);
-        version[0] = input[offset];
-        return bytesToRead;
+    /**
+     * Split a {@link BundlePacket} frame into its packets, in order.
+     * The packets are not validated; each should be passed to the matching view or deserialize method.
+     */
+    @NonNull
+    public List<byte[]> deserializeBundle(@NonNull byte[] bundle) {
+        assertBufferVersion(bundle, PacketView.VERSION_OFFSET);
+        assertBufferLength(bundle, BundlePacket.HEADER_LENGTH);
+        assertBufferType(bundle, BundlePacket.TYPE, PacketView.TYPE_OFFSET);
+
+        int packetCount = bundle[BundlePacket.HEADER_LENGTH - 1] & 0xFF;
+        List<byte[]> packets = new ArrayList<>(packetCount);
+        int readIndex = BundlePacket.HEADER_LENGTH;
+        for (int x = 0; x < packetCount; x++) {
+            assertBufferLength(bundle, readIndex + BundlePacket.ENTRY_HEADER_LENGTH);
+            int packetLength = HeaderCodec.readUnsignedShort(bundle, readIndex);
+            readIndex += BundlePacket.ENTRY_HEADER_LENGTH;
+
+            assertBufferLength(bundle, readIndex + packetLength);
+            packets.add(Arrays.copyOfRange(bundle, readIndex, readIndex + packetLength));
+            readIndex += packetLength;
+        }
+
+        if (readIndex != bundle.length)
+            throw new IllegalArgumentException(String.format("Bundle response is illegal length. Got %d expected %d", bundle.length, readIndex));
+
+        return packets;
     }
 
-    private static int addTypeToBuffer(@NonNull byte[] input, byte type, int offset) {
-        int bytesToWrite = 1;
-        assertBufferLength(input, offset + bytesToWrite);
+    @NonNull
+    public InventoryPacket deserializeInventory(@NonNull byte[] inventory) {
+        assertBufferVersion(inventory, PacketView.VERSION_OFFSET);
+        assertBufferLength(inventory, InventoryPacket.HEADER_LENGTH);
+        assertBufferType(inventory, InventoryPacket.TYPE, PacketView.TYPE_OFFSET);
+
+        int readIndex = PacketView.TYPE_OFFSET + HeaderCodec.TYPE_LENGTH;
+        int hashCount = inventory[readIndex++] & 0xFF;
+        int tweak = HeaderCodec.readInt(inventory, readIndex);
+        readIndex += 4;
+        int filterLength = HeaderCodec.readUnsignedShort(inventory, readIndex);
+        readIndex += 2;
+
+        if (inventory.length != readIndex + filterLength)
+            throw new IllegalArgumentException(String.format("Inventory response is illegal length. Got %d expected %d", inventory.length, readIndex + filterLength));
+
+        byte[] filter = Arrays.copyOfRange(inventory, readIndex, inventory.length);
+        return new InventoryPacket(hashCount, tweak, filter, inventory);
+    }
 
-        input[offset] = type;
-        return bytesToWrite;
+    @Nullable
+    public IdentityPacket deserializeIdentity(@NonNull byte[] identity) {
+        return viewIdentity(identity).toIdentityPacket();
     }
 
-    private static int getTypeFromBuffer(@NonNull byte[] input, @NonNull byte[] type, int offset) {
-        int bytesToRead = 1;
-        assertBufferLength(input, offset + bytesToRead);
-        type[0] = input[offset];
-        return bytesToRead;
+    @Nullable
+    public MessagePacket deserializeMessageWithIdentity(@NonNull byte[] message, @NonNull IdentityPacket identity) {
+        return viewMessage(message).toMessagePacket(identity);
     }
 
-    private static int addTimestampToBuffer(@NonNull byte[] input, int offset) {
-        synchronized (sTimeStampBuffer) {
-            int bytesToWrite = Long.SIZE / 8;
-            assertBufferLength(input, offset + bytesToWrite);
+    @Nullable
+    public MessagePacket deserializeMessage(@NonNull byte[] message) {
+        return viewMessage(message).toMessagePacket();
+    }
 
-            long unixTime64 = System.currentTimeMillis();
-            sTimeStampBuffer.rewind();
-            sTimeStampBuffer.putLong(unixTime64);
-            System.arraycopy(sTimeStampBuffer.array(), 0, input, offset, bytesToWrite);
-            return bytesToWrite;
-        }
+    @NonNull
+    public NoDataPacket deserializeNoDataPacket(@NonNull byte[] noDataPkt) {
+        return viewNoDataPacket(noDataPkt).toNoDataPacket();
     }
 
-    private static int addPublicKeyToBuffer(@NonNull byte[] public_key, @NonNull byte[] input, int offset) {
-        int bytesToWrite = public_key.length;
-        assertBufferLength(input, offset + bytesToWrite);
 
-        System.arraycopy(public_key, 0, input, offset, bytesToWrite);
-        return bytesToWrite;
+    public byte getPacketType(@NonNull byte[] message) {
+        assertBufferLength(message, PacketView.TYPE_OFFSET + HeaderCodec.TYPE_LENGTH);
+        return HeaderCodec.readType(message, PacketView.TYPE_OFFSET);
     }
 
-    private static int addAliasToBuffer(@NonNull String alias, @NonNull byte[] input, int offset) throws UnsupportedEncodingException {
-        int bytesToWrite = ALIAS_LENGTH;
-        assertBufferLength(input, offset + bytesToWrite);
+    // </editor-fold desc="Public API">
 
-        byte[] aliasAsBytes = alias.getBytes("UTF-8");
-        byte[] paddedAliasAsBytes = new byte[ALIAS_LENGTH];
+    // <editor-fold desc="Private API">
 
-        truncateOrPadTextBuffer(aliasAsBytes, paddedAliasAsBytes);
+    /**
+     * Write a protocol version 2 header, stamped with the current time, at the start of input
+     */
+    private static int addHeaderToBuffer(@NonNull byte[] input, byte type, byte flags, @NonNull byte[] public_key) {
+        assertBufferLength(input, PacketView.V2_HEADER_LENGTH);
 
-        System.arraycopy(paddedAliasAsBytes, 0, input, offset, bytesToWrite);
-        return bytesToWrite;
+        int writeIndex = 0;
+        writeIndex += HeaderCodec.writeVersion(input, writeIndex, VERSION);
+        writeIndex += HeaderCodec.writeType(input, writeIndex, type);
+        writeIndex += HeaderCodec.writeFlags(input, writeIndex, flags);
+        writeIndex += HeaderCodec.writeTimestamp(input, writeIndex, System.currentTimeMillis());
+        System.arraycopy(public_key, 0, input, writeIndex, public_key.length);
+        writeIndex += public_key.length;
+        return writeIndex;
     }
 
-    private static int addMessageBodyToBuffer(@NonNull String body, @NonNull byte[] input, int offset) throws UnsupportedEncodingException {
-        int bytesToWrite = MESSAGE_BODY_LENGTH;
+    /**
+     * Write text, prefixed by its single-byte length
+     */
+    private static int addTextToBuffer(@NonNull byte[] text, @NonNull byte[] input, int offset) {
+        int bytesToWrite = 1 + text.length;
         assertBufferLength(input, offset + bytesToWrite);
 
-        byte[] bodyAsBytes = body.getBytes("UTF-8");
-        byte[] paddedBodyAsBytes = new byte[MESSAGE_BODY_LENGTH];
-
-        truncateOrPadTextBuffer(bodyAsBytes, paddedBodyAsBytes);
-
-        System.arraycopy(paddedBodyAsBytes, 0, input, offset, bytesToWrite);
+        input[offset] = (byte) text.length;
+        System.arraycopy(text, 0, input, offset + 1, text.length);
         return bytesToWrite;
     }
 
-    private static int getBytesFromBuffer(@NonNull byte[] input, @NonNull byte[] output, int offset) {
-        int bytesToRead = output.length;
-        assertBufferLength(input, offset + bytesToRead);
+    private static int addSignatureBytesToBuffer(@NonNull byte[] signature, @NonNull byte[] input, int offset) {
+        int bytesToWrite = SodiumShaker.crypto_sign_BYTES;
+        assertBufferLength(input, offset + bytesToWrite);
 
-        System.arraycopy(input, offset, output, 0, bytesToRead);
-        return bytesToRead;
+        System.arraycopy(signature, 0, input, offset, bytesToWrite);
+        return bytesToWrite;
     }
 
     /**
@@ -341,16 +535,33 @@ public class BLEProtocol implements Protocol {
     /** Utility */
 
     /**
-     * Truncates or pads input to fit precisely inside output.
-     * After this call output will contain the truncated or padded input
+     * @return text encoded as UTF-8, truncated to at most maxLength bytes
+     * without splitting a multi-byte character
      */
-    private static void truncateOrPadTextBuffer(byte[] input, byte[] output) {
-        System.arraycopy(input, 0, output, 0, Math.min(input.length, output.length));
-        if (input.length < output.length) {
-            for (int x = input.length; x < output.length; x++) {
-                output[x] = 0x20; // UTF-8 space
-            }
-        }
+    private static byte[] truncateText(@NonNull String text, int maxLength) throws UnsupportedEncodingException {
+        byte[] textAsBytes = text.getBytes("UTF-8");
+        if (textAsBytes.length <= maxLength) return textAsBytes;
+
+        int length = maxLength;
+        // Back up over continuation bytes (10xxxxxx) to the start of the split character
+        while (length > 0 && (textAsBytes[length] & 0xC0) == 0x80) length--;
+        return Arrays.copyOf(textAsBytes, length);
+    }
+
+    /**
+     * Check view's signature, consulting the verified packet cache first
+     */
+    private boolean hasValidSignature(PacketView view) {
+        SignedMessage signedMessage = view.getSignedMessage();
+        if (mVerifiedCache.contains(signedMessage)) return true;
+
+        boolean valid = SodiumShaker.verifySignature(signedMessage.publicKey,
+                                                     signedMessage.signature,
+                                                     signedMessage.buffer,
+                                                     signedMessage.offset,
+                                                     signedMessage.length);
+        if (valid) mVerifiedCache.add(signedMessage);
+        return valid;
     }
 
     private static void assertBufferLength(byte[] input, int minimumLength) {
@@ -358,33 +569,37 @@ public class BLEProtocol implements Protocol {
             throw new IllegalArgumentException(String.format("Operation requires input buffer length %d. Actual: %d", minimumLength, input.length));
     }
 
-    private static int assertBufferVersion(byte[] input, int offset) {
-        byte[] version = new byte[1];
-        getVersionFromBuffer(input, version, offset);
+    private static byte assertBufferVersion(byte[] input, int offset) {
+        assertBufferLength(input, offset + HeaderCodec.VERSION_LENGTH);
+        byte version = HeaderCodec.readVersion(input, offset);
 
-        if (version[0] != VERSION)
-            throw new IllegalStateException(String.format("Response is for an unknown protocol version. Got %d. Expected %d", version[0], VERSION));
-        return 1;
+        if (version != VERSION_1 && version != VERSION_2)
+            throw new IllegalStateException(String.format("Response is for an unknown protocol version. Got %d. Expected %d or %d", version, VERSION_1, VERSION_2));
+        return version;
     }
 
-    private static int assertBufferType(byte[] input, byte expectedType, int offset) {
-        byte[] type = new byte[1];
-        getTypeFromBuffer(input, type, offset);
+    /**
+     * Check that input holds a full header of a supported version and of expectedType
+     */
+    private static void assertPacketHeader(byte[] input, byte expectedType) {
+        byte version = assertBufferVersion(input, PacketView.VERSION_OFFSET);
+        assertBufferLength(input, version == VERSION_1 ? PacketView.V1_HEADER_LENGTH : PacketView.V2_HEADER_LENGTH);
+        assertBufferType(input, expectedType, PacketView.TYPE_OFFSET);
+    }
 
-        if (type[0] != expectedType)
-            throw new IllegalStateException(String.format("Response is for an unexpected message type. Got %d. Expected %d", type[0], expectedType));
-        return 1;
+    private static void assertPacketLength(PacketView view, String packetName) {
+        int expectedLength = view.getExpectedLength();
+        if (view.getLength() != expectedLength)
+            throw new IllegalArgumentException(String.format("%s response is illegal length. Got %d expected %d", packetName, view.getLength(), expectedLength));
     }
 
-    @Nullable
-    private static Date getDateFromTimestampBuffer(byte[] timestamp) {
-        synchronized (sTimeStampBuffer) {
-            sTimeStampBuffer.clear();
-            sTimeStampBuffer.put(timestamp);
-            sTimeStampBuffer.rewind();
-            // TODO: Test if flip needed
-            return new Date(sTimeStampBuffer.getLong());
-        }
+    private static int assertBufferType(byte[] input, byte expectedType, int offset) {
+        assertBufferLength(input, offset + HeaderCodec.TYPE_LENGTH);
+        byte type = HeaderCodec.readType(input, offset);
+
+        if (type != expectedType)
+            throw new IllegalStateException(String.format("Response is for an unexpected message type. Got %d. Expected %d", type, expectedType));
+        return HeaderCodec.TYPE_LENGTH;
     }
 
     // </editor-fold desc="Private API">
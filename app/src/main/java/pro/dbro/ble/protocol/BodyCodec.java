@@ -0,0 +1,180 @@
+package pro.dbro.ble.protocol;
+
+import android.support.annotation.NonNull;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Stateless SMAZ-style compression of short chat text.
+ *
+ * Text is encoded as UTF-8 then replaced, greedily and longest-first, by single-byte
+ * codes into a fixed dictionary of fragments common in chat. Bytes with no dictionary
+ * match are emitted verbatim: {@link #LITERAL_BYTE} precedes a single byte and
+ * {@link #LITERAL_RUN} precedes a run of up to 256 bytes. The dictionary is part of
+ * the wire format, so changing it requires a new header flag.
+ *
+ * Like {@link HeaderCodec} this class holds no mutable state and is safe on any thread.
+ */
+public final class BodyCodec {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /** Code preceding one literal byte */
+    static final int LITERAL_BYTE = 254;
+    /** Code preceding a run length byte (run length - 1) and that many literal bytes */
+    static final int LITERAL_RUN  = 255;
+
+    private static final int MAX_LITERAL_RUN = 256;
+
+    /** Code x expands to DICTIONARY[x]. Must hold at most 254 entries */
+    private static final String[] DICTIONARY = new String[] {
+            " ", "a", "b", "c", "d", "e", "f", "g", "h", "i", "j", "k", "l", "m", "n", "o", "p", "q", "r",
+            "s", "t", "u", "v", "w", "x", "y", "z", "0", "1", "2", "3", "4", "5", "6", "7", "8", "9", ".",
+            ",", "!", "?", "'", "-", ":", ")", "(", "/", "I", "A", "T", "H", "W", "S", "O", "Y", "N", "M",
+            "C", "B", "D", "G", "L", " the", "the ", " you", "you", " to ", " and ", "ing", "ing ", " a ",
+            " is ", " it", " in", " of ", " for ", " on ", " are ", " me", " my ", " we ", " be ", " at ",
+            " so ", " do ", " can ", " have ", " what", " was ", " that", " this", " with ", " just ",
+            " get", " got", " not ", " but ", " how", " when", " where", " here", " there", " now",
+            " all ", " out", " up", " see ", " go", " going", " come", " know", " like", " good", " time",
+            " today", " tonight", " tomorrow", " meet", " lol", "lol", " ok", "ok", "hey", "Hey", "hi ",
+            "Hi ", "yes", "yeah", "no ", "thanks", "Thanks", "please", "sorry", "I'm ", "I ", "you're",
+            "don't", "can't", "it's", "...", ". ", ", ", "? ", "! ", "er", "re", "in", "on", "an", "th",
+            "he", "ha", "ou", "or", "en", "es", "st", "at", "ed", "nd", "to", "it", "is", "ar", "te", "al",
+            "le", "ll", "se", "ve", "me", "ne", "ng", "of", "ti", "ri", "ea", "ro", "ra", "li", "co", "de",
+            "hi", "ch", "ma", "ow", "ay", "ee", "oo", "e ", "s ", "t ", "d ", "y ", "o ", "r ", "n ", " w",
+            " s", " t", " h", " b", " c", " m", " d", " f", " l", " p", " g", " n", " i", " o", " y", " a",
+            "ion", "ent", "ter", "ere", "our", "ome", "ight", "ould", " will ", " if ", " they ", " he ",
+            " she ", " her ", " his ", " from ", " about ", " back", " one ", " some", " think", " want",
+            " need", " let", " love", " really", " right", " still", " well", " then", " been", " I ",
+            "haha", "omg"
+    };
+
+    private static final byte[][] sCodes = new byte[DICTIONARY.length][];
+
+    /** Codes whose expansion begins with a given byte, longest first */
+    private static final int[][] sCandidates = new int[256][];
+
+    static {
+        if (DICTIONARY.length > LITERAL_BYTE)
+            throw new IllegalStateException("BodyCodec dictionary exceeds " + LITERAL_BYTE + " entries");
+
+        List<List<Integer>> candidates = new ArrayList<>(256);
+        for (int x = 0; x < 256; x++) candidates.add(new ArrayList<Integer>());
+
+        for (int code = 0; code < DICTIONARY.length; code++) {
+            sCodes[code] = DICTIONARY[code].getBytes(UTF_8);
+            candidates.get(sCodes[code][0] & 0xFF).add(code);
+        }
+
+        Comparator<Integer> longestFirst = new Comparator<Integer>() {
+            @Override
+            public int compare(Integer lhs, Integer rhs) {
+                return sCodes[rhs].length - sCodes[lhs].length;
+            }
+        };
+        for (int x = 0; x < 256; x++) {
+            List<Integer> codes = candidates.get(x);
+            Collections.sort(codes, longestFirst);
+            sCandidates[x] = new int[codes.size()];
+            for (int y = 0; y < codes.size(); y++) sCandidates[x][y] = codes.get(y);
+        }
+    }
+
+    private BodyCodec() {}
+
+    /**
+     * @return the compressed form of the UTF-8 text in input[0, length)
+     */
+    public static byte[] encode(@NonNull byte[] input, int length) {
+        ByteArrayOutputStream output = new ByteArrayOutputStream(length);
+        int literalStart = -1;
+        int readIndex = 0;
+        while (readIndex < length) {
+            int code = longestMatch(input, readIndex, length);
+            if (code == -1) {
+                if (literalStart == -1) literalStart = readIndex;
+                readIndex++;
+                if (readIndex - literalStart == MAX_LITERAL_RUN) {
+                    writeLiterals(input, literalStart, readIndex, output);
+                    literalStart = -1;
+                }
+                continue;
+            }
+            if (literalStart != -1) {
+                writeLiterals(input, literalStart, readIndex, output);
+                literalStart = -1;
+            }
+            output.write(code);
+            readIndex += sCodes[code].length;
+        }
+        if (literalStart != -1) writeLiterals(input, literalStart, readIndex, output);
+
+        return output.toByteArray();
+    }
+
+    /**
+     * Expand compressed text in buffer[offset, offset + length).
+     * A truncated trailing literal is dropped rather than failing the whole body.
+     *
+     * @return the expanded UTF-8 text
+     */
+    public static byte[] decode(@NonNull byte[] buffer, int offset, int length) {
+        ByteArrayOutputStream output = new ByteArrayOutputStream(length * 2);
+        int readIndex = offset;
+        int end = offset + length;
+        while (readIndex < end) {
+            int code = buffer[readIndex++] & 0xFF;
+            if (code == LITERAL_BYTE) {
+                if (readIndex >= end) break;
+                output.write(buffer[readIndex++]);
+            } else if (code == LITERAL_RUN) {
+                if (readIndex >= end) break;
+                int runLength = Math.min((buffer[readIndex++] & 0xFF) + 1, end - readIndex);
+                output.write(buffer, readIndex, runLength);
+                readIndex += runLength;
+            } else if (code < sCodes.length) {
+                output.write(sCodes[code], 0, sCodes[code].length);
+            }
+            // Codes beyond the dictionary are ignored
+        }
+        return output.toByteArray();
+    }
+
+    /**
+     * @return the longest dictionary code matching input at offset, or -1 if none match
+     */
+    private static int longestMatch(byte[] input, int offset, int length) {
+        for (int code : sCandidates[input[offset] & 0xFF]) {
+            byte[] expansion = sCodes[code];
+            if (offset + expansion.length <= length &&
+                rangeEquals(input, offset, expansion)) {
+                return code;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean rangeEquals(byte[] input, int offset, byte[] expansion) {
+        // The first byte matched by lookup
+        for (int x = 1; x < expansion.length; x++) {
+            if (input[offset + x] != expansion[x]) return false;
+        }
+        return true;
+    }
+
+    private static void writeLiterals(byte[] input, int start, int end, ByteArrayOutputStream output) {
+        int runLength = end - start;
+        if (runLength == 1) {
+            output.write(LITERAL_BYTE);
+        } else {
+            output.write(LITERAL_RUN);
+            output.write(runLength - 1);
+        }
+        output.write(input, start, runLength);
+    }
+}
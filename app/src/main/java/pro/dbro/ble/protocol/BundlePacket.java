@@ -0,0 +1,23 @@
+package pro.dbro.ble.protocol;
+
+/**
+ * A frame carrying several complete packets, so a transport round trip
+ * can deliver many packets at once. A bundle is not itself signed: each
+ * packet within keeps its own signature and is verified individually.
+ *
+ * Protocol version 2
+ * [[version=2][type=1][packet_count=1][[packet_length=2][packet=n]]*]
+ */
+public class BundlePacket {
+    public static final byte TYPE = 0x04;
+
+    /** Length of the bundle header preceding the first packet */
+    public static final int HEADER_LENGTH       = HeaderCodec.VERSION_LENGTH + HeaderCodec.TYPE_LENGTH + 1;
+    /** Length of the length prefix preceding each packet */
+    public static final int ENTRY_HEADER_LENGTH = 2;
+
+    public static final int MAX_PACKETS         = 0xFF;
+    public static final int MAX_PACKET_LENGTH   = 0xFFFF;
+
+    private BundlePacket() {}
+}
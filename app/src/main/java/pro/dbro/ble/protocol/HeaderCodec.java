@@ -0,0 +1,99 @@
+package pro.dbro.ble.protocol;
+
+import android.support.annotation.NonNull;
+
+/**
+ * Stateless encoding of {@link BLEProtocol} header fields.
+ *
+ * Multi-byte fields are little-endian. Every method reads or writes the
+ * caller's buffer in place, taking no locks and allocating nothing, so packets
+ * may be encoded and decoded on any number of threads at once.
+ */
+public final class HeaderCodec {
+
+    public static final int VERSION_LENGTH   = 1;  // bytes
+    public static final int TYPE_LENGTH      = 1;  // bytes
+    public static final int FLAGS_LENGTH     = 1;  // bytes. Protocol version 2 and later
+    public static final int TIMESTAMP_LENGTH = Long.SIZE / 8;
+
+    private HeaderCodec() {}
+
+    public static int writeVersion(@NonNull byte[] buffer, int offset, byte version) {
+        buffer[offset] = version;
+        return VERSION_LENGTH;
+    }
+
+    public static byte readVersion(@NonNull byte[] buffer, int offset) {
+        return buffer[offset];
+    }
+
+    public static int writeType(@NonNull byte[] buffer, int offset, byte type) {
+        buffer[offset] = type;
+        return TYPE_LENGTH;
+    }
+
+    public static byte readType(@NonNull byte[] buffer, int offset) {
+        return buffer[offset];
+    }
+
+    public static int writeFlags(@NonNull byte[] buffer, int offset, byte flags) {
+        buffer[offset] = flags;
+        return FLAGS_LENGTH;
+    }
+
+    public static byte readFlags(@NonNull byte[] buffer, int offset) {
+        return buffer[offset];
+    }
+
+    /**
+     * Write timestamp, in milliseconds since the unix epoch, at offset
+     */
+    public static int writeTimestamp(@NonNull byte[] buffer, int offset, long timestamp) {
+        writeLong(buffer, offset, timestamp);
+        return TIMESTAMP_LENGTH;
+    }
+
+    /**
+     * @return the timestamp at offset, in milliseconds since the unix epoch
+     */
+    public static long readTimestamp(@NonNull byte[] buffer, int offset) {
+        return readLong(buffer, offset);
+    }
+
+    public static void writeUnsignedShort(@NonNull byte[] buffer, int offset, int value) {
+        buffer[offset]     = (byte) value;
+        buffer[offset + 1] = (byte) (value >>> 8);
+    }
+
+    public static int readUnsignedShort(@NonNull byte[] buffer, int offset) {
+        return (buffer[offset] & 0xFF) | ((buffer[offset + 1] & 0xFF) << 8);
+    }
+
+    public static void writeInt(@NonNull byte[] buffer, int offset, int value) {
+        for (int x = 0; x < Integer.SIZE / 8; x++) {
+            buffer[offset + x] = (byte) (value >>> (8 * x));
+        }
+    }
+
+    public static int readInt(@NonNull byte[] buffer, int offset) {
+        int value = 0;
+        for (int x = Integer.SIZE / 8 - 1; x >= 0; x--) {
+            value = (value << 8) | (buffer[offset + x] & 0xFF);
+        }
+        return value;
+    }
+
+    public static void writeLong(@NonNull byte[] buffer, int offset, long value) {
+        for (int x = 0; x < Long.SIZE / 8; x++) {
+            buffer[offset + x] = (byte) (value >>> (8 * x));
+        }
+    }
+
+    public static long readLong(@NonNull byte[] buffer, int offset) {
+        long value = 0;
+        for (int x = Long.SIZE / 8 - 1; x >= 0; x--) {
+            value = (value << 8) | (buffer[offset + x] & 0xFF);
+        }
+        return value;
+    }
+}
@@ -3,8 +3,6 @@ package pro.dbro.ble.protocol;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
-import java.util.Date;
-
 /**
  * An identity for a remote peer
  * Created by davidbrodsky on 10/13/14.
@@ -13,16 +11,17 @@ public class IdentityPacket {
     public static final byte TYPE = 0x01;
 
     public final byte[] publicKey;
-    public final Date   dateSeen;
+    /** Milliseconds since the unix epoch, or 0 if unknown */
+    public final long   timestampSeen;
     public final String alias;
     public final byte[] rawPacket;
 
-    public IdentityPacket(@NonNull final byte[] publicKey, @Nullable String alias, @NonNull Date dateSeen,
+    public IdentityPacket(@NonNull final byte[] publicKey, @Nullable String alias, long timestampSeen,
                           @NonNull final byte[] rawPacket) {
-        // dateSeen is allowed null because it's meaningless for OwnedIdentities
+        // timestampSeen is allowed 0 because it's meaningless for OwnedIdentities
         this.publicKey  = publicKey;
         this.alias      = alias == null ? null : alias.trim();
-        this.dateSeen   = dateSeen;
+        this.timestampSeen = timestampSeen;
         this.rawPacket  = rawPacket;
     }
 }
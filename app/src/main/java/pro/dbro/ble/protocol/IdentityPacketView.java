@@ -0,0 +1,65 @@
+package pro.dbro.ble.protocol;
+
+import android.support.annotation.NonNull;
+
+import pro.dbro.ble.crypto.SodiumShaker;
+
+/**
+ * A read-only {@link PacketView} over a serialized identity.
+ * The alias is decoded on first access.
+ */
+public class IdentityPacketView extends PacketView {
+
+    // Protocol version 1
+    //[[version=1][type=1][timestamp=8][sender_public_key=32][display_name=35]][signature=64]
+    // Protocol version 2
+    //[[version=2][type=1][flags=1][timestamp=8][sender_public_key=32][display_name_length=1][display_name=n]][signature=64]
+    // Version 2 identity flags advertise the capabilities of the identity's owner
+
+    /** Capability flag indicating the owner can run a full-duplex flow */
+    public static final byte CAPABILITY_DUPLEX = 0x01;
+
+    private String mAlias;
+
+    public IdentityPacketView(@NonNull byte[] buffer) {
+        this(buffer, 0, buffer.length);
+    }
+
+    public IdentityPacketView(@NonNull byte[] buffer, int offset, int length) {
+        super(buffer, offset, length);
+    }
+
+    public String getAlias() {
+        if (mAlias == null)
+            mAlias = decodeText(getAliasOffset(), getAliasLength());
+        return mAlias;
+    }
+
+    /**
+     * @return whether the identity's owner advertised capability. Protocol version 1 identities advertise none
+     */
+    public boolean hasCapability(byte capability) {
+        return hasFlag(capability);
+    }
+
+    public IdentityPacket toIdentityPacket() {
+        return new IdentityPacket(getPublicKey(), getAlias(), getTimestamp(), getRawPacket());
+    }
+
+    @Override
+    int getExpectedLength() {
+        if (isVersion1()) return BLEProtocol.IDENTITY_RESPONSE_LENGTH;
+        if (mLength < getHeaderLength() + 1) return -1;
+
+        return getAliasOffset() + getAliasLength() + SodiumShaker.crypto_sign_BYTES;
+    }
+
+    int getAliasOffset() {
+        // Version 2 prefixes the alias with its length
+        return isVersion1() ? getHeaderLength() : getHeaderLength() + 1;
+    }
+
+    int getAliasLength() {
+        return isVersion1() ? BLEProtocol.ALIAS_LENGTH : readLengthPrefix(getHeaderLength());
+    }
+}
@@ -0,0 +1,105 @@
+package pro.dbro.ble.protocol;
+
+import android.support.annotation.NonNull;
+
+import java.util.List;
+
+/**
+ * A Bloom filter over the signatures of messages a peer holds, letting the other
+ * peer skip sending messages the holder already has.
+ *
+ * A filter may report a message held when it isn't, at roughly {@link #FALSE_POSITIVE_RATE},
+ * but never the reverse. Each filter is salted with a random tweak, so a message
+ * falsely reported held in one encounter is unlikely to be again in the next.
+ *
+ * Like {@link BundlePacket}, an inventory is not signed.
+ *
+ * Protocol version 2
+ * [[version=2][type=1][hash_count=1][tweak=4][filter_length=2][filter=n]]
+ */
+public class InventoryPacket {
+    public static final byte TYPE = 0x05;
+
+    public static final double FALSE_POSITIVE_RATE = 0.01;
+
+    /** Length of the inventory header preceding the filter */
+    public static final int HEADER_LENGTH     = HeaderCodec.VERSION_LENGTH + HeaderCodec.TYPE_LENGTH + 1 + 4 + 2;
+    public static final int MAX_FILTER_LENGTH = 0xFFFF; // bytes
+
+    private static final int MAX_HASH_COUNT   = 16;
+
+    final public int hashCount;
+    final public int tweak;
+    final public byte[] filter;
+    final public byte[] rawPacket;
+
+    public InventoryPacket(int hashCount,
+                           int tweak,
+                           @NonNull byte[] filter,
+                           @NonNull byte[] rawPacket) {
+
+        this.hashCount = hashCount;
+        this.tweak     = tweak;
+        this.filter    = filter;
+        this.rawPacket = rawPacket;
+    }
+
+    /**
+     * @return whether the holder may have the message with the given signature.
+     * False means the holder definitely does not.
+     */
+    public boolean mightContain(@NonNull byte[] signature) {
+        if (filter.length == 0) return false;
+
+        int bitCount = filter.length * 8;
+        int hash1 = hash(signature, 0, tweak);
+        int hash2 = hash(signature, 4, tweak);
+        for (int x = 0; x < hashCount; x++) {
+            int bit = ((hash1 + x * hash2) & Integer.MAX_VALUE) % bitCount;
+            if ((filter[bit >>> 3] & (1 << (bit & 7))) == 0) return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return the filter length, in bytes, giving {@link #FALSE_POSITIVE_RATE} for numEntries
+     */
+    static int getOptimalFilterLength(int numEntries) {
+        double bitCount = -numEntries * Math.log(FALSE_POSITIVE_RATE) / (Math.log(2) * Math.log(2));
+        return (int) Math.max(1, Math.min(MAX_FILTER_LENGTH, Math.ceil(bitCount / 8)));
+    }
+
+    static int getOptimalHashCount(int filterLength, int numEntries) {
+        if (numEntries == 0) return 1;
+        int hashCount = (int) Math.round(filterLength * 8 / (double) numEntries * Math.log(2));
+        return Math.max(1, Math.min(MAX_HASH_COUNT, hashCount));
+    }
+
+    static void addToFilter(@NonNull byte[] filter, int hashCount, int tweak, @NonNull byte[] signature) {
+        int bitCount = filter.length * 8;
+        int hash1 = hash(signature, 0, tweak);
+        int hash2 = hash(signature, 4, tweak);
+        for (int x = 0; x < hashCount; x++) {
+            int bit = ((hash1 + x * hash2) & Integer.MAX_VALUE) % bitCount;
+            filter[bit >>> 3] |= (1 << (bit & 7));
+        }
+    }
+
+    /**
+     * Signatures are already uniformly distributed, so a word of the signature mixed
+     * with the tweak serves as a hash. Mixing uses the MurmurHash3 finalizer.
+     */
+    private static int hash(byte[] signature, int offset, int tweak) {
+        int hash = (signature[offset] & 0xFF) |
+                   (signature[offset + 1] & 0xFF) << 8 |
+                   (signature[offset + 2] & 0xFF) << 16 |
+                   (signature[offset + 3] & 0xFF) << 24;
+        hash ^= tweak * 0x9E3779B9 + offset;
+        hash ^= hash >>> 16;
+        hash *= 0x85EBCA6B;
+        hash ^= hash >>> 13;
+        hash *= 0xC2B2AE35;
+        hash ^= hash >>> 16;
+        return hash;
+    }
+}
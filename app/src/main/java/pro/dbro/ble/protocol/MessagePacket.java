@@ -2,8 +2,6 @@ package pro.dbro.ble.protocol;
 
 import android.support.annotation.NonNull;
 
-import java.util.Date;
-
 /**
  * Created by davidbrodsky on 10/15/14.
  */
@@ -12,7 +10,8 @@ public class MessagePacket {
 
     final public IdentityPacket sender;
     final public String body;
-    final public Date authoredDate;
+    /** Milliseconds since the unix epoch */
+    final public long authoredTimestamp;
     final public byte[] signature;
     final public byte[] replySig;
     final public byte[] rawPacket;
@@ -21,7 +20,7 @@ public class MessagePacket {
     public MessagePacket(@NonNull final byte[] publicKey,
                          @NonNull byte[] signature,
                          @NonNull byte[] replySig,
-                         @NonNull Date authoredDate,
+                         long authoredTimestamp,
                          @NonNull String body,
                          @NonNull byte[] rawPacket) {
 
@@ -29,12 +28,12 @@ public class MessagePacket {
         this.signature    = signature;
         this.replySig     = replySig;
         this.rawPacket    = rawPacket;
-        this.authoredDate = authoredDate;
-        sender            = new IdentityPacket(publicKey, null, null, null); // We don't have the sender's full identity response
+        this.authoredTimestamp = authoredTimestamp;
+        sender            = new IdentityPacket(publicKey, null, 0, null); // We don't have the sender's full identity response
     }
 
     public static MessagePacket attachIdentityToMessage(@NonNull MessagePacket message, @NonNull IdentityPacket identity) {
-        return new MessagePacket(identity, message.signature, message.replySig, message.body, message.rawPacket, message.authoredDate);
+        return new MessagePacket(identity, message.signature, message.replySig, message.body, message.rawPacket, message.authoredTimestamp);
     }
 
     /** Outgoing */
@@ -43,13 +42,13 @@ public class MessagePacket {
                          @NonNull byte[] replySig,
                          @NonNull String body,
                          @NonNull byte[] rawPacket,
-                         @NonNull Date authoredDate) {
+                         long authoredTimestamp) {
 
         this.body         = body.trim();
         this.signature    = signature;
         this.replySig     = replySig;
         this.rawPacket    = rawPacket;
-        this.authoredDate = authoredDate;
+        this.authoredTimestamp = authoredTimestamp;
         this.sender       = sender;
     }
 }
@@ -0,0 +1,94 @@
+package pro.dbro.ble.protocol;
+
+import android.support.annotation.NonNull;
+
+import pro.dbro.ble.crypto.SodiumShaker;
+
+/**
+ * A read-only {@link PacketView} over a serialized message.
+ * The body is decoded on first access.
+ */
+public class MessagePacketView extends PacketView {
+
+    // Protocol version 1
+    //[[version=1][type=1][timestamp=8][sender_public_key=32][message=140][reply_signature=64]][signature=64]
+    // Protocol version 2. reply_signature is present only when FLAG_REPLY_SIGNATURE is set,
+    // and message holds BodyCodec output when FLAG_COMPRESSED_BODY is set
+    //[[version=2][type=1][flags=1][timestamp=8][sender_public_key=32][message_length=1][message=n][reply_signature=64]][signature=64]
+
+    /** Header flag indicating a version 2 message carries a reply_signature */
+    public static final byte FLAG_REPLY_SIGNATURE = 0x01;
+    /** Header flag indicating a version 2 message body is compressed with {@link BodyCodec} */
+    public static final byte FLAG_COMPRESSED_BODY = 0x02;
+
+    private String mBody;
+
+    public MessagePacketView(@NonNull byte[] buffer) {
+        this(buffer, 0, buffer.length);
+    }
+
+    public MessagePacketView(@NonNull byte[] buffer, int offset, int length) {
+        super(buffer, offset, length);
+    }
+
+    public String getBody() {
+        if (mBody == null) {
+            if (hasFlag(FLAG_COMPRESSED_BODY)) {
+                byte[] body = BodyCodec.decode(mBuffer, mOffset + getBodyOffset(), getBodyLength());
+                mBody = new String(body, UTF_8).trim();
+            } else {
+                mBody = decodeText(getBodyOffset(), getBodyLength());
+            }
+        }
+        return mBody;
+    }
+
+    /**
+     * @return whether this message replies to another. Protocol version 1 messages
+     * always carry a reply_signature field, which is all zeros when there is no reply.
+     */
+    public boolean hasReplySignature() {
+        return isVersion1() || hasFlag(FLAG_REPLY_SIGNATURE);
+    }
+
+    /**
+     * @return the signature of the message this replies to, or all zeros if there is none
+     */
+    public byte[] getReplySignature() {
+        if (!hasReplySignature()) return new byte[SodiumShaker.crypto_sign_BYTES];
+        return copyRange(getBodyOffset() + getBodyLength(), SodiumShaker.crypto_sign_BYTES);
+    }
+
+    /**
+     * Materialize a {@link MessagePacket} from this view, attributed to sender.
+     */
+    public MessagePacket toMessagePacket(@NonNull IdentityPacket sender) {
+        return new MessagePacket(sender, getSignature(), getReplySignature(), getBody(), getRawPacket(), getTimestamp());
+    }
+
+    /**
+     * Materialize a {@link MessagePacket} from this view when the sender's full identity is not known.
+     */
+    public MessagePacket toMessagePacket() {
+        return new MessagePacket(getPublicKey(), getSignature(), getReplySignature(), getTimestamp(), getBody(), getRawPacket());
+    }
+
+    @Override
+    int getExpectedLength() {
+        if (isVersion1()) return BLEProtocol.MESSAGE_RESPONSE_LENGTH;
+        if (mLength < getHeaderLength() + 1) return -1;
+
+        return getBodyOffset() + getBodyLength() +
+               (hasReplySignature() ? SodiumShaker.crypto_sign_BYTES : 0) +
+               SodiumShaker.crypto_sign_BYTES;
+    }
+
+    int getBodyOffset() {
+        // Version 2 prefixes the body with its length
+        return isVersion1() ? getHeaderLength() : getHeaderLength() + 1;
+    }
+
+    int getBodyLength() {
+        return isVersion1() ? BLEProtocol.MESSAGE_BODY_LENGTH : readLengthPrefix(getHeaderLength());
+    }
+}
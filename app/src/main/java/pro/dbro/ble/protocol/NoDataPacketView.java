@@ -0,0 +1,33 @@
+package pro.dbro.ble.protocol;
+
+import android.support.annotation.NonNull;
+
+import pro.dbro.ble.crypto.SodiumShaker;
+
+/**
+ * A read-only {@link PacketView} over a serialized NoData packet.
+ */
+public class NoDataPacketView extends PacketView {
+
+    // Protocol version 1
+    // [[version=1][type=1][timestamp=8][sender_public_key=32]][signature=64]
+    // Protocol version 2
+    // [[version=2][type=1][flags=1][timestamp=8][sender_public_key=32]][signature=64]
+
+    public NoDataPacketView(@NonNull byte[] buffer) {
+        this(buffer, 0, buffer.length);
+    }
+
+    public NoDataPacketView(@NonNull byte[] buffer, int offset, int length) {
+        super(buffer, offset, length);
+    }
+
+    public NoDataPacket toNoDataPacket() {
+        return new NoDataPacket(getPublicKey(), getTimestamp(), getSignature(), getRawPacket());
+    }
+
+    @Override
+    int getExpectedLength() {
+        return getHeaderLength() + SodiumShaker.crypto_sign_BYTES;
+    }
+}
@@ -0,0 +1,181 @@
+package pro.dbro.ble.protocol;
+
+import android.support.annotation.NonNull;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import pro.dbro.ble.crypto.SignedMessage;
+import pro.dbro.ble.crypto.SodiumShaker;
+
+/**
+ * A read-only view over a serialized packet. Fields are read by offset
+ * directly from the backing buffer, so wrapping a packet copies nothing.
+ *
+ * Accessors returning byte[] hand out a fresh copy on each call.
+ * Callers needing a field repeatedly should keep the result.
+ */
+public abstract class PacketView {
+
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /** Header offsets common to all protocol versions, relative to the start of the packet */
+    static final int VERSION_OFFSET    = 0;
+    static final int TYPE_OFFSET       = VERSION_OFFSET + HeaderCodec.VERSION_LENGTH;
+
+    /** Protocol version 2 places a flags byte after the type */
+    static final int FLAGS_OFFSET      = TYPE_OFFSET + HeaderCodec.TYPE_LENGTH;
+
+    /** Protocol version 1 header length */
+    static final int V1_HEADER_LENGTH  = TYPE_OFFSET + HeaderCodec.TYPE_LENGTH +
+                                         HeaderCodec.TIMESTAMP_LENGTH + SodiumShaker.crypto_sign_PUBLICKEYBYTES;
+
+    /** Protocol version 2 header length */
+    static final int V2_HEADER_LENGTH  = FLAGS_OFFSET + HeaderCodec.FLAGS_LENGTH +
+                                         HeaderCodec.TIMESTAMP_LENGTH + SodiumShaker.crypto_sign_PUBLICKEYBYTES;
+
+    protected final byte[] mBuffer;
+    protected final int    mOffset;
+    protected final int    mLength;
+    protected final byte   mVersion;
+
+    PacketView(@NonNull byte[] buffer, int offset, int length) {
+        if (offset < 0 || length < 0 || offset + length > buffer.length)
+            throw new IllegalArgumentException(String.format("Packet range [%d, %d) outside buffer of length %d", offset, offset + length, buffer.length));
+
+        mBuffer = buffer;
+        mOffset = offset;
+        mLength = length;
+        mVersion = length > 0 ? HeaderCodec.readVersion(buffer, offset + VERSION_OFFSET) : 0;
+    }
+
+    public int getLength() {
+        return mLength;
+    }
+
+    public byte getVersion() {
+        return mVersion;
+    }
+
+    public boolean isVersion1() {
+        return mVersion == BLEProtocol.VERSION_1;
+    }
+
+    public byte getType() {
+        return HeaderCodec.readType(mBuffer, mOffset + TYPE_OFFSET);
+    }
+
+    /**
+     * @return the header flags. Always 0 for protocol version 1 packets, which carry no flags
+     */
+    public byte getFlags() {
+        return isVersion1() ? 0 : HeaderCodec.readFlags(mBuffer, mOffset + FLAGS_OFFSET);
+    }
+
+    public boolean hasFlag(byte flag) {
+        return (getFlags() & flag) != 0;
+    }
+
+    /**
+     * @return the authoring timestamp in milliseconds since the unix epoch
+     */
+    public long getTimestamp() {
+        return HeaderCodec.readTimestamp(mBuffer, mOffset + getTimestampOffset());
+    }
+
+    public byte[] getPublicKey() {
+        return copyRange(getPublicKeyOffset(), SodiumShaker.crypto_sign_PUBLICKEYBYTES);
+    }
+
+    /**
+     * @return whether this packet's sender public key equals publicKey.
+     * Compares in place, without copying the key out of the packet.
+     */
+    public boolean hasPublicKey(@NonNull byte[] publicKey) {
+        if (publicKey.length != SodiumShaker.crypto_sign_PUBLICKEYBYTES) return false;
+
+        for (int x = 0; x < publicKey.length; x++) {
+            if (mBuffer[mOffset + getPublicKeyOffset() + x] != publicKey[x]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return the signature trailing the signed portion of the packet
+     */
+    public byte[] getSignature() {
+        return copyRange(getSignedLength(), SodiumShaker.crypto_sign_BYTES);
+    }
+
+    /**
+     * @return the number of bytes, from the start of the packet, covered by the signature
+     */
+    public int getSignedLength() {
+        return mLength - SodiumShaker.crypto_sign_BYTES;
+    }
+
+    /**
+     * Verify the trailing signature against the signed range of the backing buffer.
+     * The signed range is not copied when this view starts at the beginning of its buffer.
+     */
+    public boolean hasValidSignature() {
+        return SodiumShaker.verifySignature(getPublicKey(), getSignature(), mBuffer, mOffset, getSignedLength());
+    }
+
+    /**
+     * @return the signed range of this packet, for batch verification with
+     * {@link SodiumShaker#verifySignatures(java.util.List)}
+     */
+    public SignedMessage getSignedMessage() {
+        return new SignedMessage(getPublicKey(), getSignature(), mBuffer, mOffset, getSignedLength());
+    }
+
+    /**
+     * @return the serialized packet. This is the backing buffer itself when the view spans
+     * all of it, otherwise a copy of the viewed range.
+     */
+    public byte[] getRawPacket() {
+        if (mOffset == 0 && mLength == mBuffer.length) return mBuffer;
+        return Arrays.copyOfRange(mBuffer, mOffset, mOffset + mLength);
+    }
+
+    /**
+     * @return the packet length implied by this packet's version and any length-prefixed fields.
+     * A well-formed packet's {@link #getLength()} equals this value.
+     * Returns -1 if the packet is too short to hold its header and length prefixes.
+     */
+    abstract int getExpectedLength();
+
+    /** @return the length of the header preceding type-specific fields */
+    int getHeaderLength() {
+        return isVersion1() ? V1_HEADER_LENGTH : V2_HEADER_LENGTH;
+    }
+
+    int getTimestampOffset() {
+        return isVersion1() ? TYPE_OFFSET + HeaderCodec.TYPE_LENGTH : FLAGS_OFFSET + HeaderCodec.FLAGS_LENGTH;
+    }
+
+    int getPublicKeyOffset() {
+        return getTimestampOffset() + HeaderCodec.TIMESTAMP_LENGTH;
+    }
+
+    /** Utility */
+
+    /**
+     * @return the unsigned single-byte length prefix at relativeOffset
+     */
+    protected int readLengthPrefix(int relativeOffset) {
+        return mBuffer[mOffset + relativeOffset] & 0xFF;
+    }
+
+    protected byte[] copyRange(int relativeOffset, int length) {
+        return Arrays.copyOfRange(mBuffer, mOffset + relativeOffset, mOffset + relativeOffset + length);
+    }
+
+    /**
+     * Decode UTF-8 text, dropping the space padding of protocol version 1 text fields
+     */
+    protected String decodeText(int relativeOffset, int length) {
+        return new String(mBuffer, mOffset + relativeOffset, length, UTF_8).trim();
+    }
+}
@@ -3,6 +3,8 @@ package pro.dbro.ble.protocol;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
+import java.util.List;
+
 /**
  * Created by davidbrodsky on 10/20/14.
  */
@@ -16,10 +18,26 @@ public interface Protocol {
     // TODO Decide on a consistent API here
     public byte[] serializeIdentity(@NonNull OwnedIdentityPacket ownedIdentity);
 
+    /** Serialize an identity advertising the given {@link IdentityPacketView} capability flags */
+    public byte[] serializeIdentity(@NonNull OwnedIdentityPacket ownedIdentity, byte capabilities);
+
     public MessagePacket serializeMessage(@NonNull OwnedIdentityPacket ownedIdentity, String body);
 
+    /**
+     * Serialize a message, optionally as a reply and optionally with a compressed body.
+     * Compressed bodies are signed, stored and relayed compressed.
+     */
+    public MessagePacket serializeMessage(@NonNull OwnedIdentityPacket ownedIdentity, String body,
+                                          @Nullable byte[] replySignature, boolean compressBody);
+
     public NoDataPacket serializeNoDataPacket(@NonNull OwnedIdentityPacket ownedIdentity);
 
+    /** Advertise held messages by signature, so the remote peer can skip sending them */
+    public InventoryPacket serializeInventory(@NonNull List<byte[]> signatures);
+
+    /** Pack complete serialized packets into a single {@link BundlePacket} frame */
+    public byte[] serializeBundle(@NonNull List<byte[]> packets);
+
     /** Incoming
      *
      * Deserialize raw transmission data into Protocol Objects
@@ -33,6 +51,27 @@ public interface Protocol {
     /** Deserialize a message where the author identity is not known */
     public MessagePacket deserializeMessage(@NonNull byte[] message);
 
+    /** Split a {@link BundlePacket} frame into its packets, which are not yet validated */
+    public List<byte[]> deserializeBundle(@NonNull byte[] bundle);
+
+    public InventoryPacket deserializeInventory(@NonNull byte[] inventory);
+
+    /** Wrap verified raw transmission data in read-only views, without copying packet fields */
+    public IdentityPacketView viewIdentity(@NonNull byte[] identity);
+
+    public MessagePacketView viewMessage(@NonNull byte[] message);
+
+    public NoDataPacketView viewNoDataPacket(@NonNull byte[] noDataPkt);
+
+    /** Wrap a message whose signature will be checked later with {@link #verifySignatures(List)} */
+    public MessagePacketView viewUnverifiedMessage(@NonNull byte[] message);
+
+    /** Verify a batch of packet signatures. Entry x of the result corresponds to packets.get(x) */
+    public boolean[] verifySignatures(@NonNull List<? extends PacketView> packets);
+
+    /** Record raw packets already known to carry valid signatures, e.g: those previously stored */
+    public void addVerifiedPackets(@NonNull List<byte[]> rawPackets);
+
     public byte getPacketType(@NonNull byte[] message);
 
 }
@@ -283,7 +283,7 @@ public class MainActivity extends AppCompatActivity implements LogConsumer,
 
     @Override
     public void onServiceReady(AirShareService.ServiceBinder serviceBinder) {
-        mUserIdentity = (OwnedIdentityPacket) mClient.getPrimaryLocalPeer().getIdentity();
+        mUserIdentity = mClient.getDataStore().getPrimaryLocalIdentity();
 
         mClient.setAirShareServiceBinder(serviceBinder);
         mClient.setCallback(this);
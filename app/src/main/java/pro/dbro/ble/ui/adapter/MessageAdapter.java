@@ -2,6 +2,10 @@ package pro.dbro.ble.ui.adapter;
 
 import android.content.Context;
 import android.database.Cursor;
+import android.database.CursorWrapper;
+import android.database.MergeCursor;
+import android.os.Handler;
+import android.os.Looper;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.support.v7.widget.RecyclerView;
@@ -12,13 +16,17 @@ import android.view.View;
 import android.view.ViewGroup;
 import android.widget.TextView;
 
-import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 import im.delight.android.identicons.SymmetricIdenticon;
 import pro.dbro.ble.R;
 import pro.dbro.ble.data.DataStore;
-import pro.dbro.ble.data.model.DataUtil;
+import pro.dbro.ble.data.model.ChatDatabaseMigrations;
 import pro.dbro.ble.data.model.MessageTable;
 import pro.dbro.ble.data.model.Peer;
 
@@ -32,18 +40,46 @@ public class MessageAdapter extends RecyclerViewCursorAdapter<MessageAdapter.Vie
         void onMessageSelected(View identiconView, View usernameView, int messageId, int peerId);
     }
 
+    /**
+     * Load messages a page at a time, in {@link DataStore#MESSAGE_PAGE_COLUMNS}, rather than every
+     * message with every column at once. The next page is loaded on a background thread as messages
+     * near the end of those loaded are bound.
+     */
+    public static final int FLAG_PAGED = 0x04;
+
+    /** Messages per page in {@link #FLAG_PAGED} mode */
+    public static final int PAGE_SIZE = 50;
+
+    /** The next page is loaded once a message this near the end of those loaded is bound */
+    private static final int PREFETCH_DISTANCE = 20;
+
+    private static ExecutorService sPageLoader;
+
     private DataStore mDataStore;
+    private Peer mFromPeer;
     private RecyclerView mHost;
     private MessageSelectedListener mListener;
 
+    /** Paged mode state. Accessed on the main thread */
+    private final boolean mPaged;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final List<Cursor> mPages = new ArrayList<>();
+    /** Key of the last message loaded. See {@link DataStore#getMessagePage} */
+    private long mLastReceivedDate = DataStore.FIRST_PAGE;
+    private long mLastId = DataStore.FIRST_PAGE;
+    private boolean mExhausted;
+    private boolean mLoadingPage;
+    private boolean mReloading;
+    private boolean mReloadAgain;
+    /** Incremented on each reload, so pages requested before it are dropped */
+    private int mGeneration;
+
     public static class ViewHolder extends RecyclerView.ViewHolder {
         public View container;
         public TextView senderView;
         public TextView messageView;
         public TextView authoredView;
         public SymmetricIdenticon identicon;
-        public Peer peer;
-
 
         public ViewHolder(View v) {
             super(v);
@@ -63,18 +99,21 @@ public class MessageAdapter extends RecyclerViewCursorAdapter<MessageAdapter.Vie
      * @param dataStore     The data backend
      * @param fromPeer      A Peer to show messages from, or null to show all messages
      * @param flags         Flags used to determine the behavior of the adapter;
-     *                Currently it accept {@link #FLAG_REGISTER_CONTENT_OBSERVER}.
+     *                Currently it accept {@link #FLAG_REGISTER_CONTENT_OBSERVER} and {@link #FLAG_PAGED}.
      */
     public MessageAdapter(@NonNull Context context,
                           @Nullable Peer fromPeer,
                           @NonNull DataStore dataStore,
                           @Nullable MessageSelectedListener listener,
                           int flags) {
-        super(context,
-                fromPeer == null ? dataStore.getRecentMessages().getCursor() :
-                                   dataStore.getRecentMessagesByPeer(fromPeer).getCursor(), flags);
+        super(context, (flags & FLAG_PAGED) == FLAG_PAGED ?
+                dataStore.getMessagePage(fromPeer, DataStore.FIRST_PAGE, DataStore.FIRST_PAGE, PAGE_SIZE).getCursor() :
+                loadAllMessages(dataStore, fromPeer), flags);
         mDataStore = dataStore;
+        mFromPeer = fromPeer;
         mListener = listener;
+        mPaged = (flags & FLAG_PAGED) == FLAG_PAGED;
+        if (mPaged) onPagesLoaded(mCursor, PAGE_SIZE);
     }
 
     @Override
@@ -86,34 +125,348 @@ public class MessageAdapter extends RecyclerViewCursorAdapter<MessageAdapter.Vie
     public void onBindViewHolder(ViewHolder holder, Cursor cursor) {
         holder.container.setTag(R.id.view_tag_msg_id, cursor.getInt(cursor.getColumnIndex(MessageTable.id)));
 
-        if (holder.peer == null) // TODO : Should do this lookup on a background thread
-            holder.peer = mDataStore.getPeerById(cursor.getInt(cursor.getColumnIndex(MessageTable.peerId)));
-
-        if (holder.peer != null) {
-            holder.container.setTag(R.id.view_tag_peer_id, holder.peer.getId());
-            holder.senderView.setText(holder.peer.getAlias());
-            holder.identicon.show(new String(holder.peer.getPublicKey()));
+        // The sender is joined to each message, so binding reads only the cursor
+        int aliasColumn = cursor.getColumnIndex(ChatDatabaseMigrations.MESSAGES_WITH_SENDER_ALIAS);
+        byte[] senderPublicKey = cursor.getBlob(cursor.getColumnIndex(ChatDatabaseMigrations.MESSAGES_WITH_SENDER_PUBLIC_KEY));
+        if (senderPublicKey != null) {
+            holder.container.setTag(R.id.view_tag_peer_id, cursor.getInt(cursor.getColumnIndex(MessageTable.peerId)));
+            holder.senderView.setText(cursor.getString(aliasColumn));
+            holder.identicon.show(new String(senderPublicKey));
         } else {
+            holder.container.setTag(R.id.view_tag_peer_id, null);
             holder.senderView.setText("?");
             holder.identicon.show(UUID.randomUUID());
         }
         holder.messageView.setText(cursor.getString(cursor.getColumnIndex(MessageTable.body)));
-        try {
-            holder.authoredView.setText(DateUtils.getRelativeTimeSpanString(
-                    DataUtil.storedDateFormatter.parse(cursor.getString(cursor.getColumnIndex(MessageTable.authoredDate))).getTime()));
-        } catch (ParseException e) {
-            holder.authoredView.setText("");
-            e.printStackTrace();
-        }
+        holder.authoredView.setText(DateUtils.getRelativeTimeSpanString(
+                cursor.getLong(cursor.getColumnIndex(MessageTable.authoredDate))));
+
+        if (mPaged && cursor.getPosition() >= getItemCount() - PREFETCH_DISTANCE)
+            loadNextPage();
     }
 
     @Override
     protected void onContentChanged() {
         Log.i(TAG, "onContentChanged");
-        changeCursor(mDataStore.getRecentMessages().getCursor());
+        if (mPaged) {
+            reloadPages();
+            return;
+        }
+        changeCursor(loadAllMessages(mDataStore, mFromPeer));
         mHost.smoothScrollToPosition(0);
     }
 
+    private static Cursor loadAllMessages(DataStore dataStore, @Nullable Peer fromPeer) {
+        return fromPeer == null ? dataStore.getRecentMessages().getCursor() :
+                                  dataStore.getRecentMessagesByPeer(fromPeer).getCursor();
+    }
+
+    /**
+     * Load the page after the messages loaded, unless one is loading or every message is loaded
+     */
+    private void loadNextPage() {
+        if (mExhausted || mLoadingPage || mReloading) return;
+
+        mLoadingPage = true;
+        final int generation = mGeneration;
+        final long lastReceivedDate = mLastReceivedDate;
+        final long lastId = mLastId;
+        getPageLoader().execute(new Runnable() {
+            @Override
+            public void run() {
+                final Cursor page = mDataStore.getMessagePage(mFromPeer, lastReceivedDate, lastId, PAGE_SIZE).getCursor();
+                // Fill the cursor's window here rather than on the main thread
+                page.getCount();
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        mLoadingPage = false;
+                        if (generation != mGeneration) {
+                            page.close();
+                            return;
+                        }
+                        appendPage(page);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Append page, the page following the messages loaded
+     */
+    void appendPage(Cursor page) {
+        int start = getItemCount();
+        onPagesLoaded(page, PAGE_SIZE);
+        // Pages share their cursors, so the previous cursor isn't closed
+        swapCursorWithoutNotifying(new MergeCursor(mPages.toArray(new Cursor[mPages.size()])));
+        notifyItemRangeInserted(start, page.getCount());
+    }
+
+    /**
+     * Reload the latest page and merge it ahead of the pages loaded, so new messages appear
+     * without losing the place of a reader scrolled back through earlier pages. Only a reader
+     * already at the top is brought to the new messages.
+     */
+    private void reloadPages() {
+        // Each page notifies of a change, so coalesce notifications arriving during a reload
+        if (mReloading) {
+            mReloadAgain = true;
+            return;
+        }
+
+        mReloading = true;
+        final int generation = ++mGeneration;
+        getPageLoader().execute(new Runnable() {
+            @Override
+            public void run() {
+                final Cursor head = mDataStore.getMessagePage(mFromPeer, DataStore.FIRST_PAGE, DataStore.FIRST_PAGE, PAGE_SIZE).getCursor();
+                head.getCount();
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        mReloading = false;
+                        if (generation != mGeneration) {
+                            head.close();
+                            return;
+                        }
+                        boolean atTop = mHost == null || !mHost.canScrollVertically(-1);
+                        int newMessages = mergeHeadPage(head);
+                        if (atTop && newMessages > 0 && mHost != null) mHost.scrollToPosition(0);
+
+                        if (mReloadAgain) {
+                            mReloadAgain = false;
+                            reloadPages();
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Merge head, the latest page, ahead of the pages loaded, replacing the messages loaded that
+     * head also holds. If head doesn't reach the messages loaded, it replaces them all.
+     *
+     * @return the number of messages in head newer than those loaded
+     */
+    int mergeHeadPage(Cursor head) {
+        if (getItemCount() == 0 || !head.moveToLast()) {
+            resetPages(head);
+            return head.getCount();
+        }
+        long headLastReceivedDate = getReceivedDate(head);
+        long headLastId = getId(head);
+
+        mCursor.moveToFirst();
+        long firstReceivedDate = getReceivedDate(mCursor);
+        long firstId = getId(mCursor);
+        int newMessages = 0;
+        head.moveToPosition(-1);
+        while (head.moveToNext() && isNewer(getReceivedDate(head), getId(head), firstReceivedDate, firstId)) {
+            newMessages++;
+        }
+        if (newMessages == PAGE_SIZE) {
+            // More messages arrived than a page holds, leaving a gap after head
+            resetPages(head);
+            return newMessages;
+        }
+
+        // The messages loaded up to head's last are leading rows of the first pages
+        List<Cursor> pages = new ArrayList<>(mPages.size() + 1);
+        List<Cursor> replacedPages = new ArrayList<>();
+        pages.add(head);
+        int replaced = 0;
+        boolean replacing = true;
+        for (Cursor page : mPages) {
+            int rows = 0;
+            if (replacing) {
+                page.moveToPosition(-1);
+                while (page.moveToNext() && !isNewer(headLastReceivedDate, headLastId, getReceivedDate(page), getId(page))) {
+                    rows++;
+                }
+                replacing = rows == page.getCount();
+                replaced += rows;
+            }
+            if (rows == page.getCount())
+                replacedPages.add(page);
+            else
+                pages.add(TrimmedPage.trim(page, rows));
+        }
+        if (replacing) {
+            // head holds every message loaded, so the next page follows it
+            mLastReceivedDate = headLastReceivedDate;
+            mLastId = headLastId;
+            mExhausted = head.getCount() < PAGE_SIZE;
+        }
+
+        mPages.clear();
+        mPages.addAll(pages);
+        swapCursorWithoutNotifying(new MergeCursor(mPages.toArray(new Cursor[mPages.size()])));
+        // Closed only once swapping the cursor unregistered our observers from them
+        for (Cursor page : replacedPages) page.close();
+
+        if (replaced == head.getCount() - newMessages) {
+            notifyItemRangeInserted(0, newMessages);
+            notifyItemRangeChanged(newMessages, replaced);
+        } else {
+            // Some messages loaded were since removed
+            notifyDataSetChanged();
+        }
+        return newMessages;
+    }
+
+    /**
+     * Replace the pages loaded with head
+     */
+    private void resetPages(Cursor head) {
+        List<Cursor> oldPages = new ArrayList<>(mPages);
+        mPages.clear();
+        mLastReceivedDate = DataStore.FIRST_PAGE;
+        mLastId = DataStore.FIRST_PAGE;
+        onPagesLoaded(head, PAGE_SIZE);
+        swapCursor(head);
+        for (Cursor page : oldPages) page.close();
+    }
+
+    private static long getReceivedDate(Cursor message) {
+        return message.getLong(message.getColumnIndex(MessageTable.receivedDate));
+    }
+
+    private static long getId(Cursor message) {
+        return message.getLong(message.getColumnIndex(MessageTable.id));
+    }
+
+    /**
+     * @return whether a message comes before another in {@link DataStore#getMessagePage}'s order
+     */
+    private static boolean isNewer(long receivedDate, long id, long thanReceivedDate, long thanId) {
+        return receivedDate > thanReceivedDate || (receivedDate == thanReceivedDate && id > thanId);
+    }
+
+    /**
+     * Record page, loaded with the given limit, as following those loaded
+     */
+    private void onPagesLoaded(Cursor page, int limit) {
+        mPages.add(page);
+        mExhausted = page.getCount() < limit;
+        if (page.moveToLast()) {
+            mLastReceivedDate = getReceivedDate(page);
+            mLastId = getId(page);
+        }
+    }
+
+    /**
+     * A page less the leading rows {@link #mergeHeadPage} replaced
+     */
+    static class TrimmedPage extends CursorWrapper {
+        private final Cursor mPage;
+        private final int mOffset;
+        private int mPosition = -1;
+
+        private TrimmedPage(Cursor page, int offset) {
+            super(page);
+            mPage = page;
+            mOffset = offset;
+        }
+
+        /**
+         * @return page without its first rows
+         */
+        static Cursor trim(Cursor page, int rows) {
+            if (rows == 0) return page;
+            if (page instanceof TrimmedPage) {
+                TrimmedPage trimmed = (TrimmedPage) page;
+                return new TrimmedPage(trimmed.mPage, trimmed.mOffset + rows);
+            }
+            return new TrimmedPage(page, rows);
+        }
+
+        @Override
+        public int getCount() {
+            return Math.max(0, mPage.getCount() - mOffset);
+        }
+
+        @Override
+        public int getPosition() {
+            return mPosition;
+        }
+
+        @Override
+        public boolean moveToPosition(int position) {
+            int count = getCount();
+            if (position >= count) {
+                mPosition = count;
+                return false;
+            }
+            if (position < 0) {
+                mPosition = -1;
+                return false;
+            }
+            mPosition = position;
+            return mPage.moveToPosition(position + mOffset);
+        }
+
+        @Override
+        public boolean move(int offset) {
+            return moveToPosition(mPosition + offset);
+        }
+
+        @Override
+        public boolean moveToFirst() {
+            return moveToPosition(0);
+        }
+
+        @Override
+        public boolean moveToLast() {
+            return moveToPosition(getCount() - 1);
+        }
+
+        @Override
+        public boolean moveToNext() {
+            return moveToPosition(mPosition + 1);
+        }
+
+        @Override
+        public boolean moveToPrevious() {
+            return moveToPosition(mPosition - 1);
+        }
+
+        @Override
+        public boolean isFirst() {
+            return getCount() != 0 && mPosition == 0;
+        }
+
+        @Override
+        public boolean isLast() {
+            return getCount() != 0 && mPosition == getCount() - 1;
+        }
+
+        @Override
+        public boolean isBeforeFirst() {
+            return getCount() == 0 || mPosition == -1;
+        }
+
+        @Override
+        public boolean isAfterLast() {
+            return getCount() == 0 || mPosition == getCount();
+        }
+    }
+
+    private static synchronized ExecutorService getPageLoader() {
+        if (sPageLoader == null) {
+            sPageLoader = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(@NonNull Runnable runnable) {
+                    Thread thread = new Thread(runnable, "MessagePageLoader");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sPageLoader;
+    }
+
     @Override
     public ViewHolder onCreateViewHolder(ViewGroup parent, int i) {
         View v = LayoutInflater.from(parent.getContext())
@@ -122,7 +475,7 @@ public class MessageAdapter extends RecyclerViewCursorAdapter<MessageAdapter.Vie
         v.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
-                if (mListener != null)
+                if (mListener != null && v.getTag(R.id.view_tag_peer_id) != null)
                     mListener.onMessageSelected(v.findViewById(R.id.identicon),
                                                 v.findViewById(R.id.sender),
                                                 (Integer) v.getTag(R.id.view_tag_msg_id),
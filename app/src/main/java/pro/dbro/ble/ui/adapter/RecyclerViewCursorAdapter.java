@@ -228,6 +228,21 @@ public abstract class RecyclerViewCursorAdapter<VH extends RecyclerView.ViewHold
         if (newCursor == mCursor) {
             return null;
         }
+        Cursor oldCursor = swapCursorWithoutNotifying(newCursor);
+        // notify the observers about the new cursor, or the lack of a data set
+        notifyDataSetChanged();
+//        notifyDataSetInvalidated();
+        return oldCursor;
+    }
+
+    /**
+     * Like {@link #swapCursor(Cursor)}, but leaves notifying observers to the caller, who may
+     * describe the change more precisely, e.g. with {@link #notifyItemRangeInserted(int, int)}.
+     *
+     * @param newCursor The new cursor to be used.
+     * @return Returns the previously set Cursor, or null if there was not one.
+     */
+    protected Cursor swapCursorWithoutNotifying(Cursor newCursor) {
         Cursor oldCursor = mCursor;
         if (oldCursor != null) {
             if (mChangeObserver != null) oldCursor.unregisterContentObserver(mChangeObserver);
@@ -239,14 +254,9 @@ public abstract class RecyclerViewCursorAdapter<VH extends RecyclerView.ViewHold
             if (mDataSetObserver != null) newCursor.registerDataSetObserver(mDataSetObserver);
             mRowIDColumn = newCursor.getColumnIndexOrThrow("_id");
             mDataValid = true;
-            // notify the observers about the new cursor
-            notifyDataSetChanged();
         } else {
             mRowIDColumn = -1;
             mDataValid = false;
-            // notify the observers about the lack of a data set
-            notifyDataSetChanged();
-//            notifyDataSetInvalidated();
         }
         return oldCursor;
     }
@@ -76,7 +76,7 @@ public class MessagingFragment extends Fragment implements MessageAdapter.Messag
         });
         mRecyclerView = (RecyclerView) mRoot.findViewById(R.id.recyclerView);
         mRecyclerView.setLayoutManager(new LinearLayoutManager(getActivity()));
-        mAdapter = new MessageAdapter(getActivity(), null, mDataStore, this, MessageAdapter.FLAG_REGISTER_CONTENT_OBSERVER);
+        mAdapter = new MessageAdapter(getActivity(), null, mDataStore, this, MessageAdapter.FLAG_REGISTER_CONTENT_OBSERVER | MessageAdapter.FLAG_PAGED);
         mRecyclerView.setAdapter(mAdapter);
         return mRoot;
     }